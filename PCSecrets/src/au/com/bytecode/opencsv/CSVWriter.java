@@ -155,6 +155,16 @@ public class CSVWriter {
 
     }
 
+    /**
+     * Flush the underlying writer and check for errors. The print writer
+     * used to write lines does not throw exceptions.
+     *
+     * @return true if an error has occurred on the underlying writer
+     */
+    public boolean checkError() {
+        return pw.checkError();
+    }
+
     /**
      * Close the underlying stream writer flushing any buffered content.
      *
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.MessageFormat;
+
+import com.ceperman.utils.CountingInputStream;
+import com.ceperman.utils.CsvReader;
+
+/**
+ * Records read from a CSV file, one record at a time.
+ *
+ * The field names are taken from the first record if it is a header,
+ * otherwise they are #1, #2, etc. Every record must have the same number of
+ * fields as the first.
+ *
+ * @author Chris Wood
+ */
+public class CSVRecordSource implements RecordSource {
+   private final CsvReader csvr;
+   private final CountingInputStream counter;
+   private final long length;
+   private final String[] fieldNames;
+   private String[] pending; // first record, when it is data
+   private int recCount;
+
+   /**
+    * Constructor - open the file and read the first record
+    *
+    * @param file non-empty CSV file
+    * @param header true if the first record is a header
+    * @throws IOException
+    */
+   public CSVRecordSource(File file, boolean header) throws IOException {
+      length = file.length();
+      counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+      csvr = new CsvReader(new InputStreamReader(counter)); // platform encoding, as FileReader
+      String[] first = csvr.readNext();
+      if (first == null) {
+         first = new String[0];
+      }
+      if (header) {
+         fieldNames = first;
+         recCount++;
+      } else {
+         fieldNames = new String[first.length];
+         for (int i = 0; i < first.length; i++) {
+            fieldNames[i] = "#" + (i + 1);
+         }
+         pending = first;
+      }
+   }
+
+   @Override
+   public String[] getFieldNames() {
+      return fieldNames;
+   }
+
+   @Override
+   public String[] next() throws IOException, DataFormatException {
+      String[] fieldValues = pending;
+      pending = null;
+      if (fieldValues == null) {
+         fieldValues = csvr.readNext();
+         if (fieldValues == null) {
+            return null;
+         }
+      }
+      if (fieldValues.length != fieldNames.length) {
+         // problem if all records not same length
+         throw new DataFormatException(MessageFormat.format(Messages.getString("FileImporter.csvfieldcounterror"),
+                     recCount + 1));
+      }
+      recCount++;
+      return fieldValues;
+   }
+
+   @Override
+   public int getProgress() {
+      return counter.getPercent(length);
+   }
+
+   @Override
+   public void close() throws IOException {
+      csvr.close();
+   }
+}
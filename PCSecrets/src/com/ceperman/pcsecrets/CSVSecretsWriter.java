@@ -0,0 +1,76 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+import com.ceperman.utils.CsvWriter;
+
+/**
+ * Writes secrets as CSV, with a header record of the field names. The file
+ * is in the platform encoding, as read by the CSV importer.
+ *
+ * @author Chris Wood
+ */
+public class CSVSecretsWriter extends SecretsWriter {
+   private static final String[] COLUMN_NAMES = { Constants.COL_DESCRIPTION, Constants.COL_USERNAME,
+               Constants.COL_PASSWORD, Constants.COL_EMAIL, Constants.COL_NOTES, Constants.COL_TIMESTAMP };
+
+   private final CsvWriter csvw;
+
+   /**
+    * Constructor - create the file and write the header
+    *
+    * @param file
+    * @throws IOException
+    */
+   public CSVSecretsWriter(File file) throws IOException {
+      super(file, Charset.defaultCharset());
+      csvw = new CsvWriter(out);
+      csvw.writeNext(COLUMN_NAMES);
+   }
+
+   @Override
+   public void write(HostSecret hs) throws IOException {
+      char[] password = hs.getPasswordChars();
+      char[] note = hs.getNoteChars();
+      try {
+         csvw.writeNext(new CharSequence[] { hs.getDescription(), hs.getUsername(), CharBuffer.wrap(password),
+                     hs.getEmail(), CharBuffer.wrap(note), hs.getFormattedTimestamp() });
+      } finally {
+         zero(password, note);
+      }
+   }
+
+   @Override
+   public void finish() throws IOException {
+      if (csvw.checkError()) { // the CSV writer does not report errors as they occur
+         throw new IOException("Error writing CSV data");
+      }
+   }
+
+   /**
+    * Close the CSV writer, which zeroes its buffer, and the file
+    */
+   @Override
+   public void close() throws IOException {
+      csvw.close(); // flushes and closes out
+   }
+}
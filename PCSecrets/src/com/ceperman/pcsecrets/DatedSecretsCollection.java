@@ -63,7 +63,7 @@ public class DatedSecretsCollection extends SecretsCollection {
 	 * @return the timestamp
 	 */
 	public String getFormattedSyncDate() {
-		return HostSecret.sdf.format(lastSyncTimestamp);
+		return TimestampFormat.format(lastSyncTimestamp);
 	}
 
 	/**
@@ -71,7 +71,7 @@ public class DatedSecretsCollection extends SecretsCollection {
 	 */
 	public void setFormattedSyncDate(String timestampstring) {
 		try {
-			lastSyncTimestamp = HostSecret.sdf.parse(timestampstring).getTime();
+			lastSyncTimestamp = TimestampFormat.parse(timestampstring);
 		} catch (ParseException e) {
 			logger.log(Level.WARNING, "setFormattedSyncDate: " + e.getLocalizedMessage());
 		}
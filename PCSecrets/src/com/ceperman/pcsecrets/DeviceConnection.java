@@ -17,78 +17,22 @@
 package com.ceperman.pcsecrets;
 
 import java.awt.Window;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
 
 import com.ceperman.utils.Bytes;
 
 /**
- * Class to encapsulate communication with phone. Holds the reference to the socket.
+ * Class to encapsulate communication with phone. The connection itself is held by
+ * the SyncSession, so that several devices can be connected at once, and messages
+ * are framed by its FramedChannel.
  * 
  * @author Chris Wood
  */
 public abstract class DeviceConnection extends AbstractPhoneCommunicator {
-	private static Socket connectionSocket = null;
-
 	protected DeviceConnection(Window parent) {
 		super(parent);
 	}
-
-	/**
-	 * @return the connectionSocket
-	 */
-	protected static Socket getConnectionSocket() {
-		return connectionSocket;
-	}
-
-	/**
-	 * @param connectionSocket the connectionSocket to set
-	 */
-	protected static void setConnectionSocket(Socket httpPhone) {
-		DeviceConnection.connectionSocket = httpPhone;
-	}
    
-	protected void writeData(byte[] data, OutputStream os) throws IOException {
-      os.write(toByteArray(data.length), 0, 4);
-      os.write(data, 0, data.length);
-   }
-   
-	protected byte[] readData(InputStream is) throws IOException {
-      byte[] dataLength = new byte[4];
-      
-      // read the length header
-      is.read(dataLength, 0, 4);
-      
-      /* read the data - a single read is not sufficient because the 
-       * data is not necessarily delivered in one chunk
-       */
-      
-      byte[] data = new byte[fromByteArray(dataLength)];
-      int offset = 0;
-      int numRead = 0;
-      while (offset < data.length
-                  && (numRead = is.read(data, offset, data.length - offset)) >= 0) {
-         offset += numRead;
-      }
-      
-      return data;
-   }
-   
-	protected byte[] toByteArray(int value) {
-      return new byte[] {
-          (byte) (value >> 24),
-          (byte) (value >> 16),
-          (byte) (value >> 8),
-          (byte) value};
-  }
-
-	protected int fromByteArray(byte[] bytes) {
-       return bytes[0] << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
-  }
-  
-	protected String bytesToHexTruncated(byte[] b) {
+	protected static String bytesToHexTruncated(byte[] b) {
      int max = 32;
      String stringData = new String();
      if (b.length > max) {
@@ -16,12 +16,19 @@
 
 package com.ceperman.pcsecrets;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.ceperman.utils.Strings;
+
 
 /**
  * Encapsulates a secrets collection received from a device.
@@ -31,6 +38,18 @@ import org.json.JSONObject;
  * 
  * The SyncDevice object holds device info.
  * 
+ * If the PC offers delta sync (see InputPhone), a device may send only the
+ * secrets changed since the last sync, including deleted ones. The JSON then
+ * has "delta" set and "since" holding the sync timestamp the device last
+ * received from the PC. {@link #expandDelta(SecretsCollection, SyncDevice)}
+ * turns this into the equivalent full collection for the sync dialog.
+ * 
+ * If the PC sends its vault digest (see VaultDigest), a device may instead
+ * send only the secrets in the buckets that differ from the PC's, with the
+ * JSON "buckets" array listing those buckets. An empty array means the device
+ * holds the same secrets as the PC. {@link #expandBuckets(SecretsCollection)}
+ * turns this into the equivalent full collection.
+ * 
  * @author Chris Wood
  */
 @SuppressWarnings("serial")
@@ -39,6 +58,9 @@ public class DeviceSecretsCollection extends EncryptableSecretsCollection {
   
   private String id; // device id
   private String ip; // source IP address
+  private boolean delta; // only secrets changed since deltaSince are present
+  private long deltaSince;
+  private int[] buckets; // if not null, only secrets in these digest buckets are present
   
   /**
    * Default constructor
@@ -54,6 +76,9 @@ public class DeviceSecretsCollection extends EncryptableSecretsCollection {
     super(other);
     this.id = other.id;
     this.ip = other.ip;
+    this.delta = other.delta;
+    this.deltaSince = other.deltaSince;
+    this.buckets = other.buckets;
   }
 
   /* Extract the device info.
@@ -71,6 +96,174 @@ public class DeviceSecretsCollection extends EncryptableSecretsCollection {
       logger.log(Level.WARNING, "No device id present");
     }
     ip = getSourceName();
+    delta = jsonValues.optBoolean("delta", false);
+    if (delta) {
+      deltaSince = jsonValues.getLong("since");
+      logger.log(Level.FINE, "Delta since: " + TimestampFormat.format(deltaSince));
+    }
+    JSONArray jsonBuckets = jsonValues.optJSONArray("buckets");
+    if (jsonBuckets != null) {
+      buckets = new int[jsonBuckets.length()];
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = jsonBuckets.getInt(i);
+      }
+      logger.log(Level.FINE, "Differing buckets: " + buckets.length);
+    }
+  }
+
+  /**
+   * @return true if the collection holds only the changes since {@link #getDeltaSince()}
+   */
+  public boolean isDelta() {
+    return delta;
+  }
+
+  /**
+   * @return the sync timestamp the delta is based on
+   */
+  public long getDeltaSince() {
+    return deltaSince;
+  }
+
+  /**
+   * @return true if the collection holds only the secrets in {@link #getBuckets()}
+   */
+  public boolean isPartial() {
+    return buckets != null;
+  }
+
+  /**
+   * @return the digest buckets present, or null if not partial
+   */
+  public int[] getBuckets() {
+    return buckets;
+  }
+
+  /**
+   * Mark the collection as holding only the secrets in some digest buckets
+   * @param buckets the buckets present
+   */
+  public void setBuckets(int[] buckets) {
+    this.buckets = buckets;
+  }
+
+  /**
+   * Mark the collection as holding only the changes since a sync
+   * @param since the sync timestamp the delta is based on
+   */
+  public void setDeltaSince(long since) {
+    delta = true;
+    deltaSince = since;
+  }
+
+  /* Add the delta info, if any.
+   * 
+   * @see com.ceperman.pcsecrets.EncryptableSecretsCollection#toJSON()
+   */
+  @Override
+  protected JSONObject toJSON() throws JSONException {
+    JSONObject jsonValues = super.toJSON();
+    if (delta) {
+      jsonValues.put("delta", true);
+      jsonValues.put("since", deltaSince);
+    }
+    if (buckets != null) {
+      JSONArray jsonBuckets = new JSONArray();
+      for (int bucket : buckets) {
+        jsonBuckets.put(bucket);
+      }
+      jsonValues.put("buckets", jsonBuckets);
+    }
+    return jsonValues;
+  }
+
+  /**
+   * Expand a delta into the full device collection it stands for. Secrets
+   * the device did not send are unchanged on the device since the last sync,
+   * so it holds what the PC held then:
+   * - PC secrets not changed since the last sync are added as they are
+   * - PC secrets changed since are left out, so they are sent to the device
+   * - secrets deleted on the PC since are added as unchanged placeholders, so
+   *   the deletions are sent to the device
+   * The PC secrets changed since the last sync are found from the collection
+   * version recorded for the device, not from the secret timestamps: secrets
+   * merged from other devices or imported keep their original timestamps,
+   * which may be older than the last sync. The caller must first check that
+   * the delta is based on the PC's record of the last sync with this device,
+   * and that the device has a sync version.
+   * 
+   * @param pcSecrets
+   * @param syncDevice the device, with its sync version and deletion data
+   * @return the expanded collection
+   */
+  public DeviceSecretsCollection expandDelta(SecretsCollection pcSecrets, SyncDevice syncDevice) {
+    DeviceSecretsCollection full = new DeviceSecretsCollection(this);
+    SecretsCollection.Snapshot snapshot = pcSecrets.snapshot();
+    SecretsCollection.Changes changes = pcSecrets.changesSince(syncDevice.getSyncVersion());
+    Set<String> changed = new HashSet<String>(); // case-folded descriptions
+    for (HostSecret secret : changes.getUpdated()) {
+      changed.add(Strings.foldCase(secret.getDescription()));
+    }
+    List<HostSecret> unchanged = new ArrayList<HostSecret>();
+    for (HostSecret secret : snapshot) {
+      if (!changed.contains(Strings.foldCase(secret.getDescription())) && !contains(secret.getDescription())) {
+        unchanged.add(secret);
+      }
+    }
+    for (SyncDevice.DeletedSecret deletedSecret : syncDevice.getDeletedSecrets()) {
+      if (!contains(deletedSecret.getDescription())) {
+        HostSecret placeholder = new HostSecret(deletedSecret.getDescription());
+        placeholder.setTimestamp(0);
+        unchanged.add(placeholder);
+      }
+    }
+    full.addOrUpdateAll(unchanged);
+    full.delta = false;
+    logger.log(Level.INFO, "Delta of " + getSize() + " expanded to " + full.getSize());
+    return full;
+  }
+
+  /**
+   * Expand a partial collection into the full device collection it stands
+   * for. The secrets in the buckets the device did not send are the same as
+   * the PC's, so the PC secrets in those buckets are added as they are. The
+   * caller must first check that the PC digest has not changed since it was
+   * sent to the device.
+   * 
+   * @param pcSecrets
+   * @param digest the PC digest sent to the device
+   * @return the expanded collection
+   */
+  public DeviceSecretsCollection expandBuckets(SecretsCollection pcSecrets, VaultDigest digest) {
+    DeviceSecretsCollection full = new DeviceSecretsCollection(this);
+    boolean[] sent = new boolean[VaultDigest.BUCKETS];
+    for (int bucket : buckets) {
+      sent[bucket] = true;
+    }
+    List<HostSecret> same = new ArrayList<HostSecret>();
+    for (HostSecret secret : pcSecrets.snapshot()) {
+      if (!sent[digest.getBucket(secret.getDescription())]) {
+        same.add(secret);
+      }
+    }
+    full.addOrUpdateAll(same);
+    full.buckets = null;
+    logger.log(Level.INFO, buckets.length + " buckets (" + getSize() + " secrets) expanded to " + full.getSize());
+    return full;
+  }
+
+  /**
+   * Create an empty collection for the reply to the device, with the same
+   * device and cipher details as this one
+   * 
+   * @return empty collection
+   */
+  public DeviceSecretsCollection createReply() {
+    DeviceSecretsCollection reply = new DeviceSecretsCollection(this);
+    reply.clear();
+    reply.delta = false;
+    reply.buckets = null;
+    return reply;
   }
 
   /**
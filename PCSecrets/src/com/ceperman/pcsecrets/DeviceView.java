@@ -152,10 +152,9 @@ public class DeviceView extends JDialog implements ActionListener {
    public void actionPerformed(ActionEvent event) {
       logger.log(Level.INFO, "command is " + event.getActionCommand());
       SyncDevice selectedDevice = (SyncDevice) jDeviceList.getSelectedValue();
-      int index = jDeviceList.getSelectedIndex();
       if (event.getActionCommand().equals(FORGET)) {
          syncDevices.remove(selectedDevice.getId());
-         syncDevices.intervalRemoved(index);
+         syncDevices.collectTombstones(); // may have been waiting for this device
          syncDevices.setChanged(true);
          logger.log(Level.INFO, "device removed: " + selectedDevice.getId());
          /* ButtonFormListener is not called here even tho the selection has just 
@@ -166,7 +165,7 @@ public class DeviceView extends JDialog implements ActionListener {
          deviceForm.clear();
       } else if (event.getActionCommand().equals(UPDATE)) {
          selectedDevice.setDisplayName(deviceForm.getDisplayName());
-         syncDevices.contentsChanged();
+         syncDevices.deviceChanged(selectedDevice);
          syncDevices.setChanged(true);
       } else if (event.getActionCommand().equals(CLOSE)) {
          this.dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING));
@@ -300,7 +299,7 @@ public class DeviceView extends JDialog implements ActionListener {
          }
          long timestamp = device.getSyncTimestamp();
          if (timestamp > 0) {
-            fieldTimestamp.setText(SecretsProperties.sdf.format(device.getSyncTimestamp()));
+            fieldTimestamp.setText(TimestampFormat.format(device.getSyncTimestamp()));
          } else {
             fieldTimestamp.setText(Messages.getString("DeviceView.notknown"));
          }
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * UDP service so that devices can find the PC.
+ *
+ * A device broadcasts {@value #REQUEST} to the discovery port and the PC
+ * replies {@value #RESPONSE}. While the sync server is listening, the PC also
+ * broadcasts an announcement every {@value #ANNOUNCE_INTERVAL} seconds, so a
+ * device that is listening can connect without a discovery round trip. The
+ * announcement is {@value #ANNOUNCEMENT} followed by key=value lines, as in
+ * the sync metadata: the sync server port and the capabilities offered.
+ *
+ * The receive buffer and the response are allocated once. Each sender gets
+ * no more than {@value #RESPONSES_PER_SECOND} responses a second; further
+ * requests are dropped.
+ *
+ * The service is created when the main window opens, which also checks that
+ * PCSecrets is not already running, and started once the secrets are
+ * unlocked.
+ *
+ * @author Chris Wood
+ */
+public class DiscoveryService {
+   private static Logger logger = Logger.getLogger(DiscoveryService.class.getName());
+
+   /** discovery request from a device */
+   public static final String REQUEST = "DISCOVER_PCSECRETS_REQUEST";
+   /** response to the discovery request */
+   public static final String RESPONSE = "DISCOVER_PCSECRETS_RESPONSE";
+   /** first line of the periodic announcement */
+   public static final String ANNOUNCEMENT = "PCSECRETS_ANNOUNCE";
+   /** announcement item prefix for the sync server port */
+   public static final String ANNOUNCE_PORT = "port=";
+   /** announcement item prefix for the capabilities, comma separated */
+   public static final String ANNOUNCE_CAPABILITIES = "capabilities=";
+   /** seconds between announcements */
+   public static final int ANNOUNCE_INTERVAL = 10;
+   /** responses allowed to each sender per second */
+   public static final int RESPONSES_PER_SECOND = 5;
+
+   private static final String CHARSET = "UTF-8";
+   private static final int BUFFER_SIZE = 256;
+   /* senders tracked for rate limiting before old ones are cleared */
+   private static final int MAX_TRACKED_SENDERS = 1024;
+
+   private final DatagramSocket socket;
+   private final byte[] request;
+   private final DatagramPacket receivePacket = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
+   private final DatagramPacket responsePacket;
+   /* sender -> {start of the current second, responses in it} */
+   private final Map<InetAddress, long[]> senders = new HashMap<InetAddress, long[]>();
+   private ScheduledExecutorService scheduler;
+   private ScheduledFuture<?> announcer;
+   private Thread responder;
+
+   /**
+    * Constructor - open the discovery port
+    *
+    * @param port discovery port, or 0 for any free port
+    * @throws SocketException if the port is in use, usually because PCSecrets
+    *            is already running
+    */
+   public DiscoveryService(int port) throws SocketException {
+      request = encode(REQUEST);
+      byte[] response = encode(RESPONSE);
+      responsePacket = new DatagramPacket(response, response.length);
+      socket = new DatagramSocket(port); // all local addresses
+   }
+
+   /**
+    * @return the discovery port
+    */
+   public int getLocalPort() {
+      return socket.getLocalPort();
+   }
+
+   /**
+    * Start answering discovery requests
+    */
+   public synchronized void start() {
+      if (responder != null) {
+         return;
+      }
+      try {
+         socket.setBroadcast(true);
+      } catch (SocketException e) {
+         logger.log(Level.WARNING, "UDPDiscovery cannot broadcast: " + e.getMessage());
+      }
+      responder = new Thread("UDPDiscovery") {
+         @Override
+         public void run() {
+            respond();
+         }
+      };
+      responder.setDaemon(true);
+      responder.start();
+      logger.log(Level.FINE, "UDPDiscovery started on port " + socket.getLocalPort());
+   }
+
+   /**
+    * Start (or change) the periodic announcement
+    *
+    * @param serverPort port the sync server is listening on
+    * @param capabilities capabilities offered, comma separated
+    */
+   public synchronized void announce(int serverPort, String capabilities) {
+      final byte[] announcement = encode(ANNOUNCEMENT + "\n" + ANNOUNCE_PORT + serverPort + "\n"
+                  + ANNOUNCE_CAPABILITIES + capabilities);
+      if (announcer != null) {
+         announcer.cancel(false);
+      }
+      if (scheduler == null) {
+         scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "UDPAnnouncer");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      announcer = scheduler.scheduleAtFixedRate(new Runnable() {
+         @Override
+         public void run() {
+            broadcast(announcement);
+         }
+      }, 0, ANNOUNCE_INTERVAL, TimeUnit.SECONDS);
+   }
+
+   /**
+    * Stop the periodic announcement, still answering discovery requests
+    */
+   public synchronized void stopAnnouncing() {
+      if (announcer != null) {
+         announcer.cancel(false);
+         announcer = null;
+      }
+   }
+
+   /**
+    * Stop the service and close the discovery port
+    */
+   public synchronized void stop() {
+      if (scheduler != null) {
+         scheduler.shutdownNow();
+         scheduler = null;
+      }
+      socket.close();
+   }
+
+   /*
+    * Answer requests until the socket is closed
+    */
+   private void respond() {
+      byte[] buffer = receivePacket.getData();
+      try {
+         while (true) {
+            receivePacket.setLength(buffer.length);
+            socket.receive(receivePacket); // blocks here
+            InetAddress sender = receivePacket.getAddress();
+            if (!isRequest(buffer, receivePacket.getLength())) {
+               continue; // includes our own announcements
+            }
+            if (!allow(sender, System.currentTimeMillis())) {
+               logger.log(Level.FINE, "UDPDiscovery rate limit - request dropped from " + sender.getHostAddress());
+               continue;
+            }
+            responsePacket.setAddress(sender);
+            responsePacket.setPort(receivePacket.getPort());
+            socket.send(responsePacket);
+            logger.log(Level.FINE, "UDPDiscovery sent packet to: " + sender.getHostAddress());
+         }
+      } catch (IOException e) {
+         if (socket.isClosed()) {
+            logger.log(Level.FINE, "UDP socket closed");
+         } else {
+            logger.log(Level.FINE, "UDP socket problem: " + e.getMessage());
+         }
+      }
+   }
+
+   private void broadcast(byte[] announcement) {
+      try {
+         socket.send(new DatagramPacket(announcement, announcement.length, InetAddress.getByName("255.255.255.255"),
+                     socket.getLocalPort()));
+      } catch (IOException e) {
+         logger.log(Level.FINE, "UDPDiscovery announcement not sent: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Is the packet the request, ignoring surrounding white space and nulls
+    */
+   private boolean isRequest(byte[] data, int length) {
+      int start = 0;
+      int end = length;
+      while (start < end && (data[start] & 0xff) <= ' ') {
+         start++;
+      }
+      while (end > start && (data[end - 1] & 0xff) <= ' ') {
+         end--;
+      }
+      if (end - start != request.length) {
+         return false;
+      }
+      for (int i = 0; i < request.length; i++) {
+         if (data[start + i] != request[i]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static byte[] encode(String message) {
+      try {
+         return message.getBytes(CHARSET);
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /*
+    * Rate limit - a fixed one second window per sender
+    */
+   private boolean allow(InetAddress sender, long now) {
+      long second = now / 1000;
+      long[] window = senders.get(sender);
+      if (window == null) {
+         if (senders.size() >= MAX_TRACKED_SENDERS) {
+            for (Iterator<long[]> it = senders.values().iterator(); it.hasNext();) {
+               if (it.next()[0] != second) {
+                  it.remove();
+               }
+            }
+            if (senders.size() >= MAX_TRACKED_SENDERS) {
+               return false; // flooded from many addresses
+            }
+         }
+         window = new long[2];
+         senders.put(sender, window);
+      }
+      if (window[0] != second) {
+         window[0] = second;
+         window[1] = 0;
+      }
+      return ++window[1] <= RESPONSES_PER_SECOND;
+   }
+}
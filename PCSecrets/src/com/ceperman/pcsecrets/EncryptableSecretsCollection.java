@@ -20,6 +20,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,6 +45,8 @@ import com.ceperman.utils.ExpandableByteBuffer;
 @SuppressWarnings("serial")
 public class EncryptableSecretsCollection extends DatedSecretsCollection {
 	private static Logger logger = Logger.getLogger(EncryptableSecretsCollection.class.getName());
+	/* bytes encrypted at a time when writing */
+	private static final int ENCRYPT_SLICE = 8 * 1024;
 	
 	private CipherInfo cipherInfo;
 	private String sourceName;
@@ -106,9 +110,11 @@ public class EncryptableSecretsCollection extends DatedSecretsCollection {
       }
       /* get the secrets */
       JSONArray jsonSecrets = jsonValues.getJSONArray("secrets");
+      List<HostSecret> loaded = new ArrayList<HostSecret>(jsonSecrets.length());
       for (int i = 0; i < jsonSecrets.length(); i++) {
-         addOrUpdate(HostSecret.fromJSON(jsonSecrets.getJSONObject(i)));
+         loaded.add(HostSecret.fromJSON(jsonSecrets.getJSONObject(i)));
       }
+      addOrUpdateAll(loaded);
       logger.log(Level.FINE, "Retrieved secrets: " + jsonSecrets.length());
    }
 
@@ -158,7 +164,8 @@ public class EncryptableSecretsCollection extends DatedSecretsCollection {
 	
 	/**
 	 * Save secrets to encrypted JSON output stream. The stream must already be open and is
-	 * closed on exit.
+	 * closed on exit. The data is encrypted a slice at a time, so that the encrypted data
+	 * reaches the stream as it is produced rather than all at the end.
 	 * 
 	 * @param os
 	 * @throws IOException
@@ -166,7 +173,10 @@ public class EncryptableSecretsCollection extends DatedSecretsCollection {
 	 */
    public void saveSecretsToEncryptedJSONStream(OutputStream os) throws IOException, JSONException {
       CipherOutputStream cos = new CipherOutputStream(os, cipherInfo.encryptCipher);
-      cos.write(toJSON().toString().getBytes("UTF-8"));
+      byte[] json = toJSON().toString().getBytes("UTF-8");
+      for (int off = 0; off < json.length; off += ENCRYPT_SLICE) {
+         cos.write(json, off, Math.min(ENCRYPT_SLICE, json.length - off));
+      }
       try {
          cos.close();
       } catch (Exception ignore) {
@@ -188,7 +198,7 @@ public class EncryptableSecretsCollection extends DatedSecretsCollection {
       JSONObject jsonValues = new JSONObject();
       jsonValues.put("syncdate", getLastSyncTimestamp());
       JSONArray jsonSecrets = new JSONArray();
-      for (HostSecret secret : secrets) {
+      for (HostSecret secret : snapshot()) {
          jsonSecrets.put(secret.toJSON());
       }
       jsonValues.put("secrets", jsonSecrets);
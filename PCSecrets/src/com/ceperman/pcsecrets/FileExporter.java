@@ -17,27 +17,25 @@
 package com.ceperman.pcsecrets;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.text.MessageFormat;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.XML;
-
-import au.com.bytecode.opencsv.CSVWriter;
-
 /**
  * Handle export operations.
  * 
+ * The secrets of a snapshot of the collection are written one at a time by
+ * a SecretsWriter on a background task, with a progress monitor that allows
+ * the export to be cancelled.
+ * 
  * @author Chris Wood
  */
 public class FileExporter {
@@ -48,8 +46,8 @@ public class FileExporter {
    private static final String JSONEXT = "json";
    private static final String XMLEXT = "xml";
    
-   private final String[] column_names = { Constants.COL_DESCRIPTION, Constants.COL_USERNAME, Constants.COL_PASSWORD,
-                                                               Constants.COL_EMAIL, Constants.COL_NOTES, Constants.COL_TIMESTAMP };
+   /** secrets between progress reports */
+   private static final int PROGRESS_INTERVAL = 1000;
    
    /**
     * Export secrets.
@@ -90,13 +88,7 @@ public class FileExporter {
          }
          if (!(file.exists()) || overwrite == true) {
             logger.log(Level.INFO, "export: File name is " + file.getName());
-            if (ext.equals(CSVEXT)) {
-               exportCSV(mainWindow,file);
-            } else if (ext.equals(JSONEXT)) {
-               exportJSON(mainWindow,file);
-            } else if (ext.equals(XMLEXT)) {
-               exportXML(mainWindow,file);
-            }
+            new ExportTask(mainWindow, file, ext).execute();
             return;
          }
          rc = fc.showOpenDialog(mainWindow);
@@ -104,252 +96,84 @@ public class FileExporter {
    }
 
    /*
-    * Export CSV data
-    * @param mainWindow
-    * @param file
+    * Task to write the secrets in the background. A cancelled or failed
+    * export deletes the incomplete file.
     */
-   private void exportCSV(MainWindow mainWindow, File file) {
-      FileWriter fw = null;
-      SecretsCollection listModel = mainWindow.getListModel();
-      
-      try {
-         fw = new FileWriter(file);
-         CSVWriter csvw = new CSVWriter(fw);
-         /* write CSV header */
-         csvw.writeNext(column_names);
-         /* write all the secrets */
-         for (int i = 0; i < listModel.getSize(); i++) {
-            HostSecret hs = (HostSecret) listModel.getElementAt(i);
-            csvw.writeNext(new String[] { hs.getDescription(), hs.getUsername(), hs.getPassword(), hs.getEmail(), hs.getNote(), hs.getFormattedTimestamp() });
-         }  
-         mainWindow.getAreaMsg().setText(MessageFormat.format(Messages.getString("DataHandler.exported"), listModel.getSize()));
-      } catch (IOException e) {
-         String errorMsg = MessageFormat.format(Messages.getString("DataHandler.exporterrortext"), file.getName(), e.getClass().getName());
-         JOptionPane.showMessageDialog(mainWindow, errorMsg, Messages.getString("DataHandler.exporterrordialogtitle"), JOptionPane.ERROR_MESSAGE);
-      } finally {
-         try {
-            fw.close();
-         } catch (IOException e) {} /* ignore any problem here */
+   private static class ExportTask extends SwingWorker<Integer, Integer> {
+      private final MainWindow mainWindow;
+      private final File file;
+      private final String ext;
+      private final ProgressMonitor monitor;
+      private volatile boolean cancelled;
+
+      ExportTask(MainWindow mainWindow, File file, String ext) {
+         this.mainWindow = mainWindow;
+         this.file = file;
+         this.ext = ext;
+         monitor = new ProgressMonitor(mainWindow, MessageFormat.format(Messages.getString("DataHandler.exportprogress"),
+                     file.getName()), "", 0, 100);
       }
-   }
-   
-   /*
-    * Export JSON data
-    * @param mainWindow
-    * @param file
-    */
-   private void exportJSON(MainWindow mainWindow, File file) {
-      FileWriter fw = null;
-      SecretsCollection listModel = mainWindow.getListModel();
-      try {
-         fw = new FileWriter(file);
-         JSONObject jsonSecrets = getJSONData(listModel);
-         fw.write(jsonSecrets.toString());
-         mainWindow.getAreaMsg().setText(MessageFormat.format(Messages.getString("DataHandler.exported"), listModel.getSize()));
-      } catch (Exception e) {
-         String errorMsg = MessageFormat.format(Messages.getString("DataHandler.exporterrortext"), file.getName(), e.getClass().getName());
-         JOptionPane.showMessageDialog(mainWindow, errorMsg, Messages.getString("DataHandler.exporterrordialogtitle"), JOptionPane.ERROR_MESSAGE);
-      } finally {
-         try {
-            fw.close();
-         } catch (IOException e) {} /* ignore any problem here */
-      }  
-   }
-   
-   /*
-    * Export XML data
-    * @param mainWindow
-    * @param file
-    */
-   private void exportXML(MainWindow mainWindow, File file) {
-      FileWriter fw = null;
-      SecretsCollection listModel = mainWindow.getListModel();
-      try {
-         fw = new FileWriter(file);
-         JSONObject jsonSecrets = getJSONData(listModel);
-         fw.write(toXMLString(jsonSecrets));
-         mainWindow.getAreaMsg().setText(MessageFormat.format(Messages.getString("DataHandler.exported"), listModel.getSize()));
-      } catch (Exception e) {
-         String errorMsg = MessageFormat.format(Messages.getString("DataHandler.exporterrortext"), file.getName(), e.getClass().getName());
-         JOptionPane.showMessageDialog(mainWindow, errorMsg, Messages.getString("DataHandler.exporterrordialogtitle"), JOptionPane.ERROR_MESSAGE);
-      } finally {
-         try {
-            fw.close();
-         } catch (IOException e) {} /* ignore any problem here */
-      }  
-   }
-   
-   private JSONObject getJSONData(SecretsCollection listModel) throws JSONException {
-      final String SECRET_FIELD_NAME = "secret";
-      final String SECRETS_FIELD_NAME = "secrets";
-      JSONObject jsonSecrets = new JSONObject();
-      JSONArray jsonArray = new JSONArray();
-      for (int i = 0; i < listModel.getSize(); i++) {
-         HostSecret hs = (HostSecret) listModel.getElementAt(i);
-         JSONObject jo = new JSONObject();
-         jo.put(SECRET_FIELD_NAME, hs.toJSON());
-         jsonArray.put(jo);
-      }
-      jsonSecrets.put(SECRETS_FIELD_NAME, jsonArray);
-      return jsonSecrets;
-   }
-   
-   /* Following two methods derived from JSON.org XML class methods.
-    * JSON.org copyright notice is included
-    */
-   
-   /*
-   Copyright (c) 2002 JSON.org
-
-   Permission is hereby granted, free of charge, to any person obtaining a copy
-   of this software and associated documentation files (the "Software"), to deal
-   in the Software without restriction, including without limitation the rights
-   to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
-   copies of the Software, and to permit persons to whom the Software is
-   furnished to do so, subject to the following conditions:
-
-   The above copyright notice and this permission notice shall be included in all
-   copies or substantial portions of the Software. */
-   
-   /**
-    * Convert a JSONObject into a well-formed, element-normal XML string.
-    * 
-    * @param object A JSONObject.
-    * @return  A string.
-    * @throws  JSONException
-    */
-   public String toXMLString(Object object) throws JSONException {
-       return toXMLString(object, "", null);
-   }
-
-   /**
-    * Convert a JSONObject into a well-formed, element-normal XML string.
-    * 
-    * The modifications are:
-    * - assumes arrays are homogeneous and elements can be emitted together
-    * - uses new line and indentation formatting 
-    *   
-    * @param object A JSONObject.
-    * @param tagName The optional name of the enclosing tag.
-    * @return A string.
-    * @throws JSONException
-    */
-   @SuppressWarnings("rawtypes")
-   private String toXMLString(Object object, String indent, String tagName)
-           throws JSONException {
-       StringBuffer sb = new StringBuffer();
-       int          i;
-       JSONArray    ja;
-       JSONObject   jo;
-       String       key;
-       Iterator     keys;
-       int          length;
-       String       string;
-       Object       value;
-       
-       if (object instanceof JSONObject) {
-
-//Emit <tagName>
 
-           if (tagName != null) {
-               sb.append(indent);
-               sb.append('<');
-               sb.append(tagName);
-               sb.append(">\n");
-           }
-
-//Loop thru the keys.
-
-           jo = (JSONObject)object;
-           keys = jo.keys();
-           while (keys.hasNext()) {
-               key = keys.next().toString();
-               value = jo.opt(key);
-               if (value == null) {
-                   value = "";
+      @Override
+      protected Integer doInBackground() throws Exception {
+         SecretsCollection.Snapshot secrets = mainWindow.getListModel().snapshot();
+         SecretsWriter writer = ext.equals(JSONEXT) ? new JSONSecretsWriter(file) : ext.equals(XMLEXT)
+                     ? new XMLSecretsWriter(file) : new CSVSecretsWriter(file);
+         boolean complete = false;
+         try {
+            int count = 0;
+            for (HostSecret hs : secrets) {
+               if (cancelled) {
+                  return null;
                }
-               if (value instanceof String) {
-                   string = (String)value;
-               } else {
-                   string = null;
+               writer.write(hs);
+               if (++count % PROGRESS_INTERVAL == 0) {
+                  publish(count, count * 100 / secrets.size());
                }
+            }
+            writer.finish();
+            complete = true;
+            return count;
+         } finally {
+            writer.close();
+            if (!complete && !file.delete()) {
+               logger.log(Level.WARNING, "export: cannot delete incomplete file " + file.getName());
+            }
+         }
+      }
 
-//Emit content in body
-
-               if ("content".equals(key)) {
-                   if (value instanceof JSONArray) {
-                       ja = (JSONArray)value;
-                       length = ja.length();
-                       for (i = 0; i < length; i += 1) {
-                           if (i > 0) {
-                               sb.append('\n');
-                           }
-                           sb.append(XML.escape(ja.get(i).toString()));
-                       }
-                   } else {
-                       sb.append(XML.escape(value.toString()));
-                   }
-
-//Emit an array of similar keys
-
-               } else if (value instanceof JSONArray) {
-                  ja = (JSONArray)value;
-                  length = ja.length();
-                  sb.append(indent);
-                  sb.append('<');
-                  sb.append(key);
-                  sb.append(">\n");
-                  for (i = 0; i < length; i += 1) {
-                      value = ja.get(i);
-                      sb.append(toXMLString(value, indent + "  ", null));
-                  }
-                  sb.append(indent);
-                  sb.append("</");
-                  sb.append(key);
-                  sb.append(">\n");
-               } else if ("".equals(value)) {
-                   sb.append(indent + "  ");
-                   sb.append('<');
-                   sb.append(key);
-                   sb.append("/>\n");
-
-//Emit a new tag <k>
-
-               } else {
-                   sb.append(toXMLString(value, indent + "  ", key));
-               }
-           }
-           if (tagName != null) {
-
-//Emit the </tagname> close tag
-
-               sb.append(indent);
-               sb.append("</");
-               sb.append(tagName);
-               sb.append(">\n");
-           }
-           return sb.toString();
+      @Override
+      protected void process(List<Integer> chunks) {
+         if (monitor.isCanceled()) {
+            cancelled = true;
+            return;
+         }
+         monitor.setNote(MessageFormat.format(Messages.getString("DataHandler.exportprogressnote"),
+                     chunks.get(chunks.size() - 2)));
+         monitor.setProgress(chunks.get(chunks.size() - 1));
+      }
 
-//XML does not have good support for arrays. If an array appears in a place
-//where XML is lacking, synthesize an <array> element.
+      @Override
+      protected void done() {
+         monitor.close();
+         try {
+            Integer count = get();
+            if (count == null) {
+               mainWindow.getAreaMsg().setText(Messages.getString("DataHandler.exportcancelled"));
+            } else {
+               mainWindow.getAreaMsg().setText(MessageFormat.format(Messages.getString("DataHandler.exported"), count));
+            }
+         } catch (ExecutionException e) {
+            exportFailed(e.getCause());
+         } catch (InterruptedException e) {
+            exportFailed(e);
+         }
+      }
 
-       } else {
-           if (object.getClass().isArray()) {
-               object = new JSONArray(object);
-           }
-           if (object instanceof JSONArray) {
-               ja = (JSONArray)object;
-               length = ja.length();
-               for (i = 0; i < length; i += 1) {
-                   sb.append(toXMLString(ja.opt(i), indent, tagName == null ? "array" : tagName));
-               }
-               return sb.toString();
-           } else {
-               string = (object == null) ? "null" : XML.escape(object.toString());
-               return (tagName == null) ? "\"" + string + "\"" :
-                   (string.length() == 0) ? indent + "<" + tagName + "/>\n" :
-                      indent + "<" + tagName + ">" + string + "</" + tagName + ">\n";
-           }
-       }
+      private void exportFailed(Throwable e) {
+         logger.log(Level.WARNING, "export: " + e);
+         String errorMsg = MessageFormat.format(Messages.getString("DataHandler.exporterrortext"), file.getName(), e.getClass().getName());
+         JOptionPane.showMessageDialog(mainWindow, errorMsg, Messages.getString("DataHandler.exporterrordialogtitle"), JOptionPane.ERROR_MESSAGE);
+      }
    }
 }
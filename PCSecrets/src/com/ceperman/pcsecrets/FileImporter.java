@@ -29,19 +29,15 @@ import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.BufferedReader;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.text.MessageFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -62,7 +58,9 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JRadioButton;
 import javax.swing.JTable;
+import javax.swing.ProgressMonitor;
 import javax.swing.JTextArea;
+import javax.swing.SwingWorker;
 import javax.swing.UIDefaults;
 import javax.swing.WindowConstants;
 import javax.swing.filechooser.FileNameExtensionFilter;
@@ -70,14 +68,7 @@ import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableColumn;
 import javax.swing.table.TableColumnModel;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.XML;
-
-import au.com.bytecode.opencsv.CSVReader;
-
-import com.jayway.jsonpath.JsonPath;
+import com.ceperman.utils.CsvReader;
 
 /**
  * Import secrets from external data.
@@ -87,13 +78,12 @@ import com.jayway.jsonpath.JsonPath;
 public class FileImporter {
    private static Logger logger = Logger.getLogger(FileImporter.class.getName());
    
-   private static final String SECRETS_FIELD_NAME = "secrets";
    private static final String CSVEXT = "csv";
    private static final String JSONEXT = "json";
    private static final String XMLEXT = "xml";
    
    private String[] columnNames;
-   private JSONObject data = null;
+   private boolean csvHasData;
 
    private File importFile;
    
@@ -131,7 +121,8 @@ public class FileImporter {
    /* Subset dialog fields */
    private JButton continuebtn;
    
-   private List<String> candidatePaths;
+   private List<RecordCandidate> candidates;
+   private RecordCandidate selectedCandidate;
 
    /**
     * Handle the import
@@ -181,11 +172,14 @@ public class FileImporter {
             if (record1[0].startsWith("[") || record1[0].startsWith("{")) {
                dataType = TYPE_JSON;
                hasDataHeader = true; // JSON always has field names
-               data = getJSONData(importFile);
             } else {
                dataType = TYPE_XML;
                hasDataHeader = true; // XML always has field names
-               data = getXMLData(importFile);
+            }
+            /* the records are read when imported - just find the candidate records */
+            candidates = findCandidates(importFile);
+            if (candidates == null) {
+               return;
             }
          } else {
             // treat as CSV
@@ -201,27 +195,32 @@ public class FileImporter {
             dataType = TYPE_CSV;
             hasDataHeader = guessHeader(record1);
             showCSVHeaderDialog(mainWindow, record1);
-            data = getCSVData(importFile);
+            /* the records are read when imported - just get the field names, and check there is data */
+            CSVRecordSource csvSource = new CSVRecordSource(importFile, hasDataHeader & useDataHeader);
+            try {
+               columnNames = csvSource.getFieldNames();
+               csvHasData = csvSource.next() != null;
+            } finally {
+               csvSource.close();
+            }
          }
          
-         if (data == null || data.length() == 0) {
+         if (dataType == TYPE_CSV && !csvHasData) {
             JOptionPane.showMessageDialog(mainWindow, Messages.getString("FileImporter.nodata"),
                         Messages.getString("FileImporter.title"), JOptionPane.INFORMATION_MESSAGE);
             return;
          }
          
          if (dataType == TYPE_JSON || dataType == TYPE_XML) {
-            // analyse for a suitable subset
-            candidatePaths = new ArrayList<String>();
-            findPrimitiveObjects(data, "$", false);
-            logger.log(Level.FINE, Arrays.toString(candidatePaths.toArray()));
-            if (candidatePaths.size() == 0) {
+            // choose a suitable subset
+            if (candidates.size() == 0) {
                JOptionPane.showMessageDialog(mainWindow, Messages.getString("FileImporter.nousefuldata"),
                            Messages.getString("FileImporter.title"), JOptionPane.INFORMATION_MESSAGE);
                return;
             }
+            selectedCandidate = null;
             showSubsetSelectionDialog(mainWindow);
-            if (data == null) {
+            if (selectedCandidate == null) {
                return;
             }
          }
@@ -357,23 +356,22 @@ public class FileImporter {
       selectionPane.setBorder(BorderFactory.createLineBorder(Color.gray));
       mainPane.add(selectionPane, BorderLayout.CENTER);
       
-      String[] elements = new String[candidatePaths.size()];
-      String[] fields = new String[candidatePaths.size()];
+      String[] elements = new String[candidates.size()];
+      String[] fields = new String[candidates.size()];
       for (int i = 0; i < elements.length; i++) {
-         String path = candidatePaths.get(i);
-         elements[i] = getElementNameFromPath(path);
-         fields[i] = Arrays.toString(getObjectFields(path));
+         RecordCandidate candidate = candidates.get(i);
+         elements[i] = candidate.getElementName();
+         fields[i] = Arrays.toString(candidate.getFieldNames());
       }
       
       Action showDetails = new AbstractAction() {
          @Override
          public void actionPerformed(ActionEvent event) {
             int row = Integer.parseInt(event.getActionCommand());
-            String path = candidatePaths.get(row);
-            String fields = Arrays.toString(getObjectFields(path));
-            int elementCount = 0;
-            net.minidev.json.JSONArray jsonSArray = JsonPath.read(data.toString(), candidatePaths.get(row));
-            elementCount = jsonSArray.size();
+            RecordCandidate candidate = candidates.get(row);
+            String path = candidate.getPath();
+            String fields = Arrays.toString(candidate.getFieldNames());
+            int elementCount = candidate.getCount();
             
             JPanel msgPane = new JPanel();
             msgPane.setLayout(new BoxLayout(msgPane, BoxLayout.PAGE_AXIS));
@@ -406,19 +404,10 @@ public class FileImporter {
       continuebtn.setEnabled(false);
       continuebtn.addActionListener(new ActionListener() {
          public void actionPerformed(ActionEvent event) {
-            try {
-               int index = tableModel.getSelectedIndex();
-               net.minidev.json.JSONArray jsonSArray = JsonPath.read(data.toString(), candidatePaths.get(index));
-               JSONArray jsonArray = new JSONArray(jsonSArray.toJSONString());
-               logger.log(Level.FINE, jsonArray.toString());
-               // extract "column" names from first object
-               JSONObject jsonObject = jsonArray.getJSONObject(0);
-               columnNames = JSONObject.getNames(jsonObject);
-               data = new JSONObject();
-               data.put(SECRETS_FIELD_NAME, jsonArray);
-            } catch (JSONException e) {
-               logger.log(Level.SEVERE, "showSubsetSelectionDialog: exception " + e);
-            }
+            selectedCandidate = candidates.get(tableModel.getSelectedIndex());
+            logger.log(Level.FINE, "selected " + selectedCandidate.getPath());
+            // "column" names are the fields of the first object
+            columnNames = selectedCandidate.getFieldNames();
             dialog.dispose();
          }
       });
@@ -426,7 +415,7 @@ public class FileImporter {
       JButton cancelButton = new JButton(Messages.getString("PCSecrets.cancel"));
       cancelButton.addActionListener(new ActionListener() {
          public void actionPerformed(ActionEvent event) {
-            data = null; // abandon import
+            selectedCandidate = null; // abandon import
             mainWindow.getAreaMsg().setText(Messages.getString("FileImporter.importcancelled"));
             dialog.dispose();
          }});
@@ -434,7 +423,7 @@ public class FileImporter {
       
       dialog.addWindowListener(new WindowAdapter() {
          public void windowClosing(WindowEvent e) {
-            data = null; // abandon import
+            selectedCandidate = null; // abandon import
             mainWindow.getAreaMsg().setText(Messages.getString("FileImporter.importcancelled"));
             dialog.dispose();
          }
@@ -448,20 +437,6 @@ public class FileImporter {
       dialog.setVisible(true);
    }
    
-   private String getElementNameFromPath(String path) {
-      int dotIndex = path.lastIndexOf(".");
-      if (dotIndex < 0) {
-         return path;
-      } else {
-         String lastField = path.substring(dotIndex + 1);
-         int bracketIndex = lastField.lastIndexOf("[");
-         if (bracketIndex < 0) {
-            bracketIndex = lastField.length();
-         }
-         return lastField.substring(0, bracketIndex);
-      }
-   }
-   
    /*
     * Model for the subsetting table
     */
@@ -653,8 +628,8 @@ public class FileImporter {
                            Messages.getString("FileImporter.importerrordialogtitle"), JOptionPane.ERROR_MESSAGE);
                return;
             }
-            doImport(data);
             dialog.dispose();
+            doImport();
          }
       });
       buttonPane.add(importButton);
@@ -739,12 +714,12 @@ public class FileImporter {
     */
    private String[] getFirstRecord(File file) throws IOException {
       String[] fieldValues = null;
-      CSVReader csvr = null;
+      CsvReader csvr = null;
       try {
          if (file.length() == 0) {
             return null;
          }
-         csvr = new CSVReader(new FileReader(file));
+         csvr = new CsvReader(new FileReader(file));
          fieldValues = csvr.readNext();
          if (fieldValues == null) {
             return null;
@@ -773,334 +748,144 @@ public class FileImporter {
    }
 
    /*
-    * Get JSON data. The input file is not empty, but the json array might be.
-    * Return JSONObject, or null if any error occurs
+    * Find the records that could be imported from a JSON or XML file. The
+    * document is parsed as a stream, not loaded.
+    * Return the candidates, or null if the file cannot be parsed
     */
-   private JSONObject getJSONData(File file) {
-      JSONObject retval = null;
-      BufferedReader br = null;
+   private List<RecordCandidate> findCandidates(File file) {
       try {
-         String stringData = null;
-         {
-            br = new BufferedReader(new FileReader(file));
-            StringBuilder sb = new StringBuilder();
-            // read the file into a single string
-            // don't use readLine() in order to preserve line breaks
-            int c = br.read();
-            while (c != -1) {
-               sb.append((char)c);
-               c = br.read();
-            }
-            stringData = sb.toString();
-         }
-         if (stringData.startsWith("[")) {
-            JSONArray jsonArray = new JSONArray(stringData);
-            if (jsonArray.length() == 0) {
-               // the json array is empty
-               String errorTxt = Messages.getString("FileImporter.jsonemptyarray");
-               logger.log(Level.WARNING, errorTxt);
-               JOptionPane.showMessageDialog(mainWindow, errorTxt,
-                           Messages.getString("FileImporter.jsonimporterrordialogtitle"), JOptionPane.ERROR_MESSAGE);
-               return null;
-            }
-            // extract "column" names from first object
-            JSONObject jsonObject = jsonArray.getJSONObject(0);
-            columnNames = JSONObject.getNames(jsonObject);
-            
-            retval = new JSONObject();
-            retval.put(SECRETS_FIELD_NAME, jsonArray);
-         } else if (stringData.startsWith("{")) {
-            retval = new JSONObject(stringData);
-         }
+         return dataType == TYPE_JSON ? JSONRecordSource.findCandidates(file) : XMLRecordSource.findCandidates(file);
       } catch (IOException e) {
-         // use errorTxt if set, otherwise construct general text here
-         String errorTxt = MessageFormat.format(Messages.getString("FileImporter.ioerrortext"), file.getName(), e.getClass()
-                        .getName());
-         JOptionPane.showMessageDialog(mainWindow, errorTxt,
-                     Messages.getString("FileImporter.jsonimporterrordialogtitle"), JOptionPane.ERROR_MESSAGE);
-         logger.log(Level.WARNING, "getJSONData; " + errorTxt);
-      } catch (JSONException e) {
-         // use errorTxt if set, otherwise construct general text here
-
-         String errorTxt = MessageFormat.format(Messages.getString("FileImporter.jsonopenerrortext"), file.getName(), e.getClass()
-                        .getName());
+         String errorTxt = MessageFormat.format(Messages.getString(dataType == TYPE_JSON ? "FileImporter.jsonopenerrortext"
+                     : "FileImporter.ioerrortext"), file.getName(), e.getMessage());
          JOptionPane.showMessageDialog(mainWindow, errorTxt,
                      Messages.getString("FileImporter.jsonimporterrordialogtitle"), JOptionPane.ERROR_MESSAGE);
-         logger.log(Level.WARNING, "getJSONData; " + errorTxt);
-      } finally {
-         try {
-            br.close();
-         } catch (IOException e) {
-            // ignore
-         }
+         logger.log(Level.WARNING, "findCandidates; " + errorTxt);
+         return null;
       }
-      return retval;
    }
    
    /*
-    * Get XML data. The input file is not empty, but the xml might be.
-    * Convert to JSON object.
-    * Return JSONObject, or null if any error occurs
+    * Import the records into the secrets collection, on a background task.
+    * The records are read from the file as they are imported.
     */
-   private JSONObject getXMLData(File file) {
-      BufferedReader br = null;
-      String errorTxt = null;
+   private void doImport() {
+      // create field correspondence from user input
+      String[] mapping = new String[secretFields.length];
+      for (int i = 0; i < secretFields.length; i++) {
+         String mapped = (String)mappingTableData[i][1];
+         mapping[i] = mapped.equals(Messages.getString("FileImporter.notmapped")) ? null : mapped;
+      }
       try {
-         String stringData = null;
-         {
-            br = new BufferedReader(new FileReader(file));
-            StringBuilder sb = new StringBuilder();
-            // read the file into a single string
-            // don't use readLine() in order to preserve line breaks
-            int c = br.read();
-            while (c != -1) {
-               sb.append((char)c);
-               c = br.read();
-            }
-            stringData = sb.toString();
+         RecordSource source;
+         if (dataType == TYPE_CSV) {
+            source = new CSVRecordSource(importFile, hasDataHeader & useDataHeader);
+         } else if (dataType == TYPE_JSON) {
+            source = new JSONRecordSource(importFile, selectedCandidate);
+         } else {
+            source = new XMLRecordSource(importFile, selectedCandidate);
          }
-         
-         /* XML.toJSONObject converts an empty element (e.g. <username/>) to an empty JSONObject,
-          * which will in turn get converted to a string value of "{}" when we want "" (an empty
-          * string). This is unwanted behaviour that we have to fix here.
-          */
-         JSONObject jo = XML.toJSONObject(stringData);
-         fixupEmptyElements(jo);
-         return jo;
+         new ImportTask(source, new ImportPipeline(mapping, replaceDupButton.isSelected())).start();
       } catch (Exception e) {
-      // use errorTxt if set, otherwise construct general text here
-         if (errorTxt == null) {
-            errorTxt = MessageFormat.format(Messages.getString("FileImporter.ioerrortext"), file.getName(), e.getClass()
-                        .getName());
-         }
-         JOptionPane.showMessageDialog(mainWindow, errorTxt,
-                     Messages.getString("FileImporter.jsonimporterrordialogtitle"), JOptionPane.ERROR_MESSAGE);
-      } finally {
-         try {
-            br.close();
-         } catch (IOException e) {
-            // ignore
-         }
+         importFailed(e);
       }
-      return null;
    }
-   
+
+   private void importFailed(Exception e) {
+      String errorMsg = e instanceof DataFormatException ? e.getMessage() : MessageFormat.format(
+                  Messages.getString("FileImporter.importgeneralerror"), importFile.getName(), e.getClass().getName());
+      JOptionPane.showMessageDialog(mainWindow, errorMsg, Messages.getString("FileImporter.importerrordialogtitle"),
+                  JOptionPane.ERROR_MESSAGE);
+      logger.log(Level.SEVERE, "Exception during import of file " + importFile.getName() + ": " + e.getMessage());
+   }
+
    /*
-    * Get CSV data from the non-empty file and convert to a JSON array.
-    * Return JSONObject or null if any error occurs
+    * Show what the import will do, and ask the user to confirm it
     */
-   private JSONObject getCSVData(File file) {
-      JSONObject retval = null;
-      FileReader r = null;
-      String errorTxt = null;
-      try {
-         JSONArray jsonArray = new JSONArray();
-         String[] fieldValues = null;
-         int fieldCount = 0;
-         r = new FileReader(file);
-         int recCount = 0;
-         CSVReader csvr = new CSVReader(r);
-         fieldValues = csvr.readNext();
-         fieldCount = fieldValues.length;
-         
-         // set up field names
-         if (hasDataHeader & useDataHeader) {
-            columnNames = fieldValues;
-            fieldValues = csvr.readNext();
-            recCount++;
-         } else {
-            // create artificial field names
-            columnNames = new String[fieldCount];
-            for (int i = 0; i < fieldCount; i++) {
-               columnNames[i] = "#" + (i + 1);
-            }
-         }
-         
-         // process all records
-         while (!(fieldValues == null)) {
-            if (fieldValues.length != fieldCount) {
-               // problem if all records not same length
-               errorTxt = MessageFormat.format(Messages.getString("FileImporter.csvfieldcounterror"), recCount+1);
-               logger.log(Level.WARNING, errorTxt);
-               throw new IOException();
-            }
-            recCount++;
-            
-            // create JSON object from record values
-            JSONObject jsonObject = new JSONObject();
-            for (int i = 0; i < fieldValues.length; i++) {
-               jsonObject.put(columnNames[i], fieldValues[i]);
-            }
-            jsonArray.put(jsonObject);
-            fieldValues = csvr.readNext();
-         }
-         retval = new JSONObject();
-         retval.put(SECRETS_FIELD_NAME, jsonArray);
-      } catch (Exception e) {
-         // use errorTxt if set, otherwise construct general text here
-         if (errorTxt == null) {
-            errorTxt = MessageFormat.format(Messages.getString("FileImporter.ioerrortext"), file.getName(), e.getClass()
-                        .getName());
-         }
-         JOptionPane.showMessageDialog(mainWindow, errorTxt,
-                     Messages.getString("FileImporter.csvimporterrordialogtitle"), JOptionPane.ERROR_MESSAGE);
-      } finally {
-         try {
-            r.close();
-         } catch (IOException e) {
-            // ignore
-         }
-      }
-      return retval;
+   private boolean confirmImport(ImportPipeline.Result result) {
+      String message = MessageFormat.format(Messages.getString("FileImporter.preview"), result.getRecords(),
+                  result.getNew(), result.getChanged(), (ignoreDupButton.isSelected() ?
+                     Messages.getString("FileImporter.ignored") : Messages.getString("FileImporter.replaced")),
+                  result.getIdentical());
+      return JOptionPane.showConfirmDialog(mainWindow, message, Messages.getString("FileImporter.previewtitle"),
+                  JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE) == JOptionPane.OK_OPTION;
    }
 
    /*
-    * Merge the imported JSON data into the secrets collection
+    * Task to stage the records in the background, with a progress monitor
+    * that allows the import to be cancelled. When staging completes the
+    * outcome is shown for confirmation, and the staged secrets are applied
+    * to the collection on the UI thread.
     */
-   private void doImport(JSONObject dataObject) {
-      // create field correspondence map from user input
-      Map<String, String> fieldMap = new HashMap<String, String>();
-      for (int i = 0; i < secretFields.length; i++) {
-         fieldMap.put(secretFields[i], (String)mappingTableData[i][1]);
+   private class ImportTask extends SwingWorker<ImportPipeline.Result, Integer> implements ImportPipeline.Listener {
+      private final RecordSource source;
+      private final ImportPipeline pipeline;
+      private final ProgressMonitor monitor;
+
+      ImportTask(RecordSource source, ImportPipeline pipeline) {
+         this.source = source;
+         this.pipeline = pipeline;
+         monitor = new ProgressMonitor(mainWindow, MessageFormat.format(Messages.getString("FileImporter.importprogress"),
+                     importFile.getName()), "", 0, 100);
       }
-      int recCount = 0;
-      int addedCount = 0;
-      int dupCount = 0;
-      try {
-         JSONArray data = dataObject.getJSONArray(SECRETS_FIELD_NAME);
-         for (int i = 0; i < data.length(); i++) {
-            JSONObject jsonObject = data.getJSONObject(i);
-            String[] values = new String[secretFields.length]; 
-            for (int j = 0; j < values.length; j++) {
-               // get the secrets field from the mapped field of the imported object
-               values[j] = jsonObject.optString(fieldMap.get(secretFields[j]));
-               if (j == 0) { // description
-                  // ensure that key (description) has no newline chars
-                  values[j] = values[j].split("\n")[0];
-               }
-            }
-            logger.log(Level.FINE, "Values are '" + Arrays.toString(values));
-            boolean toBeAdded = true;
-            if (mainWindow.getListModel().contains(values[0])) {
-               dupCount++;
-               if (ignoreDupButton.isSelected()) {
-                  toBeAdded = false;
-                  logger.log(Level.FINE, "dup - ignore");
-               } else {
-                  logger.log(Level.FINE, "dup - replace");
-               }
-            }
-            if (toBeAdded) {
-               mainWindow.getListModel().addOrUpdate(new HostSecret(values));
-               addedCount++;
-               logger.log(Level.FINE, "added");
-            }
-         }
-
-         mainWindow.getAreaMsg().setText(MessageFormat.format(Messages.getString("FileImporter.imported"), 
-                     recCount, addedCount, dupCount, (ignoreDupButton.isSelected() ? Messages.getString("FileImporter.ignored"):
-                        Messages.getString("FileImporter.replaced"))));
 
-      } catch (Exception e) {
-         String errorMsg = MessageFormat.format(Messages.getString("FileImporter.importgeneralerror"), importFile.getName(), e.getClass().getName());
-         JOptionPane.showMessageDialog(dialog, errorMsg, Messages.getString("FileImporter.importerrordialogtitle"), JOptionPane.ERROR_MESSAGE);
-         logger.log(Level.SEVERE, "Exception during import of file " + importFile.getName() + ": " + e.getMessage());
-      } finally {
-         dialog.dispose();
+      void start() {
+         mainWindow.getAreaMsg().setText(MessageFormat.format(Messages.getString("FileImporter.importprogress"),
+                     importFile.getName()));
+         execute();
       }
-   }
-   
-   /* Discover JSON objects in an array (somewhere) that contain only simple values
-    * 
-    * IMPORTANT: JSONObject.getNames(Object) and JSONObject.getNames(JSONObject) give
-    * different results, the javadoc is unclear. For an empty JSONObject, the first
-    * returns a String array with a single value 'NULL' (probably the JSON NULL object),
-    * the second returns null (as documented).
-    * 
-    * @param rootObject
-    * @param path JSON path to this element
-    * @param isCollection path is part of a collection
-    */
-   private void findPrimitiveObjects(Object rootObject, String path, boolean isCollection) throws JSONException {
-      if (rootObject instanceof JSONObject) {
-         boolean primitive = true;
-         JSONObject jo = (JSONObject)rootObject;
-         String[] keys = JSONObject.getNames(jo);
-         for (int i = 0; i < keys.length; i++) {
-            Object value = jo.get(keys[i]);
-            if (value instanceof JSONObject && !((JSONObject.getNames((JSONObject)value) == null)) ||
-                        value instanceof JSONArray) {
-               primitive = false;
-               findPrimitiveObjects(value, path + "." + keys[i], value instanceof JSONArray ? true : isCollection);
-            }
-         }
-         // if all keys simple, add as candidate
-         if (primitive & isCollection) {
-            candidatePaths.add(path);
-            logger.log(Level.FINE, "findPrimitiveObjects: candidate added: " + path);
+
+      @Override
+      protected ImportPipeline.Result doInBackground() throws Exception {
+         try {
+            return pipeline.stage(source, mainWindow.getListModel(), this);
+         } finally {
+            source.close();
          }
-      } else if (rootObject instanceof JSONArray) {
-         JSONArray ja = (JSONArray)rootObject;
-         // TODO JSON arrays do not have to be homogeneous so we should really check
-         // that it is.
-         // For now assume it is so just examine first object
-         Object object = ja.get(0);
-         findPrimitiveObjects(object, path + "[*]", true);
       }
-   }
-   
-   /* Replace empty JSON objects with an empty string value.
-    * 
-    * See comment re. JSONObject.getNames()
-    * 
-    * @param rootObject
-    */
-   private void fixupEmptyElements(Object rootObject) throws JSONException {
-      if (rootObject instanceof JSONObject) {
-         JSONObject jo = (JSONObject)rootObject;
-         String[] keys = JSONObject.getNames(jo);
-         for (int i = 0; i < keys.length; i++) {
-//            System.out.println("key: " + keys[i] + " has a value of type " + jo.get(keys[i]).getClass().getName());
-            Object value = jo.get(keys[i]);
-            if (value instanceof JSONObject || value instanceof JSONArray) {
-               if (value instanceof JSONObject && JSONObject.getNames((JSONObject)value) == null) {
-                  jo.put(keys[i], ""); // replace the empty JSONObject with the empty string
-                  logger.log(Level.FINE, "Empty JSONObject for " + keys[i] + " has been replaced with an empty string");
-               } else {
-                  fixupEmptyElements(value);
-               }
-            }
+
+      @Override
+      public void progress(int records, int percent) {
+         publish(records, percent);
+      }
+
+      @Override
+      protected void process(List<Integer> chunks) {
+         if (monitor.isCanceled()) {
+            pipeline.cancel();
+            return;
          }
-      } else if (rootObject instanceof JSONArray) {
-         JSONArray ja = (JSONArray)rootObject;
-         for (int i = 0; i < ja.length(); i++) {
-            fixupEmptyElements(ja.get(i));
+         int percent = chunks.get(chunks.size() - 1);
+         monitor.setNote(MessageFormat.format(Messages.getString("FileImporter.importprogressnote"),
+                     chunks.get(chunks.size() - 2)));
+         if (percent >= 0) {
+            monitor.setProgress(percent);
          }
       }
-   }
-   
-   /*
-    * Retrieve fields from jsonpath objects.
-    * 
-    * @param jsonPath
-    * @return array of field names
-    */
-   private String[] getObjectFields(String jsonPath) {
-      String[] fields = { "" };
-      net.minidev.json.JSONArray jsonSArray = JsonPath.read(data.toString(), jsonPath);
-      try {
-         JSONArray jsonArray = new JSONArray(jsonSArray.toJSONString());
-         logger.log(Level.FINE, "getObjectFields: number of elements in JSONArray: " + jsonArray.length());
-         JSONObject jsonObject = jsonArray.getJSONObject(0);
-         fields = new String[jsonObject.length()];
-         Iterator<?> keys = jsonObject.keys();
-         for (int i = 0; keys.hasNext(); i++) {
-            fields[i] = (String) keys.next();
+
+      @Override
+      protected void done() {
+         monitor.close();
+         try {
+            ImportPipeline.Result result = get();
+            if (result.isCancelled()) {
+               mainWindow.getAreaMsg().setText(Messages.getString("FileImporter.importcancelled"));
+               return;
+            }
+            if (!confirmImport(result)) {
+               mainWindow.getAreaMsg().setText(Messages.getString("FileImporter.importcancelled"));
+               return;
+            }
+            result.applyTo(mainWindow.getListModel());
+            mainWindow.getAreaMsg().setText(MessageFormat.format(Messages.getString("FileImporter.imported"),
+                        result.getRecords(), result.getAdded(), result.getDuplicates(),
+                        (ignoreDupButton.isSelected() ? Messages.getString("FileImporter.ignored") :
+                           Messages.getString("FileImporter.replaced"))));
+         } catch (ExecutionException e) {
+            importFailed(e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+         } catch (InterruptedException e) {
+            importFailed(e);
          }
-      } catch (JSONException e) {
-         // should not occur!
-         logger.log(Level.FINE, "getObjectFields: " + jsonPath + e);
       }
-      return fields;
    }
-}
\ No newline at end of file
+}
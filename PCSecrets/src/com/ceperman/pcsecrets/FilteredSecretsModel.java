@@ -0,0 +1,137 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import javax.swing.AbstractListModel;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+/**
+ * List model presenting the secrets of a collection that match the current
+ * search text. With no search text, the model is a transparent view of the
+ * whole collection and forwards its events unchanged.
+ *
+ * @author Chris Wood
+ */
+@SuppressWarnings("serial")
+public class FilteredSecretsModel extends AbstractListModel<HostSecret> implements ListDataListener {
+
+   private final SecretsCollection secrets;
+   private String filter = "";
+   private HostSecret[] view; // null when not filtered
+
+   /**
+    * Constructor
+    *
+    * @param secrets the underlying collection
+    */
+   public FilteredSecretsModel(SecretsCollection secrets) {
+      this.secrets = secrets;
+      secrets.getSearchIndex(); // build now rather than on the first keystroke
+      secrets.addListDataListener(this);
+   }
+
+   /**
+    * Set the search text and refresh the view
+    *
+    * @param filter search text; empty to show all secrets
+    */
+   public void setFilter(String filter) {
+      this.filter = filter == null ? "" : filter;
+      refresh();
+   }
+
+   /**
+    * @return the current search text
+    */
+   public String getFilter() {
+      return filter;
+   }
+
+   /**
+    * @return true if a filter is in effect
+    */
+   public boolean isFiltered() {
+      return view != null;
+   }
+
+   /**
+    * Get the position of a secret in this view
+    *
+    * @param secret
+    * @return index, or -1 if the secret is not visible
+    */
+   public int indexOf(HostSecret secret) {
+      if (view == null) {
+         SecretsCollection.Snapshot snapshot = secrets.snapshot();
+         int index = snapshot.indexOf(secret.getDescription());
+         return index < 0 ? -1 : index;
+      }
+      for (int i = 0; i < view.length; i++) {
+         if (view[i] == secret) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /*
+    * Re-run the search against the index. The view keeps collection order.
+    */
+   private void refresh() {
+      SecretsSearchIndex.Matches matches = secrets.getSearchIndex().find(filter);
+      view = matches == null ? null : matches.select(secrets.snapshot());
+      fireContentsChanged(this, 0, getSize() - 1);
+   }
+
+   @Override
+   public HostSecret getElementAt(int index) {
+      return view == null ? secrets.getElementAt(index) : view[index];
+   }
+
+   @Override
+   public int getSize() {
+      return view == null ? secrets.getSize() : view.length;
+   }
+
+   @Override
+   public void intervalAdded(ListDataEvent e) {
+      if (view == null) {
+         fireIntervalAdded(this, e.getIndex0(), e.getIndex1());
+      } else {
+         refresh();
+      }
+   }
+
+   @Override
+   public void intervalRemoved(ListDataEvent e) {
+      if (view == null) {
+         fireIntervalRemoved(this, e.getIndex0(), e.getIndex1());
+      } else {
+         refresh();
+      }
+   }
+
+   @Override
+   public void contentsChanged(ListDataEvent e) {
+      if (view == null) {
+         fireContentsChanged(this, e.getIndex0(), e.getIndex1());
+      } else {
+         refresh();
+      }
+   }
+}
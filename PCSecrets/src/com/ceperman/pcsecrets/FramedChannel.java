@@ -0,0 +1,448 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Message framing for the device connection.
+ *
+ * Two framings are understood:
+ * - plain: a 4 byte big-endian length followed by the whole message. This is
+ *   what earlier devices send and expect.
+ * - chunked: the marker {@value #CHUNKED_MARKER} (as a 4 byte big-endian
+ *   int, which is not a valid plain length), then chunks of a 4 byte length
+ *   (1 to {@value #CHUNK_SIZE}) followed by that many bytes, then a 4 byte
+ *   zero length as the end marker.
+ *
+ * - resumable (device to PC only): the marker {@value #RESUMABLE_MARKER},
+ *   then a {@value #TRANSFER_ID_LENGTH} byte transfer id chosen by the
+ *   device. The PC replies with the acknowledged offset, 8 bytes big-endian:
+ *   how much of this transfer it already holds from an earlier connection
+ *   (0 for a new transfer). The device then sends the rest as chunks of a 4
+ *   byte length, a 4 byte CRC32 of the chunk data and the data, then a 4 byte
+ *   zero length. A chunk with a bad checksum ends the connection without
+ *   being acknowledged, and the data received so far is kept in a
+ *   TransferStore for the device to resume.
+ *
+ * A chunked message can be written as it is produced and read as it arrives,
+ * so only one chunk needs to be in memory. Writes block while the socket
+ * buffers are full, which holds back the producer. The PC reads either
+ * framing, and replies in the framing the device used.
+ *
+ * A resumable message is the exception: it is held in memory until it is
+ * complete, as it may have to outlive the connection. The TransferStore
+ * limits the total held across all partial transfers, and a completed
+ * message is read from the store without being copied.
+ *
+ * Every length is checked before anything is allocated: a message may not be
+ * longer than the maximum message size, and reads are exact, so a short or
+ * corrupt stream is an error rather than a short message.
+ *
+ * @author Chris Wood
+ */
+public class FramedChannel {
+   /** marker starting a chunked message */
+   public static final int CHUNKED_MARKER = -1;
+   /** marker starting a resumable message */
+   public static final int RESUMABLE_MARKER = -2;
+   /** length of a resumable transfer id */
+   public static final int TRANSFER_ID_LENGTH = 16;
+   /** maximum size of a chunk */
+   public static final int CHUNK_SIZE = 16 * 1024;
+   /** default maximum message size */
+   public static final int DEFAULT_MAX_MESSAGE_SIZE = 32 * 1024 * 1024;
+
+   /* chunk buffers (including the length header) are reused across messages and sessions */
+   private static final BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<byte[]>(8);
+
+   private final InputStream is;
+   private final OutputStream os;
+   private final int maxMessageSize;
+   private boolean chunked;
+   private TransferStore transfers;
+
+   /**
+    * Constructor
+    *
+    * @param is
+    * @param os
+    * @param maxMessageSize maximum size of a message read or written
+    */
+   public FramedChannel(InputStream is, OutputStream os, int maxMessageSize) {
+      this.is = is;
+      this.os = os;
+      this.maxMessageSize = maxMessageSize;
+   }
+
+   /**
+    * @return true if messages are written chunked - set when a chunked message
+    *         has been read
+    */
+   public boolean isChunked() {
+      return chunked;
+   }
+
+   /**
+    * @param chunked true to write messages chunked
+    */
+   public void setChunked(boolean chunked) {
+      this.chunked = chunked;
+   }
+
+   /**
+    * @param transfers store for partial resumable messages; if not set,
+    *           resumable messages are not accepted
+    */
+   public void setTransferStore(TransferStore transfers) {
+      this.transfers = transfers;
+   }
+
+   /**
+    * Read a whole message
+    *
+    * @return the message
+    * @throws IOException if the stream ends early or the message is too long
+    */
+   public byte[] readMessage() throws IOException {
+      InputStream message = openMessageInput();
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      byte[] buffer = acquireBuffer();
+      try {
+         int n;
+         while ((n = message.read(buffer)) > 0) {
+            baos.write(buffer, 0, n);
+         }
+      } finally {
+         releaseBuffer(buffer);
+      }
+      return baos.toByteArray();
+   }
+
+   /**
+    * Open the next message for reading. The stream returns end of file at the
+    * end of the message; it must be read to the end before the next message.
+    *
+    * @return the message stream
+    * @throws IOException if the header cannot be read or is invalid
+    */
+   public InputStream openMessageInput() throws IOException {
+      int length = readInt();
+      if (length == CHUNKED_MARKER) {
+         chunked = true;
+         return new ChunkedInputStream();
+      }
+      if (length == RESUMABLE_MARKER && transfers != null) {
+         chunked = true; // the device understands chunked replies
+         return readResumable();
+      }
+      checkLength(length, 0);
+      return new PlainInputStream(length);
+   }
+
+   /**
+    * Write a whole message
+    *
+    * @param data
+    * @throws IOException
+    */
+   public void writeMessage(byte[] data) throws IOException {
+      OutputStream message = openMessageOutput();
+      message.write(data);
+      message.close();
+   }
+
+   /**
+    * Open a message for writing. The message is complete when the stream is
+    * closed; this does not close the connection. Chunked messages are sent as
+    * they are written; plain messages are held until closed, as the length
+    * has to be sent first.
+    *
+    * @return the message stream
+    * @throws IOException
+    */
+   public OutputStream openMessageOutput() throws IOException {
+      if (chunked) {
+         writeInt(CHUNKED_MARKER);
+         return new ChunkedOutputStream();
+      }
+      return new PlainOutputStream();
+   }
+
+   /**
+    * Read exactly the requested number of bytes
+    *
+    * @param is
+    * @param b
+    * @param off
+    * @param len
+    * @throws EOFException if the stream ends first
+    * @throws IOException
+    */
+   public static void readFully(InputStream is, byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+         int n = is.read(b, off, len);
+         if (n < 0) {
+            throw new EOFException("Connection closed with " + len + " bytes outstanding");
+         }
+         off += n;
+         len -= n;
+      }
+   }
+
+   /*
+    * Receive the rest of a resumable message into its transfer, and return
+    * the whole message once it is complete
+    */
+   private InputStream readResumable() throws IOException {
+      byte[] id = new byte[TRANSFER_ID_LENGTH];
+      readFully(is, id, 0, id.length);
+      TransferStore.Transfer transfer = transfers.resume(id, this, System.currentTimeMillis());
+      long offset = transfer.getOffset();
+      byte[] ack = new byte[8];
+      putInt(ack, 0, (int) (offset >>> 32));
+      putInt(ack, 4, (int) offset);
+      os.write(ack);
+      os.flush();
+
+      byte[] buffer = acquireBuffer();
+      try {
+         CRC32 crc = new CRC32();
+         int length;
+         while ((length = readInt()) != 0) {
+            if (length < 0 || length > CHUNK_SIZE) {
+               throw new IOException("Invalid chunk length " + length);
+            }
+            checkLength(length, offset);
+            long checksum = readInt() & 0xffffffffL;
+            readFully(is, buffer, 0, length);
+            crc.reset();
+            crc.update(buffer, 0, length);
+            if (crc.getValue() != checksum) {
+               throw new IOException("Checksum error in chunk at offset " + offset);
+            }
+            transfer.append(this, buffer, 0, length);
+            offset += length;
+         }
+      } finally {
+         releaseBuffer(buffer);
+      }
+      transfers.complete(transfer);
+      return transfer.getData();
+   }
+
+   private int readInt() throws IOException {
+      byte[] header = new byte[4];
+      readFully(is, header, 0, 4);
+      return getInt(header, 0);
+   }
+
+   private void writeInt(int value) throws IOException {
+      byte[] header = new byte[4];
+      putInt(header, 0, value);
+      os.write(header);
+   }
+
+   private void checkLength(long length, long received) throws IOException {
+      if (length < 0 || received + length > maxMessageSize) {
+         throw new IOException("Invalid message length " + length + " (maximum " + maxMessageSize + ")");
+      }
+   }
+
+   private static int getInt(byte[] b, int off) {
+      return b[off] << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+   }
+
+   private static void putInt(byte[] b, int off, int value) {
+      b[off] = (byte) (value >> 24);
+      b[off + 1] = (byte) (value >> 16);
+      b[off + 2] = (byte) (value >> 8);
+      b[off + 3] = (byte) value;
+   }
+
+   private static byte[] acquireBuffer() {
+      byte[] buffer = bufferPool.poll();
+      return buffer == null ? new byte[CHUNK_SIZE + 4] : buffer;
+   }
+
+   private static void releaseBuffer(byte[] buffer) {
+      bufferPool.offer(buffer);
+   }
+
+   /*
+    * A plain message: a known number of bytes
+    */
+   private class PlainInputStream extends InputStream {
+      private int remaining;
+
+      PlainInputStream(int length) {
+         remaining = length;
+      }
+
+      @Override
+      public int read() throws IOException {
+         byte[] b = new byte[1];
+         return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (remaining == 0) {
+            return -1;
+         }
+         int n = Math.min(len, remaining);
+         readFully(is, b, off, n);
+         remaining -= n;
+         return n;
+      }
+
+      @Override
+      public int available() {
+         return remaining;
+      }
+   }
+
+   /*
+    * A chunked message: each chunk length is read when the previous chunk has
+    * been consumed
+    */
+   private class ChunkedInputStream extends InputStream {
+      private int remaining; // in the current chunk
+      private long received;
+      private boolean ended;
+
+      @Override
+      public int read() throws IOException {
+         byte[] b = new byte[1];
+         return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         while (remaining == 0) {
+            if (ended) {
+               return -1;
+            }
+            int length = readInt();
+            if (length == 0) {
+               ended = true;
+            } else if (length < 0 || length > CHUNK_SIZE) {
+               throw new IOException("Invalid chunk length " + length);
+            } else {
+               checkLength(length, received);
+               remaining = length;
+               received += length;
+            }
+         }
+         int n = Math.min(len, remaining);
+         readFully(is, b, off, n);
+         remaining -= n;
+         return n;
+      }
+   }
+
+   /*
+    * A plain message is held until closed, then sent with its length
+    */
+   private class PlainOutputStream extends ByteArrayOutputStream {
+      private boolean closed;
+
+      @Override
+      public void close() throws IOException {
+         if (closed) {
+            return;
+         }
+         closed = true;
+         checkLength(size(), 0);
+         writeInt(size());
+         writeTo(os);
+         os.flush();
+      }
+   }
+
+   /*
+    * A chunked message is sent a chunk at a time, from a pooled buffer
+    * holding the chunk length and data
+    */
+   private class ChunkedOutputStream extends OutputStream {
+      private byte[] buffer = acquireBuffer();
+      private int count; // data bytes in the buffer
+      private long sent;
+
+      @Override
+      public void write(int b) throws IOException {
+         write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         if (buffer == null) {
+            throw new IOException("Message closed");
+         }
+         while (len > 0) {
+            int n = Math.min(len, CHUNK_SIZE - count);
+            System.arraycopy(b, off, buffer, 4 + count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == CHUNK_SIZE) {
+               sendChunk();
+            }
+         }
+      }
+
+      @Override
+      public void flush() throws IOException {
+         if (count > 0) {
+            sendChunk();
+         }
+         os.flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+         if (buffer == null) {
+            return;
+         }
+         try {
+            if (count > 0) {
+               sendChunk();
+            }
+            writeInt(0); // end marker
+            os.flush();
+         } finally {
+            releaseBuffer(buffer);
+            buffer = null;
+         }
+      }
+
+      private void sendChunk() throws IOException {
+         checkLength(count, sent);
+         putInt(buffer, 0, count);
+         os.write(buffer, 0, 4 + count);
+         sent += count;
+         count = 0;
+      }
+   }
+}
@@ -16,8 +16,11 @@
 
 package com.ceperman.pcsecrets;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,23 +28,42 @@ import java.util.logging.Logger;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.ceperman.utils.Bytes;
+import com.ceperman.utils.StringPool;
+import com.ceperman.utils.Strings;
+
 /**
  * Encapsulate a PC-style secret
  * 
+ * To keep the memory footprint small, the password and note are held together
+ * as UTF-8 in a single byte array, and usernames and emails (which tend to be
+ * repeated across many secrets) are shared through a string pool. Holding the
+ * password as bytes rather than a String means it can be overwritten: the old
+ * bytes are zeroed whenever the value is replaced, and {@link #wipe()} clears
+ * them when the secrets are no longer needed.
+ * 
+ * A 128 bit digest of the content (see {@link #getContentDigest()}) is
+ * computed on first use and discarded when a field changes. Secrets with
+ * different digests are known to differ without comparing their fields, and
+ * the digest can be used as a hash key to find secrets with the same content.
+ * 
  * @author Chris Wood
  */
 public class HostSecret {
 	private static Logger logger = Logger.getLogger(HostSecret.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] NO_BYTES = new byte[0];
+	private static final StringPool pool = new StringPool();
 	
 	private String description;
 	private String username;
-	private String password;
 	private String email;
-	private String note;
+	/* password bytes [0, noteOffset) followed by note bytes [noteOffset, length) */
+	private byte[] values = NO_BYTES;
+	private int noteOffset;
 	private long timestamp; /* creation or modification timestamp */
 	private boolean deleted;
-	
-	static SimpleDateFormat sdf = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss");
+	private ContentDigest contentDigest; // null until computed
 	
 	/**
 	 * Default constructor - set creation timestamp
@@ -58,9 +80,7 @@ public class HostSecret {
 		this();
 		this.description = description.trim();
 		this.username = "";
-		this.password = "";
 		this.email = "";
-		this.note = "";
 	}
 	
 	/**
@@ -73,10 +93,9 @@ public class HostSecret {
 	 */
 	public HostSecret(String description, String username, String password, String email, String note) {
 		this(description);
-		this.username = username;
-		this.password = password;
-		this.email = email;
-		this.note = note;
+		this.username = pool.get(username);
+		this.email = pool.get(email);
+		setValues(encode(password), encode(note));
 	}
 	
 	/**
@@ -104,11 +123,14 @@ public class HostSecret {
 	}
 	
 	/**
-	 * Constructor - from another secret
+	 * Constructor - exact copy of another secret
 	 * @param secret
 	 */
 	public HostSecret(HostSecret secret) {
-		this(secret.getDescription(), secret.getUsername(), secret.getPassword(), secret.getEmail(), secret.getNote(), secret.getFormattedTimestamp());
+		this.description = secret.description;
+		setValuesFrom(secret);
+		this.deleted = secret.deleted;
+		this.contentDigest = secret.contentDigest;
 	}
 
 	/**
@@ -120,10 +142,9 @@ public class HostSecret {
 	public static HostSecret fromJSON(JSONObject jsonSecret) throws JSONException {
 		HostSecret secret = new HostSecret();
 		secret.description = jsonSecret.getString("description").trim();
-		secret.username = jsonSecret.getString("username");
-		secret.password = jsonSecret.getString("password");
-		secret.email = jsonSecret.getString("email");
-		secret.note = jsonSecret.getString("note");
+		secret.username = pool.get(jsonSecret.getString("username"));
+		secret.email = pool.get(jsonSecret.getString("email"));
+		secret.setValues(encode(jsonSecret.getString("password")), encode(jsonSecret.getString("note")));
 		secret.timestamp = jsonSecret.getLong("timestamp");
 		secret.deleted = jsonSecret.getBoolean("deleted");
 		return secret;
@@ -138,25 +159,67 @@ public class HostSecret {
 		JSONObject jsonSecret = new JSONObject();
 		jsonSecret.put("description", description);
 		jsonSecret.put("username", username);
-		jsonSecret.put("password", password);
+		jsonSecret.put("password", getPassword());
 		jsonSecret.put("email", email);
-		jsonSecret.put("note", note);
+		jsonSecret.put("note", getNote());
 		jsonSecret.put("timestamp", timestamp);
 		jsonSecret.put("deleted", deleted);
 		return jsonSecret;
 	}
 
 	/**
-	 * Compare this secret with another
+	 * Compare this secret with another. Secrets with different content
+	 * digests are rejected without comparing the fields.
 	 * 
 	 * @param secret
 	 * @return true if all fields equals, false otherwise
 	 */
 	public boolean equals(HostSecret secret) {
+		if (!getContentDigest().equals(secret.getContentDigest())) {
+			return false;
+		}
+		/* the digests match - confirm, as a false match would lose data */
 		return description.equalsIgnoreCase(secret.getDescription()) &&  username.equals(secret.getUsername()) && 
-			   password.equals(secret.getPassword()) && 
 			   email.equals(secret.getEmail()) && 
-			   note.equals(secret.getNote());
+			   noteOffset == secret.noteOffset && Arrays.equals(values, secret.values);
+	}
+	
+	/**
+	 * Copy the field values (not the description) from another secret. The
+	 * password and note are copied as bytes, without passing through a String.
+	 * 
+	 * @param secret
+	 */
+	public void setValuesFrom(HostSecret secret) {
+		username = secret.username;
+		email = secret.email;
+		contentDigest = null;
+		setValues(secret.values.clone(), secret.noteOffset);
+		timestamp = secret.timestamp;
+	}
+	
+	/**
+	 * Get the content digest: a 128 bit hash of the description (ignoring
+	 * case, as in {@link #equals(HostSecret)}), username, email, password and
+	 * note. The timestamp and deleted flag are not included.
+	 * 
+	 * @return the digest
+	 */
+	public ContentDigest getContentDigest() {
+		ContentDigest digest = contentDigest;
+		if (digest == null) {
+			digest = new ContentDigest(this);
+			contentDigest = digest; // immutable, so a racing computation is harmless
+		}
+		return digest;
+	}
+	
+	/**
+	 * Overwrite the password and note bytes with zeros and release them.
+	 * The secret has an empty password and note afterwards.
+	 */
+	public void wipe() {
+		setValues(NO_BYTES, 0);
 	}
 	
 	/**
@@ -177,21 +240,51 @@ public class HostSecret {
 	 * @param username the username to set
 	 */
 	public void setUsername(String username) {
-		this.username = username;
+		this.username = pool.get(username);
+		contentDigest = null;
 	}
 
 	/**
 	 * @return the password
 	 */
 	public String getPassword() {
-		return password;
+		return new String(values, 0, noteOffset, UTF8);
+	}
+
+	/**
+	 * Get the password without creating a String, e.g. to write or digest it.
+	 * The caller should zero the array when it has finished with it.
+	 * 
+	 * @return a copy of the password as UTF-8 bytes
+	 */
+	public byte[] getPasswordBytes() {
+		return Arrays.copyOfRange(values, 0, noteOffset);
+	}
+
+	/**
+	 * Get the password without creating a String. The caller should zero the
+	 * array when it has finished with it.
+	 * 
+	 * @return the password characters
+	 */
+	public char[] getPasswordChars() {
+		return decode(values, 0, noteOffset);
 	}
 
 	/**
 	 * @param password the password to set
 	 */
 	public void setPassword(String password) {
-		this.password = password;
+		setValues(encode(password), Arrays.copyOfRange(values, noteOffset, values.length));
+	}
+
+	/**
+	 * Set the password without creating a String
+	 * 
+	 * @param password the password as UTF-8 bytes, which are copied
+	 */
+	void setPasswordBytes(byte[] password) {
+		setValues(password.clone(), Arrays.copyOfRange(values, noteOffset, values.length));
 	}
 
 	/**
@@ -205,21 +298,51 @@ public class HostSecret {
 	 * @param email the email to set
 	 */
 	public void setEmail(String email) {
-		this.email = email;
+		this.email = pool.get(email);
+		contentDigest = null;
 	}
 
 	/**
 	 * @return the note
 	 */
 	public String getNote() {
-		return note;
+		return new String(values, noteOffset, values.length - noteOffset, UTF8);
+	}
+
+	/**
+	 * Get the note without creating a String. The caller should zero the
+	 * array when it has finished with it.
+	 * 
+	 * @return a copy of the note as UTF-8 bytes
+	 */
+	public byte[] getNoteBytes() {
+		return Arrays.copyOfRange(values, noteOffset, values.length);
+	}
+
+	/**
+	 * Get the note without creating a String. The caller should zero the
+	 * array when it has finished with it.
+	 * 
+	 * @return the note characters
+	 */
+	public char[] getNoteChars() {
+		return decode(values, noteOffset, values.length - noteOffset);
 	}
 
 	/**
 	 * @param note the note to set
 	 */
 	public void setNote(String note) {
-		this.note = note;
+		setValues(Arrays.copyOfRange(values, 0, noteOffset), encode(note));
+	}
+
+	/**
+	 * Set the note without creating a String
+	 * 
+	 * @param note the note as UTF-8 bytes, which are copied
+	 */
+	void setNoteBytes(byte[] note) {
+		setValues(Arrays.copyOfRange(values, 0, noteOffset), note.clone());
 	}
 	
 	/**
@@ -240,7 +363,7 @@ public class HostSecret {
 	 * @return the timestamp
 	 */
 	public String getFormattedTimestamp() {
-		return sdf.format(timestamp);
+		return TimestampFormat.format(timestamp);
 	}
 	
 	/**
@@ -248,7 +371,7 @@ public class HostSecret {
 	 */
 	public void setTimestampFromFormatted(String timestamp) {
 		try {
-			this.timestamp = sdf.parse(timestamp).getTime();
+			this.timestamp = TimestampFormat.parse(timestamp);
 		} catch (ParseException e) {
 		   try {
 		      this.timestamp = new Date(Long.parseLong(timestamp)).getTime();
@@ -275,4 +398,100 @@ public class HostSecret {
   public String toString() {
 		return getDescription();
 	}
+  
+  /*
+   * Replace the password and note bytes, zeroing the previous ones
+   */
+  private void setValues(byte[] password, byte[] note) {
+    byte[] newValues = new byte[password.length + note.length];
+    System.arraycopy(password, 0, newValues, 0, password.length);
+    System.arraycopy(note, 0, newValues, password.length, note.length);
+    Arrays.fill(password, (byte) 0);
+    Arrays.fill(note, (byte) 0);
+    setValues(newValues, password.length);
+  }
+  
+  private void setValues(byte[] newValues, int newNoteOffset) {
+    Arrays.fill(values, (byte) 0); // NO_BYTES is empty, so this is safe
+    values = newValues;
+    noteOffset = newNoteOffset;
+    contentDigest = null;
+  }
+  
+  /*
+   * Decode UTF-8 bytes to chars, zeroing the decoder's buffer
+   */
+  private static char[] decode(byte[] bytes, int offset, int length) {
+    CharBuffer buffer = UTF8.decode(ByteBuffer.wrap(bytes, offset, length));
+    char[] chars = new char[buffer.remaining()];
+    buffer.get(chars);
+    Arrays.fill(buffer.array(), '\0');
+    return chars;
+  }
+  
+  private static byte[] encode(String s) {
+    return s == null ? NO_BYTES : s.getBytes(UTF8);
+  }
+  
+  /**
+   * 128 bit digest of the content of a secret
+   */
+  public static final class ContentDigest {
+    private final long high;
+    private final long low;
+    
+    private ContentDigest(HostSecret secret) {
+      byte[] descr = encode(normalise(secret.description));
+      byte[] username = encode(secret.username);
+      byte[] email = encode(secret.email);
+      byte[] content = new byte[descr.length + username.length + email.length + secret.values.length + 16];
+      int offset = put(content, 0, descr, descr.length);
+      offset = put(content, offset, username, username.length);
+      offset = put(content, offset, email, email.length);
+      offset = put(content, offset, secret.values, secret.noteOffset);
+      System.arraycopy(secret.values, secret.noteOffset, content, offset, secret.values.length - secret.noteOffset);
+      long[] hash = Bytes.hash128(content, 0);
+      Arrays.fill(content, (byte) 0);
+      high = hash[0];
+      low = hash[1];
+    }
+    
+    /*
+     * Copy length bytes preceded by the length
+     */
+    private static int put(byte[] content, int offset, byte[] bytes, int length) {
+      content[offset++] = (byte) (length >>> 24);
+      content[offset++] = (byte) (length >>> 16);
+      content[offset++] = (byte) (length >>> 8);
+      content[offset++] = (byte) length;
+      System.arraycopy(bytes, 0, content, offset, length);
+      return offset + length;
+    }
+    
+    /*
+     * Map each char so that strings equal ignoring case are equal
+     */
+    private static String normalise(String s) {
+      return s == null ? null : Strings.foldCase(s);
+    }
+    
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof ContentDigest)) {
+        return false;
+      }
+      ContentDigest digest = (ContentDigest) other;
+      return high == digest.high && low == digest.low;
+    }
+    
+    @Override
+    public int hashCode() {
+      return (int) (low ^ (low >>> 32));
+    }
+    
+    @Override
+    public String toString() {
+      return String.format("%016x%016x", high, low);
+    }
+  }
 }
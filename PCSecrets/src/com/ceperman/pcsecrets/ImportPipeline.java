@@ -0,0 +1,408 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ceperman.utils.Strings;
+
+/**
+ * Import records into a secrets collection.
+ *
+ * Records are read from a RecordSource in batches. Each batch is mapped to
+ * secrets, using the user's field mapping, on the fork-join pool while the
+ * next batch is read; the mapped secrets are then checked for duplicates
+ * and staged in record order, so the result is the same as mapping the
+ * records one at a time.
+ *
+ * Each record is classified as new, identical or changed, by looking up its
+ * description (ignoring case) in a hash index of the collection and of the
+ * records staged so far, and comparing content digests. New and (if
+ * duplicates are replaced) changed secrets are staged; the counts can be
+ * shown for confirmation before anything is applied. Nothing in the
+ * collection is changed until the staged secrets are applied, as a single
+ * batch (see
+ * {@link Result#applyTo(SecretsCollection)}), so a cancelled or failed
+ * import leaves the collection as it was.
+ *
+ * Staging only reads the collection, so it can run on a background thread.
+ * The applying must be done on the UI thread. If the collection has changed
+ * since staging, the staged secrets are classified again when they are
+ * applied, so a secret added or changed meanwhile is not replaced unless
+ * duplicates are replaced.
+ *
+ * @author Chris Wood
+ */
+public class ImportPipeline {
+   private static Logger logger = Logger.getLogger(ImportPipeline.class.getName());
+
+   /** records between progress reports - records are mapped in batches of this size */
+   public static final int PROGRESS_INTERVAL = 1000;
+
+   /* records mapped by a task without splitting */
+   private static final int SPLIT_THRESHOLD = 128;
+
+   /**
+    * Receives progress reports
+    */
+   public interface Listener {
+      /**
+       * @param records records read so far
+       * @param percent percentage of the input read, or -1 if not known
+       */
+      void progress(int records, int percent);
+   }
+
+   private final String[] mapping;
+   private final boolean replaceDuplicates;
+   private volatile boolean cancelled;
+
+   /**
+    * Constructor
+    *
+    * @param mapping input field name for each secret field (description,
+    *           username, password, email, notes, timestamp), or null if
+    *           not mapped
+    * @param replaceDuplicates true if an imported secret replaces one with
+    *           the same description, false if it is ignored
+    */
+   public ImportPipeline(String[] mapping, boolean replaceDuplicates) {
+      this.mapping = mapping;
+      this.replaceDuplicates = replaceDuplicates;
+   }
+
+   /**
+    * Stop staging at the next batch. The result is marked as cancelled.
+    */
+   public void cancel() {
+      cancelled = true;
+   }
+
+   /**
+    * Read all the records from the source and stage the secrets to be added
+    * or replaced. The source is not closed.
+    *
+    * @param source
+    * @param secrets collection the secrets are for; it is not changed
+    * @param listener progress listener, or null
+    * @return the staged secrets and counts
+    * @throws IOException
+    * @throws DataFormatException if a record is not valid
+    */
+   public Result stage(RecordSource source, SecretsCollection secrets, Listener listener) throws IOException,
+               DataFormatException {
+      int[] columns = columnsFor(source.getFieldNames());
+      Result result = new Result();
+      /* existing and staged secrets by description (case-folded), as descriptions are matched ignoring case */
+      result.stagedFrom = secrets.snapshot();
+      result.replaceDuplicates = replaceDuplicates;
+      Map<String, HostSecret> existingIndex = index(result.stagedFrom);
+      Map<String, Integer> stagedIndex = new HashMap<String, Integer>();
+      MapTask pending = null; // batch being mapped
+      while (!cancelled) {
+         MapTask next = null;
+         List<String[]> batch = readBatch(source);
+         if (!batch.isEmpty()) {
+            next = new MapTask(batch, columns);
+            ForkJoinPool.commonPool().execute(next);
+         }
+         if (pending != null) {
+            pending.join();
+            if (cancelled) {
+               break;
+            }
+            merge(pending, existingIndex, result, stagedIndex);
+            if (listener != null) {
+               listener.progress(result.records, source.getProgress());
+            }
+         }
+         if (next == null) {
+            break;
+         }
+         pending = next;
+      }
+      result.cancelled = cancelled;
+      logger.log(Level.FINE, "Import staged: " + result.records + " records, " + result.added + " new, " + result.changed
+                  + " changed, " + result.identical + " identical" + (cancelled ? " - cancelled" : ""));
+      return result;
+   }
+
+   /*
+    * Read the next batch of records - empty at the end of the source
+    */
+   private static List<String[]> readBatch(RecordSource source) throws IOException, DataFormatException {
+      List<String[]> batch = new ArrayList<String[]>(PROGRESS_INTERVAL);
+      String[] record;
+      while (batch.size() < PROGRESS_INTERVAL && (record = source.next()) != null) {
+         batch.add(record);
+      }
+      return batch;
+   }
+
+   /*
+    * Index the secrets of the collection by description (case-folded)
+    */
+   private static Map<String, HostSecret> index(SecretsCollection.Snapshot snapshot) {
+      Map<String, HostSecret> index = new HashMap<String, HostSecret>(snapshot.size() * 4 / 3 + 1);
+      for (HostSecret secret : snapshot) {
+         index.put(Strings.foldCase(secret.getDescription()), secret);
+      }
+      return index;
+   }
+
+   /*
+    * Classify and stage the mapped secrets of a batch, in record order
+    */
+   private void merge(MapTask batch, Map<String, HostSecret> existingIndex, Result result,
+               Map<String, Integer> stagedIndex) {
+      for (int i = 0; i < batch.secrets.length; i++) {
+         result.records++;
+         HostSecret newSecret = batch.secrets[i];
+         Integer staged = stagedIndex.get(batch.keys[i]);
+         HostSecret existing = staged != null ? result.staged.get(staged.intValue()) : existingIndex.get(batch.keys[i]);
+         if (existing == null) {
+            result.added++;
+         } else if (existing.equals(newSecret)) {
+            result.identical++;
+            continue; // same content - nothing to replace
+         } else {
+            result.changed++;
+            if (!replaceDuplicates) {
+               continue;
+            }
+         }
+         if (staged != null) {
+            result.staged.set(staged.intValue(), newSecret);
+         } else {
+            stagedIndex.put(batch.keys[i], result.staged.size());
+            result.staged.add(newSecret);
+         }
+      }
+   }
+
+   /*
+    * Column of the source for each secret field, or -1 if not mapped
+    */
+   private int[] columnsFor(String[] fieldNames) {
+      int[] columns = new int[mapping.length];
+      for (int i = 0; i < mapping.length; i++) {
+         columns[i] = -1;
+         for (int j = 0; j < fieldNames.length && mapping[i] != null; j++) {
+            if (mapping[i].equals(fieldNames[j])) {
+               columns[i] = j;
+               break;
+            }
+         }
+      }
+      return columns;
+   }
+
+   /*
+    * Secret values from the record
+    */
+   private static String[] map(String[] record, int[] columns) {
+      String[] values = new String[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+         String value = columns[i] < 0 || record[columns[i]] == null ? "" : record[columns[i]];
+         if (i == 0) { // description
+            // ensure that key (description) has no newline chars
+            int newline = value.indexOf('\n');
+            if (newline >= 0) {
+               value = value.substring(0, newline);
+            }
+         }
+         values[i] = value;
+      }
+      return values;
+   }
+
+   /*
+    * Map a range of a batch of records to secrets, splitting the range
+    * between tasks if it is large
+    */
+   @SuppressWarnings("serial")
+   private class MapTask extends RecursiveAction {
+      private final List<String[]> records;
+      private final int[] columns;
+      private final HostSecret[] secrets;
+      private final String[] keys; // case-folded descriptions
+      private final int from;
+      private final int to;
+
+      MapTask(List<String[]> records, int[] columns) {
+         this(records, columns, new HostSecret[records.size()], new String[records.size()], 0, records.size());
+      }
+
+      private MapTask(List<String[]> records, int[] columns, HostSecret[] secrets, String[] keys, int from, int to) {
+         this.records = records;
+         this.columns = columns;
+         this.secrets = secrets;
+         this.keys = keys;
+         this.from = from;
+         this.to = to;
+      }
+
+      @Override
+      protected void compute() {
+         if (to - from > SPLIT_THRESHOLD) {
+            int middle = (from + to) >>> 1;
+            invokeAll(new MapTask(records, columns, secrets, keys, from, middle), new MapTask(records, columns,
+                        secrets, keys, middle, to));
+            return;
+         }
+         for (int i = from; i < to && !cancelled; i++) {
+            secrets[i] = new HostSecret(map(records.get(i), columns));
+            keys[i] = Strings.foldCase(secrets[i].getDescription());
+            secrets[i].getContentDigest(); // computed here, in parallel, for the duplicate check
+         }
+      }
+   }
+
+   /**
+    * The outcome of staging
+    */
+   public static class Result {
+      private final List<HostSecret> staged = new ArrayList<HostSecret>();
+      private int records;
+      private int added;
+      private int changed;
+      private int identical;
+      private boolean cancelled;
+      private SecretsCollection.Snapshot stagedFrom; // collection the records were classified against
+      private boolean replaceDuplicates;
+
+      /**
+       * @return number of records read
+       */
+      public int getRecords() {
+         return records;
+      }
+
+      /**
+       * @return number of secrets to be added or replaced
+       */
+      public int getAdded() {
+         return staged.size();
+      }
+
+      /**
+       * @return number of records with the description of an existing secret,
+       *         or of an earlier record
+       */
+      public int getDuplicates() {
+         return changed + identical;
+      }
+
+      /**
+       * @return number of records with a new description
+       */
+      public int getNew() {
+         return added;
+      }
+
+      /**
+       * @return number of duplicate records with different content, staged
+       *         only if duplicates are replaced
+       */
+      public int getChanged() {
+         return changed;
+      }
+
+      /**
+       * @return number of duplicate records with the same content, never
+       *         staged
+       */
+      public int getIdentical() {
+         return identical;
+      }
+
+      /**
+       * @return true if staging was cancelled
+       */
+      public boolean isCancelled() {
+         return cancelled;
+      }
+
+      /**
+       * @return the secrets to be added or replaced
+       */
+      public List<HostSecret> getStaged() {
+         return Collections.unmodifiableList(staged);
+      }
+
+      /**
+       * Add or replace the staged secrets, as one batch. Nothing is applied if
+       * staging was cancelled. If the collection has changed since staging,
+       * the staged secrets are first classified again against it, and the
+       * counts updated.
+       *
+       * @param secrets
+       */
+      public void applyTo(SecretsCollection secrets) {
+         if (cancelled) {
+            return;
+         }
+         SecretsCollection.Snapshot current = secrets.snapshot();
+         if (current != stagedFrom) {
+            restage(current);
+         }
+         secrets.addOrUpdateAll(staged);
+      }
+
+      /*
+       * Classify the staged secrets again, against the current collection
+       */
+      private void restage(SecretsCollection.Snapshot current) {
+         for (Iterator<HostSecret> it = staged.iterator(); it.hasNext();) {
+            HostSecret secret = it.next();
+            boolean wasNew = stagedFrom.indexOf(secret.getDescription()) < 0;
+            int index = current.indexOf(secret.getDescription());
+            HostSecret existing = index < 0 ? null : current.get(index);
+            if (existing == null) {
+               if (!wasNew) { // deleted meanwhile
+                  changed--;
+                  added++;
+               }
+            } else if (existing.equals(secret)) {
+               if (wasNew) {
+                  added--;
+               } else {
+                  changed--;
+               }
+               identical++;
+               it.remove();
+            } else if (wasNew) { // added meanwhile
+               added--;
+               changed++;
+               if (!replaceDuplicates) {
+                  it.remove();
+               }
+            }
+         }
+      }
+   }
+}
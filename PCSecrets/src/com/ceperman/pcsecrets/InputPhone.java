@@ -18,46 +18,72 @@ package com.ceperman.pcsecrets;
 
 import java.awt.Frame;
 import java.beans.PropertyChangeListener;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.swing.SwingWorker;
 
-import org.mindrot.jbcrypt.BCrypt;
-
-import com.ceperman.pcsecrets.SecurityUtils.CipherInfo;
-import com.ceperman.pcsecrets.SecurityUtils.CipherParms;
-
 /**
  * Class to encapsulate read access to the phone. Communication uses simple socket protocol as
- * communication will be between local nodes. The socket is not closed when input is finished
- * to allow for a response. A reference to the client (phone) socket is stored in the parent class.
+ * communication will be between local nodes. The secrets are received by the SyncServer; this
+ * waits for the next received session. The socket is not closed when input is finished
+ * to allow for a response on the same session.
  * 
  * @author Chris Wood
  */
 public class InputPhone extends DeviceConnection {
    private static Logger logger = Logger.getLogger(InputPhone.class.getName());
 
+   /**
+    * Metadata item offering delta sync: the device may send only the secrets
+    * changed since the last sync (see DeviceSecretsCollection)
+    */
+   public static final String METADATA_DELTA = "sync=delta";
+   /**
+    * Metadata item prefix for the root hash of the PC vault digest, as hex.
+    * A device with the same root holds the same secrets (see VaultDigest).
+    */
+   public static final String METADATA_DIGEST = "digest=";
+   /**
+    * Metadata item prefix for the PC vault digest bucket summary (see
+    * VaultDigest.getBucketSummary()). The device may send only the secrets in
+    * buckets that differ.
+    */
+   public static final String METADATA_BUCKETS = "buckets=";
+   /**
+    * Metadata item prefix for the bcrypt salt, as hex, used to derive the
+    * vault digest key from the sync password (see VaultDigest)
+    */
+   public static final String METADATA_DIGEST_SALT = "digestsalt=";
+   /**
+    * Metadata item prefix for the bcrypt log rounds used to derive the vault
+    * digest key
+    */
+   public static final String METADATA_DIGEST_ROUNDS = "digestrounds=";
+   /**
+    * Metadata item offering chunked framing (see FramedChannel). The device
+    * may send its secrets chunked, and the response uses the same framing.
+    */
+   public static final String METADATA_CHUNKED = "framing=chunked";
+   /**
+    * Metadata item offering resumable transfers (see FramedChannel). If the
+    * connection drops while the device is sending its secrets, it can
+    * reconnect and send only the rest.
+    */
+   public static final String METADATA_RESUMABLE = "transfer=resumable";
+
    private GetSecretsTask getSecretsTask = new GetSecretsTask();
-   private int port;
-   private byte[] password;
-   private String metadataToSend = "none";
-   private String metadataReceived;
+   private SyncServer server;
+   private SyncSession session;
 
    /*
-    * Status distinguishes between these possibilities: (1) comms error prevented receiving anything (2) comms OK but no
-    * data received (3) data received but was not decrypted successfully (4) secrets data was decrypted successfully
+    * Status distinguishes between these possibilities: (1) the wait for a session was interrupted (2) secrets
+    * data was decrypted successfully. Data that could not be decrypted is answered by the server at once, and
+    * is never seen here.
     * 
-    * In all cases except (1) a response should eventually be sent.
+    * In case (2) a response should eventually be sent, using the session.
     */
    private boolean commsError; // comms error occurred
-   private boolean decryptionError; // data not decrypted successfully
    private boolean successful; // secrets data received OK
 
    /**
@@ -65,13 +91,11 @@ public class InputPhone extends DeviceConnection {
     * 
     * @param parent
     * @param listener
-    * @param port
-    * @param password
+    * @param server server receiving the device secrets
     */
-   public InputPhone(Frame parent, PropertyChangeListener listener, int port, byte[] password) {
+   public InputPhone(Frame parent, PropertyChangeListener listener, SyncServer server) {
       super(parent);
-      this.port = port;
-      this.password = password;
+      this.server = server;
       getSecretsTask.addPropertyChangeListener(listener);
    }
 
@@ -107,33 +131,16 @@ public class InputPhone extends DeviceConnection {
    }
 
    /**
-    * @return true if a decryption error occurred, false otherwise
+    * @return the session the secrets were received on, or null if none
     */
-   public boolean isDecryptionError() {
-      return decryptionError;
-   }
-   
-   /**
-    * Set metadata to send to device
-    * @param metadata
-    */
-   public void setMetadata(String metadata) {
-      metadataToSend = metadata;
-   }
-   
-   /**
-    * Get metadata received from device
-    * @return metadata
-    */
-   public String getMetadata() {
-      return metadataReceived;
+   public SyncSession getSession() {
+      return session;
    }
 
    /**
     * Task to retrieve secrets from the phone
     */
    private class GetSecretsTask extends SwingWorker<DeviceSecretsCollection, Void> {
-      private ServerSocket serverSocket = null;
 
       /*
        * Constructor
@@ -146,45 +153,19 @@ public class InputPhone extends DeviceConnection {
       protected DeviceSecretsCollection doInBackground() throws Exception {
          DeviceSecretsCollection phoneSecrets = null;
          setDialogText(Messages.getString("PhoneCommunicator.waitconnection"));
-         
-         Socket client = null;
-         InputStream is = null;
-         OutputStream os = null;
-         try {
-            serverSocket = new ServerSocket(port);
-            logger.log(Level.FINE, "Server socket " + port + " waiting");
-            client = serverSocket.accept();
-            logger.log(Level.INFO, "Device connected");
 
-            /* set the socket reference for the data response */
-            setConnectionSocket(client);
-            
-            // send metadata
-            os = client.getOutputStream();
-            writeData(metadataToSend.getBytes(CHARSET), os);
-            logger.log(Level.FINE, "metadata sent: " + new String(metadataToSend) + " (" + metadataToSend.length() + ")");
-            
-            // receive data
-            is = client.getInputStream();
-            byte[] requestData = readData(is);
-            logger.log(Level.FINE, "data received: " + bytesToHexTruncated(requestData) + " (" + requestData.length + ")");
-            
-            phoneSecrets = extractSecretsCollection(requestData);
-            if (phoneSecrets != null) {
-               phoneSecrets.setSourceName(client.getInetAddress().getHostAddress());
-            }
-         } catch (Exception e) {
-            logger.log(Level.WARNING, "Exception getting device secrets: " + e);
-            if (is != null) try {
-               is.close();
-            } catch (IOException ignore) {
-            }
-            setConnectionSocket(null);
+         try {
+            logger.log(Level.FINE, "Waiting for a device session");
+            session = server.takeSession();
+            phoneSecrets = session.getPhoneSecrets();
+            successful = phoneSecrets != null;
+         } catch (InterruptedException e) {
+            logger.log(Level.INFO, "Wait for device session interrupted");
             commsError = true;
          }
 
          if (phoneSecrets != null) {
-            logger.log(Level.INFO, "Received device secrets: " + phoneSecrets.getSize());
+            logger.log(Level.INFO, "Device secrets from session: " + phoneSecrets.getSize());
          } else {
             logger.log(Level.WARNING, "Nothing received from phone");
          }
@@ -193,14 +174,13 @@ public class InputPhone extends DeviceConnection {
 
       @Override
       protected void done() {
-         if (serverSocket != null) try {
-            serverSocket.close();
-         } catch (IOException ignore) {
-         }
          phoneConnectionDialog.dispose(); // remove the dialog
 
          if (isCancelled()) {
             logger.log(Level.INFO, "done() signalled and cancelled");
+            if (session != null) {
+               session.close(); // taken just as the wait was cancelled
+            }
             firePropertyChange(Constants.PHONE_RECEIVE, null, Constants.CANCEL);
          } else if (successful) {
             logger.log(Level.INFO, "done() signalled and successful");
@@ -211,46 +191,6 @@ public class InputPhone extends DeviceConnection {
          }
       }
 
-      /**
-       * Extract the secrets collection.
-       * 
-       * @param phoneSecrets
-       * @param client
-       * @param requestData
-       * @return
-       * @throws IOException
-       */
-      private DeviceSecretsCollection extractSecretsCollection(byte[] requestData) throws IOException {
-         DeviceSecretsCollection phoneSecrets = null;
-         ByteArrayInputStream bais = new ByteArrayInputStream(requestData);
-         CipherInfo cipherInfo = null;
-         CipherParms parms = SecurityUtils.getCipherParms(bais);
-         if (parms.rounds > 0 && parms.salt.length == BCrypt.BCRYPT_SALT_LEN) {
-            /* the contents of the file look valid */
-            cipherInfo = SecurityUtils.createCiphers(password, parms); // create cipher
-            int remaining = bais.available();
-            logger.log(Level.FINE, "Cipher created, encrypted data remaining: " + remaining);
-            try {
-               DeviceSecretsCollection tempSecrets = new DeviceSecretsCollection();
-               tempSecrets.setPswdBytes(password);
-               tempSecrets.setCipherInfo(cipherInfo);
-               tempSecrets.loadSecretsFromEncryptedJSONStream(bais);
-               phoneSecrets = tempSecrets; // no error occurred
-               successful = true;
-            } catch (Exception e) {
-               decryptionError = true;
-               logger.log(Level.WARNING, "Exception decrypting phone secrets: " + e.getMessage());
-            }
-         } else {
-            /* contents do not look valid */
-            logger.log(Level.WARNING, "Encryption problem with incoming data - rounds: " + parms.rounds
-                        + ", salt length: " + (parms.salt == null ? "null" : parms.salt.length));
-            decryptionError = true;
-         }
-
-         return phoneSecrets;         
-      }
-
    }
 
 }
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ceperman.utils.CountingInputStream;
+import com.ceperman.utils.JsonTokenStream;
+
+/**
+ * Records read from a JSON file as a token stream, without holding the
+ * document in memory.
+ *
+ * {@link #findCandidates(File)} reads the document once to find the objects
+ * that could be records: objects inside an array (at any depth) whose values
+ * are all simple. A record source then reads the document again, returning
+ * each object at the chosen path as a record. Values that are objects or
+ * arrays are skipped; an empty object is treated as an empty value, and a
+ * null as an empty string.
+ *
+ * @author Chris Wood
+ */
+public class JSONRecordSource implements RecordSource {
+   private static Logger logger = Logger.getLogger(JSONRecordSource.class.getName());
+
+   private static final String CHARSET = "UTF-8";
+
+   private final JsonTokenStream tokens;
+   private final CountingInputStream counter;
+   private final long length;
+   private final String path;
+   private final String[] fieldNames;
+   private final Map<String, Integer> fieldIndex = new HashMap<String, Integer>();
+   private final List<Frame> frames = new ArrayList<Frame>();
+
+   /**
+    * Constructor - open the file
+    *
+    * @param file
+    * @param candidate the records to read
+    * @throws IOException
+    */
+   public JSONRecordSource(File file, RecordCandidate candidate) throws IOException {
+      length = file.length();
+      counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+      tokens = new JsonTokenStream(new InputStreamReader(counter, CHARSET));
+      path = candidate.getPath();
+      fieldNames = candidate.getFieldNames();
+      for (int i = 0; i < fieldNames.length; i++) {
+         fieldIndex.put(fieldNames[i], i);
+      }
+   }
+
+   /**
+    * Find the objects in the file that could be imported as records
+    *
+    * @param file
+    * @return the candidates, in the order first found
+    * @throws IOException if the file cannot be read or is not valid JSON
+    */
+   public static List<RecordCandidate> findCandidates(File file) throws IOException {
+      Map<String, RecordCandidate> candidates = new LinkedHashMap<String, RecordCandidate>();
+      Map<String, int[]> counts = new HashMap<String, int[]>(); // objects at each path inside an array
+      List<Frame> frames = new ArrayList<Frame>();
+      JsonTokenStream tokens = new JsonTokenStream(new InputStreamReader(new BufferedInputStream(
+                  new FileInputStream(file)), CHARSET));
+      try {
+         String name = null;
+         int token;
+         while ((token = tokens.next()) != JsonTokenStream.END_DOCUMENT) {
+            Frame top = frames.isEmpty() ? null : frames.get(frames.size() - 1);
+            switch (token) {
+            case JsonTokenStream.NAME:
+               name = tokens.getText();
+               break;
+            case JsonTokenStream.BEGIN_OBJECT:
+            case JsonTokenStream.BEGIN_ARRAY:
+               boolean array = token == JsonTokenStream.BEGIN_ARRAY;
+               if (array && top != null && !top.array) {
+                  top.primitive = false;
+               }
+               frames.add(new Frame(childPath(top, name), array, name));
+               break;
+            case JsonTokenStream.END_OBJECT:
+               Frame object = frames.remove(frames.size() - 1);
+               if (object.path.contains("[*]")) {
+                  int[] count = counts.get(object.path);
+                  if (count == null) {
+                     count = new int[1];
+                     counts.put(object.path, count);
+                  }
+                  count[0]++;
+                  if (object.primitive && !object.fields.isEmpty() && !candidates.containsKey(object.path)) {
+                     candidates.put(object.path, new RecordCandidate(object.path, object.fields
+                                 .toArray(new String[object.fields.size()])));
+                  }
+               }
+               Frame parent = frames.isEmpty() ? null : frames.get(frames.size() - 1);
+               if (parent != null && !parent.array) {
+                  if (object.fields.isEmpty()) {
+                     parent.addField(object.name); // empty object - an empty value
+                  } else {
+                     parent.primitive = false;
+                  }
+               }
+               break;
+            case JsonTokenStream.END_ARRAY:
+               frames.remove(frames.size() - 1);
+               break;
+            default: // simple value
+               if (top != null && !top.array) {
+                  top.addField(name);
+               }
+            }
+         }
+      } finally {
+         tokens.close();
+      }
+      for (RecordCandidate candidate : candidates.values()) {
+         candidate.setCount(counts.get(candidate.getPath())[0]);
+         logger.log(Level.FINE, "JSON candidate: " + candidate.getPath() + " " + Arrays.toString(candidate.getFieldNames())
+                     + " x " + candidate.getCount());
+      }
+      return new ArrayList<RecordCandidate>(candidates.values());
+   }
+
+   @Override
+   public String[] getFieldNames() {
+      return fieldNames;
+   }
+
+   @Override
+   public String[] next() throws IOException {
+      String[] record = null;
+      int recordDepth = 0;
+      String name = null;
+      int token;
+      while ((token = tokens.next()) != JsonTokenStream.END_DOCUMENT) {
+         switch (token) {
+         case JsonTokenStream.NAME:
+            name = tokens.getText();
+            break;
+         case JsonTokenStream.BEGIN_OBJECT:
+         case JsonTokenStream.BEGIN_ARRAY:
+            if (record != null) {
+               tokens.skipContainer(); // not a simple value
+               break;
+            }
+            Frame top = frames.isEmpty() ? null : frames.get(frames.size() - 1);
+            Frame frame = new Frame(childPath(top, name), token == JsonTokenStream.BEGIN_ARRAY, name);
+            frames.add(frame);
+            if (!frame.array && frame.path.equals(path)) {
+               record = new String[fieldNames.length];
+               Arrays.fill(record, "");
+               recordDepth = tokens.getDepth();
+            }
+            break;
+         case JsonTokenStream.END_OBJECT:
+         case JsonTokenStream.END_ARRAY:
+            frames.remove(frames.size() - 1);
+            if (record != null && tokens.getDepth() < recordDepth) {
+               return record;
+            }
+            break;
+         default: // simple value
+            if (record != null) {
+               Integer index = fieldIndex.get(name);
+               if (index != null && tokens.getText() != null) {
+                  record[index.intValue()] = tokens.getText();
+               }
+            }
+         }
+      }
+      return null;
+   }
+
+   @Override
+   public int getProgress() {
+      return counter.getPercent(length);
+   }
+
+   @Override
+   public void close() throws IOException {
+      tokens.close();
+   }
+
+   /*
+    * Path of a value in the container, in JSON path form
+    */
+   private static String childPath(Frame container, String name) {
+      if (container == null) {
+         return "$";
+      }
+      return container.array ? container.path + "[*]" : container.path + "." + name;
+   }
+
+   /*
+    * An open object or array
+    */
+   private static class Frame {
+      final String path;
+      final boolean array;
+      final String name; // member name in the parent object
+      boolean primitive = true; // object with only simple values
+      List<String> fields = new ArrayList<String>(); // object member names with simple values
+
+      Frame(String path, boolean array, String name) {
+         this.path = path;
+         this.array = array;
+         this.name = name;
+      }
+
+      void addField(String field) {
+         if (!fields.contains(field)) {
+            fields.add(field);
+         }
+      }
+   }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes secrets as a JSON document in UTF-8:
+ * {"secrets":[{"secret":{"description":...}}, ...]}
+ *
+ * @author Chris Wood
+ */
+public class JSONSecretsWriter extends SecretsWriter {
+   private boolean first = true;
+
+   /**
+    * Constructor - create the file and write the start of the document
+    *
+    * @param file
+    * @throws IOException
+    */
+   public JSONSecretsWriter(File file) throws IOException {
+      super(file, Charset.forName("UTF-8"));
+      out.write("{\"secrets\":[");
+   }
+
+   @Override
+   public void write(HostSecret hs) throws IOException {
+      out.write(first ? "{\"secret\":{" : ",{\"secret\":{");
+      first = false;
+      writeString("description", hs.getDescription());
+      out.write(',');
+      writeString("username", hs.getUsername());
+      out.write(',');
+      char[] password = hs.getPasswordChars();
+      char[] note = hs.getNoteChars();
+      try {
+         writeString("password", CharBuffer.wrap(password));
+         out.write(',');
+         writeString("email", hs.getEmail());
+         out.write(',');
+         writeString("note", CharBuffer.wrap(note));
+      } finally {
+         zero(password, note);
+      }
+      out.write(",\"timestamp\":");
+      out.write(Long.toString(hs.getTimestamp()));
+      out.write(",\"deleted\":");
+      out.write(Boolean.toString(hs.isDeleted()));
+      out.write("}}");
+   }
+
+   @Override
+   public void finish() throws IOException {
+      out.write("]}");
+      super.finish();
+   }
+
+   /*
+    * Write a name and quoted value, escaped as by JSONObject.quote
+    */
+   private void writeString(String name, CharSequence value) throws IOException {
+      out.write('"');
+      out.write(name);
+      out.write("\":\"");
+      int length = value == null ? 0 : value.length();
+      char previous = 0;
+      for (int i = 0; i < length; i++) {
+         char c = value.charAt(i);
+         switch (c) {
+         case '\\':
+         case '"':
+            out.write('\\');
+            out.write(c);
+            break;
+         case '/':
+            if (previous == '<') {
+               out.write('\\');
+            }
+            out.write(c);
+            break;
+         case '\b':
+            out.write("\\b");
+            break;
+         case '\t':
+            out.write("\\t");
+            break;
+         case '\n':
+            out.write("\\n");
+            break;
+         case '\f':
+            out.write("\\f");
+            break;
+         case '\r':
+            out.write("\\r");
+            break;
+         default:
+            if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+               String hex = Integer.toHexString(c);
+               out.write("\\u0000", 0, 6 - hex.length());
+               out.write(hex);
+            } else {
+               out.write(c);
+            }
+         }
+         previous = c;
+      }
+      out.write('"');
+   }
+}
@@ -55,9 +55,9 @@ public class MainFormListener implements ListSelectionListener {
    public void valueChanged(ListSelectionEvent event) {
       if (event.getValueIsAdjusting() == false) {
          int index = ((JList<HostSecret>) event.getSource()).getSelectedIndex();
-         SecretsCollection listModel = (SecretsCollection) ((JList<HostSecret>) event.getSource()).getModel();
+         SecretsCollection listModel = mainWindow.getListModel();
          if (!(index < 0)) { /* -1 indicates no selection */
-            HostSecret selectedSecret = (HostSecret) listModel.getElementAt(index);
+            HostSecret selectedSecret = ((JList<HostSecret>) event.getSource()).getModel().getElementAt(index);
             /* Only offer save if there was a previous secret selected and form data (not descr) was changed.
              * However, we have to handle the cases where the descr was changed AND some other field, so we
              * must check if the descr field is an existing secret, otherwise ignore.
@@ -30,16 +30,17 @@ import java.awt.event.WindowEvent;
 import java.beans.PropertyChangeEvent;
 import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.net.URI;
 import java.text.MessageFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,10 +57,17 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTextArea;
+import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.Timer;
 import javax.swing.border.EtchedBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+import com.ceperman.utils.Strings;
 
 /**
  * Main UI module
@@ -74,6 +82,8 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 	private SecretsProperties props;
 
 	private JList<HostSecret> jSecretsList;
+	private FilteredSecretsModel filteredModel;
+	private JTextField fieldSearch;
 	private InputForm inputForm;
 	private JTextArea areaMsg;
 	
@@ -81,14 +91,27 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 	
 	private SyncDialog syncDialog;
 	private DeviceSecretsCollection phoneSecrets;
+	private SyncServer syncServer;
+	private SyncSession syncSession; // session being synced
 	private InputPhone inputPhone;
 	private OutputPhone outputPhone;
 	private OutputErrorPhone outputErrorPhone;
+	private final Set<String> fullSyncDevices = new HashSet<String>(); // a delta or partial sync did not match
+	private VaultDigest syncDigest; // digest offered to the device, if any
+	private byte[] syncDigestRoot;
+	private byte[] digestSalt; // bcrypt salt for the digest key, kept for the run
+	private byte[] digestKey; // derived from digestKeyPswd and digestSalt, kept for the run
+	private byte[] digestKeyPswd; // copy of the sync password the digest key was derived from
+	private int digestKeyRounds;
+	private DigestKeyTask digestKeyTask; // deriving the digest key, if running
 	
 	private String syncCounts;
 	
-	private UDPDiscovery udpDiscovery;
-   private DatagramSocket socket;
+	/* sync capabilities announced to devices - see InputPhone metadata items */
+	private static final String SYNC_CAPABILITIES = "delta,digest,chunked,resumable";
+	/* bcrypt log rounds for the digest key if the secrets file cipher rounds are not known */
+	private static final int DIGEST_KEY_ROUNDS = 12;
+	private DiscoveryService discovery;
    private final int discoveryPort = 53165;
    
    private Timer idleTimer;
@@ -121,7 +144,7 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 		syncDevices = listModel.getSyncDevices();
 		
 		try {
-         socket = new DatagramSocket(discoveryPort, InetAddress.getByName("0.0.0.0"));
+         discovery = new DiscoveryService(discoveryPort);
       } catch (Exception e) {
          JOptionPane.showMessageDialog(MainWindow.this, Messages.getString("MainWindow.alreadyrunning"),
                      Messages.getString("MainWindow.alreadyrunningtitle"), JOptionPane.ERROR_MESSAGE);
@@ -168,10 +191,18 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 		jSplitPane.setResizeWeight(0.5);
 		getContentPane().add(jSplitPane, BorderLayout.CENTER);
 		
-		/* list view */
+		/* list view, with search field filtering the list as the user types */
+		JPanel listHeader = new JPanel(new BorderLayout());
 		JLabel heading = new JLabel(Messages.getString("MainWindow.secretstitle"));
-		jSecretsPane.add(heading, BorderLayout.NORTH);
-		jSecretsList = new JList<HostSecret>(listModel);
+		listHeader.add(heading, BorderLayout.NORTH);
+		fieldSearch = new JTextField();
+		fieldSearch.setToolTipText(Messages.getString("MainWindow.searchtooltip"));
+		fieldSearch.getDocument().addDocumentListener(new SearchListener());
+		listHeader.add(new JLabel(Messages.getString("MainWindow.search")), BorderLayout.WEST);
+		listHeader.add(fieldSearch, BorderLayout.CENTER);
+		jSecretsPane.add(listHeader, BorderLayout.NORTH);
+		filteredModel = new FilteredSecretsModel(listModel);
+		jSecretsList = new JList<HostSecret>(filteredModel);
 		JScrollPane jScrollPane = new JScrollPane(jSecretsList);
 		jScrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
 		jSecretsPane.add(jScrollPane, BorderLayout.CENTER);
@@ -250,8 +281,11 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 					areaMsg.setText(Messages.getString("PCSecrets.missingkey"));
 			} else {
 				HostSecret newSecret = inputForm.getSecretFromInput();
-				int index = listModel.addOrUpdate(newSecret);
-				jSecretsList.setSelectedIndex(index);
+				listModel.addOrUpdate(newSecret);
+				if (filteredModel.indexOf(newSecret) < 0) {
+				   fieldSearch.setText(""); // new secret is hidden by the filter
+				}
+				jSecretsList.setSelectedIndex(filteredModel.indexOf(newSecret));
 				areaMsg.setText(MessageFormat.format(Messages.getString("PCSecrets.added"), inputForm.getFieldDescr()
 						.getText()));
 			}
@@ -273,7 +307,7 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 			   syncDevices.addDeleted(selectedDescription);
 			   listModel.setChanged(true);
 			   listModel.delete(selectedDescription);
-			   int itemCount = listModel.getSize();
+			   int itemCount = filteredModel.getSize();
 			   if (itemCount > 0) { // select next in list or last
 			      jSecretsList.setSelectedIndex(index == itemCount /* at end */ ? index-1 : index);
 			   }
@@ -284,13 +318,7 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 		   areaMsg.setText(MessageFormat.format(Messages.getString("DataHandler.saved"), listModel.getSize()));
 		   listModel.setChanged(false); // clear the changed indicator after save
 		} else if (event.getActionCommand().equals(Constants.SYNC)) {
-	      /* start the UDP discovery thread if not already started */
-		   if (udpDiscovery == null) {
-		      udpDiscovery = new UDPDiscovery();
-	         udpDiscovery.start();
-		   }
 		  /* the sync dialog is launched when device input is received */
-			int port = Integer.parseInt(props.getProperty(Constants.SERVERPORT));
 			byte[] syncPswd = null;
 			if (props.getProperty(Constants.SYNCUSESAMEPSWD).equals("true")) {
 				syncPswd = listModel.getPswdBytes();
@@ -299,10 +327,8 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 			}
 			if (syncPswd == null) {
 			  areaMsg.setText(Messages.getString("MainWindow.synccancelled"));
-			} else {
-				inputPhone = new InputPhone(this, this, port, syncPswd);
-				inputPhone.setMetadata("keylength=" + props.getProperty(Constants.KEYLENGTH));
-				inputPhone.start(); // initiate sync operation
+			} else if (digestKeyTask == null) { // otherwise the sync is already being prepared
+				prepareSync(syncPswd);
 			}
       } else if (event.getActionCommand().equals(Constants.EXPORT)) {
          FileExporter handler = new FileExporter();
@@ -358,12 +384,13 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 	public void propertyChange(PropertyChangeEvent event) {
 		logger.log(Level.INFO, "property is " + event.getPropertyName() + "=" + event.getNewValue());
 		if (event.getPropertyName().equals(Constants.PHONE_RECEIVE)) { // incoming from phone
+			syncSession = inputPhone.getSession();
 			if (event.getNewValue().equals(Constants.COMPLETE)) {
 				phoneSecrets = inputPhone.getPhoneSecrets();
 				/* add new sync device to list of remembered devices if currently unknown */
 				String deviceId = phoneSecrets.getDeviceId();
 				SyncDevice syncDevice = null;
-				if (syncDevices.containsKey(deviceId)) {
+				if (syncDevices.contains(deviceId)) {
 				  syncDevice = syncDevices.get(deviceId);
 				  logger.log(Level.FINE, "Sync device recognised: " + deviceId);
 				} else { // new device
@@ -371,6 +398,41 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 				  syncDevices.add(syncDevice);
 				  logger.log(Level.FINE, "New sync device '" + deviceId + "' added to device collection");
 				}
+				/*
+				 * a delta must be based on the last sync recorded here during this run, otherwise
+				 * ask for everything
+				 */
+				if (phoneSecrets.isDelta()) {
+				   if (fullSyncDevices.contains(deviceId) || syncDevice.getSyncVersion() < 0
+				               || syncDevice.getSyncTimestamp() == 0 || phoneSecrets.getDeltaSince() != syncDevice.getSyncTimestamp()) {
+				      logger.log(Level.WARNING, "Delta sync from '" + deviceId + "' does not match last sync - full sync required");
+				      requireFullSync(deviceId);
+				      return;
+				   }
+				   phoneSecrets = phoneSecrets.expandDelta(listModel, syncDevice);
+				} else if (phoneSecrets.isPartial()) {
+				   /* the buckets not sent must match the PC secrets as they are now */
+				   if (fullSyncDevices.contains(deviceId) || syncDigest == null
+				               || !Arrays.equals(syncDigestRoot, syncDigest.getRoot())) {
+				      logger.log(Level.WARNING, "Vault digest changed during sync with '" + deviceId + "' - full sync required");
+				      requireFullSync(deviceId);
+				      return;
+				   }
+				   if (phoneSecrets.getBuckets().length == 0) {
+				      /* same secrets on both - nothing to compare, just record the sync */
+				      logger.log(Level.INFO, "Device '" + deviceId + "' is already in sync");
+				      syncDevice.setLastIP(phoneSecrets.getSourceName());
+				      syncCounts = Messages.getString("MainWindow.syncnodifferences");
+				      DeviceSecretsCollection updatesForPhone = phoneSecrets.createReply();
+				      updatesForPhone.setLastSyncTimestamp(System.currentTimeMillis());
+				      outputPhone = new OutputPhone(this, this, syncSession);
+				      outputPhone.start(updatesForPhone);
+				      return;
+				   }
+				   phoneSecrets = phoneSecrets.expandBuckets(listModel, syncDigest);
+				} else {
+				   fullSyncDevices.remove(deviceId);
+				}
             /* set the last sync date into the collection */
             phoneSecrets.setLastSyncTimestamp(syncDevice.getSyncTimestamp());
             listModel.setChanged(true);
@@ -380,45 +442,57 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 				syncDialog = new SyncDialog(this, listModel, phoneSecrets, syncDevice);
 				syncDialog.showDialogOrCompleteExecution();
 			} else if (event.getNewValue().equals(Constants.CANCEL)) {
-				getAreaMsg().setText(Messages.getString("MainWindow.synccancelled"));
+				/* devices whose data could not be decrypted have been told by the server */
+				getAreaMsg().setText(Messages.getString(syncServer.getDecryptFailures() > 0 ? "MainWindow.syncdecryptfailure"
+				            : "MainWindow.synccancelled"));
+				endSyncRound();
 			} else if (event.getNewValue().equals(Constants.FAILED)) {
-				if (inputPhone.isDecryptionError()) {
-					getAreaMsg().setText(Messages.getString("MainWindow.syncdecryptfailure"));
-					sendErrorStatusToPhone(OutputErrorPhone.DECRYPT_ERROR);
-				} else if (inputPhone.isCommsError()) {
+				if (inputPhone.isCommsError()) {
 					getAreaMsg().setText(Messages.getString("MainWindow.synccommsfailure"));
 				}
+				endSyncRound();
 			}
 		} else if (event.getPropertyName().equals(Constants.PHONE_SEND)) { // outgoing to phone
 			/* even if the write-back to the phone fails, the values received from the phone and
 			 * updated to the allSecrets collection is still valid, so use them.
 			 */
-         updateListModel(syncDialog.getUpdatedPCSecrets());
+         if (syncDialog != null) {
+            updateListModel(syncDialog.getUpdatedPCSecrets());
+         }
          if (event.getNewValue().equals(Constants.COMPLETE)) {
             listModel.setLastSyncTimestamp(System.currentTimeMillis()); // update last sync time
             getAreaMsg().setText(Messages.getString("MainWindow.syncsuccessful") + " - " + syncCounts);
             SyncDevice syncDevice = syncDevices.get(phoneSecrets.getDeviceId());
-            syncDevice.setSyncTimestamp(System.currentTimeMillis());
+            /* the same timestamp was sent to the device, which quotes it in its next delta */
+            syncDevice.setSyncTimestamp(outputPhone.phoneSecrets.getLastSyncTimestamp());
             syncDevice.clearDeletedSecrets();
+            syncDevices.collectTombstones();
+            syncDevice.setBase(SyncBase.of(listModel)); // both sides now hold these secrets
+            syncDevice.setSyncVersion(listModel.getVersion()); // the next delta is expanded from here
             listModel.setChanged(true);
          } else if (event.getNewValue().equals(Constants.FAILED)) {
             getAreaMsg().setText(Messages.getString("MainWindow.syncwritebackfailure"));
          }
-         syncDialog.dispose();
-         syncDialog = null;
+         if (syncDialog != null) {
+            syncDialog.dispose();
+            syncDialog = null;
+         }
+         nextSyncSession();
 		} else if (event.getPropertyName().equals(Constants.SYNC)) {
 			if (event.getNewValue().equals(Constants.COMPLETE)) { // sync dialog complete
 				logger.log(Level.INFO, "Sync complete signalled");
             syncCounts = syncDialog.getStats(); // need to get stats before phone updates are applied
 				/* generate updates for the phone, and apply phone updates to the PC - order is important */
 				DeviceSecretsCollection updatesForPhone = syncDialog.getChangedPhoneSecretsCollection();
+				updatesForPhone.setLastSyncTimestamp(System.currentTimeMillis());
 				syncDialog.applyPhoneUpdatesToPC();
 				/* Send updates to phone */
-				outputPhone = new OutputPhone(this, this);
+				outputPhone = new OutputPhone(this, this, syncSession);
 				outputPhone.start(updatesForPhone);
 			} else if (event.getNewValue().equals(Constants.CANCEL)) { // sync dialog cancelled
 				logger.log(Level.INFO, "Sync cancel signalled");
 				sendErrorStatusToPhone(OutputErrorPhone.SYNC_CANCELLED);
+				nextSyncSession();
 				getAreaMsg().setText(Messages.getString("MainWindow.synccancelled"));
 			}
 		} else if (event.getPropertyName().equals(Constants.TIMEOUT_ENABLED)) {
@@ -452,8 +526,141 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
    }
 	
 	private void sendErrorStatusToPhone(byte status) {
-	   outputErrorPhone = new OutputErrorPhone(this);
+	   outputErrorPhone = new OutputErrorPhone(this, syncSession);
 	   outputErrorPhone.start(status);
+	   syncSession = null;
+	}
+	
+	/*
+	 * Start the sync server if it is not already running
+	 * @return true if running
+	 */
+	private boolean startSyncServer() {
+	   if (syncServer == null) {
+	      int port = Integer.parseInt(props.getProperty(Constants.SERVERPORT));
+	      syncServer = new SyncServer(port, SyncServer.MAX_SESSIONS);
+	   }
+	   try {
+	      syncServer.start();
+	      discovery.announce(syncServer.getLocalPort(), SYNC_CAPABILITIES);
+	      return true;
+	   } catch (IOException e) {
+	      logger.log(Level.WARNING, "Sync server could not be started: " + e);
+	      areaMsg.setText(Messages.getString("MainWindow.synccommsfailure"));
+	      return false;
+	   }
+	}
+	
+	/*
+	 * Start a sync once the digest key is available. The key is derived from
+	 * the sync password with bcrypt, at the cost used for the secrets file (see
+	 * VaultDigest), which takes about a second. So it is derived in the
+	 * background, and kept for the run with the salt: it is only derived again
+	 * if the sync password or the cost changes.
+	 */
+	private void prepareSync(byte[] syncPswd) {
+	   if (digestSalt == null) {
+	      digestSalt = SecurityUtils.createNewSalt();
+	   }
+	   SecurityUtils.CipherInfo cipherInfo = listModel.getCipherInfo();
+	   int rounds = cipherInfo != null && cipherInfo.parms != null && cipherInfo.parms.rounds > 0 ? cipherInfo.parms.rounds
+	               : DIGEST_KEY_ROUNDS;
+	   if (digestKey != null && rounds == digestKeyRounds && Arrays.equals(syncPswd, digestKeyPswd)) {
+	      startSync(syncPswd);
+	   } else {
+	      wipeDigestKey();
+	      areaMsg.setText(Messages.getString("MainWindow.syncpreparing"));
+	      digestKeyTask = new DigestKeyTask(syncPswd, rounds);
+	      digestKeyTask.execute();
+	   }
+	}
+	
+	private void startSync(byte[] syncPswd) {
+	   if (startSyncServer()) {
+	      syncServer.configure(syncPswd, syncMetadata());
+	      inputPhone = new InputPhone(this, this, syncServer);
+	      inputPhone.start(); // initiate sync operation
+	   }
+	}
+	
+	/**
+	 * Forget the digest key and the password it was derived from, e.g. when
+	 * the password is changed
+	 */
+	public void wipeDigestKey() {
+	   if (digestKey != null) {
+	      Arrays.fill(digestKey, (byte) 0);
+	      Arrays.fill(digestKeyPswd, (byte) 0);
+	      digestKey = null;
+	      digestKeyPswd = null;
+	   }
+	}
+	
+	/*
+	 * The metadata sent to devices at the start of a sync. Delta sync and the
+	 * vault digest are always offered; a device whose delta or partial sync
+	 * does not match is asked to send everything (see requireFullSync).
+	 */
+	private String syncMetadata() {
+	   String metadata = "keylength=" + props.getProperty(Constants.KEYLENGTH);
+	   metadata += "\n" + InputPhone.METADATA_CHUNKED;
+	   metadata += "\n" + InputPhone.METADATA_RESUMABLE;
+	   metadata += "\n" + InputPhone.METADATA_DELTA;
+	   syncDigest = listModel.getDigest(digestKey);
+	   syncDigestRoot = syncDigest.getRoot();
+	   metadata += "\n" + InputPhone.METADATA_DIGEST_SALT + Strings.toHex(digestSalt);
+	   metadata += "\n" + InputPhone.METADATA_DIGEST_ROUNDS + digestKeyRounds;
+	   metadata += "\n" + InputPhone.METADATA_DIGEST + syncDigest.getRootHex();
+	   metadata += "\n" + InputPhone.METADATA_BUCKETS + syncDigest.getBucketSummary();
+	   return metadata;
+	}
+	
+	/*
+	 * Ask a device to repeat the sync, sending all its secrets. A delta or
+	 * partial sync from the device is not accepted until it has done so;
+	 * other devices are not affected.
+	 */
+	private void requireFullSync(String deviceId) {
+	   fullSyncDevices.add(deviceId);
+	   sendErrorStatusToPhone(OutputErrorPhone.FULL_SYNC_REQUIRED);
+	   getAreaMsg().setText(Messages.getString("MainWindow.syncfullrequired"));
+	   waitForSyncSession(); // the device reconnects straight away
+	}
+	
+	/*
+	 * Devices can connect while another is being synced. Their sessions are
+	 * received in the background, and synced one at a time when this one has
+	 * finished. When there are no more, the sync round ends.
+	 */
+	private void nextSyncSession() {
+	   syncSession = null;
+	   if (syncServer != null && (syncServer.hasSession() || syncServer.isReceiving())) {
+	      waitForSyncSession();
+	   } else {
+	      endSyncRound();
+	   }
+	}
+	
+	private void waitForSyncSession() {
+	   SwingUtilities.invokeLater(new Runnable() {
+	      @Override
+	      public void run() {
+	         inputPhone = new InputPhone(MainWindow.this, MainWindow.this, syncServer);
+	         inputPhone.start();
+	      }
+	   });
+	}
+	
+	/*
+	 * Stop the sync server, which forgets the sync password, and stop
+	 * announcing it. Devices cannot connect until Sync is used again.
+	 */
+	private void endSyncRound() {
+	   if (syncServer != null) {
+	      syncServer.stop();
+	   }
+	   discovery.stopAnnouncing();
+	   logger.log(Level.INFO, "Sync round ended");
 	}
 	
 	/*
@@ -547,6 +754,13 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 		return props;
 	}
 	
+	/**
+	 * Start answering device discovery requests - called once the secrets are unlocked
+	 */
+	public void startDiscovery() {
+	   discovery.start();
+	}
+	
 	/**
 	 * @return the areaMsg
 	 */
@@ -568,6 +782,13 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 		return listModel;
 	}
 
+	/**
+	 * @return the list model as shown, i.e. filtered by the search text
+	 */
+	public FilteredSecretsModel getFilteredModel() {
+		return filteredModel;
+	}
+
 	/**
 	 * Update the list of secrets in the collection. Other attribues of the
 	 * collection are unchanged.
@@ -578,6 +799,84 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
 		this.listModel.notifyChange(-1, 0);
 	}
    
+   /*
+    * Filter the secrets list as the search text changes
+    */
+   /*
+    * Task to derive the digest key, and build the digest with it, in the
+    * background. The sync starts when it is done.
+    */
+   private class DigestKeyTask extends SwingWorker<byte[], Void> {
+      private final byte[] pswd;
+      private final byte[] salt;
+      private final int rounds;
+
+      DigestKeyTask(byte[] pswd, int rounds) {
+         this.pswd = pswd.clone();
+         this.salt = digestSalt;
+         this.rounds = rounds;
+      }
+
+      @Override
+      protected byte[] doInBackground() {
+         byte[] key = SecurityUtils.deriveKey(pswd, salt, rounds);
+         listModel.getDigest(key); // built here, rather than on the event thread
+         return key;
+      }
+
+      @Override
+      protected void done() {
+         digestKeyTask = null;
+         byte[] key;
+         try {
+            key = get();
+         } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Digest key not derived: " + e.getCause());
+            Arrays.fill(pswd, (byte) 0);
+            areaMsg.setText(Messages.getString("MainWindow.synccancelled"));
+            return;
+         } catch (InterruptedException e) {
+            Arrays.fill(pswd, (byte) 0);
+            return;
+         }
+         if (!isDisplayable()) { // closed meanwhile, and the secrets wiped
+            Arrays.fill(key, (byte) 0);
+            Arrays.fill(pswd, (byte) 0);
+            return;
+         }
+         digestKey = key;
+         digestKeyPswd = pswd;
+         digestKeyRounds = rounds;
+         areaMsg.setText("");
+         startSync(pswd);
+      }
+   }
+
+   private class SearchListener implements DocumentListener {
+      @Override
+      public void insertUpdate(DocumentEvent e) {
+         search();
+      }
+
+      @Override
+      public void removeUpdate(DocumentEvent e) {
+         search();
+      }
+
+      @Override
+      public void changedUpdate(DocumentEvent e) {
+         search();
+      }
+
+      private void search() {
+         jSecretsList.clearSelection();
+         filteredModel.setFilter(fieldSearch.getText());
+         if (filteredModel.getSize() == 1) {
+            jSecretsList.setSelectedIndex(0);
+         }
+      }
+   }
+   
    /*
     * Handler to check for unsaved changes
     *
@@ -602,62 +901,19 @@ public class MainWindow extends PropertyChangeWindow implements ActionListener
               logger.log(Level.INFO, "Secrets not saved");
             }
          }
-         try {
-            MainWindow.this.socket.close();
-         } catch (Exception e1) {
-            // ignore
+         discovery.stop();
+         if (syncServer != null) {
+            syncServer.stop();
          }
          if (idleTimer != null) {
             idleTimer.stop();
          }
          logger.log(Level.INFO, "PCSecrets is terminating");
          MainWindow.this.dispose();
+         MainWindow.this.listModel.wipe();
+         wipeDigestKey();
       }
       
    }
-   
-   /*
-    * Thread to support client discovery of the server
-    */
-   private class UDPDiscovery extends Thread {
-      @Override
-      public void run() {
-         try {
-            socket.setBroadcast(true);
-            while (true) {
-               // Receive a packet
-               byte[] recvBuf = new byte[256];
-               DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
-               logger.log(Level.FINE, "UDPDiscovery waiting for packet");
-               socket.receive(packet); // blocks here
-
-               // Packet received
-               String message = new String(packet.getData()).trim();
-               logger.log(Level.FINE, "UDPDiscovery discovery packet received from: "
-                           + packet.getAddress().getHostAddress());
-               logger.log(Level.FINE, "UDPDiscovery packet received; data: " + message);
-
-               // See if the packet holds the right command (message)
-               if (message.equals("DISCOVER_PCSECRETS_REQUEST")) {
-                  byte[] sendData = "DISCOVER_PCSECRETS_RESPONSE".getBytes();
-
-                  // Send a response
-                  DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, packet.getAddress(),
-                              packet.getPort());
-                  socket.send(sendPacket);
-
-                  logger.log(Level.FINE, "UDPDiscovery sent packet to: "
-                              + sendPacket.getAddress().getHostAddress());
-               }
-            }
-         } catch (IOException e) {
-            if (e.getMessage().contains("closed")) {
-               logger.log(Level.FINE, "UDP socket closed");
-            } else {
-               logger.log(Level.FINE, "UDP socket problem: " + e.getMessage());
-            }
-         }
-      }
-   }
 	
 }
\ No newline at end of file
@@ -45,18 +45,27 @@ public class OutputErrorPhone extends DeviceConnection {
     */
    public static final byte DECRYPT_ERROR = 2;
 
+   /**
+    * A delta sync was received but is not based on the last sync recorded on the PC.
+    * The device should repeat the sync sending all its secrets
+    */
+   public static final byte FULL_SYNC_REQUIRED = 3;
+
    private static Logger logger = Logger.getLogger(OutputErrorPhone.class.getName());
 
    private WriteSecretsTask writeSecretsTask = new WriteSecretsTask();
+   private SyncSession session;
    private byte status;
 
    /**
     * Constructor
     * 
     * @param parent
+    * @param session session the error relates to
     */
-   public OutputErrorPhone(Window parent) {
+   public OutputErrorPhone(Window parent, SyncSession session) {
       super(parent);
+      this.session = session;
       setSuppressWaitMessage(true); // don't need this message
    }
 
@@ -111,7 +120,7 @@ public class OutputErrorPhone extends DeviceConnection {
       protected DeviceSecretsCollection doInBackground() throws Exception {
          setDialogText(Messages.getString("OutputErrorPhone.waitconnection"));
 
-         socket = getConnectionSocket(); // get the socket stored during input
+         socket = session == null ? null : session.getSocket(); // the socket used for input
 
          OutputStream os = null;
          if (socket != null) {
@@ -141,11 +150,9 @@ public class OutputErrorPhone extends DeviceConnection {
       protected void done() {
          phoneConnectionDialog.dispose(); // remove the dialog
 
-         if (socket != null) try {
-            socket.close();
-         } catch (IOException ignore) {
+         if (session != null) {
+            session.close();
          }
-         setConnectionSocket(null);
       }
 
    }
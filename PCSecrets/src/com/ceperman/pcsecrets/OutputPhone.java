@@ -18,10 +18,6 @@ package com.ceperman.pcsecrets;
 
 import java.awt.Window;
 import java.beans.PropertyChangeListener;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,9 +32,8 @@ import javax.swing.SwingWorker;
 public class OutputPhone extends DeviceConnection {
 	private static Logger logger = Logger.getLogger(OutputPhone.class.getName());
 	
-	private static final byte STATUS_OK = 0;
-	
 	private WriteSecretsTask writeSecretsTask = new WriteSecretsTask();
+	private SyncSession session;
 	/* package access */ DeviceSecretsCollection phoneSecrets;
 	
 	private boolean successful;
@@ -48,10 +43,11 @@ public class OutputPhone extends DeviceConnection {
 	 * 
 	 * @param parent
 	 * @param listener
-	 * @param port 
+	 * @param session session the secrets were received on
 	 */
-	public OutputPhone(Window parent, PropertyChangeListener listener) {
+	public OutputPhone(Window parent, PropertyChangeListener listener, SyncSession session) {
 		super(parent);
+		this.session = session;
 		writeSecretsTask.addPropertyChangeListener(listener);
 		setSuppressWaitMessage(true); // don't need this message
 	}
@@ -103,38 +99,20 @@ public class OutputPhone extends DeviceConnection {
 		protected DeviceSecretsCollection doInBackground() throws Exception {
 			setDialogText(Messages.getString("OutputPhone.waitconnection"));
 			
-			socket = getConnectionSocket(); // get the socket stored during input
+			socket = session == null ? null : session.getSocket(); // the socket used for input
 			
-			OutputStream os = null;
-			InputStream is = null;
 			if (socket != null) {
 				logger.log(Level.INFO, "Output socket is connected");
             try {
-               // create the output
-               os = socket.getOutputStream();
-               os.write(STATUS_OK); // write the status byte
-               ByteArrayOutputStream baos = new ByteArrayOutputStream();
-               phoneSecrets.saveSecretsToEncryptedJSONStream(baos);
-               byte[] responseData = baos.toByteArray();
-               writeData(responseData, os);
-               logger.log(Level.FINE, "data sent: " + bytesToHexTruncated(responseData) + " (" + responseData.length
-                           + ")");
+               successful = session.sendSecrets(phoneSecrets);
+               logger.log(Level.FINE, "data sent" + (session.getChannel().isChunked() ? ", chunked" : ""));
                logger.log(Level.INFO, "Client records written: " + phoneSecrets.getSize());
-               
-               // receive confirmation
-               is = socket.getInputStream();
-               if (is.read() == 0xff) {
+               if (successful) {
                   logger.log(Level.FINE, "Response confirmation received");
-                  successful = true;
                   logger.log(Level.INFO, "Sync operation success");
                }
             } catch (Exception e) {
                logger.log(Level.WARNING, "Communication exception:  " + e);
-            } finally {
-               if (os != null) try {
-                  os.close();
-               } catch (IOException ignore) {
-               }
             }
 			} else {
 				logger.log(Level.WARNING, "Device is not receiving - terminating");
@@ -146,8 +124,9 @@ public class OutputPhone extends DeviceConnection {
 		protected void done() {
 			phoneConnectionDialog.dispose(); // remove the dialog
 			
-			if (socket != null) try { socket.close(); } catch (IOException ignore) {}
-			setConnectionSocket(null);
+			if (session != null) {
+				session.close();
+			}
 
 			if (isCancelled()) {
 				logger.log(Level.INFO, "done() signalled and cancelled");
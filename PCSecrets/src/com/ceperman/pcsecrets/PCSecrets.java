@@ -247,6 +247,9 @@ public class PCSecrets {
 		/* pack the window and display it */
 		mainWindow.pack();
 		mainWindow.setVisible(true);
+		
+		/* devices can find the PC from now on */
+		mainWindow.startDiscovery();
 	}
 
 	/**
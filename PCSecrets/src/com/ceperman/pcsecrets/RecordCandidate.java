@@ -0,0 +1,75 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+/**
+ * A set of elements in structured (JSON or XML) data that could be imported
+ * as records: elements at the same path that contain only simple values.
+ * The path is shown in JSON path form, e.g. $.secrets.secret[*].
+ *
+ * @author Chris Wood
+ */
+public class RecordCandidate {
+   private final String path;
+   private final String[] fieldNames;
+   private int count;
+
+   /**
+    * Constructor
+    *
+    * @param path path of the elements
+    * @param fieldNames fields of the first element
+    */
+   public RecordCandidate(String path, String[] fieldNames) {
+      this.path = path;
+      this.fieldNames = fieldNames;
+   }
+
+   /**
+    * @return path of the elements
+    */
+   public String getPath() {
+      return path;
+   }
+
+   /**
+    * @return name of the elements - the last part of the path
+    */
+   public String getElementName() {
+      String name = path.substring(path.lastIndexOf('.') + 1);
+      int bracketIndex = name.indexOf('[');
+      return bracketIndex < 0 ? name : name.substring(0, bracketIndex);
+   }
+
+   /**
+    * @return fields of the first element
+    */
+   public String[] getFieldNames() {
+      return fieldNames;
+   }
+
+   /**
+    * @return number of elements
+    */
+   public int getCount() {
+      return count;
+   }
+
+   void setCount(int count) {
+      this.count = count;
+   }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A source of records for import. Records are read one at a time, so the
+ * whole input is never held in memory. Each record is an array of values in
+ * the order of the field names.
+ *
+ * @author Chris Wood
+ */
+public interface RecordSource extends Closeable {
+
+   /**
+    * @return the field names
+    */
+   String[] getFieldNames();
+
+   /**
+    * Read the next record
+    *
+    * @return the record values, or null at the end of the input
+    * @throws IOException
+    * @throws DataFormatException if the record is not valid
+    */
+   String[] next() throws IOException, DataFormatException;
+
+   /**
+    * @return percentage of the input read so far, or -1 if not known
+    */
+   int getProgress();
+}
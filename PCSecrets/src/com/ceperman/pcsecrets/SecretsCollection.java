@@ -17,15 +17,40 @@
 package com.ceperman.pcsecrets;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 import javax.swing.AbstractListModel;
 
+import com.ceperman.utils.Strings;
+
 /**
  * Represents a collection of secrets
  * 
+ * The secrets are held in an immutable, sorted snapshot. Writers (normally the
+ * EDT) build a new snapshot under the collection lock and publish it with a
+ * single volatile write. Readers call {@link #snapshot()} to obtain the current
+ * version in O(1) and can iterate it without locking, so background tasks such
+ * as save, export and sync are not affected by concurrent edits.
+ * 
+ * Every change is recorded against the version of the snapshot it produced,
+ * so the version at which each secret was last modified is known and
+ * {@link #changesSince(long)} can report what has changed since an earlier
+ * version in proportion to the number of changes, not the size of the vault.
+ * 
+ * A secret in a snapshot is never changed: an update replaces it with an
+ * updated copy in the next snapshot, so a reader never sees a half-updated
+ * secret. Copying a collection is therefore O(1): the copy shares the current
+ * snapshot, and neither collection sees the other's changes. Writing a copy back with
+ * {@link #replaceSecrets(SecretsCollection)} is a pointer swap plus the
+ * copy's changes.
+ * 
  * @author Chris Wood
  */
 public class SecretsCollection extends AbstractListModel<HostSecret> implements Iterable<HostSecret> {
@@ -33,8 +58,25 @@ public class SecretsCollection extends AbstractListModel<HostSecret> implements
 
 	/** serialVersionUID */
 	private static final long serialVersionUID = -7697994255671452799L;
-	protected List<HostSecret> secrets = Collections.synchronizedList(new ArrayList<HostSecret>());
-	private boolean changed;
+	/** Collection order - description, ignoring case */
+	public static final Comparator<HostSecret> DESCRIPTION_ORDER = new Comparator<HostSecret>() {
+		@Override
+		public int compare(HostSecret s1, HostSecret s2) {
+			return s1.getDescription().compareToIgnoreCase(s2.getDescription());
+		}
+	};
+	
+	private volatile Snapshot snapshot = Snapshot.EMPTY;
+	private volatile boolean changed;
+	private volatile long savedVersion;
+	private SecretsCollection copiedFrom;
+	private long copiedVersion;
+	private SecretsSearchIndex searchIndex; // created on first use
+	private VaultDigest digest; // created on first use
+	/* latest change version by description (case-folded) */
+	private final Map<String, Long> changeVersions = new HashMap<String, Long>();
+	/* changes in version order; superseded entries are dropped when the log is compacted */
+	private final List<Change> changeLog = new ArrayList<Change>();
 	
 	/**
 	 * Default constructor
@@ -42,16 +84,56 @@ public class SecretsCollection extends AbstractListModel<HostSecret> implements
 	public SecretsCollection() {}
 	
 	/**
-	 * Copy constructor (deep copy)
+	 * Copy constructor. The copy shares the other collection's snapshot, and
+	 * changes to either collection are not seen by the other.
 	 * @param other
 	 */
 	public SecretsCollection(SecretsCollection other) {
-	  for (HostSecret secret : other.secrets) {
-      this.secrets.add(new HostSecret(secret));
-    }
+	  this.snapshot = other.snapshot;
+	  this.copiedFrom = other;
+	  this.copiedVersion = snapshot.version;
+	  this.savedVersion = snapshot.version;
     this.changed = other.changed;
 	}
 
+	/**
+	 * Get the current snapshot of the collection. The snapshot is immutable and
+	 * can be iterated by any thread without locking.
+	 * 
+	 * @return the current snapshot
+	 */
+	public Snapshot snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Get the search index for this collection, building it if necessary.
+	 * Once built, the index is kept up to date as the collection changes.
+	 * 
+	 * @return the search index
+	 */
+	public synchronized SecretsSearchIndex getSearchIndex() {
+		if (searchIndex == null) {
+			searchIndex = new SecretsSearchIndex(snapshot);
+		}
+		return searchIndex;
+	}
+
+	/**
+	 * Get the Merkle tree digest of this collection, building it if necessary.
+	 * Once built, the digest is kept up to date as the collection changes.
+	 * 
+	 * @param key HMAC key for the digest; if different from the key of the
+	 *           current digest, the digest is rebuilt
+	 * @return the digest
+	 */
+	public synchronized VaultDigest getDigest(byte[] key) {
+		if (digest == null || !digest.hasKey(key)) {
+			digest = new VaultDigest(this, key);
+		}
+		return digest;
+	}
+
 	/**
 	 * Insert new element at correct point or update existing element
 	 * 
@@ -59,44 +141,121 @@ public class SecretsCollection extends AbstractListModel<HostSecret> implements
 	 * @return index of element added or updated
 	 */
 	public int addOrUpdate(HostSecret newSecret) {
-		int index = 0;
-		changed = true;
-		if (secrets.isEmpty() || (newSecret.getDescription().compareToIgnoreCase(secrets.get(secrets.size()-1).getDescription()) > 0)) {
-			secrets.add(newSecret); /* add to end if empty or if greater than last */
-			fireIntervalAdded(this, secrets.size()-1, secrets.size()-1);
-			return secrets.size()-1;
-		} else {
-			for (index = 0; index < secrets.size(); index++) {
-				HostSecret secret = secrets.get(index);
-				int rc = newSecret.getDescription().compareToIgnoreCase(secret.getDescription());
-				if (rc == 0) { /* update if equals */
-					secret.setUsername(newSecret.getUsername());
-					secret.setPassword(newSecret.getPassword());
-					secret.setEmail(newSecret.getEmail());
-					secret.setNote(newSecret.getNote());
-					secret.setTimestamp(newSecret.getTimestamp());
-					fireContentsChanged(this, index, index);
-					break;
-				} else if (rc < 0) { /* insert if newSecret lower */
-					secrets.add(index,newSecret);
-					fireIntervalAdded(this, index, index);
-					break;
+		int index;
+		boolean added = false;
+		synchronized (this) {
+			changed = true;
+			Snapshot current = snapshot;
+			index = current.indexOf(newSecret.getDescription());
+			if (index >= 0) { /* update if equals */
+				HostSecret secret = current.get(index);
+				HostSecret copy = new HostSecret(secret); /* never update in place */
+				copy.setValuesFrom(newSecret);
+				snapshot = current.next(current.replace(index, copy));
+				if (searchIndex != null) {
+					searchIndex.remove(secret);
+					searchIndex.add(copy);
+				}
+				recordChange(secret.getDescription());
+			} else { /* insert at the insertion point */
+				index = -(index + 1);
+				snapshot = current.next(current.insert(index, newSecret));
+				recordChange(newSecret.getDescription());
+				added = true;
+				if (searchIndex != null) {
+					searchIndex.add(newSecret);
 				}
 			}
 		}
+		if (added) {
+			fireIntervalAdded(this, index, index);
+		} else {
+			fireContentsChanged(this, index, index);
+		}
 		return index;
 	}
 	
+	/**
+	 * Insert or update a batch of secrets, publishing a single new snapshot.
+	 * This is equivalent to calling {@link #addOrUpdate(HostSecret)} for each
+	 * secret but costs one merge rather than one array copy per secret. If the
+	 * batch contains the same description more than once, the last one wins.
+	 * 
+	 * @param newSecrets
+	 */
+	public void addOrUpdateAll(Collection<HostSecret> newSecrets) {
+		if (newSecrets.isEmpty()) {
+			return;
+		}
+		HostSecret[] batch = newSecrets.toArray(new HostSecret[newSecrets.size()]);
+		Arrays.sort(batch, DESCRIPTION_ORDER); // stable - duplicates keep their order
+		List<Integer> inserted = new ArrayList<Integer>(); // indexes in the new snapshot, ascending
+		int size;
+		synchronized (this) {
+			changed = true;
+			long version = snapshot.version + 1;
+			HostSecret[] entries = snapshot.entries;
+			HostSecret[] merged = new HostSecret[entries.length + batch.length];
+			int i = 0;
+			int n = 0;
+			for (int j = 0; j < batch.length; j++) {
+				if (j + 1 < batch.length && DESCRIPTION_ORDER.compare(batch[j], batch[j + 1]) == 0) {
+					continue; // superseded later in the batch
+				}
+				HostSecret newSecret = batch[j];
+				while (i < entries.length && DESCRIPTION_ORDER.compare(entries[i], newSecret) < 0) {
+					merged[n++] = entries[i++];
+				}
+				if (i < entries.length && DESCRIPTION_ORDER.compare(entries[i], newSecret) == 0) {
+					HostSecret secret = entries[i++];
+					HostSecret copy = new HostSecret(secret); /* never update in place */
+					copy.setValuesFrom(newSecret);
+					merged[n++] = copy;
+					if (searchIndex != null) {
+						searchIndex.remove(secret);
+						searchIndex.add(copy);
+					}
+				} else {
+					merged[n++] = newSecret;
+					inserted.add(n - 1);
+					if (searchIndex != null) {
+						searchIndex.add(newSecret);
+					}
+				}
+				recordChange(merged[n - 1].getDescription(), version);
+			}
+			while (i < entries.length) {
+				merged[n++] = entries[i++];
+			}
+			snapshot = snapshot.next(Arrays.copyOf(merged, n));
+			size = n;
+		}
+		/* report the inserted rows in ascending order, so each index is valid when fired */
+		for (int index : inserted) {
+			fireIntervalAdded(this, index, index);
+		}
+		if (size > inserted.size()) {
+			fireContentsChanged(this, 0, size - 1); // updated rows
+		}
+	}
+	
 	/**
 	 * Empty the collection
 	 */
-	public void clear() {
-	  secrets.clear();
+	public synchronized void clear() {
+	  Snapshot previous = snapshot;
+	  snapshot = snapshot.next(Snapshot.EMPTY.entries);
+	  for (HostSecret secret : previous) {
+	    recordChange(secret.getDescription());
+	  }
+	  if (searchIndex != null) {
+	    searchIndex.clear();
+	  }
 	}
 
   @Override
   public Iterator<HostSecret> iterator() {
-    return secrets.iterator();
+    return snapshot.iterator();
   }
 
 	/**
@@ -116,13 +275,9 @@ public class SecretsCollection extends AbstractListModel<HostSecret> implements
 	 * @return the requested element or null
 	 */
 	public HostSecret get(String descr) {
-		for (Iterator<HostSecret> iterator = secrets.iterator(); iterator.hasNext();) {
-			HostSecret secret = iterator.next();
-			if (secret.getDescription().equalsIgnoreCase(descr)) {
-				return secret;
-			}
-		}
-		return null;
+		Snapshot current = snapshot;
+		int index = current.indexOf(descr);
+		return index < 0 ? null : current.get(index);
 	}
 
 	/**
@@ -131,15 +286,22 @@ public class SecretsCollection extends AbstractListModel<HostSecret> implements
 	 * @param descr
 	 */
 	public void delete(String descr) {
-		for (int i = 0; i < secrets.size(); i++) {
-			HostSecret secret = secrets.get(i);
-			if (secret.getDescription().equalsIgnoreCase(descr)) {
-				secrets.remove(i);
-				changed = true;
-				fireIntervalRemoved(this, i, i);
-				break;
+		int index;
+		synchronized (this) {
+			Snapshot current = snapshot;
+			index = current.indexOf(descr);
+			if (index < 0) {
+				return;
 			}
+			HostSecret secret = current.get(index);
+			if (searchIndex != null) {
+				searchIndex.remove(secret);
+			}
+			snapshot = current.next(current.remove(index));
+			recordChange(secret.getDescription());
+			changed = true;
 		}
+		fireIntervalRemoved(this, index, index);
 	}
 	
 	/**
@@ -152,7 +314,7 @@ public class SecretsCollection extends AbstractListModel<HostSecret> implements
 	 */
 	public void notifyChange(int start, int end) {
 		if (start < 0) {
-			fireContentsChanged(this, 0, secrets.size()-1);
+			fireContentsChanged(this, 0, getSize()-1);
 		} else {
 			fireContentsChanged(this, start, end);			
 		}
@@ -160,24 +322,85 @@ public class SecretsCollection extends AbstractListModel<HostSecret> implements
 	
 	/**
 	 * Remove all elements from the collection and replace with the
-	 * contents of the supplied collection.
+	 * contents of the supplied collection. The other collection's snapshot
+	 * is shared, not copied. Secrets that differ between the two are
+	 * recorded as changed. If the other collection is an unconflicted copy
+	 * of this one (this one has not changed since it was copied), only the
+	 * copy's own changes need to be recorded.
 	 * 
 	 * @param secrets
 	 */
 	public void replaceSecrets(SecretsCollection secrets) {
-		this.secrets.clear();
-		this.secrets.addAll(secrets.secrets);
-		changed = true;
+		Snapshot after;
+		Changes copyChanges = null;
+		synchronized (secrets) {
+			after = secrets.snapshot;
+			if (secrets.copiedFrom == this) {
+				copyChanges = secrets.changesSince(secrets.copiedVersion);
+			}
+		}
+		synchronized (this) {
+			Snapshot before = snapshot;
+			snapshot = before.next(after.entries);
+			if (copyChanges != null && before.version == secrets.copiedVersion) {
+				/* unchanged secrets are the same objects, so only the copy's changes need indexing */
+				List<String> descrs = new ArrayList<String>(copyChanges.deleted);
+				for (HostSecret secret : copyChanges.updated) {
+					descrs.add(secret.getDescription());
+				}
+				for (String descr : descrs) {
+					recordChange(descr);
+					if (searchIndex != null) {
+						int index = before.indexOf(descr);
+						if (index >= 0) {
+							searchIndex.remove(before.get(index));
+						}
+						HostSecret secret = get(descr);
+						if (secret != null) {
+							searchIndex.add(secret);
+						}
+					}
+				}
+			} else {
+				recordDifferences(before.entries, after.entries);
+				if (searchIndex != null) {
+					searchIndex = new SecretsSearchIndex(snapshot);
+				}
+			}
+			changed = true;
+		}
+	}
+
+	/*
+	 * Record the secrets that differ between two sorted entry arrays
+	 */
+	private void recordDifferences(HostSecret[] before, HostSecret[] after) {
+		int i = 0;
+		int j = 0;
+		while (i < before.length || j < after.length) {
+			int rc = i == before.length ? 1 : j == after.length ? -1 : DESCRIPTION_ORDER.compare(before[i], after[j]);
+			if (rc < 0) {
+				recordChange(before[i++].getDescription()); // removed
+			} else if (rc > 0) {
+				recordChange(after[j++].getDescription()); // added
+			} else {
+				if (before[i] != after[j] && (!before[i].equals(after[j]) || before[i].getTimestamp() != after[j].getTimestamp())) {
+					recordChange(after[j].getDescription());
+				}
+				i++;
+				j++;
+			}
+		}
 	}
 
 	@Override
 	public HostSecret getElementAt(int index) {
-		return secrets.get(index);
+		return snapshot.get(index);
 	}
 
 	@Override
 	public int getSize() {
-		return secrets.size();
+		return snapshot.size();
 	}
 
 	/**
@@ -188,10 +411,286 @@ public class SecretsCollection extends AbstractListModel<HostSecret> implements
 	}
 
 	/**
+	 * Setting changed to false marks the current version as saved.
+	 * 
 	 * @param changed the changed to set
 	 */
 	public void setChanged(boolean changed) {
+		if (!changed) {
+			savedVersion = getVersion();
+		}
 		this.changed = changed;
 	}
 
+	/**
+	 * @return the current version of the collection; incremented on every change
+	 */
+	public long getVersion() {
+		return snapshot.version;
+	}
+
+	/**
+	 * @return the version of the collection when it was last marked as unchanged
+	 */
+	public long getSavedVersion() {
+		return savedVersion;
+	}
+
+	/**
+	 * Get the version at which a secret was last added, updated or deleted
+	 * 
+	 * @param descr
+	 * @return the version, or 0 if the secret has not changed in this collection
+	 */
+	public synchronized long getModifiedVersion(String descr) {
+		Long version = changeVersions.get(Strings.foldCase(descr));
+		return version == null ? 0 : version;
+	}
+
+	/**
+	 * Get the secrets added, updated or deleted since a version of the
+	 * collection. The cost is proportional to the number of changes.
+	 * 
+	 * @param version an earlier value of {@link #getVersion()}
+	 * @return the changes
+	 */
+	public synchronized Changes changesSince(long version) {
+		Changes changes = new Changes();
+		/* binary search for the first change after the version */
+		int low = 0;
+		int high = changeLog.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (changeLog.get(mid).version <= version) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		for (int i = low; i < changeLog.size(); i++) {
+			Change change = changeLog.get(i);
+			if (changeVersions.get(change.key) != change.version) {
+				continue; // superseded by a later change
+			}
+			HostSecret secret = get(change.description);
+			if (secret == null) {
+				changes.deleted.add(change.description);
+			} else {
+				changes.updated.add(secret);
+			}
+		}
+		return changes;
+	}
+
+	/*
+	 * Record a change to a secret at the current version
+	 */
+	private void recordChange(String descr) {
+		recordChange(descr, snapshot.version);
+	}
+
+	private void recordChange(String descr, long version) {
+		String key = Strings.foldCase(descr);
+		Long previous = changeVersions.put(key, version);
+		if (previous != null && previous == version) {
+			return; // already recorded for this version
+		}
+		if (digest != null) {
+			digest.changed(descr);
+		}
+		changeLog.add(new Change(key, descr, version));
+		if (changeLog.size() > 2 * changeVersions.size() + 16) {
+			/* compact - keep only the latest change for each secret */
+			List<Change> live = new ArrayList<Change>(changeVersions.size());
+			for (Change change : changeLog) {
+				if (changeVersions.get(change.key) == change.version) {
+					live.add(change);
+				}
+			}
+			changeLog.clear();
+			changeLog.addAll(live);
+		}
+	}
+
+	/**
+	 * Zero the password and note bytes of every secret in the collection,
+	 * and the values held by the search index. Used when the secrets are no
+	 * longer needed, e.g. on exit.
+	 */
+	public void wipe() {
+		for (HostSecret secret : snapshot) {
+			secret.wipe();
+		}
+		synchronized (this) {
+			digest = null;
+			if (searchIndex != null) {
+				searchIndex.clear();
+				searchIndex = null;
+			}
+		}
+	}
+
+	/**
+	 * The result of a {@link SecretsCollection#changesSince(long)} query
+	 */
+	public static final class Changes {
+		private final List<HostSecret> updated = new ArrayList<HostSecret>();
+		private final List<String> deleted = new ArrayList<String>();
+
+		/**
+		 * @return secrets added or updated, in order of change
+		 */
+		public List<HostSecret> getUpdated() {
+			return updated;
+		}
+
+		/**
+		 * @return descriptions of secrets deleted, in order of change
+		 */
+		public List<String> getDeleted() {
+			return deleted;
+		}
+
+		/**
+		 * @return true if nothing has changed
+		 */
+		public boolean isEmpty() {
+			return updated.isEmpty() && deleted.isEmpty();
+		}
+	}
+
+	/*
+	 * A change log entry
+	 */
+	private static final class Change {
+		private final String key;
+		private final String description;
+		private final long version;
+
+		Change(String key, String description, long version) {
+			this.key = key;
+			this.description = description;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * An immutable, versioned view of the collection, sorted by description
+	 * (case insensitive). The entries array is never modified once the snapshot
+	 * has been published.
+	 */
+	public static final class Snapshot implements Iterable<HostSecret> {
+		static final Snapshot EMPTY = new Snapshot(new HostSecret[0], 0);
+		
+		private final HostSecret[] entries;
+		private final long version;
+		
+		private Snapshot(HostSecret[] entries, long version) {
+			this.entries = entries;
+			this.version = version;
+		}
+		
+		/*
+		 * Create the next version from a new entries array
+		 */
+		private Snapshot next(HostSecret[] newEntries) {
+			return new Snapshot(newEntries, version + 1);
+		}
+		
+		/*
+		 * Copy of the entries with a secret inserted at index
+		 */
+		private HostSecret[] insert(int index, HostSecret secret) {
+			HostSecret[] copy = new HostSecret[entries.length + 1];
+			System.arraycopy(entries, 0, copy, 0, index);
+			copy[index] = secret;
+			System.arraycopy(entries, index, copy, index + 1, entries.length - index);
+			return copy;
+		}
+		
+		/*
+		 * Copy of the entries with the secret at index replaced
+		 */
+		private HostSecret[] replace(int index, HostSecret secret) {
+			HostSecret[] copy = entries.clone();
+			copy[index] = secret;
+			return copy;
+		}
+		
+		/*
+		 * Copy of the entries with the secret at index removed
+		 */
+		private HostSecret[] remove(int index) {
+			HostSecret[] copy = new HostSecret[entries.length - 1];
+			System.arraycopy(entries, 0, copy, 0, index);
+			System.arraycopy(entries, index + 1, copy, index, entries.length - index - 1);
+			return copy;
+		}
+		
+		/**
+		 * Binary search for a description.
+		 * 
+		 * @param descr
+		 * @return index of the secret, or (-(insertion point) - 1) if not present
+		 */
+		public int indexOf(String descr) {
+			int low = 0;
+			int high = entries.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int rc = entries[mid].getDescription().compareToIgnoreCase(descr);
+				if (rc < 0) {
+					low = mid + 1;
+				} else if (rc > 0) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -(low + 1);
+		}
+		
+		/**
+		 * @param index
+		 * @return the secret at index
+		 */
+		public HostSecret get(int index) {
+			return entries[index];
+		}
+		
+		/**
+		 * @return number of secrets in the snapshot
+		 */
+		public int size() {
+			return entries.length;
+		}
+		
+		/**
+		 * @return the version; incremented on every change to the collection
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		@Override
+		public Iterator<HostSecret> iterator() {
+			return new Iterator<HostSecret>() {
+				private int next;
+
+				@Override
+				public boolean hasNext() {
+					return next < entries.length;
+				}
+
+				@Override
+				public HostSecret next() {
+					if (next >= entries.length) {
+						throw new NoSuchElementException();
+					}
+					return entries[next++];
+				}
+			};
+		}
+	}
+
 }
\ No newline at end of file
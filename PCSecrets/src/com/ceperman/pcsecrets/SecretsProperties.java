@@ -34,7 +34,6 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.text.MessageFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -82,9 +81,6 @@ public class SecretsProperties implements ActionListener {
 	
 	private static final String VERSION_BUNDLE_NAME = "com.ceperman.pcsecrets.version";
 	
-	@SuppressWarnings("javadoc")
-   public static SimpleDateFormat sdf = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss");
-	
 	/* fixed properties */
 	private static final String secretsFileName = "secrets.dat";
 	private static final String propsFileName = "pcsecrets.props";
@@ -306,6 +302,13 @@ public class SecretsProperties implements ActionListener {
 		return theInstance;
 	}
 	
+	/**
+	 * @return true if the singleton instance has been created
+	 */
+	public static synchronized boolean hasInstance() {
+		return theInstance != null;
+	}
+	
 	/**
 	 * Log system properties
 	 */
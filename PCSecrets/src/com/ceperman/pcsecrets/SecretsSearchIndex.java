@@ -0,0 +1,398 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.ceperman.utils.Strings;
+
+/**
+ * In-memory search index over the description, username, email and note of
+ * the secrets in a collection.
+ *
+ * Each indexed secret occupies a slot. For every n-gram (n = 1 to 3) of the
+ * case-folded field values, the index holds a sorted list of the slots
+ * containing it. A search term of up to three characters is answered directly
+ * from its posting list; a longer term intersects the postings of its
+ * trigrams and checks the remaining candidates for a substring match.
+ *
+ * A query may contain several terms separated by spaces; a secret must match
+ * all of them. The index is maintained incrementally by the owning
+ * SecretsCollection.
+ *
+ * The indexed values are held as char arrays, read from the secrets without
+ * creating a String of the note, and are zeroed when a secret is removed
+ * from the index or the index is cleared.
+ *
+ * @author Chris Wood
+ */
+public class SecretsSearchIndex {
+   private static final int MAX_GRAM = 3;
+
+   /* n-gram -> sorted slots containing it */
+   private final Map<String, Postings> grams = new HashMap<String, Postings>();
+   /* secret -> slot */
+   private final Map<HostSecret, Integer> slotOf = new IdentityHashMap<HostSecret, Integer>();
+   /* slot -> case-folded field values as indexed */
+   private char[][][] fields = new char[16][][];
+   /* unused slots */
+   private final BitSet freeSlots = new BitSet();
+   private int slotCount;
+   /* slots in collection order, cached for the snapshot they were built from */
+   private SecretsCollection.Snapshot orderSnapshot;
+   private int[] order;
+
+   /**
+    * Constructor - index the secrets in the collection
+    *
+    * @param secrets
+    */
+   public SecretsSearchIndex(Iterable<HostSecret> secrets) {
+      for (HostSecret secret : secrets) {
+         add(secret);
+      }
+   }
+
+   /**
+    * Add a secret to the index
+    *
+    * @param secret
+    */
+   public synchronized void add(HostSecret secret) {
+      if (slotOf.containsKey(secret)) {
+         update(secret);
+         return;
+      }
+      int slot = freeSlots.nextSetBit(0);
+      if (slot < 0) {
+         slot = slotCount++;
+         if (slot == fields.length) {
+            fields = Arrays.copyOf(fields, slot * 2);
+         }
+      } else {
+         freeSlots.clear(slot);
+      }
+      slotOf.put(secret, slot);
+      orderSnapshot = null;
+      fields[slot] = fieldsOf(secret);
+      for (String gram : gramsOf(fields[slot])) {
+         Postings postings = grams.get(gram);
+         if (postings == null) {
+            postings = new Postings();
+            grams.put(gram, postings);
+         }
+         postings.add(slot);
+      }
+   }
+
+   /**
+    * Remove a secret from the index. The values that were indexed are used,
+    * so this is safe even if the secret has been changed since.
+    *
+    * @param secret
+    */
+   public synchronized void remove(HostSecret secret) {
+      Integer slot = slotOf.remove(secret);
+      if (slot == null) {
+         return;
+      }
+      for (String gram : gramsOf(fields[slot])) {
+         Postings postings = grams.get(gram);
+         postings.remove(slot);
+         if (postings.size == 0) {
+            grams.remove(gram);
+         }
+      }
+      zero(fields[slot]);
+      fields[slot] = null;
+      freeSlots.set(slot);
+      orderSnapshot = null;
+   }
+
+   /**
+    * Re-index a secret whose field values have changed
+    *
+    * @param secret
+    */
+   public synchronized void update(HostSecret secret) {
+      remove(secret);
+      add(secret);
+   }
+
+   /**
+    * Empty the index, zeroing the indexed values
+    */
+   public synchronized void clear() {
+      for (int slot = 0; slot < slotCount; slot++) {
+         zero(fields[slot]);
+      }
+      grams.clear();
+      slotOf.clear();
+      fields = new char[16][][];
+      freeSlots.clear();
+      slotCount = 0;
+      orderSnapshot = null;
+   }
+
+   /**
+    * Find the secrets matching all the terms in the query.
+    *
+    * @param query search text
+    * @return the matches, or null if the query is empty (everything matches)
+    */
+   public synchronized Matches find(String query) {
+      String[] terms = new String(Strings.foldCase(query.trim().toCharArray())).split("\\s+");
+      if (terms[0].length() == 0) {
+         return null;
+      }
+      BitSet result = null;
+      for (String term : terms) {
+         BitSet matches = term.length() <= MAX_GRAM ? findGram(term) : findSubstring(term);
+         if (result == null) {
+            result = matches;
+         } else {
+            result.and(matches);
+         }
+         if (result.isEmpty()) {
+            break;
+         }
+      }
+      return new Matches(result);
+   }
+
+   /*
+    * Slots containing a short term - exact from its posting list
+    */
+   private BitSet findGram(String term) {
+      BitSet matches = new BitSet(slotCount);
+      Postings postings = grams.get(term);
+      if (postings != null) {
+         for (int i = 0; i < postings.size; i++) {
+            matches.set(postings.slots[i]);
+         }
+      }
+      return matches;
+   }
+
+   /*
+    * Slots with a field containing a longer term
+    */
+   private BitSet findSubstring(String term) {
+      BitSet matches = new BitSet(slotCount);
+      Postings[] lists = new Postings[term.length() - MAX_GRAM + 1];
+      for (int i = 0; i < lists.length; i++) {
+         lists[i] = grams.get(term.substring(i, i + MAX_GRAM));
+         if (lists[i] == null) {
+            return matches; // no secret contains this trigram
+         }
+      }
+      Arrays.sort(lists); // shortest first
+      Postings candidates = lists[0];
+      for (int i = 1; i < lists.length && candidates.size > 0; i++) {
+         candidates = candidates.intersect(lists[i]);
+      }
+      char[] chars = term.toCharArray();
+      for (int i = 0; i < candidates.size; i++) {
+         int slot = candidates.slots[i];
+         for (char[] field : fields[slot]) {
+            if (contains(field, chars)) {
+               matches.set(slot);
+               break;
+            }
+         }
+      }
+      return matches;
+   }
+
+   /*
+    * The slot of each secret in the snapshot (-1 if not indexed). Built once
+    * per snapshot, so that successive searches while the user is typing
+    * do not repeat the lookups.
+    */
+   private int[] slotOrder(SecretsCollection.Snapshot snapshot) {
+      if (snapshot != orderSnapshot) {
+         order = new int[snapshot.size()];
+         for (int i = 0; i < order.length; i++) {
+            Integer slot = slotOf.get(snapshot.get(i));
+            order[i] = slot == null ? -1 : slot;
+         }
+         orderSnapshot = snapshot;
+      }
+      return order;
+   }
+
+   /*
+    * The case-folded values of the searchable fields
+    */
+   private static char[][] fieldsOf(HostSecret secret) {
+      char[][] values = new char[][] { chars(secret.getDescription()), chars(secret.getUsername()),
+            chars(secret.getEmail()), secret.getNoteChars() };
+      int count = 0;
+      for (char[] value : values) {
+         if (value.length > 0) {
+            values[count++] = Strings.foldCase(value);
+         }
+      }
+      return Arrays.copyOf(values, count);
+   }
+
+   private static char[] chars(String value) {
+      return value == null ? new char[0] : value.toCharArray();
+   }
+
+   private static boolean contains(char[] field, char[] term) {
+      outer: for (int i = 0; i + term.length <= field.length; i++) {
+         for (int j = 0; j < term.length; j++) {
+            if (field[i + j] != term[j]) {
+               continue outer;
+            }
+         }
+         return true;
+      }
+      return false;
+   }
+
+   private static void zero(char[][] values) {
+      if (values != null) {
+         for (char[] value : values) {
+            Arrays.fill(value, '\0');
+         }
+      }
+   }
+
+   /*
+    * The distinct 1-, 2- and 3-grams of the field values
+    */
+   private static Iterable<String> gramsOf(char[][] values) {
+      Map<String, Boolean> distinct = new HashMap<String, Boolean>();
+      for (char[] value : values) {
+         for (int n = 1; n <= MAX_GRAM; n++) {
+            for (int i = 0; i + n <= value.length; i++) {
+               distinct.put(new String(value, i, n), Boolean.TRUE);
+            }
+         }
+      }
+      return distinct.keySet();
+   }
+
+   /**
+    * The result of a search
+    */
+   public final class Matches {
+      private final BitSet slots;
+
+      private Matches(BitSet slots) {
+         this.slots = slots;
+      }
+
+      /**
+       * @param secret
+       * @return true if the secret matched the query
+       */
+      public boolean contains(HostSecret secret) {
+         synchronized (SecretsSearchIndex.this) {
+            Integer slot = slotOf.get(secret);
+            return slot != null && slots.get(slot);
+         }
+      }
+
+      /**
+       * @return number of matching secrets
+       */
+      public int size() {
+         return slots.cardinality();
+      }
+
+      /**
+       * Select the matching secrets, in collection order
+       *
+       * @param snapshot collection snapshot
+       * @return the matching secrets
+       */
+      public HostSecret[] select(SecretsCollection.Snapshot snapshot) {
+         HostSecret[] selected = new HostSecret[size()];
+         int count = 0;
+         synchronized (SecretsSearchIndex.this) {
+            int[] order = slotOrder(snapshot);
+            for (int i = 0; i < order.length && count < selected.length; i++) {
+               if (order[i] >= 0 && slots.get(order[i])) {
+                  selected[count++] = snapshot.get(i);
+               }
+            }
+         }
+         return count == selected.length ? selected : Arrays.copyOf(selected, count);
+      }
+   }
+
+   /*
+    * Sorted list of slots
+    */
+   private static class Postings implements Comparable<Postings> {
+      private int[] slots = new int[2];
+      private int size;
+
+      void add(int slot) {
+         int index = Arrays.binarySearch(slots, 0, size, slot);
+         if (index >= 0) {
+            return;
+         }
+         index = -(index + 1);
+         if (size == slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(2, size * 2));
+         }
+         System.arraycopy(slots, index, slots, index + 1, size - index);
+         slots[index] = slot;
+         size++;
+      }
+
+      void remove(int slot) {
+         int index = Arrays.binarySearch(slots, 0, size, slot);
+         if (index >= 0) {
+            System.arraycopy(slots, index + 1, slots, index, size - index - 1);
+            size--;
+         }
+      }
+
+      Postings intersect(Postings other) {
+         Postings result = new Postings();
+         result.slots = new int[Math.min(size, other.size)];
+         int i = 0;
+         int j = 0;
+         while (i < size && j < other.size) {
+            if (slots[i] < other.slots[j]) {
+               i++;
+            } else if (slots[i] > other.slots[j]) {
+               j++;
+            } else {
+               result.slots[result.size++] = slots[i];
+               i++;
+               j++;
+            }
+         }
+         return result;
+      }
+
+      @Override
+      public int compareTo(Postings other) {
+         return size - other.size;
+      }
+   }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes secrets to an export file one at a time, so that an export never
+ * holds more than one secret's worth of output in memory.
+ *
+ * The file is written through a FileChannel, with the characters buffered
+ * and encoded into a direct byte buffer. Call {@link #finish()} after the
+ * last secret to complete the document, then {@link #close()}; a writer
+ * closed without finishing leaves an incomplete file.
+ *
+ * Writers read the password and note as char arrays and zero them after
+ * writing, so an export does not create a String of every password.
+ *
+ * @author Chris Wood
+ */
+public abstract class SecretsWriter implements Closeable {
+   /** size of the character and byte buffers */
+   protected static final int BUFFER_SIZE = 64 * 1024;
+
+   /** the output file */
+   protected final Writer out;
+
+   /**
+    * Constructor - create or replace the file
+    *
+    * @param file
+    * @param charset encoding of the file
+    * @throws IOException
+    */
+   protected SecretsWriter(File file, Charset charset) throws IOException {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                  StandardOpenOption.TRUNCATE_EXISTING);
+      /* characters that cannot be encoded are replaced, as by a FileWriter */
+      out = new BufferedWriter(Channels.newWriter(channel, charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                  .onUnmappableCharacter(CodingErrorAction.REPLACE), BUFFER_SIZE), BUFFER_SIZE);
+   }
+
+   /**
+    * Write a secret
+    *
+    * @param secret
+    * @throws IOException
+    */
+   public abstract void write(HostSecret secret) throws IOException;
+
+   /**
+    * Complete the document and flush it to the file
+    *
+    * @throws IOException
+    */
+   public void finish() throws IOException {
+      out.flush();
+   }
+
+   /**
+    * Zero values read from a secret
+    *
+    * @param values
+    */
+   protected static void zero(char[]... values) {
+      for (char[] value : values) {
+         Arrays.fill(value, '\0');
+      }
+   }
+
+   @Override
+   public void close() throws IOException {
+      out.close(); // closes the channel
+   }
+}
@@ -120,7 +120,7 @@ public class SecurityUtils {
 	 * 
 	 * @return A new salt value used to generate the secret key.
 	 */
-	private static byte[] createNewSalt() {
+	static byte[] createNewSalt() { /* package access */
 		byte[] bytes = new byte[BCrypt.BCRYPT_SALT_LEN];
 		SecureRandom random = new SecureRandom();
 		random.nextBytes(bytes);
@@ -330,6 +330,29 @@ public class SecurityUtils {
 		return info;
 	}
 
+	/**
+	 * Derive a 256 bit key from a password with bcrypt, for uses other than
+	 * the secrets ciphers (see VaultDigest). Each use must have its own salt,
+	 * so that the keys are independent of each other and of the cipher keys.
+	 * 
+	 * @param password
+	 * @param salt
+	 * @param rounds bcrypt log rounds
+	 * @return the key
+	 */
+	public static byte[] deriveKey(byte[] password, byte[] salt, int rounds) {
+		byte[] passwordWithDelim = new byte[password.length+1];
+		System.arraycopy(password, 0, passwordWithDelim, 0, password.length);
+		passwordWithDelim[password.length] = '\000';
+		int plaintext[] = { 0x155cbf8e, 0x57f57513, 0x3da787b9, 0x71679d82, 0x7cf72e93, 0x1ae25274, 0x64b54adc,
+				0x335cbd0b };
+		final long start = System.currentTimeMillis();
+		byte[] key = new BCrypt().crypt_raw(passwordWithDelim, salt, rounds, plaintext);
+		Arrays.fill(passwordWithDelim, (byte) 0);
+		logger.log(Level.FINE, "deriveKey: time for " + rounds + " rounds : " + (System.currentTimeMillis() - start) + "ms");
+		return key;
+	}
+
 	/**
 	 * Gets the salt and rounds from the input stream, skipping the 4 byte
 	 * signature.
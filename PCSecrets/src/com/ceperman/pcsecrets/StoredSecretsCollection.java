@@ -308,7 +308,7 @@ public class StoredSecretsCollection extends EncryptableSecretsCollection {
             byte[] deletionsData = getHeaderedSectionData(bytes, offset);
             String jsonString = new String(getCipherInfo().decryptCipher.doFinal(deletionsData), "UTF-8");
             syncDevices.fromJSON(jsonString);
-            logger.log(Level.FINE, "loadEncrypted: retrieved sync devices: " + syncDevices.size());
+            logger.log(Level.FINE, "loadEncrypted: retrieved sync devices: " + syncDevices.getSize());
             offset += ENCRYPTED_LENGTH_FIELD + deletionsData.length;
          } catch (Exception e) {
             // assume error here means the section is missing - not an error
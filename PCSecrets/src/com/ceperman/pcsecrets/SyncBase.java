@@ -0,0 +1,232 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.ceperman.utils.Base64;
+import com.ceperman.utils.Bytes;
+import com.ceperman.utils.Strings;
+
+/**
+ * The state of the secrets at the last successful sync with a device, used
+ * as the common base for a three-way merge.
+ *
+ * After a sync the PC and the device hold the same secrets, so the base is
+ * taken from the PC secrets. Only a 64 bit hash of each field is kept, not
+ * the values: that is enough to tell which side changed a field, and the
+ * base does not hold another copy of every password for every device. The
+ * base is saved with the sync device, in the encrypted deletions section of
+ * the secrets file.
+ *
+ * A base is immutable.
+ *
+ * @author Chris Wood
+ */
+public class SyncBase {
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   /* merged fields, in hash order */
+   private static final int USERNAME = 0;
+   private static final int PASSWORD = 1;
+   private static final int EMAIL = 2;
+   private static final int NOTE = 3;
+   private static final int FIELDS = 4;
+
+   /* case-folded description -> field hashes */
+   private final Map<String, long[]> hashes;
+
+   private SyncBase(Map<String, long[]> hashes) {
+      this.hashes = hashes;
+   }
+
+   /**
+    * Create a base from the current state of a collection
+    *
+    * @param secrets
+    * @return the base
+    */
+   public static SyncBase of(SecretsCollection secrets) {
+      SecretsCollection.Snapshot snapshot = secrets.snapshot();
+      Map<String, long[]> hashes = new HashMap<String, long[]>(snapshot.size() * 2);
+      for (HostSecret secret : snapshot) {
+         hashes.put(key(secret.getDescription()), fieldHashes(secret));
+      }
+      return new SyncBase(hashes);
+   }
+
+   /**
+    * Create a base from its JSON form
+    *
+    * @param jo JSON object as produced by {@link #toJSON()}
+    * @return the base
+    * @throws JSONException
+    */
+   public static SyncBase fromJSON(JSONObject jo) throws JSONException {
+      Map<String, long[]> hashes = new HashMap<String, long[]>(jo.length() * 2);
+      Iterator<?> keys = jo.keys();
+      while (keys.hasNext()) {
+         String key = (String) keys.next();
+         byte[] bytes;
+         try {
+            bytes = Base64.decode(jo.getString(key));
+         } catch (IOException e) {
+            throw new JSONException("Invalid base hashes for '" + key + "'");
+         }
+         if (bytes.length != FIELDS * 8) {
+            throw new JSONException("Invalid base hashes for '" + key + "'");
+         }
+         long[] fieldHashes = new long[FIELDS];
+         for (int i = 0; i < FIELDS; i++) {
+            byte[] field = new byte[8];
+            System.arraycopy(bytes, i * 8, field, 0, 8);
+            fieldHashes[i] = Bytes.getLong(field);
+         }
+         hashes.put(key(key), fieldHashes); // keys saved by earlier versions were lower-cased
+      }
+      return new SyncBase(hashes);
+   }
+
+   /**
+    * Convert to JSON: one item per secret, the key being the case-folded
+    * description and the value the base64 encoded field hashes
+    *
+    * @return JSONObject
+    * @throws JSONException
+    */
+   public JSONObject toJSON() throws JSONException {
+      JSONObject jo = new JSONObject();
+      byte[] bytes = new byte[FIELDS * 8];
+      for (Map.Entry<String, long[]> entry : hashes.entrySet()) {
+         for (int i = 0; i < FIELDS; i++) {
+            long hash = entry.getValue()[i];
+            for (int j = 0; j < 8; j++) {
+               bytes[i * 8 + j] = (byte) (hash >>> (56 - j * 8));
+            }
+         }
+         jo.put(entry.getKey(), Base64.encodeBytes(bytes));
+      }
+      return jo;
+   }
+
+   /**
+    * @return number of secrets in the base
+    */
+   public int getSize() {
+      return hashes.size();
+   }
+
+   /**
+    * @param descr
+    * @return true if the secret existed at the last sync
+    */
+   public boolean contains(String descr) {
+      return hashes.containsKey(key(descr));
+   }
+
+   /**
+    * Three-way merge of a secret changed on both the PC and the device since
+    * the last sync. Each field takes the value of the side that changed it.
+    * If both sides changed the same field to different values, the secret
+    * cannot be merged.
+    *
+    * @param pcSecret
+    * @param deviceSecret
+    * @return a new secret with the merged values and the current time, or
+    *         null if there is no base for the secret or a field collides
+    */
+   public HostSecret merge(HostSecret pcSecret, HostSecret deviceSecret) {
+      long[] base = hashes.get(key(pcSecret.getDescription()));
+      if (base == null) {
+         return null;
+      }
+      byte[][] pcValues = valuesOf(pcSecret);
+      byte[][] deviceValues = valuesOf(deviceSecret);
+      try {
+         byte[][] merged = new byte[FIELDS][];
+         for (int i = 0; i < FIELDS; i++) {
+            if (Arrays.equals(pcValues[i], deviceValues[i]) || hash(deviceValues[i]) == base[i]) {
+               merged[i] = pcValues[i]; // same on both, or unchanged on the device
+            } else if (hash(pcValues[i]) == base[i]) {
+               merged[i] = deviceValues[i]; // unchanged on the PC
+            } else {
+               return null; // changed differently on both
+            }
+         }
+         HostSecret secret = new HostSecret(pcSecret.getDescription(), new String(merged[USERNAME], UTF8), null,
+               new String(merged[EMAIL], UTF8), null);
+         secret.setPasswordBytes(merged[PASSWORD]);
+         secret.setNoteBytes(merged[NOTE]);
+         secret.setTimestamp(System.currentTimeMillis());
+         return secret;
+      } finally {
+         wipe(pcValues);
+         wipe(deviceValues);
+      }
+   }
+
+   /*
+    * The hashes of the merged fields
+    */
+   private static long[] fieldHashes(HostSecret secret) {
+      byte[][] values = valuesOf(secret);
+      long[] fieldHashes = new long[FIELDS];
+      for (int i = 0; i < FIELDS; i++) {
+         fieldHashes[i] = hash(values[i]);
+      }
+      wipe(values);
+      return fieldHashes;
+   }
+
+   /*
+    * The UTF-8 bytes of the merged fields. The password and note are taken as
+    * bytes, so no String holds them; the caller must wipe the values.
+    */
+   private static byte[][] valuesOf(HostSecret secret) {
+      byte[][] values = new byte[FIELDS][];
+      values[USERNAME] = encode(secret.getUsername());
+      values[PASSWORD] = secret.getPasswordBytes();
+      values[EMAIL] = encode(secret.getEmail());
+      values[NOTE] = secret.getNoteBytes();
+      return values;
+   }
+
+   private static void wipe(byte[][] values) {
+      for (byte[] value : values) {
+         Arrays.fill(value, (byte) 0);
+      }
+   }
+
+   private static byte[] encode(String value) {
+      return value == null ? new byte[0] : value.getBytes(UTF8);
+   }
+
+   private static long hash(byte[] value) {
+      return Bytes.hash128(value, 0)[0];
+   }
+
+   private static String key(String descr) {
+      return Strings.foldCase(descr);
+   }
+}
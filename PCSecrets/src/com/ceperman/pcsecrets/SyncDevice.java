@@ -17,9 +17,6 @@
 package com.ceperman.pcsecrets;
 
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,6 +27,16 @@ import org.json.JSONObject;
 /**
  * Encapsulated the deletions information to/from a device.
  * 
+ * The deletions are held in a table of tombstones (see Tombstones), shared
+ * by all the devices in a SyncDeviceCollection. The device records the time
+ * up to which it has acknowledged deletions; the tombstones after that are
+ * its pending deletions.
+ * 
+ * Also holds the base (see SyncBase) recorded at the last successful sync,
+ * used for three-way merges, and the version of the PC secrets collection
+ * at that sync, used to expand a delta from the device. Collection versions
+ * only last while the program runs, so the version is not saved.
+ * 
  * @author Chris Wood
  */
 public class SyncDevice {
@@ -41,13 +48,19 @@ public class SyncDevice {
   private static final String NAME = "name";
   private static final String TIMESTAMP = "timestamp";
   private static final String LASTIP = "lastip";
+  private static final String BASE = "base";
+  private static final String ACK = "ack";
   private String id = UNKNOWN;
   private String displayName = UNKNOWN;
   private String lastIP;
   private long syncTimestamp;
+  private SyncBase base; // null if not known
+  private long syncVersion = -1; // PC collection version at the last sync this run, -1 if none
 
-  /* The map key is the secret description and the value is the timestamp */
-  private Map<String, DeletedSecret> deletedSecrets = new HashMap<String, DeletedSecret>();
+  /* tombstones, normally shared with the other devices */
+  private Tombstones tombstones = new Tombstones();
+  /* deletions up to this time have been acknowledged */
+  private long ackTimestamp;
   
   /**
    * Default constructor
@@ -95,13 +108,28 @@ public class SyncDevice {
       } else {
         logger.log(Level.FINE, "no timestamp found");
       }
+      if (jo.has(BASE)) {
+        base = SyncBase.fromJSON(jo.getJSONObject(BASE));
+        logger.log(Level.FINE, "base secrets: " + base.getSize());
+      }
+      /* deletions held per device by earlier versions, or empty */
       JSONArray records = jo.getJSONArray("ds");
+      long earliest = Long.MAX_VALUE;
       for (int i = 0; i < records.length(); i++) {
-        JSONObject jsonObject = records.getJSONObject(i);
-        DeletedSecret deletedSecret = new DeletedSecret(jsonObject);
-        deletedSecrets.put(deletedSecret.getDescription(), deletedSecret);
+        DeletedSecret deletedSecret = new DeletedSecret(records.getJSONObject(i));
+        tombstones.add(deletedSecret.getDescription(), deletedSecret.getTimestamp());
+        earliest = Math.min(earliest, deletedSecret.getTimestamp());
       }
       logger.log(Level.FINE, "deleted records: " + records.length());
+      if (jo.has(ACK)) {
+        ackTimestamp = jo.getLong(ACK);
+      } else if (syncTimestamp > 0) {
+        ackTimestamp = syncTimestamp; // deletions were cleared at the last sync
+      } else if (records.length() > 0) {
+        ackTimestamp = earliest - 1;
+      } else {
+        ackTimestamp = System.currentTimeMillis(); // no deletions pending
+      }
     } catch (JSONException e) {
       e.printStackTrace();
       throw new RuntimeException("JSONException - program error");
@@ -118,12 +146,11 @@ public class SyncDevice {
     copy.displayName = this.displayName;
     copy.syncTimestamp = this.syncTimestamp;
     copy.lastIP = this.lastIP;
-    copy.deletedSecrets = new HashMap<String, DeletedSecret>();
-    for (Entry<String, DeletedSecret> deletedSecret : this.deletedSecrets.entrySet()) {
-      copy.deletedSecrets.put(deletedSecret.getKey(), 
-              new DeletedSecret(deletedSecret.getValue().getDescription(), 
-                                deletedSecret.getValue().getTimestamp()));
-    }
+    copy.base = this.base; // immutable
+    copy.syncVersion = this.syncVersion;
+    copy.tombstones = new Tombstones();
+    copy.tombstones.addAll(this.tombstones);
+    copy.ackTimestamp = this.ackTimestamp;
     return copy;
   }
   
@@ -134,7 +161,7 @@ public class SyncDevice {
    * @param timestamp
    */
   public void addSecret(String key, Long timestamp) {
-    deletedSecrets.put(key, new DeletedSecret(key, timestamp));
+    tombstones.add(key, timestamp);
   }
   
   /**
@@ -143,16 +170,15 @@ public class SyncDevice {
    * @param key
    */
   public void removeSecret(String key) {
-    deletedSecrets.remove(key);
+    tombstones.remove(key);
   }
   
   /**
-   * Clear all deleted secrets
-   * 
-   * @param key
+   * Clear all deleted secrets - the device has acknowledged all deletions
+   * so far. The tombstones remain until all devices have acknowledged them.
    */
   public void clearDeletedSecrets() {
-    deletedSecrets.clear();
+    ackTimestamp = Math.max(ackTimestamp, Math.max(System.currentTimeMillis(), tombstones.getLatest()));
   }
   
   /**
@@ -161,7 +187,36 @@ public class SyncDevice {
    * @return deleted secrets
    */
   public Collection<DeletedSecret> getDeletedSecrets() {
-    return deletedSecrets.values();
+    return tombstones.since(ackTimestamp);
+  }
+  
+  /**
+   * @return the time up to which deletions have been acknowledged
+   */
+  public long getAckTimestamp() {
+    return ackTimestamp;
+  }
+  
+  /**
+   * @param ackTimestamp the time up to which deletions have been acknowledged
+   */
+  public void setAckTimestamp(long ackTimestamp) {
+    this.ackTimestamp = ackTimestamp;
+  }
+  
+  /**
+   * @return the tombstones table used by this device
+   */
+  Tombstones getTombstones() {
+    return tombstones;
+  }
+  
+  /**
+   * Use a shared tombstones table
+   * @param tombstones
+   */
+  void setTombstones(Tombstones tombstones) {
+    this.tombstones = tombstones;
   }
   
   /**
@@ -206,6 +261,36 @@ public class SyncDevice {
     this.syncTimestamp = syncTimestamp;
   }
 
+  /**
+   * @return the version of the PC secrets collection at the last successful
+   *         sync, or -1 if the device has not been synced since the program
+   *         started
+   */
+  public long getSyncVersion() {
+    return syncVersion;
+  }
+
+  /**
+   * @param syncVersion the PC collection version to set
+   */
+  public void setSyncVersion(long syncVersion) {
+    this.syncVersion = syncVersion;
+  }
+
+  /**
+   * @return the base recorded at the last successful sync, or null
+   */
+  public SyncBase getBase() {
+    return base;
+  }
+
+  /**
+   * @param base the base to set
+   */
+  public void setBase(SyncBase base) {
+    this.base = base;
+  }
+
   /**
    * @return the lastIP
    */
@@ -242,12 +327,11 @@ public class SyncDevice {
     jo.put(NAME, displayName);
     jo.put(TIMESTAMP, syncTimestamp);
     jo.put(LASTIP, lastIP);
-    JSONArray records = new JSONArray();
-    Collection<DeletedSecret> deleted = deletedSecrets.values();
-    for (DeletedSecret deletedSecret : deleted) {
-      records.put(deletedSecret.toJSON());
+    if (base != null) {
+      jo.put(BASE, base.toJSON());
     }
-    jo.put("ds", records);
+    jo.put(ACK, ackTimestamp);
+    jo.put("ds", new JSONArray()); // required by earlier versions - the deletions are in the shared tombstones
     return jo;
   }
 
@@ -256,7 +340,7 @@ public class SyncDevice {
    * 
    * @author Chris Wood
    */
-  public class DeletedSecret {
+  public static class DeletedSecret {
     private String description;
     private long timestamp;
     
@@ -319,17 +403,5 @@ public class SyncDevice {
       this.timestamp = timestamp;
     }
     
-    /**
-     * Convert to JSON Object
-     * @return JSONObject
-     * @throws JSONException 
-     */
-    private JSONObject toJSON() throws JSONException {
-      JSONObject jo = new JSONObject();
-      jo.put("d", description);
-      jo.put("t", timestamp);
-      return jo;
-    }
-    
   }
 }
@@ -17,12 +17,12 @@
 package com.ceperman.pcsecrets;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
-import javax.swing.ListModel;
-import javax.swing.event.ListDataEvent;
-import javax.swing.event.ListDataListener;
+import javax.swing.AbstractListModel;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -32,63 +32,192 @@ import org.json.JSONTokener;
 /**
  * Collection of known sync devices
  * 
+ * The devices are listed in the order they were added (for loaded devices,
+ * the order they were saved). Devices can be looked up by id, and by the IP
+ * address they last synced from, in constant time. List listeners are told
+ * of additions, removals and changes with the corresponding event types.
+ * 
+ * The devices share a table of tombstones for secrets deleted on the PC.
+ * A tombstone is collected once every device has acknowledged it by
+ * completing a sync. The stored form remains an array of devices, and the
+ * tombstones are stored, compactly, with the first device. Per device
+ * deletions saved by earlier versions are read into the table, but the
+ * change is one-way: the devices' own deletion arrays are now saved empty,
+ * so an earlier version reading the file sees no pending deletions.
+ * 
  * @author Chris Wood
  */
 @SuppressWarnings("serial")
-public class SyncDeviceCollection extends HashMap<String, SyncDevice> implements ListModel<SyncDevice> {
+public class SyncDeviceCollection extends AbstractListModel<SyncDevice> {
 //  private static Logger logger = Logger.getLogger(SyncDeviceCollection.class.getName());
   
-  private Collection<ListDataListener> dataListeners = new ArrayList<ListDataListener>();
+  private static final String TOMBSTONES = "tt";
+  
+  /* devices in list order */
+  private final List<SyncDevice> devices = new ArrayList<SyncDevice>();
+  /* id -> list index, rebuilt when a device is removed */
+  private final Map<String, Integer> indexById = new HashMap<String, Integer>();
+  /* last IP -> device, rebuilt when found to be out of date */
+  private final Map<String, SyncDevice> byIP = new HashMap<String, SyncDevice>();
   private boolean changed;
+  private final Tombstones tombstones = new Tombstones();
   
   /**
-   * Add a new sync device
+   * Add a new sync device. Deletions made before it was added do not
+   * apply to it. A device with the same id is replaced, keeping the
+   * replaced device's acknowledgement so its pending deletions are kept.
    * @param sd
    */
   public void add(SyncDevice sd) {
-     put(sd.getId(), sd);
+     Integer existing = indexById.get(sd.getId());
+     sd.setTombstones(tombstones);
+     if (existing == null) {
+        sd.setAckTimestamp(Math.max(System.currentTimeMillis(), tombstones.getLatest()));
+     } else {
+        sd.setAckTimestamp(devices.get(existing).getAckTimestamp());
+     }
+     int index = register(sd);
+     if (existing != null) {
+        fireContentsChanged(this, index, index); // replaced
+     } else {
+        fireIntervalAdded(this, index, index);
+     }
+  }
+
+  /**
+   * Remove a sync device
+   * @param id
+   * @return the device removed, or null if not known
+   */
+  public SyncDevice remove(String id) {
+     Integer index = indexById.get(id);
+     if (index == null) {
+        return null;
+     }
+     SyncDevice sd = devices.remove(index.intValue());
+     rebuildIndex();
+     fireIntervalRemoved(this, index, index);
+     return sd;
+  }
+
+  /**
+   * @param id
+   * @return the device with this id, or null
+   */
+  public SyncDevice get(String id) {
+     Integer index = indexById.get(id);
+     return index == null ? null : devices.get(index);
+  }
+
+  /**
+   * @param id
+   * @return true if a device with this id is known
+   */
+  public boolean contains(String id) {
+     return indexById.containsKey(id);
+  }
+
+  /**
+   * @param ip
+   * @return the device that last synced from this IP address, or null
+   */
+  public SyncDevice getByIP(String ip) {
+     SyncDevice sd = byIP.get(ip);
+     if (sd == null || !ip.equals(sd.getLastIP()) || get(sd.getId()) != sd) {
+        /* a device has moved address, or been removed, since the index was built */
+        byIP.clear();
+        for (SyncDevice device : devices) {
+           if (device.getLastIP() != null) {
+              byIP.put(device.getLastIP(), device);
+           }
+        }
+        sd = byIP.get(ip);
+     }
+     return sd;
+  }
+
+  /**
+   * @param sd
+   * @return the list index of the device, or -1 if not known
+   */
+  public int indexOf(SyncDevice sd) {
+     Integer index = indexById.get(sd.getId());
+     return index == null || devices.get(index) != sd ? -1 : index;
+  }
+
+  /**
+   * @return the devices, in list order
+   */
+  public List<SyncDevice> getDevices() {
+     return Collections.unmodifiableList(devices);
+  }
+
+  /**
+   * @return true if there are no devices
+   */
+  public boolean isEmpty() {
+     return devices.isEmpty();
   }
 
   /**
-   * Add a deleted record to all sync devices
+   * Add a deleted record for all sync devices
    * 
    * @param description
    */
   public void addDeleted(String description) {
+     if (devices.isEmpty()) {
+        return; // no device to tell
+     }
+     /* must be later than any acknowledgement, even within the same millisecond */
      long timestamp = System.currentTimeMillis();
-     Collection<SyncDevice> syncDevices = values();
-     for (SyncDevice syncDevice : syncDevices) {
-        syncDevice.addSecret(description, timestamp);
+     for (SyncDevice syncDevice : devices) {
+        timestamp = Math.max(timestamp, syncDevice.getAckTimestamp() + 1);
      }
+     tombstones.add(description, timestamp);
      contentsChanged();
   }
 
   /**
-   * Notify listeners that things have changed
+   * Remove the tombstones acknowledged by every device
+   * 
+   * @return number of tombstones removed
    */
-  public void contentsChanged() {
-     for (ListDataListener listener : dataListeners) {
-        listener.contentsChanged(new ListDataEvent(this, ListDataEvent.CONTENTS_CHANGED, 0, size()));
+  public int collectTombstones() {
+     long acknowledged = Long.MAX_VALUE;
+     for (SyncDevice syncDevice : devices) {
+        acknowledged = Math.min(acknowledged, syncDevice.getAckTimestamp());
+     }
+     int removed = tombstones.collect(acknowledged);
+     if (removed > 0) {
+        changed = true;
      }
+     return removed;
   }
 
   /**
-   * Notify listeners that something was added
-   * @param index 
+   * @return number of tombstones held
    */
-  public void intervalAdded(int index) {
-     for (ListDataListener listener : dataListeners) {
-        listener.contentsChanged(new ListDataEvent(this, ListDataEvent.INTERVAL_ADDED, index, index));
+  public int getTombstoneCount() {
+     return tombstones.getSize();
+  }
+
+  /**
+   * Notify listeners that things have changed
+   */
+  public void contentsChanged() {
+     if (!devices.isEmpty()) {
+        fireContentsChanged(this, 0, devices.size() - 1);
      }
   }
 
   /**
-   * Notify listeners that something was removed
-   * @param index 
+   * Notify listeners that a device has changed
+   * @param sd
    */
-  public void intervalRemoved(int index) {
-     for (ListDataListener listener : dataListeners) {
-        listener.contentsChanged(new ListDataEvent(this, ListDataEvent.INTERVAL_REMOVED, index, index));
+  public void deviceChanged(SyncDevice sd) {
+     int index = indexOf(sd);
+     if (index >= 0) {
+        fireContentsChanged(this, index, index);
      }
   }
 
@@ -100,9 +229,12 @@ public class SyncDeviceCollection extends HashMap<String, SyncDevice> implements
    */
   public String toJSON() throws JSONException {
      JSONArray jsonDevices = new JSONArray();
-     Collection<SyncDevice> syncDevices = values();
-     for (SyncDevice syncDevice : syncDevices) {
-        jsonDevices.put(syncDevice.toJSON());
+     for (SyncDevice syncDevice : devices) {
+        JSONObject jo = syncDevice.toJSON();
+        if (jsonDevices.length() == 0) {
+           jo.put(TOMBSTONES, tombstones.toJSON());
+        }
+        jsonDevices.put(jo);
      }
      return jsonDevices.toString();
   }
@@ -118,29 +250,50 @@ public class SyncDeviceCollection extends HashMap<String, SyncDevice> implements
      for (int i = 0; i < jsonArray.length(); i++) {
         JSONObject jo = jsonArray.getJSONObject(i);
         SyncDevice syncDevice = new SyncDevice(jo);
-        put(syncDevice.getId(), syncDevice);
+        if (jo.has(TOMBSTONES)) {
+           tombstones.fromJSON(jo.getJSONArray(TOMBSTONES));
+        }
+        tombstones.addAll(syncDevice.getTombstones()); // deletions held per device by earlier versions
+        syncDevice.setTombstones(tombstones);
+        register(syncDevice);
      }
-  }
-
-  @Override
-  public void addListDataListener(ListDataListener l) {
-     dataListeners.add(l);
+     collectTombstones();
   }
 
   @Override
   public SyncDevice getElementAt(int index) {
-     if (size() < index +1) return null;
-     return (SyncDevice)values().toArray()[index];
+     if (index < 0 || index >= devices.size()) return null;
+     return devices.get(index);
   }
 
   @Override
   public int getSize() {
-     return size();
+     return devices.size();
   }
 
-  @Override
-  public void removeListDataListener(ListDataListener l) {
-     dataListeners.remove(l);
+  /*
+   * Add or replace a device, without notifying listeners
+   */
+  private int register(SyncDevice sd) {
+     Integer index = indexById.get(sd.getId());
+     if (index == null) {
+        index = devices.size();
+        devices.add(sd);
+        indexById.put(sd.getId(), index);
+     } else {
+        devices.set(index, sd);
+     }
+     if (sd.getLastIP() != null) {
+        byIP.put(sd.getLastIP(), sd);
+     }
+     return index;
+  }
+
+  private void rebuildIndex() {
+     indexById.clear();
+     for (int i = 0; i < devices.size(); i++) {
+        indexById.put(devices.get(i).getId(), i);
+     }
   }
 
 /**
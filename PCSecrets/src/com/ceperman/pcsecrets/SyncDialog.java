@@ -31,8 +31,11 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -95,6 +98,9 @@ import javax.swing.event.ListSelectionListener;
  * Note for deletions: pc deletions only exist in allSecrets, not in pcSecrets.
  * For device deletions, these exist in allSecrets and deviceSecrets.
  * 
+ * The combining and categorisation is done by a SyncEngine; this class
+ * presents the result and handles conflict resolution.
+ * 
  * @author Chris Wood
  */
 @SuppressWarnings({"serial", "rawtypes", "unchecked"})
@@ -109,6 +115,7 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
 
    private DatedSecretsCollection pcSecrets;
    private DeviceSecretsCollection deviceSecrets;
+   private SyncEngine engine;
 
    private ListSecrets allSecrets;
    private ListSecrets filteredSecrets;
@@ -136,12 +143,12 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
    private boolean isCancelled;
 
    /* secret comparison values */
-   private static final int PC_VALUE = 0;
-   private static final int PHONE_VALUE = 1;
-   private static final int EQUALS_VALUE = 2;
-   private static final int CONFLICT_VALUE = 3;
-   private static final int DELETED_ON_DEVICE = 4;
-   private static final int DELETED_ON_PC = 5;
+   private static final int PC_VALUE = SyncEngine.PC_VALUE;
+   private static final int PHONE_VALUE = SyncEngine.PHONE_VALUE;
+   private static final int EQUALS_VALUE = SyncEngine.EQUALS_VALUE;
+   private static final int CONFLICT_VALUE = SyncEngine.CONFLICT_VALUE;
+   private static final int DELETED_ON_DEVICE = SyncEngine.DELETED_ON_DEVICE;
+   private static final int DELETED_ON_PC = SyncEngine.DELETED_ON_PC;
 
    /* Colours for items in secrets list */
    /* http://www.december.com/html/spec/colorshades.html */
@@ -181,12 +188,12 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
       pcSecretsOriginal = hostSecrets;
 
       /*
-       * get deep copy of pc secrets - so that if dialog is cancelled all
-       * changes are discarded. The device deletions are not copied as these
-       * will not be modified
+       * get a copy of pc secrets - so that if dialog is cancelled all
+       * changes are discarded. The copy shares the original's snapshot and
+       * copies a secret only when it is changed. The device deletions are not
+       * copied as these will not be modified
        */
-      pcSecrets = new DatedSecretsCollection(pcSecretsOriginal); // this is a
-                                                                 // deep copy
+      pcSecrets = new DatedSecretsCollection(pcSecretsOriginal);
 
       /* create the dialog window contents */
       setTitle(Messages.getString("SyncDialog.title"));
@@ -198,14 +205,19 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
       /*
        * Get the last recorded sync timestamp
        */
-      lastSyncDate.setText(SecretsProperties.sdf.format(inputSecrets.getLastSyncTimestamp()));
+      lastSyncDate.setText(TimestampFormat.format(inputSecrets.getLastSyncTimestamp()));
 
       /*
        * create a combined list of pc and device secrets - this is a master list
        * of all secrets, information specific to each side (device or PC) is not
        * held here.
        */
-      allSecrets = generateListModel(hostSecrets, inputSecrets, syncDevice);
+      engine = new SyncEngine(pcSecrets, inputSecrets, syncDevice);
+      int merged = engine.mergeConflicts(syncDevice.getBase());
+      if (merged > 0) {
+         logger.log(Level.INFO, "Conflicts merged automatically: " + merged);
+      }
+      allSecrets = new ListSecrets(engine.getEntries());
 
       /* determine the number of changes, conflicts */
       conflicts = determineConflicts();
@@ -245,49 +257,6 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
       logger.log(Level.FINE, "SyncDialog() complete");
    }
 
-   /**
-    * Generate the list model collection by combining the secrets from the pc
-    * collection, the device collection and the pc deletions. Secrets that have
-    * been deleted on both, or deleted on one and don't exist on the other, are
-    * not added.
-    */
-   private ListSecrets generateListModel(SecretsCollection pcSecrets, SecretsCollection deviceSecrets,
-               SyncDevice pcDeletions) {
-      ListSecrets listSecrets = new ListSecrets();
-      ListSecret listSecret;
-      for (HostSecret hostSecret : pcSecrets) {
-         listSecrets.insert(new ListSecret(hostSecret.getDescription(), hostSecret.getTimestamp()));
-      }
-      for (HostSecret hostSecret : deviceSecrets) {
-         listSecret = listSecrets.find(hostSecret.getDescription());
-         if (listSecret == null && !hostSecret.isDeleted()) {
-            listSecret = new ListSecret(hostSecret.getDescription(), hostSecret.getTimestamp());
-            listSecrets.insert(listSecret);
-         } 
-         if (listSecret != null && hostSecret.isDeleted()) {
-            listSecret.setDeletedOnDevice(true);
-         }
-      }
-      /* At this point, the list contains secrets that exist in an undeleted state
-       * in at least one place.
-       * Now look at pc deletions...
-       */
-      for (SyncDevice.DeletedSecret deletedSecret : pcDeletions.getDeletedSecrets()) {
-         listSecret = listSecrets.find(deletedSecret.getDescription());
-         /* if the secrets has also been deleted on the device there is no
-          * conflict - remove the secret
-          */
-         if (listSecret != null) {
-            if (listSecret.isDeletedOnDevice()) {
-               listSecrets.delete(deletedSecret.getDescription());
-            } else {
-               listSecret.setDeletedOnPC(true);
-            }
-         }
-      }
-      return listSecrets;
-   }
-
    /**
     * Conditionally show the sync dialog
     * 
@@ -323,9 +292,10 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
          int selected = secretsList.getSelectedIndex();
          if (!(selected < 0)) { /* -1 indicates no selection */
             ListSecret selectedListSecret = (ListSecret) secretsList.getSelectedValue();
-            HostSecret selectedPCSecret = pcSecrets.get(selectedListSecret.getDescription());
+            HostSecret selectedPCSecret = new HostSecret(pcSecrets.get(selectedListSecret.getDescription()));
             pcForm.updateSecretFromInput(selectedPCSecret);
             selectedPCSecret.setTimestamp(System.currentTimeMillis());
+            pcSecrets.addOrUpdate(selectedPCSecret); // records the change
             selectedListSecret.setMerged(true);
             removeConflict(selected, selectedListSecret.getDescription());
             buttonMarkAsMerged.setEnabled(false);
@@ -413,17 +383,7 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
       DeviceSecretsCollection secretsCollection = new DeviceSecretsCollection(deviceSecrets);
       secretsCollection.clear();
       /* copy in all secrets where latest version is on PC */
-      for (int i = 0; i < allSecrets.getSize(); i++) {
-         ListSecret secret = (ListSecret) allSecrets.getElementAt(i);
-         int category = categoriseSecret(secret, pcSecrets, deviceSecrets);
-         if (category == PC_VALUE) {
-            secretsCollection.addOrUpdate(pcSecrets.get(secret.getDescription()));
-         } else if (category == DELETED_ON_PC) {
-            HostSecret deletedSecret = new HostSecret(secret.getDescription());
-            deletedSecret.setDeleted(true);
-            secretsCollection.addOrUpdate(deletedSecret);
-         }
-      }
+      secretsCollection.addOrUpdateAll(engine.getDeviceUpdates());
       return secretsCollection;
    }
 
@@ -433,17 +393,7 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
     * device
     */
    public void applyPhoneUpdatesToPC() {
-      for (Iterator<ListSecret> iterator = allSecrets.iterator(); iterator.hasNext();) {
-         ListSecret secret = iterator.next();
-         int category = categoriseSecret(secret, pcSecrets, deviceSecrets);
-         if (category == PHONE_VALUE) {
-            pcSecrets.addOrUpdate(deviceSecrets.get(secret.getDescription()));
-            pcSecrets.setLastSyncTimestamp(System.currentTimeMillis());
-            pcSecrets.setChanged(true);
-         } else if (category == DELETED_ON_DEVICE) {
-            pcSecrets.delete(secret.getDescription());
-         }
-      }
+      engine.applyDeviceUpdates();
    }
 
    /**
@@ -452,13 +402,7 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
     * @return array of counts, index by comparison value
     */
    public int[] getCounts() {
-      int[] counts = new int[6];
-      for (int i = 0; i < allSecrets.getSize(); i++) {
-         ListSecret secret = (ListSecret) allSecrets.getElementAt(i);
-         int cat = categoriseSecret(secret, pcSecrets, deviceSecrets);
-         counts[cat]++;
-      }
-      return counts;
+      return engine.getCounts();
    }
 
    /**
@@ -478,14 +422,7 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
     * @return collection of conflicts
     */
    private ListSecrets determineConflicts() {
-      ListSecrets conflicts = new ListSecrets();
-      for (int i = 0; i < allSecrets.getSize(); i++) {
-         ListSecret secret = (ListSecret) allSecrets.getElementAt(i);
-         if (categoriseSecret(secret, pcSecrets, deviceSecrets) == CONFLICT_VALUE) {
-            conflicts.insert(secret);
-         }
-      }
-      return conflicts;
+      return new ListSecrets(engine.getEntries(CONFLICT_VALUE));
    }
 
    /**
@@ -701,22 +638,7 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
 
    /**
     * Determine the status of the secret - where the latest version is, or if
-    * they are equal or conflict.
-    * 
-    * If the secret exists in only one place, that's the one to use. If the
-    * secret is the same in both places then leave alone regardless of their
-    * timestamps (because of this, the timestamps could be different) If both
-    * secrets have been changed since the last sync, then there is a conflict*
-    * If only one secret has been changed since the last sync, then that secret
-    * is the one to use - there is no conflict.
-    * 
-    * (*=unless the pc secret has been updated during the sync/merge process, in
-    * which case the conflict has been resolved)
-    * 
-    * It is not clear if the case where the last sync timestamp is *later* than
-    * changes to a secret on both systems when they are not the same is actually
-    * possible or valid, but if it occurs it will be classed as a conflict as a
-    * safety measure.
+    * they are equal or conflict. See {@link SyncEngine#categorise}.
     * 
     * @param secret
     * @param pcSecrets
@@ -726,45 +648,8 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
     */
    public static int categoriseSecret(ListSecret secret, DatedSecretsCollection pcSecrets,
                DatedSecretsCollection phoneSecrets) {
-      int valueToUse;
-      final long lastSyncDate = phoneSecrets.getLastSyncTimestamp(); // provided from pc's SyncDevice
       String s = secret.getDescription();
-      HostSecret pcSecret = pcSecrets.get(s);
-      HostSecret phoneSecret = phoneSecrets.get(s);
-      if (secret.isDeletedOnPC()) {
-         if (secret.getDeletedTimestamp() > lastSyncDate 
-                     && phoneSecret != null 
-                     && phoneSecret.getTimestamp() > lastSyncDate
-                     && !(secret.isMerged())) {
-            valueToUse = CONFLICT_VALUE;
-         } else {
-            valueToUse = DELETED_ON_PC;
-         }
-      } else if (secret.isDeletedOnDevice()) {
-         if (secret.getDeletedTimestamp() > lastSyncDate 
-                     && pcSecret != null
-                     && pcSecret.getTimestamp() > lastSyncDate
-                     && !(secret.isMerged())) {
-            valueToUse = CONFLICT_VALUE;
-         } else {
-            valueToUse = DELETED_ON_DEVICE;
-         }
-      } else if (pcSecret == null) {
-         valueToUse = PHONE_VALUE;
-      } else if (phoneSecret == null) {
-         valueToUse = PC_VALUE;
-      } else if (pcSecret.equals(phoneSecret)) {
-         valueToUse = EQUALS_VALUE;
-      } else if ((pcSecret.getTimestamp() > lastSyncDate && phoneSecret.getTimestamp() > lastSyncDate && !(secret
-                  .isMerged()))
-                  || (pcSecret.getTimestamp() < lastSyncDate && phoneSecret.getTimestamp() < lastSyncDate)) {
-         valueToUse = CONFLICT_VALUE;
-      } else if ((phoneSecret.getTimestamp() > pcSecret.getTimestamp() && phoneSecret.getTimestamp() > lastSyncDate)) {
-         valueToUse = PHONE_VALUE;
-      } else {
-         valueToUse = PC_VALUE;
-      }
-      return valueToUse;
+      return SyncEngine.categorise(secret, pcSecrets.get(s), phoneSecrets.get(s), phoneSecrets.getLastSyncTimestamp());
    }
 
    /**
@@ -792,7 +677,7 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
                }
             } else {
                areaMsg.setForeground(Color.black);
-               int cat = categoriseSecret(selectedSecret, pcSecrets, deviceSecrets);
+               int cat = engine.getCategory(selectedSecret);
                if (cat == PC_VALUE) {
                   areaMsg.setText(Messages.getString("SyncDialog.infopcvalue"));
                } else if (cat == PHONE_VALUE) {
@@ -825,19 +710,19 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
                   && showDeletedOnDevice.isSelected() && showDeletedOnPC.isSelected()) {
          secretsList.setModel(allSecrets);
       } else {
-         filteredSecrets = new ListSecrets();
-         for (int i = 0; i < allSecrets.getSize(); i++) {
-            ListSecret secret = (ListSecret) allSecrets.getElementAt(i);
-            int cat = categoriseSecret(secret, pcSecrets, deviceSecrets);
+         List<ListSecret> selected = new ArrayList<ListSecret>();
+         for (ListSecret secret : engine.getEntries()) {
+            int cat = engine.getCategory(secret);
             if ((showLatestOnPC.isSelected() && cat == PC_VALUE)
                         || (showLatestOnPhone.isSelected() && cat == PHONE_VALUE)
                         || (showDeletedOnPC.isSelected() && cat == DELETED_ON_PC)
                         || (showDeletedOnDevice.isSelected() && cat == DELETED_ON_DEVICE)
                         || (showUnchanged.isSelected() && cat == EQUALS_VALUE)
                         || (showConflicts.isSelected() && cat == CONFLICT_VALUE)) {
-               filteredSecrets.insert(secret);
+               selected.add(secret);
             }
          }
+         filteredSecrets = new ListSecrets(selected);
          secretsList.setModel(filteredSecrets);
       }
    }
@@ -875,8 +760,7 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
                   boolean cellHasFocus) {
          String s = value.toString();
          setText(s);
-         int valueToUse = 0;
-         valueToUse = SyncDialog.categoriseSecret(allSecrets.find(s), pcSecrets, deviceSecrets);
+         int valueToUse = engine.getCategory((ListSecret) value);
 
          if (isSelected) {
             setBackground(HIGHLIGHT_COLOURS[valueToUse]);
@@ -930,6 +814,7 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
       private boolean deletedOnDevice;
       private long deletedTimestamp;
       private boolean merged;
+      int category = -1; // cached by the SyncEngine, -1 if not known
 
       @SuppressWarnings("javadoc")
       public ListSecret(String description) {
@@ -962,6 +847,7 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
        */
       public void setDeletedOnPC(boolean deletedOnPC) {
          this.deletedOnPC = deletedOnPC;
+         category = -1;
       }
 
       /**
@@ -977,6 +863,7 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
        */
       public void setDeletedOnDevice(boolean deletedOnDevice) {
          this.deletedOnDevice = deletedOnDevice;
+         category = -1;
       }
 
       /**
@@ -992,13 +879,14 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
        */
       public void setDeletedTimestamp(long deletedTimestamp) {
          this.deletedTimestamp = deletedTimestamp;
+         category = -1;
       }
 
       /**
        * @return the timestamp
        */
       public String getFormattedTimestamp() {
-         return SecretsProperties.sdf.format(deletedTimestamp);
+         return TimestampFormat.format(deletedTimestamp);
       }
 
       /**
@@ -1014,6 +902,7 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
        */
       public void setMerged(boolean merged) {
          this.merged = merged;
+         category = -1;
       }
 
       /*
@@ -1030,10 +919,28 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
    /**
     * List class for JList secrets model
     * 
+    * The secrets are kept sorted by description, with a hash index for lookup.
+    * 
     * @author Chris Wood
     */
    public class ListSecrets extends AbstractListModel {
       private List<ListSecret> secrets = new ArrayList<ListSecret>();
+      private Map<String, ListSecret> index = new HashMap<String, ListSecret>();
+
+      @SuppressWarnings("javadoc")
+      public ListSecrets() {}
+
+      /**
+       * Constructor
+       * 
+       * @param sortedSecrets secrets, already sorted by description
+       */
+      public ListSecrets(List<ListSecret> sortedSecrets) {
+         secrets.addAll(sortedSecrets);
+         for (ListSecret secret : sortedSecrets) {
+            index.put(SyncEngine.key(secret.getDescription()), secret);
+         }
+      }
 
       @Override
       public ListSecret getElementAt(int index) {
@@ -1047,20 +954,12 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
 
       @SuppressWarnings("javadoc")
       public void insert(ListSecret newSecret) {
-         boolean added = false;
-         for (int i = 0; i < secrets.size(); i++) {
-            ListSecret secret = secrets.get(i);
-            if (newSecret.getDescription().compareToIgnoreCase(secret.getDescription()) < 0) {
-               secrets.add(i, newSecret);
-               added = true;
-               break;
-            } else if (newSecret.getDescription().compareToIgnoreCase(secret.getDescription()) == 0) {
-               throw new IllegalArgumentException("Duplicate key");
-            }
-         }
-         if (!added) {
-            secrets.add(newSecret);
+         if (index.containsKey(SyncEngine.key(newSecret.getDescription()))) {
+            throw new IllegalArgumentException("Duplicate key");
          }
+         int i = Collections.binarySearch(secrets, newSecret, SyncEngine.ORDER);
+         secrets.add(i < 0 ? -(i + 1) : i, newSecret);
+         index.put(SyncEngine.key(newSecret.getDescription()), newSecret);
       }
 
       @SuppressWarnings("javadoc")
@@ -1070,19 +969,14 @@ public class SyncDialog extends JDialog implements ActionListener, ItemListener,
 
       @SuppressWarnings("javadoc")
       public ListSecret find(String key) {
-         for (ListSecret secret : secrets) {
-            if (secret.getDescription().equalsIgnoreCase(key)) {
-               return secret;
-            }
-         }
-         return null;
+         return index.get(SyncEngine.key(key));
       }
 
       @SuppressWarnings("javadoc")
       public void delete(String key) {
-         ListSecret secret = find(key);
+         ListSecret secret = index.remove(SyncEngine.key(key));
          if (secret != null) {
-            secrets.remove(secret);
+            secrets.remove(Collections.binarySearch(secrets, secret, SyncEngine.ORDER));
          }
       }
 
@@ -0,0 +1,321 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ceperman.pcsecrets.SyncDialog.ListSecret;
+import com.ceperman.utils.Strings;
+
+/**
+ * Works out, for each secret involved in a sync, where its current version
+ * is: on the PC, on the device, the same on both, deleted on one side, or in
+ * conflict. This class has no UI; the SyncDialog presents its results.
+ *
+ * The PC secrets, device secrets and PC deletions are combined with a single
+ * hash join into a list of entries sorted by description. The category of
+ * each entry is computed once and cached. Resolving a conflict changes the
+ * entry (e.g. it is marked as merged), which invalidates its category so that
+ * it is recomputed on next use.
+ *
+ * @author Chris Wood
+ */
+public class SyncEngine {
+
+   /* secret comparison values */
+   /** latest version is on the PC */
+   public static final int PC_VALUE = 0;
+   /** latest version is on the device */
+   public static final int PHONE_VALUE = 1;
+   /** no difference */
+   public static final int EQUALS_VALUE = 2;
+   /** changed on both since the last sync */
+   public static final int CONFLICT_VALUE = 3;
+   /** deleted on the device */
+   public static final int DELETED_ON_DEVICE = 4;
+   /** deleted on the PC */
+   public static final int DELETED_ON_PC = 5;
+   /** number of categories */
+   public static final int CATEGORY_COUNT = 6;
+
+   /** Entry order - description, ignoring case */
+   static final Comparator<ListSecret> ORDER = new Comparator<ListSecret>() {
+      @Override
+      public int compare(ListSecret s1, ListSecret s2) {
+         return s1.getDescription().compareToIgnoreCase(s2.getDescription());
+      }
+   };
+
+   private final DatedSecretsCollection pcSecrets;
+   private final DatedSecretsCollection deviceSecrets;
+   private final List<ListSecret> entries;
+   private final Map<String, ListSecret> entryMap;
+
+   /**
+    * Constructor - combine the PC secrets, the device secrets and the PC
+    * deletions. Secrets that have been deleted on both, or deleted on one and
+    * don't exist on the other, are not included.
+    *
+    * @param pcSecrets
+    * @param deviceSecrets
+    *           device secrets, including deletions; the last sync timestamp
+    *           is taken from here
+    * @param pcDeletions
+    *           deletion data for the device
+    */
+   public SyncEngine(DatedSecretsCollection pcSecrets, DatedSecretsCollection deviceSecrets, SyncDevice pcDeletions) {
+      this.pcSecrets = pcSecrets;
+      this.deviceSecrets = deviceSecrets;
+      entryMap = new HashMap<String, ListSecret>(pcSecrets.getSize() * 2);
+      for (HostSecret hostSecret : pcSecrets.snapshot()) {
+         entryMap.put(key(hostSecret.getDescription()), new ListSecret(hostSecret.getDescription(), hostSecret.getTimestamp()));
+      }
+      for (HostSecret hostSecret : deviceSecrets.snapshot()) {
+         String key = key(hostSecret.getDescription());
+         ListSecret entry = entryMap.get(key);
+         if (entry == null && !hostSecret.isDeleted()) {
+            entryMap.put(key, new ListSecret(hostSecret.getDescription(), hostSecret.getTimestamp()));
+         } else if (entry != null && hostSecret.isDeleted()) {
+            entry.setDeletedOnDevice(true);
+         }
+      }
+      /* the entries are now the secrets that exist in an undeleted state in
+       * at least one place - now look at the pc deletions
+       */
+      for (SyncDevice.DeletedSecret deletedSecret : pcDeletions.getDeletedSecrets()) {
+         String key = key(deletedSecret.getDescription());
+         ListSecret entry = entryMap.get(key);
+         if (entry != null) {
+            if (entry.isDeletedOnDevice()) {
+               /* also deleted on the device, so there is no conflict */
+               entryMap.remove(key);
+            } else {
+               entry.setDeletedOnPC(true);
+            }
+         }
+      }
+      entries = new ArrayList<ListSecret>(entryMap.values());
+      Collections.sort(entries, ORDER);
+   }
+
+   /**
+    * @return all the entries, sorted by description
+    */
+   public List<ListSecret> getEntries() {
+      return Collections.unmodifiableList(entries);
+   }
+
+   /**
+    * @param descr
+    * @return the entry for the description, or null
+    */
+   public ListSecret find(String descr) {
+      return entryMap.get(key(descr));
+   }
+
+   /**
+    * Get the category of an entry, computing it if it is not cached
+    *
+    * @param entry
+    * @return category: PC_VALUE, PHONE_VALUE etc.
+    */
+   public int getCategory(ListSecret entry) {
+      if (entry.category < 0) {
+         String s = entry.getDescription();
+         entry.category = categorise(entry, pcSecrets.get(s), deviceSecrets.get(s), deviceSecrets.getLastSyncTimestamp());
+      }
+      return entry.category;
+   }
+
+   /**
+    * Count the categorisations
+    *
+    * @return array of counts, indexed by category
+    */
+   public int[] getCounts() {
+      int[] counts = new int[CATEGORY_COUNT];
+      for (ListSecret entry : entries) {
+         counts[getCategory(entry)]++;
+      }
+      return counts;
+   }
+
+   /**
+    * @param category
+    * @return the entries in the category, sorted by description
+    */
+   public List<ListSecret> getEntries(int category) {
+      List<ListSecret> selected = new ArrayList<ListSecret>();
+      for (ListSecret entry : entries) {
+         if (getCategory(entry) == category) {
+            selected.add(entry);
+         }
+      }
+      return selected;
+   }
+
+   /**
+    * Resolve the conflicts where both sides have changed different fields,
+    * using a three-way merge with the base recorded at the last sync. Each
+    * merged secret replaces the PC secret and the entry is marked as merged,
+    * as if resolved in the sync dialog, so it is sent to the device.
+    * Conflicts involving a deletion, and same-field collisions, are left.
+    *
+    * @param base the base, or null if not known
+    * @return number of conflicts resolved
+    */
+   public int mergeConflicts(SyncBase base) {
+      if (base == null) {
+         return 0;
+      }
+      int resolved = 0;
+      for (ListSecret entry : entries) {
+         if (getCategory(entry) != CONFLICT_VALUE || entry.isDeletedOnPC() || entry.isDeletedOnDevice()) {
+            continue;
+         }
+         String descr = entry.getDescription();
+         HostSecret merged = base.merge(pcSecrets.get(descr), deviceSecrets.get(descr));
+         if (merged != null) {
+            pcSecrets.addOrUpdate(merged);
+            entry.setMerged(true); // invalidates the category
+            resolved++;
+         }
+      }
+      return resolved;
+   }
+
+   /**
+    * Get the secrets to be sent to the device: those where the PC value is the
+    * current one, and deletion markers for those deleted on the PC.
+    *
+    * @return secrets for the device
+    */
+   public List<HostSecret> getDeviceUpdates() {
+      List<HostSecret> updates = new ArrayList<HostSecret>();
+      for (ListSecret entry : entries) {
+         int category = getCategory(entry);
+         if (category == PC_VALUE) {
+            updates.add(pcSecrets.get(entry.getDescription()));
+         } else if (category == DELETED_ON_PC) {
+            HostSecret deletedSecret = new HostSecret(entry.getDescription());
+            deletedSecret.setDeleted(true);
+            updates.add(deletedSecret);
+         }
+      }
+      return updates;
+   }
+
+   /**
+    * Apply the updates from the device to the PC secrets - update the pc
+    * secret where last updated on the device, remove the pc secret where
+    * deleted on the device. The updates are applied as a single batch.
+    */
+   public void applyDeviceUpdates() {
+      List<HostSecret> updates = new ArrayList<HostSecret>();
+      for (ListSecret entry : entries) {
+         int category = getCategory(entry);
+         if (category == PHONE_VALUE) {
+            updates.add(deviceSecrets.get(entry.getDescription()));
+         } else if (category == DELETED_ON_DEVICE) {
+            pcSecrets.delete(entry.getDescription());
+         }
+      }
+      if (!updates.isEmpty()) {
+         pcSecrets.addOrUpdateAll(updates);
+         pcSecrets.setLastSyncTimestamp(System.currentTimeMillis());
+         pcSecrets.setChanged(true);
+      }
+   }
+
+   /**
+    * Determine the status of the secret - where the latest version is, or if
+    * they are equal or conflict.
+    *
+    * If the secret exists in only one place, that's the one to use. If the
+    * secret is the same in both places then leave alone regardless of their
+    * timestamps (because of this, the timestamps could be different) If both
+    * secrets have been changed since the last sync, then there is a conflict*
+    * If only one secret has been changed since the last sync, then that secret
+    * is the one to use - there is no conflict.
+    *
+    * (*=unless the pc secret has been updated during the sync/merge process, in
+    * which case the conflict has been resolved)
+    *
+    * It is not clear if the case where the last sync timestamp is *later* than
+    * changes to a secret on both systems when they are not the same is actually
+    * possible or valid, but if it occurs it will be classed as a conflict as a
+    * safety measure.
+    *
+    * @param secret
+    * @param pcSecret
+    *           the pc secret, or null
+    * @param phoneSecret
+    *           the device secret, or null
+    * @param lastSyncDate
+    * @return int: 0=pc, 1=phone, 2=equal 3=conflict 4=deleted on device
+    *         5=deleted on PC
+    */
+   public static int categorise(ListSecret secret, HostSecret pcSecret, HostSecret phoneSecret, long lastSyncDate) {
+      int valueToUse;
+      if (secret.isDeletedOnPC()) {
+         if (secret.getDeletedTimestamp() > lastSyncDate
+                     && phoneSecret != null
+                     && phoneSecret.getTimestamp() > lastSyncDate
+                     && !(secret.isMerged())) {
+            valueToUse = CONFLICT_VALUE;
+         } else {
+            valueToUse = DELETED_ON_PC;
+         }
+      } else if (secret.isDeletedOnDevice()) {
+         if (secret.getDeletedTimestamp() > lastSyncDate
+                     && pcSecret != null
+                     && pcSecret.getTimestamp() > lastSyncDate
+                     && !(secret.isMerged())) {
+            valueToUse = CONFLICT_VALUE;
+         } else {
+            valueToUse = DELETED_ON_DEVICE;
+         }
+      } else if (pcSecret == null) {
+         valueToUse = PHONE_VALUE;
+      } else if (phoneSecret == null) {
+         valueToUse = PC_VALUE;
+      } else if (pcSecret.equals(phoneSecret)) {
+         valueToUse = EQUALS_VALUE;
+      } else if ((pcSecret.getTimestamp() > lastSyncDate && phoneSecret.getTimestamp() > lastSyncDate && !(secret
+                  .isMerged()))
+                  || (pcSecret.getTimestamp() < lastSyncDate && phoneSecret.getTimestamp() < lastSyncDate)) {
+         valueToUse = CONFLICT_VALUE;
+      } else if ((phoneSecret.getTimestamp() > pcSecret.getTimestamp() && phoneSecret.getTimestamp() > lastSyncDate)) {
+         valueToUse = PHONE_VALUE;
+      } else {
+         valueToUse = PC_VALUE;
+      }
+      return valueToUse;
+   }
+
+   /*
+    * Hash key for a description - secrets are matched ignoring case
+    */
+   static String key(String descr) {
+      return Strings.foldCase(descr);
+   }
+}
@@ -0,0 +1,432 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+import com.ceperman.pcsecrets.SecurityUtils.CipherInfo;
+import com.ceperman.pcsecrets.SecurityUtils.CipherParms;
+
+/**
+ * Long-lived server for device syncs. Devices can connect at any time, and
+ * several can be connected at once: each connection is a SyncSession, and
+ * sending the metadata, receiving the device secrets and decrypting them is
+ * done for each session on a thread from a bounded pool. While the pool is
+ * busy, further connections wait in the server socket backlog.
+ *
+ * Received sessions are queued. The sync with the PC secrets is done on the
+ * UI thread, taking one session at a time from the queue (see InputPhone),
+ * so only the final merge into the PC secrets is serialised. The queue is
+ * bounded: when it is full a device is told the sync was cancelled. A
+ * session not taken within the session timeout is closed, as the device
+ * will have given up waiting. A device whose data cannot be decrypted is
+ * told so at once, and its session is not queued.
+ *
+ * The server is only meant to run for a sync round (see MainWindow):
+ * stopping it also forgets the password.
+ *
+ * @author Chris Wood
+ */
+public class SyncServer {
+   private static Logger logger = Logger.getLogger(SyncServer.class.getName());
+
+   /** default number of sessions received at once */
+   public static final int MAX_SESSIONS = 4;
+   /** number of received sessions that may wait to be synced */
+   public static final int MAX_QUEUED = 8;
+   /* time allowed for a device to send data or a response (millisecs) */
+   private static final int SESSION_TIMEOUT = 2 * 60 * 1000;
+   /* bytes that may be read before getCipherParms() resets the stream */
+   private static final int SECURITY_HEADER_LIMIT = 512;
+
+   private final int port;
+   private final int maxSessions;
+   private final BlockingQueue<SyncSession> received = new ArrayBlockingQueue<SyncSession>(MAX_QUEUED);
+   /* sessions accepted and not yet queued or dropped */
+   private final AtomicInteger receiving = new AtomicInteger();
+   private final AtomicInteger decryptFailures = new AtomicInteger();
+   /* partial resumable transfers, shared by all sessions so that a reconnecting device can resume */
+   private final TransferStore transfers = new TransferStore(TransferStore.MAX_TRANSFERS, TransferStore.MAX_BYTES,
+               TransferStore.RESUME_WINDOW);
+   private volatile byte[] password;
+   private volatile String metadata = "none";
+   private volatile int maxMessageSize = FramedChannel.DEFAULT_MAX_MESSAGE_SIZE;
+   private ServerSocket serverSocket;
+   private ExecutorService executor;
+
+   /**
+    * Constructor
+    *
+    * @param port port to listen on, or 0 for any free port
+    * @param maxSessions number of sessions received at once
+    */
+   public SyncServer(int port, int maxSessions) {
+      this.port = port;
+      this.maxSessions = maxSessions;
+   }
+
+   /**
+    * Set the password used to decrypt the device secrets, and the metadata
+    * sent to each device. Items are key=value, one per line. Sessions
+    * connecting after this use the new values. The count of decryption
+    * failures is reset.
+    *
+    * @param password
+    * @param metadata
+    */
+   public void configure(byte[] password, String metadata) {
+      this.password = password;
+      this.metadata = metadata;
+      decryptFailures.set(0);
+   }
+
+   /**
+    * Set the metadata sent to each device, keeping the password
+    *
+    * @param metadata
+    */
+   public void setMetadata(String metadata) {
+      this.metadata = metadata;
+   }
+
+   /**
+    * Set the maximum size of a message from a device. Larger messages are
+    * rejected before they are read.
+    *
+    * @param maxMessageSize
+    */
+   public void setMaxMessageSize(int maxMessageSize) {
+      this.maxMessageSize = maxMessageSize;
+   }
+
+   /**
+    * Start listening, if not already started
+    *
+    * @throws IOException if the port cannot be opened
+    */
+   public synchronized void start() throws IOException {
+      if (serverSocket != null) {
+         return;
+      }
+      final ServerSocket ss = new ServerSocket(port);
+      final ExecutorService sessions = Executors.newFixedThreadPool(maxSessions, new ThreadFactory() {
+         private int count;
+
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "SyncSession-" + ++count);
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      serverSocket = ss;
+      executor = sessions;
+      Thread acceptor = new Thread("SyncServer") {
+         @Override
+         public void run() {
+            accept(ss, sessions, new Semaphore(maxSessions));
+         }
+      };
+      acceptor.setDaemon(true);
+      acceptor.start();
+      logger.log(Level.INFO, "Sync server listening on port " + ss.getLocalPort());
+   }
+
+   /**
+    * @return true if listening
+    */
+   public synchronized boolean isRunning() {
+      return serverSocket != null;
+   }
+
+   /**
+    * @return the port listened on, or -1 if not started
+    */
+   public synchronized int getLocalPort() {
+      return serverSocket == null ? -1 : serverSocket.getLocalPort();
+   }
+
+   /**
+    * Stop listening, close the sessions not yet taken, and forget the
+    * password. The server can be started again after configuring it.
+    */
+   public synchronized void stop() {
+      password = null;
+      if (serverSocket == null) {
+         return;
+      }
+      try {
+         serverSocket.close();
+      } catch (IOException ignore) {
+      }
+      serverSocket = null;
+      executor.shutdownNow();
+      SyncSession session;
+      while ((session = received.poll()) != null) {
+         discard(session);
+      }
+      logger.log(Level.INFO, "Sync server stopped");
+   }
+
+   /**
+    * Get the next received session, waiting if there is none. Expired
+    * sessions are closed and skipped.
+    *
+    * @return session
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public SyncSession takeSession() throws InterruptedException {
+      while (true) {
+         SyncSession session = received.take();
+         if (!isExpired(session, System.currentTimeMillis())) {
+            return session;
+         }
+         discard(session);
+      }
+   }
+
+   /**
+    * @return true if a received session is waiting to be taken
+    */
+   public boolean hasSession() {
+      expire();
+      return !received.isEmpty();
+   }
+
+   /**
+    * @return number of devices whose data could not be decrypted, since the
+    *         server was configured
+    */
+   public int getDecryptFailures() {
+      return decryptFailures.get();
+   }
+
+   /**
+    * @return true if a session is being received, and may yet be queued
+    */
+   public boolean isReceiving() {
+      return receiving.get() > 0;
+   }
+
+   /*
+    * Accept connections until the server socket is closed. A permit is held
+    * for each session being received, so no more than maxSessions are
+    * accepted at once.
+    */
+   private void accept(ServerSocket ss, ExecutorService sessions, final Semaphore permits) {
+      while (true) {
+         try {
+            permits.acquire();
+         } catch (InterruptedException e) {
+            return;
+         }
+         Socket client = null;
+         try {
+            client = ss.accept();
+            final long accepted = System.nanoTime();
+            logger.log(Level.INFO, "Device connected: " + client.getInetAddress().getHostAddress());
+            final SyncSession session = new SyncSession(client, maxMessageSize);
+            receiving.incrementAndGet();
+            try {
+               sessions.execute(new Runnable() {
+                  @Override
+                  public void run() {
+                     try {
+                        receive(session, accepted);
+                     } finally {
+                        receiving.decrementAndGet();
+                        permits.release();
+                     }
+                  }
+               });
+            } catch (RuntimeException e) {
+               receiving.decrementAndGet();
+               throw e;
+            }
+         } catch (IOException e) {
+            permits.release();
+            if (ss.isClosed()) {
+               return;
+            }
+            logger.log(Level.WARNING, "Exception accepting device connection: " + e);
+         } catch (RuntimeException e) { // stopped
+            permits.release();
+            if (client != null) try {
+               client.close();
+            } catch (IOException ignore) {
+            }
+            return;
+         }
+      }
+   }
+
+   /*
+    * Send the metadata, receive and decrypt the device secrets, and queue the
+    * session for the sync. A device whose data cannot be decrypted, or which
+    * finds the queue full, is sent the error status and the session is
+    * closed. After a comms error there is nobody to tell, so the session is
+    * dropped.
+    */
+   private void receive(SyncSession session, long accepted) {
+      Socket client = session.getSocket();
+      try {
+         client.setSoTimeout(SESSION_TIMEOUT);
+         FramedChannel channel = session.getChannel();
+         channel.setTransferStore(transfers);
+         String metadataToSend = metadata;
+         channel.writeMessage(metadataToSend.getBytes(AbstractPhoneCommunicator.CHARSET));
+         session.recordPhase(SyncSession.PHASE_ACCEPT, System.nanoTime() - accepted);
+         logger.log(Level.FINE, "metadata sent: " + metadataToSend + " (" + metadataToSend.length() + ")");
+
+         /* the secrets are decrypted as they arrive */
+         InputStream requestData = channel.openMessageInput();
+         logger.log(Level.FINE, "data arriving, " + (channel.isChunked() ? "chunked" : requestData.available() + " bytes"));
+         long start = System.nanoTime();
+         DeviceSecretsCollection phoneSecrets = extractSecretsCollection(requestData, password, session);
+         drain(requestData); // the whole message is read before replying
+         /* the decrypt phase includes receiving, as the two overlap */
+         session.recordPhase(SyncSession.PHASE_DECRYPT, System.nanoTime() - start
+                     - session.getPhaseTime(SyncSession.PHASE_KDF));
+         if (phoneSecrets == null) {
+            logger.log(Level.WARNING, "Device secrets could not be decrypted: " + session.getSourceName());
+            decryptFailures.incrementAndGet();
+            reject(session, OutputErrorPhone.DECRYPT_ERROR);
+            return;
+         }
+         phoneSecrets.setSourceName(session.getSourceName());
+         session.setPhoneSecrets(phoneSecrets);
+         logger.log(Level.INFO, "Received device secrets: " + phoneSecrets.getSize());
+         session.setReceivedTime(System.currentTimeMillis());
+         expire();
+         if (!received.offer(session)) {
+            logger.log(Level.WARNING, "Too many devices waiting to sync - rejected: " + session.getSourceName());
+            reject(session, OutputErrorPhone.SYNC_CANCELLED);
+         }
+      } catch (Exception e) {
+         logger.log(Level.WARNING, "Exception getting device secrets: " + e);
+         session.close();
+      }
+   }
+
+   /**
+    * Extract the secrets collection.
+    *
+    * @param requestData
+    * @param password
+    * @param session session to record the key setup time in
+    * @return the secrets, or null if they could not be decrypted
+    * @throws IOException
+    */
+   private static DeviceSecretsCollection extractSecretsCollection(InputStream requestData, byte[] password,
+               SyncSession session) throws IOException {
+      BufferedInputStream bis = new BufferedInputStream(requestData);
+      bis.mark(SECURITY_HEADER_LIMIT); // getCipherParms() resets to the start
+      CipherParms parms = SecurityUtils.getCipherParms(bis);
+      if (parms == null) {
+         return null; // not encrypted secrets
+      }
+      if (password == null || parms.rounds <= 0 || parms.salt == null || parms.salt.length != BCrypt.BCRYPT_SALT_LEN) {
+         /* contents do not look valid */
+         logger.log(Level.WARNING, "Encryption problem with incoming data - rounds: " + parms.rounds
+                     + ", salt length: " + (parms.salt == null ? "null" : parms.salt.length));
+         return null;
+      }
+      /* the contents look valid */
+      long start = System.nanoTime();
+      CipherInfo cipherInfo = SecurityUtils.createCiphers(password, parms); // create cipher
+      session.recordPhase(SyncSession.PHASE_KDF, System.nanoTime() - start);
+      logger.log(Level.FINE, "Cipher created");
+      try {
+         DeviceSecretsCollection phoneSecrets = new DeviceSecretsCollection();
+         phoneSecrets.setPswdBytes(password);
+         phoneSecrets.setCipherInfo(cipherInfo);
+         phoneSecrets.loadSecretsFromEncryptedJSONStream(bis);
+         return phoneSecrets;
+      } catch (Exception e) {
+         logger.log(Level.WARNING, "Exception decrypting phone secrets: " + e.getMessage());
+         return null;
+      }
+   }
+
+   /*
+    * Close the expired sessions at the head of the queue (the oldest)
+    */
+   private void expire() {
+      long now = System.currentTimeMillis();
+      SyncSession session;
+      while ((session = received.peek()) != null && isExpired(session, now)) {
+         if (received.remove(session)) {
+            logger.log(Level.INFO, "Sync session expired: " + session.getSourceName());
+            discard(session);
+         }
+      }
+   }
+
+   private static boolean isExpired(SyncSession session, long now) {
+      return now - session.getReceivedTime() > SESSION_TIMEOUT;
+   }
+
+   /*
+    * Send an error status to the device instead of a reply, and close the
+    * session
+    */
+   private static void reject(SyncSession session, byte status) {
+      try {
+         OutputStream os = session.getSocket().getOutputStream();
+         os.write(status);
+         os.flush();
+      } catch (IOException e) {
+         logger.log(Level.WARNING, "Exception sending status to device: " + e);
+      } finally {
+         discard(session);
+      }
+   }
+
+   /*
+    * Close a session that will not be synced, wiping what was received
+    */
+   private static void discard(SyncSession session) {
+      DeviceSecretsCollection phoneSecrets = session.getPhoneSecrets();
+      if (phoneSecrets != null) {
+         phoneSecrets.wipe();
+      }
+      session.close();
+   }
+
+   private static void drain(InputStream is) throws IOException {
+      byte[] buffer = new byte[4096];
+      while (is.read(buffer) >= 0) {
+         // discard
+      }
+   }
+}
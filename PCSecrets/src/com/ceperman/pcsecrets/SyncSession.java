@@ -0,0 +1,197 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.json.JSONException;
+
+import com.ceperman.utils.PipelinedOutputStream;
+
+/**
+ * The state of one sync with one device: the connection, and what was
+ * received on it. A session is created by the SyncServer when a device
+ * connects, and is passed from the input to the output (or error output) so
+ * that the response goes back on the same connection.
+ *
+ * Sessions are independent, so several devices can be connected at once.
+ *
+ * The time spent in each phase of the sync is recorded, for the log and for
+ * the sync benchmark (SyncBenchmark, in the test tree).
+ *
+ * @author Chris Wood
+ */
+public class SyncSession {
+   /** phase: from the connection being accepted to the metadata being sent */
+   public static final int PHASE_ACCEPT = 0;
+   /** phase: creating the ciphers from the password */
+   public static final int PHASE_KDF = 1;
+   /** phase: receiving and decrypting the device secrets */
+   public static final int PHASE_DECRYPT = 2;
+   /** phase: categorising the device secrets against the PC secrets */
+   public static final int PHASE_CATEGORISE = 3;
+   /** phase: encrypting the reply */
+   public static final int PHASE_ENCRYPT = 4;
+   /** phase: finishing sending the reply and waiting for the confirmation */
+   public static final int PHASE_SEND = 5;
+   /** number of phases */
+   public static final int PHASE_COUNT = 6;
+   /** phase names, for reports */
+   public static final String[] PHASE_NAMES = { "accept", "kdf", "decrypt", "categorise", "encrypt", "send" };
+
+   /** status byte sent before the reply */
+   public static final byte STATUS_OK = 0;
+   /** confirmation from the device that the reply was received */
+   public static final int CONFIRMATION = 0xff;
+   /* encrypted chunks that may wait to be sent */
+   private static final int PIPELINE_CHUNKS = 4;
+
+   private final Socket socket;
+   private final int maxMessageSize;
+   private FramedChannel channel;
+   private DeviceSecretsCollection phoneSecrets;
+   private long receivedTime;
+   private final long[] phaseTimes = new long[PHASE_COUNT];
+
+   /**
+    * Constructor
+    *
+    * @param socket connection from the device
+    * @param maxMessageSize maximum size of a message on the connection
+    */
+   public SyncSession(Socket socket, int maxMessageSize) {
+      this.socket = socket;
+      this.maxMessageSize = maxMessageSize;
+   }
+
+   /**
+    * @return the connection from the device
+    */
+   public Socket getSocket() {
+      return socket;
+   }
+
+   /**
+    * @return the message channel on the connection
+    * @throws IOException
+    */
+   public synchronized FramedChannel getChannel() throws IOException {
+      if (channel == null) {
+         channel = new FramedChannel(socket.getInputStream(), socket.getOutputStream(), maxMessageSize);
+      }
+      return channel;
+   }
+
+   /**
+    * @return address of the device
+    */
+   public String getSourceName() {
+      return socket.getInetAddress().getHostAddress();
+   }
+
+   /**
+    * @return the secrets received from the device, or null if none
+    */
+   public DeviceSecretsCollection getPhoneSecrets() {
+      return phoneSecrets;
+   }
+
+   /**
+    * @param phoneSecrets the secrets received from the device
+    */
+   void setPhoneSecrets(DeviceSecretsCollection phoneSecrets) {
+      this.phoneSecrets = phoneSecrets;
+   }
+
+   /**
+    * @return when the secrets were received (millisecs), or 0 if not yet
+    */
+   public long getReceivedTime() {
+      return receivedTime;
+   }
+
+   /**
+    * @param receivedTime when the secrets were received (millisecs)
+    */
+   void setReceivedTime(long receivedTime) {
+      this.receivedTime = receivedTime;
+   }
+
+   /**
+    * Send the OK status and the encrypted reply, and wait for the device to
+    * confirm it. The reply is encrypted on this thread while it is sent on
+    * another; the message is complete when the pipeline is closed. If
+    * encryption fails the pipeline is aborted, so its writer thread ends.
+    *
+    * @param reply secrets to send, with the cipher for the device
+    * @return true if the device confirmed the reply
+    * @throws IOException
+    * @throws JSONException
+    */
+   public boolean sendSecrets(DeviceSecretsCollection reply) throws IOException, JSONException {
+      OutputStream os = socket.getOutputStream();
+      os.write(STATUS_OK);
+      FramedChannel channel = getChannel();
+      long start = System.nanoTime();
+      PipelinedOutputStream pipeline = new PipelinedOutputStream(channel.openMessageOutput(), FramedChannel.CHUNK_SIZE,
+                  PIPELINE_CHUNKS);
+      long encrypted;
+      try {
+         reply.saveSecretsToEncryptedJSONStream(pipeline);
+         encrypted = System.nanoTime();
+         recordPhase(PHASE_ENCRYPT, encrypted - start);
+         pipeline.close(); // waits for the last chunk, and reports a send failure
+      } finally {
+         pipeline.abort(); // no effect if closed
+      }
+      InputStream is = socket.getInputStream();
+      boolean confirmed = is.read() == CONFIRMATION;
+      recordPhase(PHASE_SEND, System.nanoTime() - encrypted);
+      return confirmed;
+   }
+
+   /**
+    * Add to the time spent in a phase
+    *
+    * @param phase one of the PHASE_ values
+    * @param nanos time spent (nanosecs)
+    */
+   public synchronized void recordPhase(int phase, long nanos) {
+      phaseTimes[phase] += nanos;
+   }
+
+   /**
+    * @param phase one of the PHASE_ values
+    * @return time spent in the phase (nanosecs)
+    */
+   public synchronized long getPhaseTime(int phase) {
+      return phaseTimes[phase];
+   }
+
+   /**
+    * Close the connection
+    */
+   public void close() {
+      try {
+         socket.close();
+      } catch (IOException ignore) {
+      }
+   }
+}
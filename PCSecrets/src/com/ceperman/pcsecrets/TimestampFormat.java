@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.text.ParseException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Formatting and parsing of the timestamps shown in the UI and held in the
+ * CSV and JSON formats, e.g. "Sat, 5 Oct 2013 14:02:31".
+ *
+ * The formatter is immutable, so unlike the SimpleDateFormat it replaces it
+ * can be used from any thread. Formatted strings are kept in a small cache,
+ * since list selection and sync dialogs format the same timestamps repeatedly.
+ *
+ * @author Chris Wood
+ */
+public final class TimestampFormat {
+   private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("EEE, d MMM yyyy HH:mm:ss");
+
+   private static final int CACHE_SIZE = 256; // power of 2
+   private static final Entry[] cache = new Entry[CACHE_SIZE];
+
+   private TimestampFormat() {}
+
+   /**
+    * Format a timestamp in the local time zone, to the second
+    *
+    * @param timestamp milliseconds since the epoch
+    * @return formatted timestamp
+    */
+   public static String format(long timestamp) {
+      long second = Math.floorDiv(timestamp, 1000);
+      int slot = (int) (second ^ (second >>> 32)) & (CACHE_SIZE - 1);
+      Entry entry = cache[slot];
+      ZoneId zone = ZoneId.systemDefault();
+      if (entry == null || entry.second != second || !entry.zone.equals(zone)) {
+         String text = formatter.format(Instant.ofEpochSecond(second).atZone(zone));
+         entry = new Entry(second, zone, text);
+         cache[slot] = entry; // entries are immutable, so a racing write is harmless
+      }
+      return entry.text;
+   }
+
+   /**
+    * Parse a formatted timestamp in the local time zone
+    *
+    * @param text formatted timestamp
+    * @return milliseconds since the epoch
+    * @throws ParseException
+    */
+   public static long parse(String text) throws ParseException {
+      try {
+         return LocalDateTime.parse(text, formatter).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+      } catch (DateTimeParseException e) {
+         throw new ParseException(e.getMessage(), e.getErrorIndex());
+      }
+   }
+
+   /*
+    * A cached formatted value
+    */
+   private static final class Entry {
+      private final long second;
+      private final ZoneId zone;
+      private final String text;
+
+      Entry(long second, ZoneId zone, String text) {
+         this.second = second;
+         this.zone = zone;
+         this.text = text;
+      }
+   }
+}
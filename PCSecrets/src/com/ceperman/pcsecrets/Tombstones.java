@@ -0,0 +1,186 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import com.ceperman.pcsecrets.SyncDevice.DeletedSecret;
+import com.ceperman.utils.Strings;
+
+/**
+ * Table of secrets deleted on the PC that may still have to be deleted on
+ * the sync devices (tombstones).
+ *
+ * A single table is shared by all the devices. Each device records the time
+ * up to which it has acknowledged deletions (its last successful sync), and
+ * the tombstones after that are pending for it. Once every device has
+ * acknowledged a tombstone it is no longer needed and can be collected.
+ *
+ * The compact JSON form is an array of alternating timestamps and
+ * descriptions, in timestamp order. The first timestamp is absolute and the
+ * rest are the difference from the previous one.
+ *
+ * @author Chris Wood
+ */
+public class Tombstones {
+   private static final Comparator<DeletedSecret> TIMESTAMP_ORDER = new Comparator<DeletedSecret>() {
+      @Override
+      public int compare(DeletedSecret d1, DeletedSecret d2) {
+         return Long.compare(d1.getTimestamp(), d2.getTimestamp());
+      }
+   };
+
+   /* case-folded description -> tombstone */
+   private final Map<String, DeletedSecret> deleted = new HashMap<String, DeletedSecret>();
+
+   /**
+    * Add a tombstone, replacing any earlier one for the same secret
+    *
+    * @param description
+    * @param timestamp time of deletion
+    */
+   public void add(String description, long timestamp) {
+      String key = key(description);
+      DeletedSecret existing = deleted.get(key);
+      if (existing == null || existing.getTimestamp() <= timestamp) {
+         deleted.put(key, new DeletedSecret(description, timestamp));
+      }
+   }
+
+   /**
+    * Add all the tombstones from another table
+    *
+    * @param other
+    */
+   public void addAll(Tombstones other) {
+      for (DeletedSecret deletedSecret : other.deleted.values()) {
+         add(deletedSecret.getDescription(), deletedSecret.getTimestamp());
+      }
+   }
+
+   /**
+    * Remove the tombstone for a secret
+    *
+    * @param description
+    */
+   public void remove(String description) {
+      deleted.remove(key(description));
+   }
+
+   /**
+    * Remove all tombstones
+    */
+   public void clear() {
+      deleted.clear();
+   }
+
+   /**
+    * Get the tombstones after a time
+    *
+    * @param acknowledged time up to which deletions have been acknowledged
+    * @return the tombstones later than this
+    */
+   public List<DeletedSecret> since(long acknowledged) {
+      List<DeletedSecret> pending = new ArrayList<DeletedSecret>();
+      for (DeletedSecret deletedSecret : deleted.values()) {
+         if (deletedSecret.getTimestamp() > acknowledged) {
+            pending.add(deletedSecret);
+         }
+      }
+      return pending;
+   }
+
+   /**
+    * Remove the tombstones that have been acknowledged
+    *
+    * @param acknowledged time up to which all devices have acknowledged deletions
+    * @return number of tombstones removed
+    */
+   public int collect(long acknowledged) {
+      int removed = 0;
+      for (Iterator<DeletedSecret> it = deleted.values().iterator(); it.hasNext();) {
+         if (it.next().getTimestamp() <= acknowledged) {
+            it.remove();
+            removed++;
+         }
+      }
+      return removed;
+   }
+
+   /**
+    * @return the latest deletion time, or 0 if there are no tombstones
+    */
+   public long getLatest() {
+      long latest = 0;
+      for (DeletedSecret deletedSecret : deleted.values()) {
+         latest = Math.max(latest, deletedSecret.getTimestamp());
+      }
+      return latest;
+   }
+
+   /**
+    * @return number of tombstones
+    */
+   public int getSize() {
+      return deleted.size();
+   }
+
+   /**
+    * Convert to the compact JSON form
+    *
+    * @return JSONArray
+    */
+   public JSONArray toJSON() {
+      List<DeletedSecret> ordered = new ArrayList<DeletedSecret>(deleted.values());
+      Collections.sort(ordered, TIMESTAMP_ORDER);
+      JSONArray ja = new JSONArray();
+      long previous = 0;
+      for (DeletedSecret deletedSecret : ordered) {
+         ja.put(deletedSecret.getTimestamp() - previous);
+         ja.put(deletedSecret.getDescription());
+         previous = deletedSecret.getTimestamp();
+      }
+      return ja;
+   }
+
+   /**
+    * Add the tombstones from the compact JSON form
+    *
+    * @param ja JSONArray as produced by {@link #toJSON()}
+    * @throws JSONException
+    */
+   public void fromJSON(JSONArray ja) throws JSONException {
+      long timestamp = 0;
+      for (int i = 0; i + 1 < ja.length(); i += 2) {
+         timestamp += ja.getLong(i);
+         add(ja.getString(i + 1), timestamp);
+      }
+   }
+
+   private static String key(String description) {
+      return Strings.foldCase(description);
+   }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.ceperman.utils.Strings;
+
+/**
+ * Partly received resumable transfers (see FramedChannel), kept so that a
+ * device whose connection drops can reconnect and send only the rest.
+ *
+ * A transfer is identified by an id chosen by the device. Only data from
+ * chunks whose checksum was correct is kept, so the acknowledged offset is
+ * always the end of good data. A transfer not resumed within the resume
+ * window is discarded, and when the store is full the least recently active
+ * transfer is discarded to make room.
+ *
+ * The data is held in memory, so the total held across all transfers is
+ * limited as well as their number. Adding data beyond the limit discards the
+ * least recently active other transfers; if the transfer being added to
+ * would still not fit, it is discarded too and the connection fails. Devices
+ * that have not yet been authenticated can hold no more than this limit.
+ *
+ * @author Chris Wood
+ */
+public class TransferStore {
+   /** default time a partial transfer is kept (millisecs) */
+   public static final long RESUME_WINDOW = 2 * 60 * 1000;
+   /** default number of partial transfers kept */
+   public static final int MAX_TRANSFERS = 8;
+   /** default total bytes kept across all partial transfers */
+   public static final long MAX_BYTES = FramedChannel.DEFAULT_MAX_MESSAGE_SIZE;
+
+   private final int maxTransfers;
+   private final long maxBytes;
+   private final long window;
+   /* hex id -> transfer, least recently active first */
+   private final LinkedHashMap<String, Transfer> transfers = new LinkedHashMap<String, Transfer>(16, 0.75f, true);
+   private long totalBytes;
+
+   /**
+    * Constructor
+    *
+    * @param maxTransfers number of partial transfers kept
+    * @param maxBytes total bytes kept across all partial transfers
+    * @param window time a partial transfer is kept (millisecs)
+    */
+   public TransferStore(int maxTransfers, long maxBytes, long window) {
+      this.maxTransfers = maxTransfers;
+      this.maxBytes = maxBytes;
+      this.window = window;
+   }
+
+   /**
+    * Start or resume a transfer. The caller becomes its owner: a connection
+    * that was resuming the same transfer can no longer add to it.
+    *
+    * @param id transfer id
+    * @param owner the connection resuming the transfer
+    * @param now current time
+    * @return the transfer
+    */
+   public synchronized Transfer resume(byte[] id, Object owner, long now) {
+      expire(now);
+      String key = Strings.toHex(id);
+      Transfer transfer = transfers.get(key);
+      if (transfer == null) {
+         if (transfers.size() >= maxTransfers) {
+            discard(transfers.values().iterator().next());
+         }
+         transfer = new Transfer(this, key);
+         transfers.put(key, transfer);
+      }
+      transfer.owner = owner;
+      transfer.lastActivity = now;
+      return transfer;
+   }
+
+   /**
+    * Remove a completed transfer. Its data is no longer counted against the
+    * limit.
+    *
+    * @param transfer
+    */
+   public synchronized void complete(Transfer transfer) {
+      if (transfers.remove(transfer.key) != null) {
+         totalBytes -= transfer.data.size();
+      }
+   }
+
+   /**
+    * @return number of partial transfers kept
+    */
+   public synchronized int getSize() {
+      return transfers.size();
+   }
+
+   /**
+    * @return total bytes kept across all partial transfers
+    */
+   public synchronized long getTotalBytes() {
+      return totalBytes;
+   }
+
+   private void expire(long now) {
+      for (Iterator<Map.Entry<String, Transfer>> it = transfers.entrySet().iterator(); it.hasNext();) {
+         Transfer transfer = it.next().getValue();
+         if (now - transfer.lastActivity > window) {
+            it.remove();
+            totalBytes -= transfer.data.size();
+         }
+      }
+   }
+
+   private void discard(Transfer transfer) {
+      transfers.remove(transfer.key);
+      totalBytes -= transfer.data.size();
+   }
+
+   /*
+    * Make room for more data in a transfer, discarding the least recently
+    * active others
+    */
+   private void reserve(Transfer transfer, int len) throws IOException {
+      for (Iterator<Transfer> it = transfers.values().iterator(); totalBytes + len > maxBytes && it.hasNext();) {
+         Transfer eldest = it.next();
+         if (eldest != transfer) {
+            it.remove();
+            totalBytes -= eldest.data.size();
+         }
+      }
+      if (totalBytes + len > maxBytes) {
+         discard(transfer);
+         throw new IOException("Transfer store full (" + maxBytes + " bytes)");
+      }
+      totalBytes += len;
+   }
+
+   /**
+    * The data received so far for one transfer. Its state is guarded by the
+    * store.
+    */
+   public static class Transfer {
+      private final TransferStore store;
+      private final String key;
+      private final Buffer data = new Buffer();
+      private Object owner;
+      private long lastActivity;
+
+      private Transfer(TransferStore store, String key) {
+         this.store = store;
+         this.key = key;
+      }
+
+      /**
+       * @return the acknowledged offset - bytes received and verified
+       */
+      public long getOffset() {
+         synchronized (store) {
+            return data.size();
+         }
+      }
+
+      /**
+       * Add verified data
+       *
+       * @param owner the connection adding the data
+       * @param b
+       * @param off
+       * @param len
+       * @throws IOException if another connection has resumed the transfer,
+       *            or the transfer was discarded
+       */
+      public void append(Object owner, byte[] b, int off, int len) throws IOException {
+         synchronized (store) {
+            if (owner != this.owner) {
+               throw new IOException("Transfer resumed on another connection");
+            }
+            if (store.transfers.get(key) != this) {
+               throw new IOException("Transfer discarded");
+            }
+            store.reserve(this, len);
+            data.write(b, off, len);
+            lastActivity = System.currentTimeMillis();
+         }
+      }
+
+      /**
+       * @return the data received, without copying it
+       */
+      public InputStream getData() {
+         synchronized (store) {
+            return data.toInputStream();
+         }
+      }
+   }
+
+   /*
+    * A byte array output stream whose contents can be read in place
+    */
+   private static class Buffer extends ByteArrayOutputStream {
+      InputStream toInputStream() {
+         return new ByteArrayInputStream(buf, 0, count);
+      }
+   }
+}
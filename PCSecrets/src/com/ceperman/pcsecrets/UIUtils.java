@@ -343,6 +343,7 @@ public class UIUtils {
          props.updateProperty(Constants.KEYLENGTH, props.getDefaultProperty(Constants.KEYLENGTH));
          
          mainWindow.getListModel().setPswdBytes(pswd);
+         mainWindow.wipeDigestKey(); // derived from the old password
          mainWindow.getListModel().createCipherInfo();
          mainWindow.getListModel().setChanged(true);
       }
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.ceperman.utils.Strings;
+
+/**
+ * Merkle tree digest of the contents of a secrets collection, used in the
+ * sync handshake so that a device holding the same secrets as the PC does not
+ * have to send them, and a device holding different secrets only has to send
+ * the buckets that differ.
+ *
+ * The tree has three levels:
+ * - leaf: HMAC-SHA256 of the case-folded description, username, password,
+ *   email and note of a secret, each as a 4 byte big-endian length followed
+ *   by its UTF-8 bytes (null is treated as empty). The timestamp is not
+ *   included, matching HostSecret.equals().
+ * - bucket: SHA-256 of the leaf hashes of the secrets in the bucket, in order
+ *   of case-folded description. A secret is in the bucket given by the first
+ *   byte of the HMAC-SHA256 of its case-folded description.
+ *
+ * Descriptions are case-folded one UTF-16 char at a time, each mapped to the
+ * lower case of its upper case (see Strings.foldCase), whatever the locale.
+ * - root: SHA-256 of the {@value #BUCKETS} bucket hashes, in bucket order.
+ *
+ * The HMAC key is derived from the sync password with bcrypt (see
+ * SecurityUtils.deriveKey), with its own salt and the same cost as the
+ * secrets file; the salt and rounds are sent in the handshake so that the
+ * device can derive the same key. The handshake is not encrypted, so the
+ * root and bucket hashes are seen by anyone on the network: unkeyed hashes
+ * of single secrets could be attacked offline, and with the password itself
+ * as the key each password guess could be tested with one HMAC. With a
+ * derived key, each guess costs a bcrypt derivation, as for the secrets file.
+ *
+ * The digest is owned by a SecretsCollection, which reports each changed
+ * secret. Changed leaves, and the buckets and root above them, are recomputed
+ * on next use, so the cost of keeping the digest up to date is proportional
+ * to the number of changes.
+ *
+ * @author Chris Wood
+ */
+public class VaultDigest {
+   /** number of buckets */
+   public static final int BUCKETS = 256;
+   /** bytes of each bucket hash sent in the handshake */
+   public static final int BUCKET_SUMMARY_LENGTH = 8;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private final SecretsCollection secrets;
+   private final Mac mac;
+   private final byte[] keyFingerprint;
+   /* per bucket, case-folded description -> leaf hash */
+   private final List<TreeMap<String, byte[]>> leaves = new ArrayList<TreeMap<String, byte[]>>(BUCKETS);
+   /* null if the bucket needs recomputing */
+   private final byte[][] bucketHashes = new byte[BUCKETS][];
+   private byte[] root;
+   /* case-folded descriptions of secrets changed since the tree was last updated */
+   private final Set<String> pending = new HashSet<String>();
+
+   /**
+    * Constructor - build the digest of the secrets in the collection
+    *
+    * @param secrets
+    * @param key HMAC key
+    */
+   VaultDigest(SecretsCollection secrets, byte[] key) {
+      this.secrets = secrets;
+      try {
+         mac = Mac.getInstance("HmacSHA256");
+         mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      } catch (GeneralSecurityException e) {
+         throw new IllegalStateException("HmacSHA256 not available", e);
+      }
+      keyFingerprint = fingerprint(key);
+      for (int i = 0; i < BUCKETS; i++) {
+         leaves.add(new TreeMap<String, byte[]>());
+      }
+      for (HostSecret secret : secrets.snapshot()) {
+         String descrKey = key(secret.getDescription());
+         leaves.get(bucketOf(descrKey)).put(descrKey, leafHash(secret));
+      }
+   }
+
+   /**
+    * @param key
+    * @return true if the digest was built with this key
+    */
+   synchronized boolean hasKey(byte[] key) {
+      return MessageDigest.isEqual(keyFingerprint, fingerprint(key));
+   }
+
+   /**
+    * Note that a secret has been added, updated or deleted
+    *
+    * @param descr
+    */
+   synchronized void changed(String descr) {
+      pending.add(key(descr));
+      root = null;
+   }
+
+   /**
+    * @return the root hash
+    */
+   public synchronized byte[] getRoot() {
+      update();
+      return root.clone();
+   }
+
+   /**
+    * @return the root hash as hex
+    */
+   public String getRootHex() {
+      return Strings.toHex(getRoot());
+   }
+
+   /**
+    * @param bucket
+    * @return the hash of the bucket
+    */
+   public synchronized byte[] getBucketHash(int bucket) {
+      update();
+      return bucketHashes[bucket].clone();
+   }
+
+   /**
+    * The bucket summary sent in the handshake: the first
+    * {@value #BUCKET_SUMMARY_LENGTH} bytes of each bucket hash, as hex, in
+    * bucket order.
+    *
+    * @return summary
+    */
+   public synchronized String getBucketSummary() {
+      update();
+      StringBuilder sb = new StringBuilder(BUCKETS * BUCKET_SUMMARY_LENGTH * 2);
+      for (byte[] hash : bucketHashes) {
+         sb.append(Strings.toHex(Arrays.copyOf(hash, BUCKET_SUMMARY_LENGTH)));
+      }
+      return sb.toString();
+   }
+
+   /**
+    * Compare with a bucket summary from elsewhere
+    *
+    * @param summary as produced by {@link #getBucketSummary()}
+    * @return the buckets that differ, in ascending order
+    */
+   public int[] differingBuckets(String summary) {
+      String own = getBucketSummary();
+      if (summary.length() != own.length()) {
+         throw new IllegalArgumentException("Bucket summary length " + summary.length());
+      }
+      int[] differing = new int[BUCKETS];
+      int count = 0;
+      int width = BUCKET_SUMMARY_LENGTH * 2;
+      for (int i = 0; i < BUCKETS; i++) {
+         if (!own.regionMatches(true, i * width, summary, i * width, width)) {
+            differing[count++] = i;
+         }
+      }
+      return Arrays.copyOf(differing, count);
+   }
+
+   /**
+    * @param descr
+    * @return the bucket the secret belongs to
+    */
+   public synchronized int getBucket(String descr) {
+      return bucketOf(key(descr));
+   }
+
+   /*
+    * Recompute the changed leaves, and the buckets and root above them
+    */
+   private void update() {
+      if (root != null) {
+         return;
+      }
+      for (String key : pending) {
+         int bucket = bucketOf(key);
+         HostSecret secret = secrets.get(key);
+         if (secret == null) {
+            leaves.get(bucket).remove(key);
+         } else {
+            leaves.get(bucket).put(key, leafHash(secret));
+         }
+         bucketHashes[bucket] = null;
+      }
+      pending.clear();
+      MessageDigest rootDigest = sha256();
+      for (int i = 0; i < BUCKETS; i++) {
+         if (bucketHashes[i] == null) {
+            MessageDigest bucketDigest = sha256();
+            for (Map.Entry<String, byte[]> leaf : leaves.get(i).entrySet()) {
+               bucketDigest.update(leaf.getValue());
+            }
+            bucketHashes[i] = bucketDigest.digest();
+         }
+         rootDigest.update(bucketHashes[i]);
+      }
+      root = rootDigest.digest();
+   }
+
+   private int bucketOf(String key) {
+      return mac.doFinal(key.getBytes(UTF8))[0] & 0xff;
+   }
+
+   private byte[] leafHash(HostSecret secret) {
+      update(mac, key(secret.getDescription()));
+      update(mac, secret.getUsername());
+      update(mac, secret.getPasswordBytes());
+      update(mac, secret.getEmail());
+      update(mac, secret.getNoteBytes());
+      return mac.doFinal();
+   }
+
+   private static void update(Mac mac, String value) {
+      update(mac, value == null ? new byte[0] : value.getBytes(UTF8));
+   }
+
+   /*
+    * Add the bytes preceded by their length, then zero them
+    */
+   private static void update(Mac mac, byte[] bytes) {
+      int length = bytes.length;
+      mac.update(new byte[] { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length });
+      mac.update(bytes);
+      Arrays.fill(bytes, (byte) 0);
+   }
+
+   private static byte[] fingerprint(byte[] key) {
+      return sha256().digest(key);
+   }
+
+   private static MessageDigest sha256() {
+      try {
+         return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException("SHA-256 not available", e);
+      }
+   }
+
+   private static String key(String descr) {
+      return Strings.foldCase(descr);
+   }
+}
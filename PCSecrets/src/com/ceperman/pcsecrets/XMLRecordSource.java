@@ -0,0 +1,274 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.ceperman.utils.CountingInputStream;
+
+/**
+ * Records read from an XML file with a StAX reader, without holding the
+ * document in memory.
+ *
+ * {@link #findCandidates(File)} reads the document once to find the
+ * elements that could be records: elements below the root whose children
+ * are all simple (text only) elements, or which have attributes and no
+ * children. A record source then reads the document again, returning each
+ * element at the chosen path as a record. The fields are the attributes and
+ * the child elements; values are trimmed, and an empty element is an empty
+ * value. Paths are shown in JSON path form, as the elements would be
+ * selected from the document converted to JSON, e.g. $.secrets.secret[*].
+ *
+ * DTDs and external entities are not processed.
+ *
+ * @author Chris Wood
+ */
+public class XMLRecordSource implements RecordSource {
+   private static Logger logger = Logger.getLogger(XMLRecordSource.class.getName());
+
+   private static final String ARRAY_SUFFIX = "[*]";
+
+   private final XMLStreamReader reader;
+   private final InputStream is;
+   private final CountingInputStream counter;
+   private final long length;
+   private final String elementPath;
+   private final String[] fieldNames;
+   private final Map<String, Integer> fieldIndex = new HashMap<String, Integer>();
+   private final List<String> paths = new ArrayList<String>();
+   private final StringBuilder text = new StringBuilder();
+
+   /**
+    * Constructor - open the file
+    *
+    * @param file
+    * @param candidate the records to read
+    * @throws IOException
+    */
+   public XMLRecordSource(File file, RecordCandidate candidate) throws IOException {
+      length = file.length();
+      counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+      is = counter;
+      reader = createReader(is);
+      String path = candidate.getPath();
+      elementPath = path.endsWith(ARRAY_SUFFIX) ? path.substring(0, path.length() - ARRAY_SUFFIX.length()) : path;
+      fieldNames = candidate.getFieldNames();
+      for (int i = 0; i < fieldNames.length; i++) {
+         fieldIndex.put(fieldNames[i], i);
+      }
+   }
+
+   /**
+    * Find the elements in the file that could be imported as records
+    *
+    * @param file
+    * @return the candidates, in the order first found
+    * @throws IOException if the file cannot be read or is not valid XML
+    */
+   public static List<RecordCandidate> findCandidates(File file) throws IOException {
+      Map<String, RecordCandidate> candidates = new LinkedHashMap<String, RecordCandidate>();
+      Map<String, int[]> counts = new HashMap<String, int[]>(); // structured elements at each path
+      List<Frame> frames = new ArrayList<Frame>();
+      InputStream is = new BufferedInputStream(new FileInputStream(file));
+      XMLStreamReader reader = createReader(is);
+      try {
+         while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+               Frame parent = frames.isEmpty() ? null : frames.get(frames.size() - 1);
+               Frame frame = new Frame((parent == null ? "$" : parent.path) + "." + reader.getLocalName(),
+                           reader.getLocalName());
+               for (int i = 0; i < reader.getAttributeCount(); i++) {
+                  frame.addField(reader.getAttributeLocalName(i));
+               }
+               frame.structured = reader.getAttributeCount() > 0;
+               if (parent != null) {
+                  parent.structured = true;
+               }
+               frames.add(frame);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+               Frame element = frames.remove(frames.size() - 1);
+               Frame parent = frames.isEmpty() ? null : frames.get(frames.size() - 1);
+               if (parent == null) {
+                  break; // end of the root element
+               }
+               if (!element.structured) {
+                  parent.addField(element.name); // simple element
+                  continue;
+               }
+               parent.simpleChildren = false;
+               int[] count = counts.get(element.path);
+               if (count == null) {
+                  count = new int[1];
+                  counts.put(element.path, count);
+               }
+               count[0]++;
+               if (element.simpleChildren && !candidates.containsKey(element.path)) {
+                  candidates.put(element.path, new RecordCandidate(element.path + ARRAY_SUFFIX, element.fields
+                              .toArray(new String[element.fields.size()])));
+               }
+            }
+         }
+      } catch (XMLStreamException e) {
+         throw new IOException("XML error: " + e.getMessage(), e);
+      } finally {
+         close(reader, is);
+      }
+      List<RecordCandidate> result = new ArrayList<RecordCandidate>();
+      for (Map.Entry<String, RecordCandidate> entry : candidates.entrySet()) {
+         RecordCandidate candidate = entry.getValue();
+         candidate.setCount(counts.get(entry.getKey())[0]);
+         logger.log(Level.FINE, "XML candidate: " + candidate.getPath() + " " + Arrays.toString(candidate.getFieldNames())
+                     + " x " + candidate.getCount());
+         result.add(candidate);
+      }
+      return result;
+   }
+
+   @Override
+   public String[] getFieldNames() {
+      return fieldNames;
+   }
+
+   @Override
+   public String[] next() throws IOException {
+      String[] record = null;
+      int recordDepth = 0;
+      int field = -1;
+      try {
+         while (reader.hasNext()) {
+            int event = reader.next();
+            switch (event) {
+            case XMLStreamConstants.START_ELEMENT:
+               String path = (paths.isEmpty() ? "$" : paths.get(paths.size() - 1)) + "." + reader.getLocalName();
+               paths.add(path);
+               if (record == null && path.equals(elementPath)) {
+                  record = new String[fieldNames.length];
+                  Arrays.fill(record, "");
+                  recordDepth = paths.size();
+                  for (int i = 0; i < reader.getAttributeCount(); i++) {
+                     setField(record, fieldIndex.get(reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+                  }
+               } else if (record != null && paths.size() == recordDepth + 1) {
+                  Integer index = fieldIndex.get(reader.getLocalName());
+                  field = index == null ? -1 : index.intValue();
+                  text.setLength(0);
+               }
+               break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+               if (record != null && paths.size() == recordDepth + 1) {
+                  text.append(reader.getText());
+               }
+               break;
+            case XMLStreamConstants.END_ELEMENT:
+               int depth = paths.size();
+               paths.remove(depth - 1);
+               if (record != null) {
+                  if (depth == recordDepth) {
+                     return record;
+                  } else if (depth == recordDepth + 1 && field >= 0) {
+                     setField(record, field, text.toString());
+                     field = -1;
+                  }
+               }
+               break;
+            default:
+            }
+         }
+      } catch (XMLStreamException e) {
+         throw new IOException("XML error: " + e.getMessage(), e);
+      }
+      return null;
+   }
+
+   @Override
+   public int getProgress() {
+      return counter.getPercent(length);
+   }
+
+   @Override
+   public void close() throws IOException {
+      close(reader, is);
+   }
+
+   private static void setField(String[] record, Integer index, String value) {
+      if (index != null && record[index.intValue()].length() == 0) { // the first, if repeated
+         record[index.intValue()] = value.trim();
+      }
+   }
+
+   private static XMLStreamReader createReader(InputStream is) throws IOException {
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+      factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+      try {
+         return factory.createXMLStreamReader(is); // the encoding is taken from the document
+      } catch (XMLStreamException e) {
+         is.close();
+         throw new IOException("XML error: " + e.getMessage(), e);
+      }
+   }
+
+   private static void close(XMLStreamReader reader, InputStream is) throws IOException {
+      try {
+         reader.close();
+      } catch (XMLStreamException ignore) {
+      }
+      is.close();
+   }
+
+   /*
+    * An open element
+    */
+   private static class Frame {
+      final String path;
+      final String name;
+      boolean structured; // has attributes or child elements
+      boolean simpleChildren = true; // all child elements are simple
+      List<String> fields = new ArrayList<String>(); // attributes and simple child elements
+
+      Frame(String path, String name) {
+         this.path = path;
+         this.name = name;
+      }
+
+      void addField(String field) {
+         if (!fields.contains(field)) {
+            fields.add(field);
+         }
+      }
+   }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes secrets as an XML document in UTF-8, one element per field:
+ * &lt;secrets&gt;&lt;secret&gt;&lt;description&gt;...
+ *
+ * @author Chris Wood
+ */
+public class XMLSecretsWriter extends SecretsWriter {
+   private static final String SECRET_INDENT = "    ";
+   private static final String FIELD_INDENT = "      ";
+
+   /**
+    * Constructor - create the file and write the start of the document
+    *
+    * @param file
+    * @throws IOException
+    */
+   public XMLSecretsWriter(File file) throws IOException {
+      super(file, Charset.forName("UTF-8"));
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<secrets>\n");
+   }
+
+   @Override
+   public void write(HostSecret hs) throws IOException {
+      out.write(SECRET_INDENT + "<secret>\n");
+      writeElement("description", hs.getDescription());
+      writeElement("username", hs.getUsername());
+      char[] password = hs.getPasswordChars();
+      char[] note = hs.getNoteChars();
+      try {
+         writeElement("password", CharBuffer.wrap(password));
+         writeElement("email", hs.getEmail());
+         writeElement("note", CharBuffer.wrap(note));
+      } finally {
+         zero(password, note);
+      }
+      writeElement("timestamp", Long.toString(hs.getTimestamp()));
+      writeElement("deleted", Boolean.toString(hs.isDeleted()));
+      out.write(SECRET_INDENT + "</secret>\n");
+   }
+
+   @Override
+   public void finish() throws IOException {
+      out.write("</secrets>\n");
+      super.finish();
+   }
+
+   /*
+    * Write a field element - empty if there is no value. The value is
+    * escaped as by XML.escape.
+    */
+   private void writeElement(String name, CharSequence value) throws IOException {
+      out.write(FIELD_INDENT);
+      out.write('<');
+      out.write(name);
+      if (value == null || value.length() == 0) {
+         out.write("/>\n");
+         return;
+      }
+      out.write('>');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         switch (c) {
+         case '&':
+            out.write("&amp;");
+            break;
+         case '<':
+            out.write("&lt;");
+            break;
+         case '>':
+            out.write("&gt;");
+            break;
+         case '"':
+            out.write("&quot;");
+            break;
+         default:
+            out.write(c);
+         }
+      }
+      out.write("</");
+      out.write(name);
+      out.write(">\n");
+   }
+}
@@ -162,4 +162,70 @@ public class Bytes {
 	   return sb.toString();
 	}
 	
+	/**
+	 * 128 bit MurmurHash3 (x64 variant) of a byte array. This is a fast,
+	 * well distributed hash for lookups and change detection; it is not a
+	 * cryptographic hash.
+	 * @param bytes
+	 * @param seed
+	 * @return the two 64 bit halves of the hash
+	 */
+	public static long[] hash128(byte[] bytes, long seed) {
+		final long c1 = 0x87c37b91114253d5L;
+		final long c2 = 0x4cf5ad432745937fL;
+		long h1 = seed;
+		long h2 = seed;
+		int length = bytes.length;
+		int blocks = length / 16;
+		for (int i = 0; i < blocks; i++) {
+			long k1 = getLongLE(bytes, i * 16);
+			long k2 = getLongLE(bytes, i * 16 + 8);
+			h1 ^= Long.rotateLeft(k1 * c1, 31) * c2;
+			h1 = (Long.rotateLeft(h1, 27) + h2) * 5 + 0x52dce729;
+			h2 ^= Long.rotateLeft(k2 * c2, 33) * c1;
+			h2 = (Long.rotateLeft(h2, 31) + h1) * 5 + 0x38495ab5;
+		}
+		long k1 = 0;
+		long k2 = 0;
+		int tail = blocks * 16;
+		for (int i = length - tail - 1; i >= 8; i--) {
+			k2 = (k2 << 8) | (bytes[tail + i] & 0xff);
+		}
+		for (int i = Math.min(length - tail, 8) - 1; i >= 0; i--) {
+			k1 = (k1 << 8) | (bytes[tail + i] & 0xff);
+		}
+		if (length - tail > 8) {
+			h2 ^= Long.rotateLeft(k2 * c2, 33) * c1;
+		}
+		if (length - tail > 0) {
+			h1 ^= Long.rotateLeft(k1 * c1, 31) * c2;
+		}
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix64(h1);
+		h2 = fmix64(h2);
+		h1 += h2;
+		h2 += h1;
+		return new long[] { h1, h2 };
+	}
+	
+	private static long getLongLE(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (bytes[offset + i] & 0xff);
+		}
+		return value;
+	}
+	
+	private static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+	
 }
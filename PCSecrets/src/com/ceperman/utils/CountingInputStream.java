@@ -0,0 +1,87 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that counts the bytes read through it, e.g. to report the
+ * progress of reading a file. The count can be read from another thread.
+ *
+ * @author Chris Wood
+ */
+public class CountingInputStream extends FilterInputStream {
+   private volatile long count;
+
+   /**
+    * Constructor
+    *
+    * @param in
+    */
+   public CountingInputStream(InputStream in) {
+      super(in);
+   }
+
+   /**
+    * @return bytes read so far
+    */
+   public long getCount() {
+      return count;
+   }
+
+   /**
+    * Percentage of a known length read so far
+    *
+    * @param length total length
+    * @return percentage, or -1 if the length is not known
+    */
+   public int getPercent(long length) {
+      return length <= 0 ? -1 : (int) Math.min(100, count * 100 / length);
+   }
+
+   @Override
+   public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+         count++;
+      }
+      return b;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+         count += n;
+      }
+      return n;
+   }
+
+   @Override
+   public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+   }
+
+   @Override
+   public boolean markSupported() {
+      return false; // a reset would make the count wrong
+   }
+}
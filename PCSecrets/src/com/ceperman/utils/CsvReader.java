@@ -0,0 +1,196 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CSV reader for RFC 4180 data, with the same API as the opencsv CSVReader
+ * it replaces.
+ *
+ * The input is read into a char buffer and split into fields by a small
+ * state machine, rather than line by line. A field is quoted only if it
+ * starts with the quote character; in a quoted field separators and line
+ * breaks are data, and a doubled quote is a single quote. Anything between
+ * the closing quote and the next separator is kept, and a quote in an
+ * unquoted field is data. Records end with LF, CRLF or CR; line breaks in
+ * quoted fields are kept as they are. A field is copied straight from the
+ * buffer to its String unless it contains doubled quotes or spans a buffer
+ * refill.
+ *
+ * @author Chris Wood
+ */
+public class CsvReader implements Closeable {
+   /** the default separator */
+   public static final char DEFAULT_SEPARATOR = ',';
+   /** the default quote character */
+   public static final char DEFAULT_QUOTE_CHARACTER = '"';
+   /** the default number of records to skip */
+   public static final int DEFAULT_SKIP_LINES = 0;
+
+   private static final int BUFFER_SIZE = 16384;
+
+   /* field states */
+   private static final int UNQUOTED = 0;
+   private static final int QUOTED = 1;
+   private static final int QUOTE_IN_QUOTED = 2; // a quote in a quoted field: closing, or the first of a pair
+
+   private final Reader reader;
+   private final char separator;
+   private final char quotechar;
+   private int skipLines;
+   private final char[] buffer = new char[BUFFER_SIZE];
+   private int pos;
+   private int limit;
+   private boolean skipLF; // the last record ended with CR
+   private boolean endOfRecord;
+   private final StringBuilder field = new StringBuilder();
+   private final List<String> fields = new ArrayList<String>();
+
+   /**
+    * Constructor - comma separator
+    *
+    * @param reader
+    */
+   public CsvReader(Reader reader) {
+      this(reader, DEFAULT_SEPARATOR, DEFAULT_QUOTE_CHARACTER, DEFAULT_SKIP_LINES);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param reader
+    * @param separator field separator
+    * @param quotechar quote character
+    * @param line number of records to skip
+    */
+   public CsvReader(Reader reader, char separator, char quotechar, int line) {
+      this.reader = reader;
+      this.separator = separator;
+      this.quotechar = quotechar;
+      this.skipLines = line;
+   }
+
+   /**
+    * Read the next record
+    *
+    * @return the fields of the record, or null at the end of the input
+    * @throws IOException
+    */
+   public String[] readNext() throws IOException {
+      for (; skipLines > 0; skipLines--) {
+         if (readRecord() == null) {
+            return null;
+         }
+      }
+      return readRecord();
+   }
+
+   @Override
+   public void close() throws IOException {
+      reader.close();
+   }
+
+   private String[] readRecord() throws IOException {
+      if (skipLF) {
+         skipLF = false;
+         if ((pos < limit || fill()) && buffer[pos] == '\n') {
+            pos++;
+         }
+      }
+      if (pos == limit && !fill()) {
+         return null;
+      }
+      fields.clear();
+      do {
+         fields.add(readField());
+      } while (!endOfRecord);
+      return fields.toArray(new String[fields.size()]);
+   }
+
+   /*
+    * Read a field and the separator or line break that ends it
+    */
+   private String readField() throws IOException {
+      field.setLength(0);
+      int state = UNQUOTED;
+      if ((pos < limit || fill()) && buffer[pos] == quotechar) {
+         pos++;
+         state = QUOTED;
+      }
+      while (true) {
+         if (pos == limit && !fill()) {
+            endOfRecord = true; // end of input
+            return field.toString();
+         }
+         if (state == QUOTED) {
+            int start = pos;
+            while (pos < limit && buffer[pos] != quotechar) {
+               pos++;
+            }
+            field.append(buffer, start, pos - start);
+            if (pos < limit) {
+               pos++;
+               state = QUOTE_IN_QUOTED;
+            }
+         } else if (state == QUOTE_IN_QUOTED) {
+            if (buffer[pos] == quotechar) {
+               field.append(quotechar); // a doubled quote
+               pos++;
+               state = QUOTED;
+            } else {
+               state = UNQUOTED; // the closing quote
+            }
+         } else {
+            int start = pos;
+            char c = 0;
+            while (pos < limit) {
+               c = buffer[pos];
+               if (c == separator || c == '\n' || c == '\r') {
+                  break;
+               }
+               pos++;
+            }
+            if (pos == limit) {
+               field.append(buffer, start, pos - start); // continued after the refill
+               continue;
+            }
+            String value = field.length() == 0 ? new String(buffer, start, pos - start) : field.append(buffer,
+                        start, pos - start).toString();
+            pos++;
+            endOfRecord = c != separator;
+            skipLF = c == '\r';
+            return value;
+         }
+      }
+   }
+
+   private boolean fill() throws IOException {
+      pos = 0;
+      limit = 0;
+      int n = reader.read(buffer, 0, buffer.length);
+      if (n <= 0) {
+         return false;
+      }
+      limit = n;
+      return true;
+   }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.utils;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * CSV writer, with the same API as the opencsv CSVWriter it replaces.
+ *
+ * Fields are quoted, with quote and escape characters escaped, and copied
+ * into a char buffer that is written out when full, so writing a record
+ * allocates nothing. As with the print writer used by CSVWriter, I/O errors
+ * are not thrown by {@link #writeNext(CharSequence[])}; they are reported by
+ * {@link #checkError()}. Fields may be any CharSequence, so a value held in
+ * a char array can be written (wrapped in a CharBuffer) without creating a
+ * String; the buffer is zeroed when the writer is closed.
+ *
+ * @author Chris Wood
+ */
+public class CsvWriter implements Closeable, Flushable {
+   /** the default escape character */
+   public static final char DEFAULT_ESCAPE_CHARACTER = '"';
+   /** the default separator */
+   public static final char DEFAULT_SEPARATOR = ',';
+   /** the default quote character */
+   public static final char DEFAULT_QUOTE_CHARACTER = '"';
+   /** no quoting */
+   public static final char NO_QUOTE_CHARACTER = '\u0000';
+   /** no escaping */
+   public static final char NO_ESCAPE_CHARACTER = '\u0000';
+   /** the default line end */
+   public static final String DEFAULT_LINE_END = "\n";
+
+   private static final int BUFFER_SIZE = 16384;
+
+   private final Writer writer;
+   private final char separator;
+   private final char quotechar;
+   private final char escapechar;
+   private final String lineEnd;
+   private final char[] buffer = new char[BUFFER_SIZE];
+   private int count;
+   private boolean error;
+
+   /**
+    * Constructor - comma separator, quoted fields
+    *
+    * @param writer
+    */
+   public CsvWriter(Writer writer) {
+      this(writer, DEFAULT_SEPARATOR, DEFAULT_QUOTE_CHARACTER, DEFAULT_ESCAPE_CHARACTER, DEFAULT_LINE_END);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param writer
+    * @param separator field separator
+    * @param quotechar quote character, or NO_QUOTE_CHARACTER
+    * @param escapechar character to escape quote and escape characters, or
+    *           NO_ESCAPE_CHARACTER
+    * @param lineEnd record terminator
+    */
+   public CsvWriter(Writer writer, char separator, char quotechar, char escapechar, String lineEnd) {
+      this.writer = writer;
+      this.separator = separator;
+      this.quotechar = quotechar;
+      this.escapechar = escapechar;
+      this.lineEnd = lineEnd;
+   }
+
+   /**
+    * Write a record. A null field is written as nothing, not quoted.
+    *
+    * @param nextLine the fields, or null to write nothing
+    */
+   public void writeNext(CharSequence[] nextLine) {
+      if (nextLine == null) {
+         return;
+      }
+      try {
+         for (int i = 0; i < nextLine.length; i++) {
+            if (i != 0) {
+               put(separator);
+            }
+            CharSequence element = nextLine[i];
+            if (element != null) {
+               writeField(element);
+            }
+         }
+         put(lineEnd, 0, lineEnd.length());
+      } catch (IOException e) {
+         error = true;
+      }
+   }
+
+   @Override
+   public void flush() throws IOException {
+      flushBuffer();
+      writer.flush();
+   }
+
+   /**
+    * Flush the underlying writer and check for errors
+    *
+    * @return true if an error has occurred on the underlying writer
+    */
+   public boolean checkError() {
+      try {
+         flush();
+      } catch (IOException e) {
+         error = true;
+      }
+      return error;
+   }
+
+   @Override
+   public void close() throws IOException {
+      try {
+         flushBuffer();
+      } finally {
+         Arrays.fill(buffer, '\0');
+         writer.close();
+      }
+   }
+
+   private void writeField(CharSequence element) throws IOException {
+      if (quotechar != NO_QUOTE_CHARACTER) {
+         put(quotechar);
+      }
+      int start = 0;
+      int length = element.length();
+      if (escapechar != NO_ESCAPE_CHARACTER) {
+         for (int j = 0; j < length; j++) {
+            char c = element.charAt(j);
+            if (c == quotechar || c == escapechar) {
+               put(element, start, j - start); // the run before the escape
+               put(escapechar);
+               start = j; // the character itself starts the next run
+            }
+         }
+      }
+      put(element, start, length - start);
+      if (quotechar != NO_QUOTE_CHARACTER) {
+         put(quotechar);
+      }
+   }
+
+   private void put(char c) throws IOException {
+      if (count == buffer.length) {
+         flushBuffer();
+      }
+      buffer[count++] = c;
+   }
+
+   private void put(CharSequence s, int offset, int length) throws IOException {
+      while (length > 0) {
+         if (count == buffer.length) {
+            flushBuffer();
+         }
+         int n = Math.min(length, buffer.length - count);
+         if (s instanceof String) {
+            ((String) s).getChars(offset, offset + n, buffer, count);
+         } else {
+            for (int i = 0; i < n; i++) {
+               buffer[count + i] = s.charAt(offset + i);
+            }
+         }
+         count += n;
+         offset += n;
+         length -= n;
+      }
+   }
+
+   private void flushBuffer() throws IOException {
+      if (count > 0) {
+         writer.write(buffer, 0, count);
+         count = 0;
+      }
+   }
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Pull parser for JSON: the document is read as a stream of tokens, so that
+ * a large document can be processed without holding it all in memory.
+ *
+ * Each call to {@link #next()} returns the next token. For a name or a value
+ * the text is available from {@link #getText()}: the unescaped string, the
+ * number as written, "true"/"false", or null for a null. The syntax is
+ * checked as the tokens are read; an error is reported as an IOException
+ * giving the character position.
+ *
+ * @author Chris Wood
+ */
+public class JsonTokenStream implements Closeable {
+   /** start of an object */
+   public static final int BEGIN_OBJECT = 1;
+   /** end of an object */
+   public static final int END_OBJECT = 2;
+   /** start of an array */
+   public static final int BEGIN_ARRAY = 3;
+   /** end of an array */
+   public static final int END_ARRAY = 4;
+   /** object member name */
+   public static final int NAME = 5;
+   /** string value */
+   public static final int STRING = 6;
+   /** number value */
+   public static final int NUMBER = 7;
+   /** true or false */
+   public static final int BOOLEAN = 8;
+   /** null value */
+   public static final int NULL = 9;
+   /** end of the document */
+   public static final int END_DOCUMENT = 10;
+
+   /* container states */
+   private static final int OBJECT_START = 0; // after {
+   private static final int OBJECT_NAME = 1; // after ,
+   private static final int OBJECT_VALUE = 2; // after :
+   private static final int OBJECT_NEXT = 3; // after a value
+   private static final int ARRAY_START = 4; // after [
+   private static final int ARRAY_VALUE = 5; // after ,
+   private static final int ARRAY_NEXT = 6; // after a value
+
+   private static final int BUFFER_SIZE = 8192;
+
+   private final Reader reader;
+   private final char[] buffer = new char[BUFFER_SIZE];
+   private int pos;
+   private int limit;
+   private long position; // of buffer[0] in the document
+   private int[] stack = new int[32];
+   private int depth;
+   private boolean started;
+   private final StringBuilder text = new StringBuilder();
+   private String value;
+
+   /**
+    * Constructor
+    *
+    * @param reader the document
+    */
+   public JsonTokenStream(Reader reader) {
+      this.reader = reader;
+   }
+
+   /**
+    * Read the next token
+    *
+    * @return the token type
+    * @throws IOException if the document cannot be read or is not valid JSON
+    */
+   public int next() throws IOException {
+      value = null;
+      while (true) {
+         int c = nextNonWhitespace();
+         if (depth == 0) {
+            if (started) {
+               if (c >= 0) {
+                  throw syntaxError("data after the end of the document");
+               }
+               return END_DOCUMENT;
+            }
+            started = true;
+            if (c == '\uFEFF') { // byte order mark
+               c = nextNonWhitespace();
+            }
+            return readValue(c);
+         }
+         switch (stack[depth - 1]) {
+         case OBJECT_START:
+            if (c == '}') {
+               return pop(END_OBJECT);
+            }
+            return readName(c);
+         case OBJECT_NAME:
+            return readName(c);
+         case OBJECT_VALUE:
+            stack[depth - 1] = OBJECT_NEXT;
+            return readValue(c);
+         case OBJECT_NEXT:
+            if (c == '}') {
+               return pop(END_OBJECT);
+            }
+            expect(c, ',');
+            stack[depth - 1] = OBJECT_NAME;
+            break;
+         case ARRAY_START:
+            if (c == ']') {
+               return pop(END_ARRAY);
+            }
+            stack[depth - 1] = ARRAY_NEXT;
+            return readValue(c);
+         case ARRAY_VALUE:
+            stack[depth - 1] = ARRAY_NEXT;
+            return readValue(c);
+         default: // ARRAY_NEXT
+            if (c == ']') {
+               return pop(END_ARRAY);
+            }
+            expect(c, ',');
+            stack[depth - 1] = ARRAY_VALUE;
+            break;
+         }
+      }
+   }
+
+   /**
+    * @return the text of the last name or value token
+    */
+   public String getText() {
+      return value;
+   }
+
+   /**
+    * @return number of objects and arrays open
+    */
+   public int getDepth() {
+      return depth;
+   }
+
+   /**
+    * Skip the rest of the object or array just begun
+    *
+    * @throws IOException
+    */
+   public void skipContainer() throws IOException {
+      int target = depth - 1;
+      while (depth > target) {
+         if (next() == END_DOCUMENT) {
+            throw syntaxError("unexpected end of document");
+         }
+      }
+   }
+
+   @Override
+   public void close() throws IOException {
+      reader.close();
+   }
+
+   private int readName(int c) throws IOException {
+      expect(c, '"');
+      value = readString();
+      expect(nextNonWhitespace(), ':');
+      stack[depth - 1] = OBJECT_VALUE;
+      return NAME;
+   }
+
+   private int readValue(int c) throws IOException {
+      switch (c) {
+      case '{':
+         push(OBJECT_START);
+         return BEGIN_OBJECT;
+      case '[':
+         push(ARRAY_START);
+         return BEGIN_ARRAY;
+      case '"':
+         value = readString();
+         return STRING;
+      case 't':
+         readLiteral("rue");
+         value = "true";
+         return BOOLEAN;
+      case 'f':
+         readLiteral("alse");
+         value = "false";
+         return BOOLEAN;
+      case 'n':
+         readLiteral("ull");
+         return NULL;
+      case -1:
+         throw syntaxError("unexpected end of document");
+      default:
+         if (c == '-' || (c >= '0' && c <= '9')) {
+            value = readNumber(c);
+            return NUMBER;
+         }
+         throw syntaxError("unexpected character '" + (char) c + "'");
+      }
+   }
+
+   private void push(int state) {
+      if (depth == stack.length) {
+         int[] larger = new int[depth * 2];
+         System.arraycopy(stack, 0, larger, 0, depth);
+         stack = larger;
+      }
+      stack[depth++] = state;
+   }
+
+   private int pop(int token) {
+      depth--;
+      return token;
+   }
+
+   private String readString() throws IOException {
+      text.setLength(0);
+      while (true) {
+         /* copy runs of plain characters straight from the buffer */
+         int start = pos;
+         while (pos < limit) {
+            char c = buffer[pos];
+            if (c == '"' || c == '\\' || c < ' ') {
+               break;
+            }
+            pos++;
+         }
+         text.append(buffer, start, pos - start);
+         int c = read();
+         if (c == '"') {
+            return text.toString();
+         } else if (c == '\\') {
+            text.append(readEscape());
+         } else if (c == -1) {
+            throw syntaxError("unterminated string");
+         } else if (c < ' ') {
+            throw syntaxError("control character in string");
+         } else {
+            text.append((char) c); // buffer was empty
+         }
+      }
+   }
+
+   private char readEscape() throws IOException {
+      int c = read();
+      switch (c) {
+      case '"':
+      case '\\':
+      case '/':
+         return (char) c;
+      case 'b':
+         return '\b';
+      case 'f':
+         return '\f';
+      case 'n':
+         return '\n';
+      case 'r':
+         return '\r';
+      case 't':
+         return '\t';
+      case 'u':
+         int code = 0;
+         for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(read(), 16);
+            if (digit < 0) {
+               throw syntaxError("invalid unicode escape");
+            }
+            code = (code << 4) + digit;
+         }
+         return (char) code;
+      default:
+         throw syntaxError("invalid escape");
+      }
+   }
+
+   private String readNumber(int first) throws IOException {
+      text.setLength(0);
+      text.append((char) first);
+      while (true) {
+         int c = peek();
+         if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+            text.append((char) read());
+         } else {
+            break;
+         }
+      }
+      String number = text.toString();
+      try {
+         Double.parseDouble(number);
+      } catch (NumberFormatException e) {
+         throw syntaxError("invalid number " + number);
+      }
+      return number;
+   }
+
+   private void readLiteral(String rest) throws IOException {
+      for (int i = 0; i < rest.length(); i++) {
+         if (read() != rest.charAt(i)) {
+            throw syntaxError("invalid literal");
+         }
+      }
+   }
+
+   private void expect(int c, char expected) throws IOException {
+      if (c != expected) {
+         throw syntaxError(c < 0 ? "unexpected end of document" : "expected '" + expected + "' but found '"
+                     + (char) c + "'");
+      }
+   }
+
+   private int nextNonWhitespace() throws IOException {
+      int c;
+      do {
+         c = read();
+      } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+      return c;
+   }
+
+   private int read() throws IOException {
+      if (pos == limit && !fill()) {
+         return -1;
+      }
+      return buffer[pos++];
+   }
+
+   private int peek() throws IOException {
+      if (pos == limit && !fill()) {
+         return -1;
+      }
+      return buffer[pos];
+   }
+
+   private boolean fill() throws IOException {
+      position += limit;
+      pos = 0;
+      limit = 0;
+      int n = reader.read(buffer, 0, buffer.length);
+      if (n <= 0) {
+         return false;
+      }
+      limit = n;
+      return true;
+   }
+
+   private IOException syntaxError(String message) {
+      return new IOException("JSON syntax error at character " + (position + pos) + ": " + message);
+   }
+}
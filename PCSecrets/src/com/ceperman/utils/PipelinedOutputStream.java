@@ -0,0 +1,194 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Output stream that passes its data to another stream on a separate writer
+ * thread, so that producing the data (e.g. encrypting it) overlaps with
+ * writing it (e.g. sending it over the network).
+ *
+ * Data is collected into chunks, which are handed to the writer through a
+ * bounded queue. When the queue is full the producer waits, so no more than
+ * the queue length of chunks is held in memory. Closing this stream sends the
+ * last chunk, closes the target stream on the writer thread and waits for
+ * it; a write failure on the writer thread is thrown to the producer by the
+ * next write, or by close(). If the producer fails, abort() ends the writer
+ * without waiting for it.
+ *
+ * @author Chris Wood
+ */
+public class PipelinedOutputStream extends OutputStream {
+   private static final byte[] END = new byte[0];
+
+   private final BlockingQueue<byte[]> queue;
+   private final int chunkSize;
+   private final Thread writer;
+   private volatile IOException failure;
+   private volatile boolean aborted;
+   private byte[] buffer;
+   private int count;
+   private boolean closed;
+
+   /**
+    * Constructor - starts the writer thread
+    *
+    * @param out target stream, written and closed on the writer thread
+    * @param chunkSize bytes passed to the writer at a time
+    * @param queueLength chunks that may wait for the writer
+    */
+   public PipelinedOutputStream(final OutputStream out, int chunkSize, int queueLength) {
+      this.chunkSize = chunkSize;
+      queue = new ArrayBlockingQueue<byte[]>(queueLength);
+      buffer = new byte[chunkSize];
+      writer = new Thread("PipelinedOutputStream") {
+         @Override
+         public void run() {
+            drain(out);
+         }
+      };
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   @Override
+   public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+   }
+
+   @Override
+   public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+         throw new IOException("Stream closed");
+      }
+      checkFailure();
+      while (len > 0) {
+         int n = Math.min(len, chunkSize - count);
+         System.arraycopy(b, off, buffer, count, n);
+         count += n;
+         off += n;
+         len -= n;
+         if (count == chunkSize) {
+            pass();
+         }
+      }
+   }
+
+   /**
+    * Pass any partial chunk to the writer. This does not wait for it to be
+    * written.
+    */
+   @Override
+   public void flush() throws IOException {
+      checkFailure();
+      if (count > 0) {
+         pass();
+      }
+   }
+
+   @Override
+   public void close() throws IOException {
+      if (!closed) {
+         closed = true;
+         if (count > 0) {
+            pass();
+         }
+         put(END);
+         try {
+            writer.join();
+         } catch (InterruptedException e) {
+            writer.interrupt();
+            throw new InterruptedIOException("Interrupted waiting for writer");
+         }
+      }
+      checkFailure();
+   }
+
+   /**
+    * Abandon the data not yet written and end the writer, without waiting
+    * for it. The target stream is not closed, as the data written to it is
+    * incomplete. This has no effect after close(), so it can be called in a
+    * finally block.
+    */
+   public void abort() {
+      if (!closed) {
+         closed = true;
+         aborted = true;
+         buffer = null;
+         count = 0;
+         queue.clear();
+         queue.offer(END); // there is room, as only the producer adds to the queue
+      }
+   }
+
+   /*
+    * Hand the buffer to the writer and start a new one
+    */
+   private void pass() throws IOException {
+      put(count == chunkSize ? buffer : Arrays.copyOf(buffer, count));
+      buffer = new byte[chunkSize];
+      count = 0;
+   }
+
+   private void put(byte[] chunk) throws IOException {
+      try {
+         queue.put(chunk);
+      } catch (InterruptedException e) {
+         writer.interrupt();
+         throw new InterruptedIOException("Interrupted passing data to writer");
+      }
+   }
+
+   private void checkFailure() throws IOException {
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   /*
+    * Writer thread: write the chunks until the end. After a failure or an
+    * abort the rest are discarded, so that the producer is not left waiting
+    * on a full queue.
+    */
+   private void drain(OutputStream out) {
+      try {
+         byte[] chunk;
+         while ((chunk = queue.take()) != END) {
+            if (failure == null && !aborted) {
+               try {
+                  out.write(chunk, 0, chunk.length);
+               } catch (IOException e) {
+                  failure = e;
+               }
+            }
+         }
+         if (failure == null && !aborted) {
+            out.close();
+         }
+      } catch (InterruptedException e) {
+         failure = new InterruptedIOException("Writer interrupted");
+      } catch (IOException e) {
+         failure = e;
+      }
+   }
+}
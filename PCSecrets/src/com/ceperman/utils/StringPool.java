@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.utils;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Canonicalising pool for frequently repeated strings. Unlike String.intern(),
+ * entries are weakly held and disappear once no longer referenced.
+ * @author Chris Wood
+ */
+public class StringPool {
+	private final WeakHashMap<String, WeakReference<String>> pool = new WeakHashMap<String, WeakReference<String>>();
+
+	/**
+	 * Get the pooled instance equal to the string provided, adding it to
+	 * the pool if not already present
+	 * @param s
+	 * @return pooled string (null if s is null)
+	 */
+	public synchronized String get(String s) {
+		if (s == null) {
+			return null;
+		}
+		WeakReference<String> ref = pool.get(s);
+		String pooled = ref == null ? null : ref.get();
+		if (pooled == null) {
+			pool.put(s, new WeakReference<String>(s));
+			pooled = s;
+		}
+		return pooled;
+	}
+
+	/**
+	 * @return number of strings currently pooled
+	 */
+	public synchronized int size() {
+		return pool.size();
+	}
+}
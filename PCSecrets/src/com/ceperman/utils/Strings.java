@@ -71,6 +71,33 @@ public class Strings {
       }
       return -1;
    }
+
+   /**
+    * Fold the case of a string, for use as a key that matches ignoring case.
+    * Each char is mapped to the lower case of its upper case, which is how
+    * String.equalsIgnoreCase and compareToIgnoreCase compare, so two strings
+    * fold to the same key exactly when they are equal ignoring case. The
+    * result does not depend on the default locale, and has the same length.
+    * 
+    * @param s
+    * @return the folded string
+    */
+   public static String foldCase(String s) {
+      return new String(foldCase(s.toCharArray()));
+   }
+
+   /**
+    * Fold the case of the characters in place (see {@link #foldCase(String)})
+    * 
+    * @param chars
+    * @return chars
+    */
+   public static char[] foldCase(char[] chars) {
+      for (int i = 0; i < chars.length; i++) {
+         chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+      }
+      return chars;
+   }
 	
 	/**
 	 * Returns a hex string representing the byte array
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mindrot.jbcrypt.BCrypt;
+
+import com.ceperman.pcsecrets.SecurityUtils.CipherInfo;
+import com.ceperman.pcsecrets.SecurityUtils.CipherParms;
+
+/**
+ * Headless stand-in for a device, speaking the sync protocol to a SyncServer:
+ * - read the metadata
+ * - send the security header and the encrypted device secrets
+ * - read the status byte and, if OK, the encrypted reply
+ * - apply the reply and send the confirmation
+ *
+ * The device always sends all its secrets (no delta or buckets). It sends
+ * chunked if the PC offers it and chunked framing is enabled here; it does not
+ * send resumable transfers. The ciphers are created once, with a fixed salt,
+ * as a device does for its own vault.
+ *
+ * For testing and benchmarking only; it is kept in the test tree, so it is
+ * not part of the application jar.
+ *
+ * @author Chris Wood
+ */
+public class DeviceSimulator {
+   private static Logger logger = Logger.getLogger(DeviceSimulator.class.getName());
+
+   /** metadata item prefix for the key length */
+   public static final String METADATA_KEYLENGTH = "keylength=";
+   /* time allowed for the PC to respond (millisecs) */
+   private static final int TIMEOUT = 2 * 60 * 1000;
+
+   private final String deviceId;
+   private final byte[] password;
+   private final int rounds;
+   private final byte[] salt = new byte[BCrypt.BCRYPT_SALT_LEN];
+   private final DeviceSecretsCollection secrets = new DeviceSecretsCollection();
+   private boolean chunked = true;
+   private CipherInfo cipherInfo;
+   private int receivedCount;
+
+   /**
+    * Constructor
+    *
+    * @param deviceId id sent to the PC
+    * @param password sync password
+    * @param rounds key setup rounds (log 2)
+    */
+   public DeviceSimulator(String deviceId, byte[] password, int rounds) {
+      this.deviceId = deviceId;
+      this.password = password;
+      this.rounds = rounds;
+      new SecureRandom().nextBytes(salt);
+   }
+
+   /**
+    * @return the device secrets; changes made to them are sent on the next sync
+    */
+   public DeviceSecretsCollection getSecrets() {
+      return secrets;
+   }
+
+   /**
+    * @param chunked true to send chunked when the PC offers it
+    */
+   public void setChunked(boolean chunked) {
+      this.chunked = chunked;
+   }
+
+   /**
+    * @return number of secrets in the last reply
+    */
+   public int getReceivedCount() {
+      return receivedCount;
+   }
+
+   /**
+    * Run one sync with the PC
+    *
+    * @param host
+    * @param port sync server port
+    * @return the status byte sent by the PC
+    * @throws IOException
+    * @throws JSONException
+    */
+   public int sync(String host, int port) throws IOException, JSONException {
+      Socket socket = new Socket(host, port);
+      try {
+         socket.setSoTimeout(TIMEOUT);
+         FramedChannel channel = new FramedChannel(socket.getInputStream(), socket.getOutputStream(),
+                     FramedChannel.DEFAULT_MAX_MESSAGE_SIZE);
+         String metadata = new String(channel.readMessage(), AbstractPhoneCommunicator.CHARSET);
+         logger.log(Level.FINE, "metadata received: " + metadata);
+         int keylen = 0;
+         for (String item : metadata.split("\n")) {
+            if (item.startsWith(METADATA_KEYLENGTH)) {
+               keylen = Integer.parseInt(item.substring(METADATA_KEYLENGTH.length()).trim());
+            } else if (item.equals(InputPhone.METADATA_CHUNKED)) {
+               channel.setChunked(chunked);
+            }
+         }
+         CipherInfo cipher = getCipherInfo(keylen);
+
+         /* the device secrets, encrypted behind the security header */
+         JSONObject jsonValues = secrets.toJSON();
+         jsonValues.put(SyncDevice.ID, deviceId);
+         byte[] encrypted;
+         try {
+            encrypted = cipher.encryptCipher.doFinal(jsonValues.toString().getBytes("UTF-8"));
+         } catch (Exception e) {
+            throw new IOException("Encryption failed: " + e, e);
+         }
+         OutputStream os = channel.openMessageOutput();
+         SecurityUtils.writeSecurityHeader(cipher.parms, os);
+         os.write(encrypted);
+         os.close();
+         logger.log(Level.FINE, "device secrets sent: " + secrets.getSize());
+
+         InputStream is = socket.getInputStream();
+         int status = is.read();
+         if (status != SyncSession.STATUS_OK) {
+            logger.log(Level.FINE, "status received: " + status);
+            return status;
+         }
+         byte[] reply = channel.readMessage();
+         EncryptableSecretsCollection updates = new EncryptableSecretsCollection();
+         updates.setCipherInfo(cipher);
+         try {
+            updates.loadSecretsFromEncryptedJSONStream(new ByteArrayInputStream(reply));
+         } catch (JSONException e) {
+            throw e;
+         } catch (Exception e) {
+            throw new IOException("Decryption failed: " + e, e);
+         }
+         /* deletions are kept as deleted secrets, as on a device */
+         List<HostSecret> received = new ArrayList<HostSecret>(updates.getSize());
+         for (HostSecret secret : updates.snapshot()) {
+            received.add(secret);
+         }
+         secrets.addOrUpdateAll(received);
+         secrets.setLastSyncTimestamp(updates.getLastSyncTimestamp());
+         receivedCount = updates.getSize();
+         socket.getOutputStream().write(SyncSession.CONFIRMATION);
+         socket.getOutputStream().flush();
+         logger.log(Level.FINE, "reply received: " + receivedCount);
+         return status;
+      } finally {
+         socket.close();
+      }
+   }
+
+   private CipherInfo getCipherInfo(int keylen) {
+      if (cipherInfo == null || cipherInfo.parms.keylen != keylen) {
+         cipherInfo = SecurityUtils.createCiphers(password, new CipherParms(keylen, salt, rounds));
+      }
+      return cipherInfo;
+   }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.pcsecrets;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * End-to-end sync benchmark: full sync cycles between a SyncServer and a
+ * DeviceSimulator over the loopback interface, without the UI.
+ *
+ * Each cycle starts from a vault of the given size, held on both sides and
+ * last synced at the same time, with a proportion of the secrets changed
+ * since - half on the device and half on the PC. The PC side does what the
+ * main window does for a sync that needs no dialog: categorise, send the PC
+ * changes to the device and apply the device changes. The time spent in each
+ * phase is taken from the SyncSession.
+ *
+ * Usage: SyncBenchmark [vault sizes, comma separated] [change ratio] [cycles] [rounds]
+ *
+ * @author Chris Wood
+ */
+public class SyncBenchmark {
+   /** default key setup rounds used by the device (log 2) */
+   public static final int DEFAULT_ROUNDS = 6;
+
+   private static final String DEVICE_ID = "benchmark-device";
+   private static final String PASSWORD = "benchmark";
+   private static final long LAST_SYNC = 1400000000000L;
+
+   private final int vaultSize;
+   private final double changeRatio;
+   private final int rounds;
+
+   /**
+    * Constructor
+    *
+    * @param vaultSize number of secrets
+    * @param changeRatio proportion of the secrets changed since the last sync
+    * @param rounds key setup rounds used by the device (log 2)
+    */
+   public SyncBenchmark(int vaultSize, double changeRatio, int rounds) {
+      this.vaultSize = vaultSize;
+      this.changeRatio = changeRatio;
+      this.rounds = rounds;
+   }
+
+   /**
+    * Run sync cycles
+    *
+    * @param cycles
+    * @return total time spent in each phase over all the cycles (nanosecs),
+    *         indexed by the SyncSession PHASE_ values
+    * @throws Exception if a cycle fails or its result is wrong
+    */
+   public long[] run(int cycles) throws Exception {
+      initProperties();
+      byte[] password = PASSWORD.getBytes(AbstractPhoneCommunicator.CHARSET);
+      final DeviceSimulator device = new DeviceSimulator(DEVICE_ID, password, rounds);
+      final SyncServer server = new SyncServer(0, 1);
+      server.configure(password, DeviceSimulator.METADATA_KEYLENGTH + "128\n" + InputPhone.METADATA_CHUNKED);
+      ExecutorService deviceThread = Executors.newSingleThreadExecutor();
+      long[] totals = new long[SyncSession.PHASE_COUNT];
+      server.start();
+      try {
+         for (int cycle = 0; cycle < cycles; cycle++) {
+            DatedSecretsCollection pcSecrets = new DatedSecretsCollection();
+            int changes = populate(pcSecrets, device.getSecrets());
+            SyncDevice syncDevice = new SyncDevice(DEVICE_ID);
+            syncDevice.setSyncTimestamp(LAST_SYNC);
+            Future<Integer> status = deviceThread.submit(new Callable<Integer>() {
+               @Override
+               public Integer call() throws Exception {
+                  return device.sync(InetAddress.getLoopbackAddress().getHostAddress(), server.getLocalPort());
+               }
+            });
+
+            SyncSession session = server.takeSession();
+            try {
+               DeviceSecretsCollection phoneSecrets = session.getPhoneSecrets();
+               if (phoneSecrets == null) {
+                  throw new IOException("Device secrets not received");
+               }
+               long start = System.nanoTime();
+               SyncEngine engine = new SyncEngine(pcSecrets, phoneSecrets, syncDevice);
+               int fromDevice = engine.getCounts()[SyncEngine.PHONE_VALUE];
+               DeviceSecretsCollection reply = phoneSecrets.createReply();
+               reply.addOrUpdateAll(engine.getDeviceUpdates());
+               reply.setLastSyncTimestamp(System.currentTimeMillis());
+               engine.applyDeviceUpdates();
+               session.recordPhase(SyncSession.PHASE_CATEGORISE, System.nanoTime() - start);
+               if (!session.sendSecrets(reply)) {
+                  throw new IOException("Reply not confirmed");
+               }
+               check(status.get().intValue() == SyncSession.STATUS_OK, "status " + status.get());
+               check(fromDevice == changes / 2, "device changes " + fromDevice);
+               check(device.getReceivedCount() == changes - changes / 2, "PC changes " + device.getReceivedCount());
+            } finally {
+               session.close();
+            }
+            for (int phase = 0; phase < SyncSession.PHASE_COUNT; phase++) {
+               totals[phase] += session.getPhaseTime(phase);
+            }
+         }
+      } finally {
+         server.stop();
+         deviceThread.shutdownNow();
+      }
+      return totals;
+   }
+
+   /*
+    * Fill both collections with the same secrets, synced at LAST_SYNC, then
+    * change some on each side
+    */
+   private int populate(DatedSecretsCollection pcSecrets, DeviceSecretsCollection deviceSecrets) {
+      List<HostSecret> pc = new ArrayList<HostSecret>(vaultSize);
+      List<HostSecret> onDevice = new ArrayList<HostSecret>(vaultSize);
+      int changes = (int) Math.round(vaultSize * changeRatio);
+      for (int i = 0; i < vaultSize; i++) {
+         HostSecret secret = new HostSecret(String.format("secret %06d", i), "user" + i, "password" + i,
+                     "user" + i + "@example.com", "note for secret " + i);
+         secret.setTimestamp(LAST_SYNC - 1000);
+         HostSecret copy = new HostSecret(secret);
+         if (i < changes) {
+            HostSecret changed = i % 2 == 0 ? copy : secret; // alternately device and PC
+            changed.setPassword("changed" + i);
+            changed.setTimestamp(LAST_SYNC + 1000);
+         }
+         pc.add(secret);
+         onDevice.add(copy);
+      }
+      pcSecrets.addOrUpdateAll(pc);
+      deviceSecrets.clear();
+      deviceSecrets.addOrUpdateAll(onDevice);
+      deviceSecrets.setLastSyncTimestamp(LAST_SYNC);
+      return changes;
+   }
+
+   private static void check(boolean condition, String message) {
+      if (!condition) {
+         throw new IllegalStateException("Wrong sync result - " + message);
+      }
+   }
+
+   /**
+    * Make sure the properties are available, as the ciphers need them. When
+    * not running inside PCSecrets they are kept in a temporary directory.
+    *
+    * @throws IOException
+    */
+   public static synchronized void initProperties() throws IOException {
+      if (!SecretsProperties.hasInstance()) {
+         SecretsProperties.getInitialInstance(Files.createTempDirectory("pcsecrets").toString(), true);
+      }
+   }
+
+   /**
+    * Run the benchmark and print the mean time for each phase
+    *
+    * @param args vault sizes, change ratio, cycles, rounds
+    * @throws Exception
+    */
+   public static void main(String[] args) throws Exception {
+      String[] sizes = (args.length > 0 ? args[0] : "100,1000,10000").split(",");
+      double changeRatio = args.length > 1 ? Double.parseDouble(args[1]) : 0.1;
+      int cycles = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+      int rounds = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_ROUNDS;
+      SecurityUtils.checkBCProvider();
+
+      StringBuilder header = new StringBuilder(String.format("%8s", "secrets"));
+      for (String name : SyncSession.PHASE_NAMES) {
+         header.append(String.format("%12s", name));
+      }
+      System.out.println("Mean ms per phase, change ratio " + changeRatio + ", " + cycles + " cycles, " + rounds
+                  + " rounds");
+      System.out.println(header);
+      for (String size : sizes) {
+         SyncBenchmark benchmark = new SyncBenchmark(Integer.parseInt(size.trim()), changeRatio, rounds);
+         benchmark.run(1); // warm up
+         long[] totals = benchmark.run(cycles);
+         StringBuilder line = new StringBuilder(String.format("%8s", size.trim()));
+         for (long total : totals) {
+            line.append(String.format("%12.2f", total / 1e6 / cycles));
+         }
+         System.out.println(line);
+      }
+   }
+}
@@ -86,4 +86,17 @@ public class BytesTest extends TestCase {
 		assertTrue(Bytes.getLong(testBytes11) == 81985529216486895L);
 	}
 
+	/**
+	 * Test hash128() against published MurmurHash3 values
+	 */
+	public void testHash128() {
+		long[] hash = Bytes.hash128("The quick brown fox jumps over the lazy dog".getBytes(), 0);
+		assertEquals(0xe34bbc7bbc071b6cL, hash[0]);
+		assertEquals(0x7a433ca9c49a9347L, hash[1]);
+		hash = Bytes.hash128(new byte[0], 0);
+		assertEquals(0L, hash[0]);
+		assertEquals(0L, hash[1]);
+		assertFalse(Arrays.equals(Bytes.hash128(testBytes1, 0), Bytes.hash128(testBytes2, 0)));
+	}
+	
 }
@@ -0,0 +1,142 @@
+/**
+ *
+ */
+package com.ceperman.pcsecrets.test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+import com.ceperman.utils.CsvBenchmark;
+import com.ceperman.utils.CsvReader;
+import com.ceperman.utils.CsvWriter;
+
+/**
+ * Test the CSV reader and writer
+ * @author Chris Wood
+ */
+public class CsvTest extends TestCase {
+
+  /**
+   * Quoted fields may contain separators, line breaks and doubled quotes
+   */
+  public void testQuoted() throws Exception {
+    CsvReader csvr = new CsvReader(new StringReader("\"a,b\",\"two\r\nlines\",\"say \"\"hi\"\"\"\n\"\",x\n"));
+    assertEquals("[a,b, two\r\nlines, say \"hi\"]", Arrays.toString(csvr.readNext()));
+    assertEquals("[, x]", Arrays.toString(csvr.readNext()));
+    assertNull(csvr.readNext());
+    assertNull(csvr.readNext());
+  }
+
+  /**
+   * Records end with LF, CRLF or CR, or at the end of the input
+   */
+  public void testLineBreaks() throws Exception {
+    CsvReader csvr = new CsvReader(new StringReader("a,b\r\nc,\rd\n\ne,\"f"));
+    assertEquals("[a, b]", Arrays.toString(csvr.readNext()));
+    assertEquals("[c, ]", Arrays.toString(csvr.readNext()));
+    assertEquals("[d]", Arrays.toString(csvr.readNext()));
+    assertEquals("[]", Arrays.toString(csvr.readNext())); // blank line - one empty field
+    assertEquals("[e, f]", Arrays.toString(csvr.readNext())); // unterminated quote
+    assertNull(csvr.readNext());
+  }
+
+  /**
+   * Quotes after the start of a field are data
+   */
+  public void testLenient() throws Exception {
+    CsvReader csvr = new CsvReader(new StringReader("a,bc\"d\"ef,g\n\"ab\"cd,e\n"));
+    assertEquals("[a, bc\"d\"ef, g]", Arrays.toString(csvr.readNext()));
+    assertEquals("[abcd, e]", Arrays.toString(csvr.readNext()));
+  }
+
+  /**
+   * Other separators and quote characters; records can be skipped
+   */
+  public void testOptions() throws Exception {
+    CsvReader csvr = new CsvReader(new StringReader("header\na;'b;c';'it''s'\n"), ';', '\'', 1);
+    assertEquals("[a, b;c, it's]", Arrays.toString(csvr.readNext()));
+    assertNull(csvr.readNext());
+  }
+
+  /**
+   * Fields longer than the buffer, and records across buffer refills
+   */
+  public void testLongFields() throws Exception {
+    char[] chars = new char[40000];
+    Arrays.fill(chars, 'x');
+    String longField = new String(chars);
+    StringWriter sw = new StringWriter();
+    CsvWriter csvw = new CsvWriter(sw);
+    for (int i = 0; i < 1000; i++) {
+      csvw.writeNext(new String[] { longField.substring(0, i * 37), "\"" + i + "\"", i % 2 == 0 ? "a\nb" : "" });
+    }
+    csvw.close();
+    CsvReader csvr = new CsvReader(new StringReader(sw.toString()));
+    for (int i = 0; i < 1000; i++) {
+      String[] record = csvr.readNext();
+      assertEquals(longField.substring(0, i * 37), record[0]);
+      assertEquals("\"" + i + "\"", record[1]);
+      assertEquals(i % 2 == 0 ? "a\nb" : "", record[2]);
+    }
+    assertNull(csvr.readNext());
+  }
+
+  /**
+   * The writer produces the same output as the opencsv writer
+   */
+  public void testWriterCompatible() throws Exception {
+    StringWriter expected = new StringWriter();
+    StringWriter actual = new StringWriter();
+    CSVWriter old = new CSVWriter(expected, ';', '\'', '\\', "\r\n");
+    CsvWriter csvw = new CsvWriter(actual, ';', '\'', '\\', "\r\n");
+    String[][] records = { CsvBenchmark.record(10), { "it's", "a\\b", null, "" }, {} };
+    for (String[] record : records) {
+      old.writeNext(record);
+      csvw.writeNext(record);
+    }
+    old.close();
+    csvw.close();
+    assertEquals(expected.toString(), actual.toString());
+
+    expected = new StringWriter();
+    actual = new StringWriter();
+    old = new CSVWriter(expected);
+    csvw = new CsvWriter(actual);
+    for (int i = 0; i < 100; i++) {
+      old.writeNext(CsvBenchmark.record(i));
+      csvw.writeNext(CsvBenchmark.record(i));
+    }
+    old.close();
+    csvw.close();
+    assertEquals(expected.toString(), actual.toString());
+  }
+
+  /**
+   * Write errors are reported by checkError
+   */
+  public void testWriteError() throws Exception {
+    CsvWriter csvw = new CsvWriter(new Writer() {
+      @Override
+      public void write(char[] cbuf, int off, int len) throws IOException {
+        throw new IOException("disk full");
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    });
+    csvw.writeNext(new String[] { "a" });
+    assertTrue(csvw.checkError());
+  }
+}
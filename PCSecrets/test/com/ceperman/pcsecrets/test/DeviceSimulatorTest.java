@@ -0,0 +1,73 @@
+/**
+ *
+ */
+package com.ceperman.pcsecrets.test;
+
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+import com.ceperman.pcsecrets.DeviceSimulator;
+import com.ceperman.pcsecrets.HostSecret;
+import com.ceperman.pcsecrets.OutputErrorPhone;
+import com.ceperman.pcsecrets.SecurityUtils;
+import com.ceperman.pcsecrets.SyncBenchmark;
+import com.ceperman.pcsecrets.SyncServer;
+import com.ceperman.pcsecrets.SyncSession;
+
+/**
+ * Test full sync cycles with the device simulator
+ * @author Chris Wood
+ */
+public class DeviceSimulatorTest extends TestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    SecurityUtils.checkBCProvider();
+    SyncBenchmark.initProperties();
+  }
+
+  /**
+   * Sync cycles complete with the expected changes on each side, and every phase is timed
+   */
+  public void testSyncCycles() throws Exception {
+    long[] totals = new SyncBenchmark(50, 0.2, 4).run(2); // checks the results
+    assertEquals(SyncSession.PHASE_COUNT, totals.length);
+    for (int phase = 0; phase < SyncSession.PHASE_COUNT; phase++) {
+      assertTrue(SyncSession.PHASE_NAMES[phase], totals[phase] > 0);
+    }
+  }
+
+  /**
+   * A device using the wrong password gets the decryption error status from the server, and is not queued
+   */
+  public void testWrongPassword() throws Exception {
+    SyncServer server = new SyncServer(0, 1);
+    server.configure("right".getBytes("UTF-8"), DeviceSimulator.METADATA_KEYLENGTH + "128");
+    server.start();
+    try {
+      final DeviceSimulator device = new DeviceSimulator("test", "wrong".getBytes("UTF-8"), 4);
+      device.getSecrets().addOrUpdate(new HostSecret("secret"));
+      final int port = server.getLocalPort();
+      final int[] status = new int[1];
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            status[0] = device.sync(InetAddress.getLoopbackAddress().getHostAddress(), port);
+          } catch (Exception e) {
+            status[0] = -1;
+          }
+        }
+      };
+      thread.start();
+      thread.join(5000);
+      assertEquals(OutputErrorPhone.DECRYPT_ERROR, status[0]);
+      assertEquals(1, server.getDecryptFailures());
+      assertFalse(server.hasSession());
+    } finally {
+      server.stop();
+    }
+  }
+}
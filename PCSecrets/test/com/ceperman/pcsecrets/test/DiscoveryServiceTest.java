@@ -0,0 +1,81 @@
+/**
+ *
+ */
+package com.ceperman.pcsecrets.test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+
+import junit.framework.TestCase;
+
+import com.ceperman.pcsecrets.DiscoveryService;
+
+/**
+ * Test the UDP discovery service over the loopback interface
+ * @author Chris Wood
+ */
+public class DiscoveryServiceTest extends TestCase {
+
+  private DiscoveryService service;
+  private DatagramSocket device;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    service = new DiscoveryService(0);
+    service.start();
+    device = new DatagramSocket();
+    device.setSoTimeout(1000);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    device.close();
+    service.stop();
+    super.tearDown();
+  }
+
+  /**
+   * A request, padded as devices may send it, gets the response; anything else is ignored
+   */
+  public void testResponse() throws Exception {
+    send("rubbish");
+    send(DiscoveryService.REQUEST + "\0\0\0");
+    assertEquals(DiscoveryService.RESPONSE, receive());
+    assertNull(receive());
+  }
+
+  /**
+   * A sender flooding requests only gets a few responses
+   */
+  public void testRateLimit() throws Exception {
+    for (int i = 0; i < 50; i++) {
+      send(DiscoveryService.REQUEST);
+    }
+    int responses = 0;
+    while (receive() != null) {
+      responses++;
+    }
+    assertTrue("responses: " + responses, responses > 0);
+    /* the requests may span the start of a second */
+    assertTrue("responses: " + responses, responses <= 2 * DiscoveryService.RESPONSES_PER_SECOND);
+  }
+
+  private void send(String message) throws Exception {
+    byte[] data = message.getBytes("UTF-8");
+    device.send(new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), service.getLocalPort()));
+  }
+
+  private String receive() throws Exception {
+    byte[] buffer = new byte[256];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    try {
+      device.receive(packet);
+    } catch (SocketTimeoutException e) {
+      return null;
+    }
+    return new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+  }
+}
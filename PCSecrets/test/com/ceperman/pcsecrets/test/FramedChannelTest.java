@@ -0,0 +1,236 @@
+/**
+ *
+ */
+package com.ceperman.pcsecrets.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import junit.framework.TestCase;
+
+import com.ceperman.pcsecrets.FramedChannel;
+import com.ceperman.pcsecrets.TransferStore;
+
+/**
+ * Test the message framing for the device connection
+ * @author Chris Wood
+ */
+public class FramedChannelTest extends TestCase {
+  private static final int MAX = 1024 * 1024;
+
+  /**
+   * A plain message is a length and the data, as sent by earlier devices
+   */
+  public void testPlain() throws Exception {
+    byte[] message = randomBytes(1000);
+    ByteArrayOutputStream wire = new ByteArrayOutputStream();
+    new FramedChannel(null, wire, MAX).writeMessage(message);
+    assertEquals(1004, wire.size());
+    assertEquals(0, wire.toByteArray()[0]);
+    FramedChannel reader = new FramedChannel(new ByteArrayInputStream(wire.toByteArray()), null, MAX);
+    assertTrue(Arrays.equals(message, reader.readMessage()));
+    assertFalse(reader.isChunked());
+  }
+
+  /**
+   * A chunked message is sent as it is written, and read back the same
+   */
+  public void testChunked() throws Exception {
+    byte[] message = randomBytes(FramedChannel.CHUNK_SIZE * 3 + 17);
+    ByteArrayOutputStream wire = new ByteArrayOutputStream();
+    FramedChannel writer = new FramedChannel(null, wire, MAX);
+    writer.setChunked(true);
+    OutputStream os = writer.openMessageOutput();
+    os.write(message, 0, 100);
+    os.write(message, 100, message.length - 100);
+    assertEquals(4 + (4 + FramedChannel.CHUNK_SIZE) * 3, wire.size()); // full chunks already sent
+    os.close();
+    writer.writeMessage(new byte[0]);
+
+    FramedChannel reader = new FramedChannel(new ByteArrayInputStream(wire.toByteArray()), null, MAX);
+    assertTrue(Arrays.equals(message, reader.readMessage()));
+    assertTrue(reader.isChunked());
+    assertEquals(0, reader.readMessage().length);
+  }
+
+  /**
+   * Lengths are checked before reading, so a bad header cannot cause a huge allocation
+   */
+  public void testInvalidLengths() throws Exception {
+    assertFails(new byte[] { 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff }, IOException.class);
+    assertFails(new byte[] { (byte) 0x80, 0, 0, 0 }, IOException.class);
+    /* chunked, but the chunk is larger than allowed */
+    assertFails(new byte[] { -1, -1, -1, -1, 0x00, 0x10, 0x00, 0x00 }, IOException.class);
+    /* chunked, within the chunk limit, but past the message limit */
+    ByteArrayOutputStream wire = new ByteArrayOutputStream();
+    FramedChannel writer = new FramedChannel(null, wire, MAX);
+    writer.setChunked(true);
+    writer.writeMessage(randomBytes(FramedChannel.CHUNK_SIZE * 2));
+    FramedChannel reader = new FramedChannel(new ByteArrayInputStream(wire.toByteArray()), null,
+          FramedChannel.CHUNK_SIZE);
+    try {
+      reader.readMessage();
+      fail("message limit not enforced");
+    } catch (IOException expected) {
+    }
+  }
+
+  /**
+   * A stream that ends early is an error, not a short message
+   */
+  public void testTruncated() throws Exception {
+    assertFails(new byte[] { 0, 0 }, EOFException.class);
+    assertFails(new byte[] { 0, 0, 0, 10, 1, 2, 3 }, EOFException.class);
+    assertFails(new byte[] { -1, -1, -1, -1, 0, 0, 0, 2, 1, 2 }, EOFException.class); // no end marker
+  }
+
+  /**
+   * A resumable transfer interrupted part way is resumed from the acknowledged offset
+   */
+  public void testResume() throws Exception {
+    TransferStore transfers = new TransferStore(2, TransferStore.MAX_BYTES, TransferStore.RESUME_WINDOW);
+    byte[] id = new byte[FramedChannel.TRANSFER_ID_LENGTH];
+    id[0] = 7;
+    byte[] message = randomBytes(FramedChannel.CHUNK_SIZE + 500);
+
+    /* first connection: one good chunk, then the connection drops */
+    ByteArrayOutputStream wire = resumableHeader(id);
+    writeChunk(wire, message, 0, FramedChannel.CHUNK_SIZE, false);
+    ByteArrayOutputStream next = new ByteArrayOutputStream();
+    writeChunk(next, message, FramedChannel.CHUNK_SIZE, 500, false);
+    wire.write(next.toByteArray(), 0, 20); // part of the next chunk
+    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+    FramedChannel reader = new FramedChannel(new ByteArrayInputStream(wire.toByteArray()), reply, MAX);
+    reader.setTransferStore(transfers);
+    try {
+      reader.readMessage();
+      fail("truncated transfer not detected");
+    } catch (EOFException expected) {
+    }
+    assertEquals(0L, new DataInputStream(new ByteArrayInputStream(reply.toByteArray())).readLong());
+    assertEquals(1, transfers.getSize());
+
+    /* second connection: a corrupt chunk is not acknowledged */
+    wire = resumableHeader(id);
+    writeChunk(wire, message, FramedChannel.CHUNK_SIZE, 500, true);
+    reply = new ByteArrayOutputStream();
+    reader = new FramedChannel(new ByteArrayInputStream(wire.toByteArray()), reply, MAX);
+    reader.setTransferStore(transfers);
+    try {
+      reader.readMessage();
+      fail("checksum error not detected");
+    } catch (IOException expected) {
+    }
+    assertEquals(FramedChannel.CHUNK_SIZE, new DataInputStream(new ByteArrayInputStream(reply.toByteArray())).readLong());
+
+    /* third connection: the rest, from the acknowledged offset */
+    wire = resumableHeader(id);
+    writeChunk(wire, message, FramedChannel.CHUNK_SIZE, 500, false);
+    new DataOutputStream(wire).writeInt(0);
+    reply = new ByteArrayOutputStream();
+    reader = new FramedChannel(new ByteArrayInputStream(wire.toByteArray()), reply, MAX);
+    reader.setTransferStore(transfers);
+    assertTrue(Arrays.equals(message, reader.readMessage()));
+    assertEquals(FramedChannel.CHUNK_SIZE, new DataInputStream(new ByteArrayInputStream(reply.toByteArray())).readLong());
+    assertTrue(reader.isChunked());
+    assertEquals(0, transfers.getSize());
+  }
+
+  /**
+   * Partial transfers expire, and the store does not grow beyond its limit
+   */
+  public void testTransferStore() throws Exception {
+    TransferStore transfers = new TransferStore(2, TransferStore.MAX_BYTES, 1000);
+    Object owner = new Object();
+    TransferStore.Transfer first = transfers.resume(new byte[] { 1 }, owner, 0);
+    first.append(owner, new byte[10], 0, 10);
+    transfers.resume(new byte[] { 2 }, owner, 0);
+    transfers.resume(new byte[] { 3 }, owner, 0);
+    assertEquals(2, transfers.getSize());
+    assertEquals(0, transfers.resume(new byte[] { 1 }, owner, 0).getOffset()); // was discarded
+    assertEquals(2, transfers.getSize());
+    transfers.resume(new byte[] { 4 }, owner, 2000);
+    assertEquals(1, transfers.getSize()); // the others expired
+    /* a transfer taken over by another connection cannot be added to by the first */
+    TransferStore.Transfer transfer = transfers.resume(new byte[] { 4 }, new Object(), 2000);
+    try {
+      transfer.append(owner, new byte[1], 0, 1);
+      fail("superseded connection added data");
+    } catch (IOException expected) {
+    }
+  }
+
+  /**
+   * The total data held across transfers is limited: the least recently
+   * active are discarded to make room, and a transfer that cannot fit fails
+   */
+  public void testTransferStoreBytes() throws Exception {
+    TransferStore transfers = new TransferStore(4, 100, TransferStore.RESUME_WINDOW);
+    Object owner = new Object();
+    TransferStore.Transfer first = transfers.resume(new byte[] { 1 }, owner, 0);
+    first.append(owner, new byte[40], 0, 40);
+    TransferStore.Transfer second = transfers.resume(new byte[] { 2 }, owner, 0);
+    second.append(owner, new byte[40], 0, 40);
+    TransferStore.Transfer third = transfers.resume(new byte[] { 3 }, owner, 0);
+    third.append(owner, new byte[40], 0, 40);
+    assertEquals(2, transfers.getSize()); // the first was discarded
+    assertEquals(80, transfers.getTotalBytes());
+    try {
+      first.append(owner, new byte[1], 0, 1);
+      fail("discarded transfer added to");
+    } catch (IOException expected) {
+    }
+    try {
+      third.append(owner, new byte[70], 0, 70);
+      fail("transfer larger than the store accepted");
+    } catch (IOException expected) {
+    }
+    assertEquals(0, transfers.getSize());
+    assertEquals(0, transfers.getTotalBytes());
+  }
+
+  private static ByteArrayOutputStream resumableHeader(byte[] id) throws IOException {
+    ByteArrayOutputStream wire = new ByteArrayOutputStream();
+    new DataOutputStream(wire).writeInt(FramedChannel.RESUMABLE_MARKER);
+    wire.write(id);
+    return wire;
+  }
+
+  private static void writeChunk(ByteArrayOutputStream wire, byte[] data, int off, int len, boolean corrupt)
+        throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(data, off, len);
+    DataOutputStream dos = new DataOutputStream(wire);
+    dos.writeInt(len);
+    dos.writeInt((int) crc.getValue() + (corrupt ? 1 : 0));
+    dos.write(data, off, len);
+  }
+
+  private static void assertFails(byte[] wire, Class<? extends IOException> expected) {
+    FramedChannel reader = new FramedChannel(new ByteArrayInputStream(wire), null, MAX);
+    try {
+      InputStream is = reader.openMessageInput();
+      while (is.read() >= 0) {
+        // read to end
+      }
+      fail("expected " + expected.getSimpleName());
+    } catch (IOException e) {
+      assertTrue(e.toString(), expected.isInstance(e));
+    }
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}
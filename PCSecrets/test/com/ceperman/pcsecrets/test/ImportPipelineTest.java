@@ -0,0 +1,218 @@
+/**
+ *
+ */
+package com.ceperman.pcsecrets.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.ceperman.pcsecrets.CSVRecordSource;
+import com.ceperman.pcsecrets.DataFormatException;
+import com.ceperman.pcsecrets.HostSecret;
+import com.ceperman.pcsecrets.ImportPipeline;
+import com.ceperman.pcsecrets.SecretsCollection;
+
+/**
+ * Test the streaming import of CSV records
+ * @author Chris Wood
+ */
+public class ImportPipelineTest extends TestCase {
+  private static final String[] MAPPING = { "site", "user", "pass", null, "notes", null };
+
+  private File file;
+  private SecretsCollection secrets;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("import", ".csv");
+    secrets = new SecretsCollection();
+    secrets.addOrUpdate(new HostSecret("Existing", "u", "p", "", ""));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+    super.tearDown();
+  }
+
+  /**
+   * Records are mapped by field name; nothing changes until the result is applied
+   */
+  public void testImport() throws Exception {
+    write("notes,site,user,pass\n\"two\nlines\",\"first\nsecond\",u1,p1\n,other,u2,p2\n");
+    ImportPipeline.Result result = stage(true, false);
+    assertEquals(2, result.getRecords());
+    assertEquals(2, result.getAdded());
+    assertEquals(1, secrets.getSize());
+    result.applyTo(secrets);
+    assertEquals(3, secrets.getSize());
+    HostSecret first = secrets.get("first");
+    assertEquals("u1", first.getUsername());
+    assertEquals("p1", first.getPassword());
+    assertEquals("two\nlines", first.getNote());
+    assertEquals("", first.getEmail());
+  }
+
+  /**
+   * Duplicates of existing secrets, or of earlier records, are ignored or replace
+   */
+  public void testDuplicates() throws Exception {
+    write("site,user,pass,notes\nexisting,u,p,\nEXISTING,x,y,\nnew,a,b,\nNew,c,d,\n");
+    ImportPipeline.Result ignored = stage(true, false);
+    assertEquals(4, ignored.getRecords());
+    assertEquals(3, ignored.getDuplicates());
+    assertEquals(1, ignored.getAdded());
+    assertEquals("a", ignored.getStaged().get(0).getUsername());
+
+    ImportPipeline.Result replaced = stage(true, true);
+    assertEquals(3, replaced.getDuplicates());
+    assertEquals(2, replaced.getAdded()); // the identical one is not replaced
+    replaced.applyTo(secrets);
+    assertEquals(2, secrets.getSize());
+    assertEquals("x", secrets.get("Existing").getUsername());
+    assertEquals("c", secrets.get("new").getUsername());
+  }
+
+  /**
+   * Secrets added to the collection after staging are not replaced if
+   * duplicates are ignored
+   */
+  public void testChangedSinceStaging() throws Exception {
+    write("site,user,pass,notes\nfirst,u1,p1,\nsecond,u2,p2,\nthird,u3,p3,\n");
+    ImportPipeline.Result ignored = stage(true, false);
+    assertEquals(3, ignored.getAdded());
+    secrets.addOrUpdate(new HostSecret("FIRST", "mine", "p", "", ""));
+    secrets.addOrUpdate(new HostSecret("second", "u2", "p2", "", ""));
+    ignored.applyTo(secrets);
+    assertEquals(1, ignored.getAdded());
+    assertEquals(1, ignored.getChanged());
+    assertEquals(1, ignored.getIdentical());
+    assertEquals("mine", secrets.get("first").getUsername());
+    assertEquals("u3", secrets.get("third").getUsername());
+    assertEquals(4, secrets.getSize());
+
+    secrets.delete("first");
+    ImportPipeline.Result replaced = stage(true, true);
+    assertEquals(1, replaced.getAdded());
+    secrets.addOrUpdate(new HostSecret("First", "other", "p", "", ""));
+    replaced.applyTo(secrets);
+    assertEquals(1, replaced.getAdded());
+    assertEquals(1, replaced.getChanged());
+    assertEquals("u1", secrets.get("first").getUsername());
+  }
+
+  /**
+   * Records are classified against the collection and earlier records
+   */
+  public void testClassification() throws Exception {
+    write("site,user,pass,notes\nexisting,u,p,\nEXISTING,x,y,\nnew,a,b,\nNew,a,b,\nNEW,c,d,\n");
+    for (boolean replace : new boolean[] { false, true }) {
+      ImportPipeline.Result result = stage(true, replace);
+      assertEquals(5, result.getRecords());
+      assertEquals(1, result.getNew());
+      assertEquals(2, result.getChanged());
+      assertEquals(2, result.getIdentical());
+      assertEquals(4, result.getDuplicates());
+      assertEquals(replace ? 2 : 1, result.getAdded());
+      assertEquals(replace ? "c" : "a", result.getStaged().get(result.getAdded() - 1).getUsername());
+    }
+    assertEquals(1, secrets.getSize());
+  }
+
+  /**
+   * Without a header the fields are numbered; a short record is an error
+   */
+  public void testNoHeader() throws Exception {
+    write("a,b,c\nd,e\n");
+    CSVRecordSource source = new CSVRecordSource(file, false);
+    try {
+      assertEquals("#3", source.getFieldNames()[2]);
+      ImportPipeline pipeline = new ImportPipeline(new String[] { "#1", null, null, null, null, null }, false);
+      pipeline.stage(source, secrets, null);
+      fail("field count not checked");
+    } catch (DataFormatException expected) {
+      assertTrue(expected.getMessage(), expected.getMessage().contains("2"));
+    } finally {
+      source.close();
+    }
+  }
+
+  /**
+   * Batches are mapped in parallel, but staged in record order
+   */
+  public void testBatches() throws Exception {
+    final int count = ImportPipeline.PROGRESS_INTERVAL * 5 + 7;
+    StringBuilder sb = new StringBuilder("site,user,pass,notes\n");
+    for (int i = 0; i < count; i++) {
+      sb.append("secret").append(i % (count - 100)).append(",u").append(i).append(",p,n\n"); // last 100 repeat the first
+    }
+    write(sb.toString());
+    final int[] reports = new int[1];
+    CSVRecordSource source = new CSVRecordSource(file, true);
+    ImportPipeline.Result result = new ImportPipeline(MAPPING, true).stage(source, secrets,
+        new ImportPipeline.Listener() {
+          @Override
+          public void progress(int records, int percent) {
+            reports[0]++;
+            assertEquals(Math.min(reports[0] * ImportPipeline.PROGRESS_INTERVAL, count), records);
+          }
+        });
+    source.close();
+    assertEquals(6, reports[0]);
+    assertEquals(count, result.getRecords());
+    assertEquals(100, result.getDuplicates());
+    assertEquals(count - 100, result.getAdded());
+    for (int i = 0; i < count - 100; i++) {
+      HostSecret staged = result.getStaged().get(i);
+      assertEquals("secret" + i, staged.getDescription());
+      assertEquals("u" + (i < 100 ? i + count - 100 : i), staged.getUsername()); // replaced by the later record
+    }
+  }
+
+  /**
+   * A cancelled import stops early and applies nothing
+   */
+  public void testCancel() throws Exception {
+    StringBuilder sb = new StringBuilder("site,user,pass,notes\n");
+    for (int i = 0; i < ImportPipeline.PROGRESS_INTERVAL * 3; i++) {
+      sb.append("secret").append(i).append(",u,p,n\n");
+    }
+    write(sb.toString());
+    final ImportPipeline pipeline = new ImportPipeline(MAPPING, false);
+    final int[] reports = new int[1];
+    CSVRecordSource source = new CSVRecordSource(file, true);
+    ImportPipeline.Result result = pipeline.stage(source, secrets, new ImportPipeline.Listener() {
+      @Override
+      public void progress(int records, int percent) {
+        reports[0]++;
+        assertTrue(percent > 0 && percent < 100);
+        pipeline.cancel();
+      }
+    });
+    source.close();
+    assertEquals(1, reports[0]);
+    assertTrue(result.isCancelled());
+    assertEquals(ImportPipeline.PROGRESS_INTERVAL, result.getRecords());
+    result.applyTo(secrets);
+    assertEquals(1, secrets.getSize());
+  }
+
+  private ImportPipeline.Result stage(boolean header, boolean replace) throws Exception {
+    CSVRecordSource source = new CSVRecordSource(file, header);
+    try {
+      return new ImportPipeline(MAPPING, replace).stage(source, secrets, null);
+    } finally {
+      source.close();
+    }
+  }
+
+  private void write(String content) throws IOException {
+    FileWriter writer = new FileWriter(file);
+    writer.write(content);
+    writer.close();
+  }
+}
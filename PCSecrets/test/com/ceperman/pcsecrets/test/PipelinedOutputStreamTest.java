@@ -0,0 +1,117 @@
+/**
+ *
+ */
+package com.ceperman.pcsecrets.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.ceperman.utils.PipelinedOutputStream;
+
+/**
+ * Test the pipelined output stream
+ * @author Chris Wood
+ */
+public class PipelinedOutputStreamTest extends TestCase {
+
+  /**
+   * The data arrives complete and in order, written and closed on the writer thread
+   */
+  public void testPipeline() throws Exception {
+    byte[] data = new byte[100000];
+    new Random(1).nextBytes(data);
+    final Thread producer = Thread.currentThread();
+    final boolean[] otherThread = new boolean[2];
+    ByteArrayOutputStream target = new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        otherThread[0] = Thread.currentThread() != producer;
+        super.write(b, off, len);
+      }
+
+      @Override
+      public void close() {
+        otherThread[1] = Thread.currentThread() != producer;
+      }
+    };
+    PipelinedOutputStream pipeline = new PipelinedOutputStream(target, 1000, 1);
+    for (int off = 0; off < data.length; off += 333) {
+      pipeline.write(data, off, Math.min(333, data.length - off));
+    }
+    pipeline.close();
+    pipeline.close(); // no effect
+    assertTrue(Arrays.equals(data, target.toByteArray()));
+    assertTrue(otherThread[0]);
+    assertTrue(otherThread[1]);
+  }
+
+  /**
+   * A failure writing the target is reported to the producer, which is not left waiting
+   */
+  public void testFailure() throws Exception {
+    OutputStream target = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("broken pipe");
+      }
+    };
+    PipelinedOutputStream pipeline = new PipelinedOutputStream(target, 10, 1);
+    try {
+      for (int i = 0; i < 1000; i++) {
+        pipeline.write(new byte[10]);
+      }
+      pipeline.close();
+      fail("failure not reported");
+    } catch (IOException e) {
+      assertEquals("broken pipe", e.getMessage());
+    }
+    try {
+      pipeline.close();
+      fail("failure not reported on close");
+    } catch (IOException e) {
+      assertEquals("broken pipe", e.getMessage());
+    }
+  }
+
+  /**
+   * Aborting ends the writer without closing the target, and further writes fail
+   */
+  public void testAbort() throws Exception {
+    final boolean[] closed = new boolean[1];
+    ByteArrayOutputStream target = new ByteArrayOutputStream() {
+      @Override
+      public void close() {
+        closed[0] = true;
+      }
+    };
+    PipelinedOutputStream pipeline = new PipelinedOutputStream(target, 10, 1);
+    pipeline.write(new byte[25]);
+    pipeline.abort();
+    for (int i = 0; i < 100 && writerRunning(); i++) {
+      Thread.sleep(50);
+    }
+    assertFalse(writerRunning());
+    assertFalse(closed[0]);
+    try {
+      pipeline.write(1);
+      fail("write after abort");
+    } catch (IOException e) {
+      // expected
+    }
+    pipeline.abort(); // no effect
+  }
+
+  private static boolean writerRunning() {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals("PipelinedOutputStream")) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -5,9 +5,17 @@ package com.ceperman.pcsecrets.test;
 
 import junit.framework.TestCase;
 
+import org.json.JSONObject;
+
 import com.ceperman.pcsecrets.DatedSecretsCollection;
+import com.ceperman.pcsecrets.DeviceSecretsCollection;
 import com.ceperman.pcsecrets.HostSecret;
+import com.ceperman.pcsecrets.SecretsCollection;
+import com.ceperman.pcsecrets.SyncBase;
+import com.ceperman.pcsecrets.SyncDevice;
 import com.ceperman.pcsecrets.SyncDialog;
+import com.ceperman.pcsecrets.SyncEngine;
+import com.ceperman.pcsecrets.VaultDigest;
 
 /**
  * Test secret categorisation
@@ -234,6 +242,153 @@ public class SecretCategorisationTest extends TestCase {
     assertTrue(SyncDialog.categoriseSecret(listSecret, pcSecrets, phoneSecrets) == DELETED_ON_DEVICE);
 	}
 	
+	/**
+	 * Test the sync engine's combined list and cached categories
+	 */
+	public final void testSyncEngine() {
+	  phoneSecrets.setLastSyncTimestamp(baseTime - 100);
+	  HostSecret deleted = createSecret("jjjj"); // deleted on both - not listed
+	  deleted.setDeleted(true);
+	  phoneSecrets.addOrUpdate(deleted);
+	  SyncDevice syncDevice = new SyncDevice("device");
+	  syncDevice.addSecret("JJJJ", baseTime);
+	  syncDevice.addSecret("hhhh", baseTime);
+	  SyncEngine engine = new SyncEngine(pcSecrets, phoneSecrets, syncDevice);
+	  assertEquals(9, engine.getEntries().size());
+	  assertNull(engine.find("jjjj"));
+	  SyncDialog.ListSecret listSecret = engine.find("HHHH");
+	  assertTrue(listSecret.isDeletedOnPC());
+	  assertEquals(CONFLICT_VALUE, engine.getCategory(listSecret));
+	  int[] counts = engine.getCounts();
+	  assertEquals(1, counts[PC_VALUE]);
+	  assertEquals(1, counts[PHONE_VALUE]);
+	  assertEquals(4, counts[CONFLICT_VALUE]);
+	  assertEquals(CONFLICT_VALUE, engine.getCategory(engine.find("gggg")));
+	  /* resolve the conflict - the category is recomputed */
+	  HostSecret merged = createSecret("gggg");
+	  merged.setPassword("merged");
+	  merged.setTimestamp(baseTime + 1000);
+	  pcSecrets.addOrUpdate(merged);
+	  engine.find("gggg").setMerged(true);
+	  assertEquals(PC_VALUE, engine.getCategory(engine.find("gggg")));
+	  assertEquals(2, engine.getDeviceUpdates().size()); // aaaa, gggg
+	  /* accept the pc deletion */
+	  listSecret.setMerged(true);
+	  assertEquals(DELETED_ON_PC, engine.getCategory(listSecret));
+	  assertEquals(3, engine.getDeviceUpdates().size());
+	}
+	
+	/**
+	 * A delta from the device expands to the collection a full sync would send
+	 */
+	public final void testDeltaExpansion() {
+	  long lastSync = baseTime + 200;
+	  SyncDevice syncDevice = new SyncDevice("device");
+	  syncDevice.addSecret("kkkk", baseTime + 300); // deleted on pc since
+	  DeviceSecretsCollection delta = new DeviceSecretsCollection();
+	  delta.setDeltaSince(lastSync);
+	  HostSecret secret = createSecret("bbbb"); // new on device
+	  secret.setTimestamp(baseTime + 400);
+	  delta.addOrUpdate(secret);
+	  secret = createSecret("aaaa"); // updated on device
+	  secret.setPassword("device");
+	  secret.setTimestamp(baseTime + 400);
+	  delta.addOrUpdate(secret);
+	  syncDevice.setSyncVersion(pcSecrets.getVersion()); // the last sync
+	  HostSecret pcChanged = createSecret("llll"); // updated on pc since
+	  pcChanged.setTimestamp(baseTime + 300);
+	  pcSecrets.addOrUpdate(pcChanged);
+	  HostSecret imported = createSecret("mmmm"); // added on pc since, with an older timestamp
+	  imported.setTimestamp(baseTime + 100);
+	  pcSecrets.addOrUpdate(imported);
+	  DeviceSecretsCollection full = delta.expandDelta(pcSecrets, syncDevice);
+	  full.setLastSyncTimestamp(lastSync);
+	  assertFalse(full.isDelta());
+	  assertEquals("device", full.get("aaaa").getPassword());
+	  assertSame(pcSecrets.get("cccc"), full.get("cccc"));
+	  assertNull(full.get("llll"));
+	  assertNull(full.get("mmmm"));
+	  assertNotNull(full.get("kkkk"));
+	  SyncEngine engine = new SyncEngine(pcSecrets, full, syncDevice);
+	  assertEquals(PHONE_VALUE, engine.getCategory(engine.find("aaaa")));
+	  assertEquals(PC_VALUE, engine.getCategory(engine.find("llll")));
+	  assertEquals(PC_VALUE, engine.getCategory(engine.find("mmmm")));
+	  assertEquals(DELETED_ON_PC, engine.getCategory(engine.find("kkkk")));
+	  assertEquals(EQUALS_VALUE, engine.getCategory(engine.find("dddd")));
+	}
+	
+	/**
+	 * Test that a device sending only the differing digest buckets is expanded
+	 * correctly
+	 */
+	public final void testBucketExpansion() {
+	  VaultDigest digest = pcSecrets.getDigest("sync".getBytes());
+	  DeviceSecretsCollection partial = new DeviceSecretsCollection();
+	  HostSecret secret = createSecret("aaaa"); // updated on device
+	  secret.setPassword("device");
+	  secret.setTimestamp(baseTime + 400);
+	  partial.addOrUpdate(secret);
+	  int bucket = digest.getBucket("aaaa");
+	  partial.setBuckets(new int[] { bucket });
+	  DeviceSecretsCollection full = partial.expandBuckets(pcSecrets, digest);
+	  assertFalse(full.isPartial());
+	  assertEquals("device", full.get("aaaa").getPassword());
+	  for (HostSecret pcSecret : pcSecrets) {
+	    if (digest.getBucket(pcSecret.getDescription()) != bucket) {
+	      assertSame(pcSecret, full.get(pcSecret.getDescription()));
+	    } else if (!pcSecret.getDescription().equals("aaaa")) {
+	      assertNull(full.get(pcSecret.getDescription())); // not on the device
+	    }
+	  }
+	  assertEquals(0, partial.createReply().getSize());
+	  assertFalse(partial.createReply().isPartial());
+	}
+	
+	/**
+	 * Test three-way merge of conflicts using the base from the last sync
+	 */
+	public final void testThreeWayMerge() throws Exception {
+	  long lastSync = baseTime + 100;
+	  SecretsCollection baseSecrets = new SecretsCollection();
+	  baseSecrets.addOrUpdate(createSecret("merge"));
+	  baseSecrets.addOrUpdate(createSecret("clash"));
+	  SyncBase base = SyncBase.of(baseSecrets);
+	  base = SyncBase.fromJSON(new JSONObject(base.toJSON().toString())); // as saved
+	  /* different fields changed on each side */
+	  HostSecret pc = createSecret("merge");
+	  pc.setPassword("pc");
+	  pc.setTimestamp(baseTime + 200);
+	  pcSecrets.addOrUpdate(pc);
+	  HostSecret device = createSecret("merge");
+	  device.setNote("device");
+	  device.setTimestamp(baseTime + 300);
+	  phoneSecrets.addOrUpdate(device);
+	  /* the same field changed differently */
+	  pc = createSecret("clash");
+	  pc.setPassword("pc");
+	  pc.setTimestamp(baseTime + 200);
+	  pcSecrets.addOrUpdate(pc);
+	  device = createSecret("clash");
+	  device.setPassword("device");
+	  device.setTimestamp(baseTime + 300);
+	  phoneSecrets.addOrUpdate(device);
+	  phoneSecrets.setLastSyncTimestamp(lastSync);
+	  SyncDevice syncDevice = new SyncDevice("device");
+	  syncDevice.setBase(base);
+	  syncDevice = new SyncDevice(new JSONObject(syncDevice.toJSON().toString()));
+	  SyncEngine engine = new SyncEngine(pcSecrets, phoneSecrets, syncDevice);
+	  assertEquals(CONFLICT_VALUE, engine.getCategory(engine.find("merge")));
+	  assertEquals(CONFLICT_VALUE, engine.getCategory(engine.find("clash")));
+	  assertEquals(1, engine.mergeConflicts(syncDevice.getBase()));
+	  assertEquals(PC_VALUE, engine.getCategory(engine.find("merge")));
+	  assertEquals(CONFLICT_VALUE, engine.getCategory(engine.find("clash")));
+	  HostSecret merged = pcSecrets.get("merge");
+	  assertEquals("pc", merged.getPassword());
+	  assertEquals("device", merged.getNote());
+	  assertEquals("test", merged.getUsername());
+	  assertEquals(0, new SyncEngine(pcSecrets, phoneSecrets, new SyncDevice("device")).mergeConflicts(null));
+	}
+	
 	private HostSecret createSecret(String id) {
 		HostSecret secret = new HostSecret(id, "test", "test", "test", "test");
 		secret.setTimestamp(baseTime);
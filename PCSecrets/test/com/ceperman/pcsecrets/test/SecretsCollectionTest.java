@@ -0,0 +1,236 @@
+/**
+ *
+ */
+package com.ceperman.pcsecrets.test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+import junit.framework.TestCase;
+
+import com.ceperman.pcsecrets.HostSecret;
+import com.ceperman.pcsecrets.SecretsCollection;
+import com.ceperman.pcsecrets.SecretsSearchIndex;
+import com.ceperman.pcsecrets.TimestampFormat;
+import com.ceperman.pcsecrets.VaultDigest;
+
+/**
+ * Test SecretsCollection snapshots and ordering
+ * @author Chris Wood
+ */
+public class SecretsCollectionTest extends TestCase {
+
+  private SecretsCollection secrets;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    secrets = new SecretsCollection();
+    secrets.addOrUpdate(new HostSecret("cccc", "u", "p", "e", "n"));
+    secrets.addOrUpdate(new HostSecret("aaaa", "u", "p", "e", "n"));
+    secrets.addOrUpdate(new HostSecret("BBBB", "u", "p", "e", "n"));
+  }
+
+  /**
+   * Secrets are kept in case-insensitive description order
+   */
+  public void testOrder() {
+    assertEquals("aaaa", secrets.getElementAt(0).getDescription());
+    assertEquals("BBBB", secrets.getElementAt(1).getDescription());
+    assertEquals("cccc", secrets.getElementAt(2).getDescription());
+    assertNotNull(secrets.get("bbbb"));
+    assertNull(secrets.get("dddd"));
+  }
+
+  /**
+   * A snapshot is not affected by later changes to the collection
+   */
+  public void testSnapshotIsolation() {
+    SecretsCollection.Snapshot before = secrets.snapshot();
+    Iterator<HostSecret> iterator = secrets.iterator();
+    iterator.next();
+    secrets.delete("bbbb");
+    secrets.addOrUpdate(new HostSecret("dddd"));
+    /* the iterator must not throw ConcurrentModificationException */
+    assertEquals("BBBB", iterator.next().getDescription());
+    assertEquals(3, before.size());
+    assertEquals(3, secrets.getSize());
+    assertTrue(secrets.snapshot().getVersion() > before.getVersion());
+    /* an update replaces the secret, so the old snapshot keeps the old values */
+    HostSecret old = secrets.get("aaaa");
+    secrets.addOrUpdate(new HostSecret("aaaa", "u2", "p2", "e", "n"));
+    assertEquals("p", old.getPassword());
+    assertEquals("u", before.get(0).getUsername());
+    assertEquals("u2", secrets.get("aaaa").getUsername());
+  }
+
+  /**
+   * A batch update gives the same result as individual updates
+   */
+  public void testAddOrUpdateAll() {
+    List<HostSecret> batch = new ArrayList<HostSecret>();
+    batch.add(new HostSecret("eeee"));
+    batch.add(new HostSecret("AAAA", "new", "p", "e", "n"));
+    batch.add(new HostSecret("bbbb-2"));
+    final List<String> events = new ArrayList<String>();
+    secrets.addListDataListener(new ListDataListener() {
+      public void intervalAdded(ListDataEvent e) {
+        events.add("+" + e.getIndex0());
+      }
+      public void intervalRemoved(ListDataEvent e) {
+        events.add("-" + e.getIndex0());
+      }
+      public void contentsChanged(ListDataEvent e) {
+        events.add("=" + e.getIndex0() + "-" + e.getIndex1());
+      }
+    });
+    secrets.addOrUpdateAll(batch);
+    assertEquals("[+2, +4, =0-4]", events.toString());
+    assertEquals(5, secrets.getSize());
+    assertEquals("aaaa", secrets.getElementAt(0).getDescription());
+    assertEquals("new", secrets.getElementAt(0).getUsername());
+    assertEquals("bbbb-2", secrets.getElementAt(2).getDescription());
+    assertEquals("eeee", secrets.getElementAt(4).getDescription());
+  }
+
+  /**
+   * Values survive field updates and are cleared by wipe
+   */
+  public void testWipe() throws Exception {
+    HostSecret secret = new HostSecret("dddd", "u", "p\u00e4ssword", "e", "note");
+    secret.setNote("new note");
+    assertEquals("p\u00e4ssword", secret.getPassword());
+    secret.setPassword("p");
+    assertEquals("new note", secret.getNote());
+    assertEquals("p", new String(secret.getPasswordChars()));
+    assertEquals("new note", new String(secret.getNoteBytes(), "UTF-8"));
+    secrets.addOrUpdate(secret);
+    SecretsSearchIndex index = secrets.getSearchIndex();
+    assertEquals(1, index.find("new note").size());
+    secrets.wipe();
+    assertEquals(0, index.find("new note").size());
+    assertEquals("", secrets.get("dddd").getPassword());
+    assertEquals("", secrets.get("aaaa").getNote());
+    assertEquals("u", secrets.get("aaaa").getUsername());
+  }
+
+  /**
+   * A copied secret is exact, and a copied collection is independent
+   */
+  public void testCopy() throws Exception {
+    HostSecret secret = secrets.get("aaaa");
+    secret.setTimestamp(1381000000123L);
+    HostSecret copied = new HostSecret(secret);
+    assertNotSame(secret, copied);
+    assertTrue(secret.equals(copied));
+    assertEquals(1381000000123L, copied.getTimestamp());
+    secret.wipe();
+    assertEquals("p", copied.getPassword());
+
+    SecretsCollection copy = new SecretsCollection(secrets);
+    assertSame(secrets.snapshot(), copy.snapshot());
+    copy.addOrUpdate(new HostSecret("bbbb", "changed", "p", "e", "n"));
+    copy.delete("cccc");
+    assertEquals("u", secrets.get("bbbb").getUsername());
+    assertEquals(3, secrets.getSize());
+    secrets.addOrUpdate(new HostSecret("cccc", "also changed", "p", "e", "n"));
+    assertNull(copy.get("cccc"));
+    /* write the copy back - only its changes are recorded */
+    long before = secrets.getVersion();
+    copy = new SecretsCollection(secrets);
+    copy.addOrUpdate(new HostSecret("aaaa", "v", "p", "e", "n"));
+    secrets.getSearchIndex();
+    secrets.replaceSecrets(copy);
+    assertEquals("v", secrets.get("aaaa").getUsername());
+    assertEquals(1, secrets.changesSince(before).getUpdated().size());
+    assertEquals(1, secrets.getSearchIndex().find("v").size());
+    String formatted = TimestampFormat.format(1381000000123L);
+    assertSame(formatted, TimestampFormat.format(1381000000999L));
+    assertEquals(1381000000000L, TimestampFormat.parse(formatted));
+  }
+
+  /**
+   * Changes since a version are reported once each, latest state only
+   */
+  public void testChangesSince() {
+    secrets.setChanged(false);
+    long saved = secrets.getVersion();
+    assertEquals(saved, secrets.getSavedVersion());
+    assertTrue(secrets.changesSince(saved).isEmpty());
+    secrets.addOrUpdate(new HostSecret("aaaa", "v", "p", "e", "n"));
+    secrets.addOrUpdate(new HostSecret("dddd"));
+    secrets.delete("cccc");
+    secrets.addOrUpdate(new HostSecret("AAAA", "w", "p", "e", "n"));
+    SecretsCollection.Changes changes = secrets.changesSince(saved);
+    assertEquals(2, changes.getUpdated().size());
+    assertEquals("dddd", changes.getUpdated().get(0).getDescription());
+    assertEquals("w", changes.getUpdated().get(1).getUsername());
+    assertEquals(1, changes.getDeleted().size());
+    assertEquals(secrets.getVersion(), secrets.getModifiedVersion("aaaa"));
+    assertEquals(0, secrets.getModifiedVersion("eeee"));
+    /* replacing the secrets records only the differences */
+    SecretsCollection copy = new SecretsCollection(secrets);
+    copy.delete("bbbb");
+    long before = secrets.getVersion();
+    secrets.replaceSecrets(copy);
+    changes = secrets.changesSince(before);
+    assertEquals(0, changes.getUpdated().size());
+    assertEquals("BBBB", changes.getDeleted().get(0));
+  }
+
+  /**
+   * The digest follows changes, and identical contents give identical digests
+   */
+  public void testDigest() {
+    byte[] key = "sync".getBytes();
+    VaultDigest digest = secrets.getDigest(key);
+    SecretsCollection other = new SecretsCollection();
+    for (HostSecret secret : secrets) {
+      other.addOrUpdate(new HostSecret(secret.getDescription().toUpperCase(), secret.getUsername(),
+          secret.getPassword(), secret.getEmail(), secret.getNote()));
+    }
+    VaultDigest otherDigest = other.getDigest(key);
+    assertEquals(digest.getRootHex(), otherDigest.getRootHex());
+    assertEquals(0, digest.differingBuckets(otherDigest.getBucketSummary()).length);
+    assertFalse(digest.getRootHex().equals(new SecretsCollection().getDigest("other".getBytes()).getRootHex()));
+    other.addOrUpdate(new HostSecret("AAAA", "u", "changed", "e", "n"));
+    int[] differing = digest.differingBuckets(otherDigest.getBucketSummary());
+    assertEquals(1, differing.length);
+    assertEquals(digest.getBucket("aaaa"), differing[0]);
+    secrets.addOrUpdate(new HostSecret("aaaa", "u", "changed", "e", "n"));
+    assertEquals(digest.getRootHex(), otherDigest.getRootHex());
+    other.delete("bbbb");
+    assertFalse(digest.getRootHex().equals(otherDigest.getRootHex()));
+    secrets.delete("bbbb");
+    assertEquals(digest.getRootHex(), otherDigest.getRootHex());
+    assertSame(digest, secrets.getDigest(key));
+    assertNotSame(digest, secrets.getDigest("other".getBytes()));
+  }
+
+  /**
+   * Content digests follow field changes and ignore description case
+   */
+  public void testContentDigest() {
+    HostSecret secret = new HostSecret("Bank", "u", "p", "e", "n");
+    HostSecret same = new HostSecret("BANK", "u", "p", "e", "n");
+    same.setTimestamp(0);
+    assertEquals(secret.getContentDigest(), same.getContentDigest());
+    assertTrue(secret.equals(same));
+    same.setNote("changed");
+    assertFalse(secret.getContentDigest().equals(same.getContentDigest()));
+    assertFalse(secret.equals(same));
+    /* moving a byte between password and note changes the digest */
+    assertFalse(new HostSecret("Bank", "u", "pn", "e", "").getContentDigest().equals(
+        new HostSecret("Bank", "u", "p", "e", "n").getContentDigest()));
+    HostSecret copy = new HostSecret(secret);
+    assertEquals(secret.getContentDigest(), copy.getContentDigest());
+    copy.setUsername("other");
+    assertFalse(secret.equals(copy));
+    copy.setValuesFrom(secret);
+    assertTrue(secret.equals(copy));
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ *
+ */
+package com.ceperman.pcsecrets.test;
+
+import junit.framework.TestCase;
+
+import com.ceperman.pcsecrets.FilteredSecretsModel;
+import com.ceperman.pcsecrets.HostSecret;
+import com.ceperman.pcsecrets.SecretsCollection;
+import com.ceperman.pcsecrets.SecretsSearchIndex;
+
+/**
+ * Test the secrets search index and filtered list model
+ * @author Chris Wood
+ */
+public class SecretsSearchIndexTest extends TestCase {
+
+  private SecretsCollection secrets;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    secrets = new SecretsCollection();
+    secrets.addOrUpdate(new HostSecret("Bank account", "jsmith", "x", "john@example.com", "Sort code on card"));
+    secrets.addOrUpdate(new HostSecret("Email", "john.smith", "x", "john@gmail.com", ""));
+    secrets.addOrUpdate(new HostSecret("Wifi", "", "x", "", "Router in the hall"));
+  }
+
+  /**
+   * Substring and word prefix matching across fields
+   */
+  public void testFind() {
+    SecretsSearchIndex index = secrets.getSearchIndex();
+    assertNull(index.find("  "));
+    assertEquals(2, index.find("smith").size());
+    assertEquals(1, index.find("GMAIL").size());
+    assertEquals(1, index.find("rou").size());
+    assertEquals(1, index.find("ha").size());
+    assertEquals(1, index.find("al").size()); // within "hall"
+    assertEquals(1, index.find("john card").size());
+  }
+
+  /**
+   * The index follows changes to the collection
+   */
+  public void testIncrementalUpdate() {
+    SecretsSearchIndex index = secrets.getSearchIndex();
+    secrets.addOrUpdate(new HostSecret("Wifi", "", "x", "", "Router upstairs"));
+    assertEquals(0, index.find("hall").size());
+    assertEquals(1, index.find("upstairs").size());
+    secrets.delete("email");
+    assertEquals(1, index.find("smith").size());
+    secrets.addOrUpdate(new HostSecret("Phone", "", "1234", "", ""));
+    assertEquals(1, index.find("pho").size());
+  }
+
+  /**
+   * The filtered model shows matches in collection order
+   */
+  public void testFilteredModel() {
+    FilteredSecretsModel model = new FilteredSecretsModel(secrets);
+    assertEquals(3, model.getSize());
+    model.setFilter("john");
+    assertEquals(2, model.getSize());
+    assertEquals("Bank account", model.getElementAt(0).getDescription());
+    assertEquals("Email", model.getElementAt(1).getDescription());
+    secrets.addOrUpdate(new HostSecret("Another", "john", "x", "", ""));
+    assertEquals(3, model.getSize());
+    assertEquals(0, model.indexOf(secrets.get("another")));
+    model.setFilter("");
+    assertEquals(4, model.getSize());
+  }
+}
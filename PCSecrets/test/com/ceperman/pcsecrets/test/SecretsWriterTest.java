@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package com.ceperman.pcsecrets.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.ceperman.pcsecrets.CSVRecordSource;
+import com.ceperman.pcsecrets.CSVSecretsWriter;
+import com.ceperman.pcsecrets.HostSecret;
+import com.ceperman.pcsecrets.JSONRecordSource;
+import com.ceperman.pcsecrets.JSONSecretsWriter;
+import com.ceperman.pcsecrets.RecordCandidate;
+import com.ceperman.pcsecrets.RecordSource;
+import com.ceperman.pcsecrets.SecretsCollection;
+import com.ceperman.pcsecrets.SecretsWriter;
+import com.ceperman.pcsecrets.XMLRecordSource;
+import com.ceperman.pcsecrets.XMLSecretsWriter;
+
+/**
+ * Test the streaming export writers, by reading the exports back
+ * @author Chris Wood
+ */
+public class SecretsWriterTest extends TestCase {
+  private File file;
+  private SecretsCollection secrets;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("export", ".dat");
+    secrets = new SecretsCollection();
+    secrets.addOrUpdate(new HostSecret("a <b> & \"c\"", "user", "pa'ss", "", "note\nline2 \u00e9"));
+    secrets.addOrUpdate(new HostSecret("z", "", "", "e@x", ""));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+    super.tearDown();
+  }
+
+  /**
+   * CSV has a header and one record per secret
+   */
+  public void testCSV() throws Exception {
+    secrets.delete("a <b> & \"c\""); // the platform encoding might not have all characters
+    secrets.addOrUpdate(new HostSecret("a \"b\", c", "user", "pass", "", "note\nline2"));
+    export(new CSVSecretsWriter(file));
+    CSVRecordSource source = new CSVRecordSource(file, true);
+    try {
+      assertEquals(6, source.getFieldNames().length);
+      check(source, 0, 1, 2, 3, 4);
+    } finally {
+      source.close();
+    }
+  }
+
+  /**
+   * JSON has one object per secret, in the secrets array
+   */
+  public void testJSON() throws Exception {
+    export(new JSONSecretsWriter(file));
+    List<RecordCandidate> candidates = JSONRecordSource.findCandidates(file);
+    assertEquals(1, candidates.size());
+    assertEquals("$.secrets[*].secret", candidates.get(0).getPath());
+    assertEquals(2, candidates.get(0).getCount());
+    RecordSource source = new JSONRecordSource(file, candidates.get(0));
+    try {
+      check(source, 0, 1, 2, 3, 4);
+    } finally {
+      source.close();
+    }
+  }
+
+  /**
+   * XML has one element per secret, with escaped values
+   */
+  public void testXML() throws Exception {
+    export(new XMLSecretsWriter(file));
+    List<RecordCandidate> candidates = XMLRecordSource.findCandidates(file);
+    assertEquals(1, candidates.size());
+    assertEquals("$.secrets.secret[*]", candidates.get(0).getPath());
+    assertEquals(2, candidates.get(0).getCount());
+    RecordSource source = new XMLRecordSource(file, candidates.get(0));
+    try {
+      check(source, 0, 1, 2, 3, 4);
+    } finally {
+      source.close();
+    }
+  }
+
+  private void export(SecretsWriter writer) throws IOException {
+    try {
+      for (HostSecret hs : secrets.snapshot()) {
+        writer.write(hs);
+      }
+      writer.finish();
+    } finally {
+      writer.close();
+    }
+  }
+
+  /*
+   * Check the records read back against the secrets, given the field indexes
+   * of description, username, password, email and note. XML values are
+   * trimmed when read.
+   */
+  private void check(RecordSource source, int... fields) throws Exception {
+    for (HostSecret hs : secrets.snapshot()) {
+      String[] record = source.next();
+      assertEquals(hs.getDescription(), record[fields[0]]);
+      assertEquals(hs.getUsername(), record[fields[1]]);
+      assertEquals(hs.getPassword(), record[fields[2]]);
+      assertEquals(hs.getEmail(), record[fields[3]]);
+      assertEquals(hs.getNote(), record[fields[4]]);
+    }
+    assertNull(source.next());
+  }
+}
@@ -54,5 +54,19 @@ public class StringsTest extends TestCase {
 			System.out.println(string + " " + string.length());
 		}
 	}
+	
+	/**
+	 * Strings fold to the same key exactly when they are equal ignoring case,
+	 * including the Turkish dotted and dotless i and the final sigma
+	 */
+	public void testFoldCase() {
+		String[] strings = { "istanbul", "ISTANBUL", "\u0130stanbul", "\u0131stanbul", "\u03c3\u03bf\u03c2", "\u03a3\u039f\u03a3", "Stra\u00dfe", "STRASSE" };
+		for (String s1 : strings) {
+			assertEquals(s1.length(), Strings.foldCase(s1).length());
+			for (String s2 : strings) {
+				assertEquals(s1 + " " + s2, s1.equalsIgnoreCase(s2), Strings.foldCase(s1).equals(Strings.foldCase(s2)));
+			}
+		}
+	}
 
 }
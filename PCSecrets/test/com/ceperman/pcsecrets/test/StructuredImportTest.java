@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package com.ceperman.pcsecrets.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.ceperman.pcsecrets.JSONRecordSource;
+import com.ceperman.pcsecrets.RecordCandidate;
+import com.ceperman.pcsecrets.RecordSource;
+import com.ceperman.pcsecrets.XMLRecordSource;
+import com.ceperman.utils.JsonTokenStream;
+
+/**
+ * Test the streaming JSON and XML record sources
+ * @author Chris Wood
+ */
+public class StructuredImportTest extends TestCase {
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("import", ".dat");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+    super.tearDown();
+  }
+
+  /**
+   * Tokens and values, including escapes
+   */
+  public void testTokens() throws Exception {
+    JsonTokenStream tokens = new JsonTokenStream(new StringReader(
+        "{\"a\": [1, -2.5e3, true, null], \"b\\u00e9\": \"x\\n\\\"y\\\"\", \"c\": {}}"));
+    int[] expected = { JsonTokenStream.BEGIN_OBJECT, JsonTokenStream.NAME, JsonTokenStream.BEGIN_ARRAY,
+        JsonTokenStream.NUMBER, JsonTokenStream.NUMBER, JsonTokenStream.BOOLEAN, JsonTokenStream.NULL,
+        JsonTokenStream.END_ARRAY, JsonTokenStream.NAME, JsonTokenStream.STRING, JsonTokenStream.NAME,
+        JsonTokenStream.BEGIN_OBJECT, JsonTokenStream.END_OBJECT, JsonTokenStream.END_OBJECT,
+        JsonTokenStream.END_DOCUMENT };
+    String[] texts = { null, "a", null, "1", "-2.5e3", "true", null, null, "b\u00e9", "x\n\"y\"", "c", null, null,
+        null, null };
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals("token " + i, expected[i], tokens.next());
+      assertEquals("text " + i, texts[i], tokens.getText());
+    }
+  }
+
+  /**
+   * Invalid JSON is reported as an IOException
+   */
+  public void testSyntaxErrors() throws Exception {
+    String[] invalid = { "{\"a\" 1}", "[1,]", "[1 2]", "{\"a\": tru}", "[\"abc", "[1] 2", "{\"a\": 01x}" };
+    for (String json : invalid) {
+      JsonTokenStream tokens = new JsonTokenStream(new StringReader(json));
+      try {
+        while (tokens.next() != JsonTokenStream.END_DOCUMENT) {
+        }
+        fail("no error for " + json);
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().startsWith("JSON syntax error"));
+      }
+    }
+  }
+
+  /**
+   * Objects in arrays with only simple values are candidates
+   */
+  public void testJSONCandidates() throws Exception {
+    write("{\"version\": 1, \"groups\": [{\"name\": \"g1\", \"secrets\": [{\"site\": \"a\", \"user\": \"u\", \"extra\": {}},"
+        + " {\"site\": \"b\", \"user\": null}]}, {\"name\": \"g2\", \"secrets\": [{\"site\": \"c\"}]}]}");
+    List<RecordCandidate> candidates = JSONRecordSource.findCandidates(file);
+    assertEquals(1, candidates.size());
+    RecordCandidate candidate = candidates.get(0);
+    assertEquals("$.groups[*].secrets[*]", candidate.getPath());
+    assertEquals("secrets", candidate.getElementName());
+    assertEquals("[site, user, extra]", Arrays.toString(candidate.getFieldNames()));
+    assertEquals(3, candidate.getCount());
+  }
+
+  /**
+   * Records are streamed from every array at the candidate path
+   */
+  public void testJSONRecords() throws Exception {
+    write("[{\"site\": \"a\", \"user\": \"u\", \"n\": 12}, {\"user\": null, \"site\": \"b\", \"x\": [1, {\"y\": 2}]},"
+        + " {\"site\": \"c\\u00e9\", \"n\": true}]");
+    List<RecordCandidate> candidates = JSONRecordSource.findCandidates(file);
+    assertEquals(2, candidates.size());
+    assertEquals("$[*]", candidates.get(0).getPath());
+    assertEquals("$[*].x[*]", candidates.get(1).getPath());
+    RecordSource source = new JSONRecordSource(file, candidates.get(0));
+    try {
+      assertEquals("[site, user, n]", Arrays.toString(source.getFieldNames()));
+      assertEquals("[a, u, 12]", Arrays.toString(source.next()));
+      assertEquals("[b, , ]", Arrays.toString(source.next()));
+      assertEquals("[c\u00e9, , true]", Arrays.toString(source.next()));
+      assertNull(source.next());
+      assertEquals(100, source.getProgress());
+    } finally {
+      source.close();
+    }
+  }
+
+  /**
+   * Repeated elements with simple children or attributes are candidates
+   */
+  public void testXMLCandidates() throws Exception {
+    write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<export version=\"1\"><info><by>me</by></info><secrets>"
+        + "<secret><site>a</site><user/></secret><secret><site>b</site><notes>n</notes></secret></secrets>"
+        + "<tags><tag name=\"t1\"/><tag name=\"t2\"/></tags></export>");
+    List<RecordCandidate> candidates = XMLRecordSource.findCandidates(file);
+    assertEquals(3, candidates.size());
+    assertEquals("$.export.info[*]", candidates.get(0).getPath());
+    RecordCandidate secret = candidates.get(1);
+    assertEquals("$.export.secrets.secret[*]", secret.getPath());
+    assertEquals("secret", secret.getElementName());
+    assertEquals("[site, user]", Arrays.toString(secret.getFieldNames()));
+    assertEquals(2, secret.getCount());
+    assertEquals("$.export.tags.tag[*]", candidates.get(2).getPath());
+    assertEquals(2, candidates.get(2).getCount());
+  }
+
+  /**
+   * XML records: trimmed text, attributes, CDATA and entities
+   */
+  public void testXMLRecords() throws Exception {
+    write("<secrets><secret id=\"1\"><site> a </site><user/><notes><![CDATA[x<y]]></notes></secret>"
+        + "<secret id=\"2\"><notes>p &amp; q</notes><site>b</site><other><z>1</z></other></secret></secrets>");
+    RecordCandidate candidate = new RecordCandidate("$.secrets.secret[*]", new String[] { "id", "site", "user", "notes" });
+    RecordSource source = new XMLRecordSource(file, candidate);
+    try {
+      assertEquals("[1, a, , x<y]", Arrays.toString(source.next()));
+      assertEquals("[2, b, , p & q]", Arrays.toString(source.next()));
+      assertNull(source.next());
+    } finally {
+      source.close();
+    }
+  }
+
+  /**
+   * Invalid XML is reported as an IOException
+   */
+  public void testXMLError() throws Exception {
+    write("<secrets><secret><site>a</secret></secrets>");
+    try {
+      XMLRecordSource.findCandidates(file);
+      fail("no error");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private void write(String data) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      writer.write(data);
+    } finally {
+      writer.close();
+    }
+  }
+}
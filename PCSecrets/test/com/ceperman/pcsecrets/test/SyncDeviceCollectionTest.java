@@ -0,0 +1,149 @@
+/**
+ *
+ */
+package com.ceperman.pcsecrets.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.ceperman.pcsecrets.SyncDevice;
+import com.ceperman.pcsecrets.SyncDeviceCollection;
+
+/**
+ * Test the sync device collection and its tombstones
+ * @author Chris Wood
+ */
+public class SyncDeviceCollectionTest extends TestCase {
+
+  private SyncDeviceCollection devices;
+  private SyncDevice phone;
+  private SyncDevice tablet;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    devices = new SyncDeviceCollection();
+    phone = new SyncDevice("phone");
+    tablet = new SyncDevice("tablet");
+    devices.add(phone);
+    devices.add(tablet);
+  }
+
+  /**
+   * Tombstones are shared, and collected once all devices have synced
+   */
+  public void testTombstones() throws Exception {
+    devices.addDeleted("aaaa");
+    devices.addDeleted("bbbb");
+    assertEquals(2, devices.getTombstoneCount());
+    assertEquals(2, phone.getDeletedSecrets().size());
+    assertEquals(2, tablet.getDeletedSecrets().size());
+    phone.clearDeletedSecrets();
+    assertEquals(0, phone.getDeletedSecrets().size());
+    assertEquals(0, devices.collectTombstones());
+    devices.addDeleted("cccc");
+    assertEquals(1, phone.getDeletedSecrets().size());
+    assertEquals(3, tablet.getDeletedSecrets().size());
+    tablet.clearDeletedSecrets();
+    assertEquals(2, devices.collectTombstones());
+    assertEquals(1, devices.getTombstoneCount());
+    /* a new device does not see earlier deletions */
+    SyncDevice laptop = new SyncDevice("laptop");
+    devices.add(laptop);
+    assertEquals(0, laptop.getDeletedSecrets().size());
+    /* forgetting the last device to acknowledge releases its tombstones */
+    devices.remove("phone");
+    assertEquals(1, devices.collectTombstones());
+  }
+
+  /**
+   * Tombstones are saved once, and loaded back for each device
+   */
+  public void testJSON() throws Exception {
+    devices.addDeleted("aaaa");
+    tablet.clearDeletedSecrets();
+    String json = devices.toJSON();
+    SyncDeviceCollection loaded = new SyncDeviceCollection();
+    loaded.fromJSON(json);
+    assertEquals(1, loaded.getTombstoneCount());
+    assertEquals(1, loaded.get("phone").getDeletedSecrets().size());
+    assertEquals(0, loaded.get("tablet").getDeletedSecrets().size());
+  }
+
+  /**
+   * Deletions held per device by earlier versions are loaded into the tombstones
+   */
+  public void testOldFormat() throws Exception {
+    JSONObject device = new JSONObject();
+    device.put(SyncDevice.ID, "old");
+    device.put("timestamp", 500L);
+    JSONArray ds = new JSONArray();
+    ds.put(new JSONObject().put("d", "aaaa").put("t", 1000L));
+    device.put("ds", ds);
+    SyncDeviceCollection loaded = new SyncDeviceCollection();
+    loaded.fromJSON(new JSONArray().put(device).toString());
+    assertEquals(1, loaded.getTombstoneCount());
+    assertEquals("aaaa", loaded.get("old").getDeletedSecrets().iterator().next().getDescription());
+  }
+
+  /**
+   * Devices keep their order, can be found by id and IP, and listeners
+   * receive the right event types
+   */
+  public void testRegistry() {
+    final List<Integer> events = new ArrayList<Integer>();
+    devices.addListDataListener(new ListDataListener() {
+      public void intervalAdded(ListDataEvent e) {
+        events.add(e.getType());
+      }
+      public void intervalRemoved(ListDataEvent e) {
+        events.add(e.getType());
+      }
+      public void contentsChanged(ListDataEvent e) {
+        events.add(e.getType());
+      }
+    });
+    SyncDevice laptop = new SyncDevice("laptop");
+    laptop.setLastIP("192.168.1.3");
+    devices.add(laptop);
+    assertEquals(3, devices.getSize());
+    assertSame(phone, devices.getElementAt(0));
+    assertSame(tablet, devices.getElementAt(1));
+    assertSame(laptop, devices.getElementAt(2));
+    assertNull(devices.getElementAt(3));
+    assertSame(tablet, devices.get("tablet"));
+    assertSame(laptop, devices.getByIP("192.168.1.3"));
+    tablet.setLastIP("192.168.1.2");
+    assertSame(tablet, devices.getByIP("192.168.1.2"));
+    laptop.setLastIP("192.168.1.4");
+    assertNull(devices.getByIP("192.168.1.3"));
+    devices.deviceChanged(laptop);
+    assertSame(tablet, devices.remove("tablet"));
+    assertNull(devices.remove("tablet"));
+    assertSame(laptop, devices.getElementAt(1));
+    assertEquals(1, devices.indexOf(laptop));
+    assertFalse(devices.contains("tablet"));
+    assertNull(devices.getByIP("192.168.1.2"));
+    assertEquals(ListDataEvent.INTERVAL_ADDED, (int) events.get(0));
+    assertEquals(ListDataEvent.CONTENTS_CHANGED, (int) events.get(1));
+    assertEquals(ListDataEvent.INTERVAL_REMOVED, (int) events.get(2));
+    assertEquals(3, events.size());
+    /* replacing the last device is a change, and keeps its pending deletions */
+    devices.addDeleted("aaaa");
+    assertEquals(1, laptop.getDeletedSecrets().size());
+    SyncDevice replacement = new SyncDevice("laptop");
+    devices.add(replacement);
+    assertEquals(2, devices.getSize());
+    assertSame(replacement, devices.getElementAt(1));
+    assertEquals(1, replacement.getDeletedSecrets().size());
+    assertEquals(ListDataEvent.CONTENTS_CHANGED, (int) events.get(events.size() - 1));
+  }
+}
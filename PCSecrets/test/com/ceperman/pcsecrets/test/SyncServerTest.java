@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package com.ceperman.pcsecrets.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+import com.ceperman.pcsecrets.FramedChannel;
+import com.ceperman.pcsecrets.OutputErrorPhone;
+import com.ceperman.pcsecrets.SyncServer;
+
+/**
+ * Test the sync server over the loopback interface
+ * @author Chris Wood
+ */
+public class SyncServerTest extends TestCase {
+  private static final String METADATA = "keylength=128";
+
+  private SyncServer server;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    server = new SyncServer(0, 2);
+    server.configure("password".getBytes("UTF-8"), METADATA);
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop();
+    super.tearDown();
+  }
+
+  /**
+   * Devices connected at the same time each get the metadata before either
+   * has sent anything. Data that cannot be decrypted is answered at once on
+   * its own connection, and is not queued.
+   */
+  public void testConcurrentSessions() throws Exception {
+    Socket first = connect();
+    Socket second = connect();
+    assertEquals(METADATA, readFrame(first));
+    assertEquals(METADATA, readFrame(second));
+    writeFrame(second, "not secrets");
+    writeFrame(first, "not secrets either");
+
+    assertEquals(OutputErrorPhone.DECRYPT_ERROR, first.getInputStream().read());
+    assertEquals(-1, first.getInputStream().read());
+    assertEquals(OutputErrorPhone.DECRYPT_ERROR, second.getInputStream().read());
+    assertEquals(-1, second.getInputStream().read());
+    first.close();
+    second.close();
+    waitForSessions();
+    assertFalse(server.hasSession());
+    assertEquals(2, server.getDecryptFailures());
+  }
+
+  /**
+   * Sessions connecting after the metadata is changed get the new metadata,
+   * and chunked data is read in full before the reply
+   */
+  public void testMetadataChange() throws Exception {
+    server.setMetadata(METADATA + "\nsync=delta");
+    Socket device = connect();
+    assertEquals(METADATA + "\nsync=delta", readFrame(device));
+    FramedChannel channel = new FramedChannel(device.getInputStream(), device.getOutputStream(),
+          FramedChannel.DEFAULT_MAX_MESSAGE_SIZE);
+    channel.setChunked(true);
+    channel.writeMessage(new byte[FramedChannel.CHUNK_SIZE + 1]);
+    assertEquals(OutputErrorPhone.DECRYPT_ERROR, device.getInputStream().read());
+    device.close();
+  }
+
+  /**
+   * Stopping the server forgets the password, so data sent after a restart
+   * cannot be decrypted until the server is configured again
+   */
+  public void testStopForgetsPassword() throws Exception {
+    server.stop();
+    server.start();
+    Socket device = connect();
+    assertEquals(METADATA, readFrame(device));
+    writeFrame(device, "anything");
+    assertEquals(OutputErrorPhone.DECRYPT_ERROR, device.getInputStream().read());
+    device.close();
+  }
+
+  private void waitForSessions() throws InterruptedException {
+    for (int i = 0; i < 100 && server.isReceiving(); i++) {
+      Thread.sleep(50);
+    }
+    assertFalse(server.isReceiving());
+  }
+
+  private Socket connect() throws Exception {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    socket.setSoTimeout(5000);
+    return socket;
+  }
+
+  private static String readFrame(Socket socket) throws Exception {
+    DataInputStream dis = new DataInputStream(socket.getInputStream());
+    byte[] data = new byte[dis.readInt()];
+    dis.readFully(data);
+    return new String(data, "UTF-8");
+  }
+
+  private static void writeFrame(Socket socket, String value) throws Exception {
+    DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+    byte[] data = value.getBytes("UTF-8");
+    dos.writeInt(data.length);
+    dos.write(data);
+    dos.flush();
+  }
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2013 Chris Wood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceperman.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Throughput benchmark of CsvReader and CsvWriter against the opencsv
+ * CSVReader and CSVWriter they replace, on a generated file of export-like
+ * records: six quoted fields, some notes with line breaks, commas and
+ * quotes.
+ *
+ * Each case is run for some warm-up iterations and then timed; the mean
+ * time per iteration is reported. The field lengths are summed and checked,
+ * so the work cannot be optimised away, and the two readers are checked to
+ * return the same records.
+ *
+ * Usage: CsvBenchmark [rows] [warm-up iterations] [iterations]
+ *
+ * The benchmark is kept in the test tree, so it is not part of the
+ * application jar. It is a plain harness rather than JMH because the Ant
+ * build merges every jar in build/jars into pcsecrets.jar, so JMH fetched
+ * there like the Bouncy Castle jar would be shipped with the application.
+ *
+ * @author Chris Wood
+ */
+public class CsvBenchmark {
+   private static final int BUFFER_SIZE = 65536;
+   private static final String CHARSET = "UTF-8";
+
+   private final int rows;
+   private final File file;
+
+   /**
+    * Constructor
+    *
+    * @param rows number of records in the file
+    * @param file the file to write and read
+    */
+   public CsvBenchmark(int rows, File file) {
+      this.rows = rows;
+      this.file = file;
+   }
+
+   /**
+    * A generated record
+    *
+    * @param i record number
+    * @return the fields
+    */
+   public static String[] record(int i) {
+      String note = i % 10 == 0 ? "line 1 of " + i + "\nline 2, with \"quotes\"" : i % 3 == 0 ? "" : "note " + i;
+      return new String[] { "secret " + i, "user" + (i % 100), "p@ss" + Integer.toHexString(i * 31),
+                  "user" + (i % 100) + "@example.com", note, "Mon, 1 Jan 2024 10:00:" + (i % 60) };
+   }
+
+   /**
+    * Write the file with the opencsv writer
+    *
+    * @return sum of the field lengths
+    * @throws IOException
+    */
+   public long writeOpenCSV() throws IOException {
+      Writer writer = newWriter();
+      CSVWriter csvw = new CSVWriter(writer);
+      long sum = 0;
+      try {
+         for (int i = 0; i < rows; i++) {
+            String[] record = record(i);
+            csvw.writeNext(record);
+            sum += lengths(record);
+         }
+      } finally {
+         csvw.close();
+      }
+      return sum;
+   }
+
+   /**
+    * Write the file with CsvWriter
+    *
+    * @return sum of the field lengths
+    * @throws IOException
+    */
+   public long writeCsv() throws IOException {
+      Writer writer = newWriter();
+      CsvWriter csvw = new CsvWriter(writer);
+      long sum = 0;
+      try {
+         for (int i = 0; i < rows; i++) {
+            String[] record = record(i);
+            csvw.writeNext(record);
+            sum += lengths(record);
+         }
+      } finally {
+         csvw.close();
+      }
+      return sum;
+   }
+
+   /**
+    * Read the file with the opencsv reader
+    *
+    * @return sum of the field lengths
+    * @throws IOException
+    */
+   public long readOpenCSV() throws IOException {
+      CSVReader csvr = new CSVReader(newReader());
+      long sum = 0;
+      try {
+         String[] record;
+         while ((record = csvr.readNext()) != null) {
+            sum += lengths(record);
+         }
+      } finally {
+         csvr.close();
+      }
+      return sum;
+   }
+
+   /**
+    * Read the file with CsvReader
+    *
+    * @return sum of the field lengths
+    * @throws IOException
+    */
+   public long readCsv() throws IOException {
+      CsvReader csvr = new CsvReader(newReader());
+      long sum = 0;
+      try {
+         String[] record;
+         while ((record = csvr.readNext()) != null) {
+            sum += lengths(record);
+         }
+      } finally {
+         csvr.close();
+      }
+      return sum;
+   }
+
+   /**
+    * Check that both readers return the records written
+    *
+    * @throws IOException if a record differs
+    */
+   public void verify() throws IOException {
+      CSVReader old = new CSVReader(newReader());
+      CsvReader csvr = new CsvReader(newReader());
+      try {
+         for (int i = 0; i < rows; i++) {
+            String[] expected = record(i);
+            String[] oldRecord = old.readNext();
+            String[] record = csvr.readNext();
+            if (!Arrays.equals(expected, oldRecord) || !Arrays.equals(expected, record)) {
+               throw new IOException("Record " + i + " differs: " + Arrays.toString(oldRecord) + " "
+                           + Arrays.toString(record));
+            }
+         }
+         if (old.readNext() != null || csvr.readNext() != null) {
+            throw new IOException("Extra records");
+         }
+      } finally {
+         old.close();
+         csvr.close();
+      }
+   }
+
+   private Writer newWriter() throws IOException {
+      return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET), BUFFER_SIZE);
+   }
+
+   private Reader newReader() throws IOException {
+      return new InputStreamReader(new FileInputStream(file), CHARSET);
+   }
+
+   private static long lengths(String[] record) {
+      long sum = 0;
+      for (String field : record) {
+         sum += field.length();
+      }
+      return sum;
+   }
+
+   /*
+    * A benchmarked operation
+    */
+   private interface Case {
+      long run() throws IOException;
+   }
+
+   private static void time(String name, Case benchmark, int warmups, int iterations, int rows) throws IOException {
+      long expected = benchmark.run();
+      for (int i = 1; i < warmups; i++) {
+         benchmark.run();
+      }
+      long total = 0;
+      for (int i = 0; i < iterations; i++) {
+         long start = System.nanoTime();
+         long sum = benchmark.run();
+         total += System.nanoTime() - start;
+         if (sum != expected) {
+            throw new IOException(name + ": inconsistent result");
+         }
+      }
+      double ms = total / 1e6 / iterations;
+      System.out.println(String.format("%-16s%12.1f%16.0f", name, ms, rows / ms * 1000));
+   }
+
+   /**
+    * Run the benchmark
+    *
+    * @param args rows, warm-up iterations, iterations
+    * @throws Exception
+    */
+   public static void main(String[] args) throws Exception {
+      int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+      int warmups = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+      int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+      File file = File.createTempFile("csvbenchmark", ".csv");
+      try {
+         final CsvBenchmark benchmark = new CsvBenchmark(rows, file);
+         System.out.println("Mean per iteration, " + rows + " rows, " + warmups + " warm-up, " + iterations
+                     + " iterations");
+         System.out.println(String.format("%-16s%12s%16s", "case", "ms", "rows/s"));
+         time("write opencsv", new Case() {
+            public long run() throws IOException {
+               return benchmark.writeOpenCSV();
+            }
+         }, warmups, iterations, rows);
+         time("write CsvWriter", new Case() {
+            public long run() throws IOException {
+               return benchmark.writeCsv();
+            }
+         }, warmups, iterations, rows);
+         benchmark.verify();
+         time("read opencsv", new Case() {
+            public long run() throws IOException {
+               return benchmark.readOpenCSV();
+            }
+         }, warmups, iterations, rows);
+         time("read CsvReader", new Case() {
+            public long run() throws IOException {
+               return benchmark.readCsv();
+            }
+         }, warmups, iterations, rows);
+      } finally {
+         file.delete();
+      }
+   }
+}